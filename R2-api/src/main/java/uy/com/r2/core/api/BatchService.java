@@ -0,0 +1,36 @@
+/* BatchService.java */
+package uy.com.r2.core.api;
+
+import java.util.List;
+
+/** Optional interface of the service modules that can process a batch.
+ * When a batch of requests is dispatched with Dispatcher.callBatch(), the
+ * requests that reach the same step of the pipeline are given to the
+ * module in one call. The modules w/o this interface, or wrapped by a
+ * monitor, are called once for each request of the batch. <br>
+ * A batch can't be suspended, each returned message must be not NULL.
+ * @author G.Camargo
+ */
+public interface BatchService {
+    
+    /** Invocation dispatch phase of a batch.
+     * For each request the module implementation may return: <br>
+     * (1) A SvcRequest to dispatch to the next service module, or <br>
+     * (2) A SvcResponse created (example: Error condition). <br>
+     * A thrown Exception is returned as an error response of all the batch.
+     * @param reqs Service request messages 
+     * @param cfg Module configuration
+     * @return List of SvcRequest or SvcResponse, in the same order and size
+     * @throws Exception Unexpected error
+     */
+    public List<SvcMessage> onRequests( List<SvcRequest> reqs, Configuration cfg) throws Exception;
+
+    /** Process a batch of responses.
+     * @param resps SvcResponse messages from next module
+     * @param cfg Module configuration
+     * @return List of SvcResponse messages to caller, in the same order and size
+     * @throws Exception Unexpected error
+     */
+    public List<SvcResponse> onResponses( List<SvcResponse> resps, Configuration cfg) throws Exception;
+
+}
@@ -11,6 +11,7 @@ import java.net.URL;
 public class ConfigItemDescriptor {
     public static final Class STRING = String.class;
     public static final Class INTEGER = Integer.class;
+    public static final Class DOUBLE = Double.class;
     public static final Class BOOLEAN = Boolean.class;
     public static final Class URL = URL.class;
     public static final Class MODULE = Module.class;
@@ -1,6 +1,9 @@
 /* Dispatcher.java */
 package uy.com.r2.core.api;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /** Interface to core services to call and manage execution of service modules instances.
  * @author G.Camargo
  */
@@ -31,6 +34,26 @@ public interface Dispatcher extends Module {
      */
     public SvcResponse process( SvcRequest req);   
  
+    /** Start the execution of a request as a continuation.
+     * It never blocks the caller: when an AsyncService module returns null
+     * the pipeline is suspended without keeping any thread, and when 
+     * onMessage delivers the message it is resumed on a worker thread.
+     * The pipeline of services to be executed depends on the Node configuration 
+     * in the Dispatcher (Node.XXXX=Pipe1) or the DefaultServicePipeline.
+     * @param req Request to dispatch
+     * @return Future SvcResponse, errors are packed as a response 
+     */
+    public CompletableFuture<SvcResponse> callAsync( SvcRequest req);   
+ 
+    /** Start running a batch of service calls, and wait all the responses.
+     * Each request goes through the pipeline given by its Node configuration, 
+     * as call() does, but the modules that implement BatchService receive in 
+     * one call all the requests that are on the same step.
+     * @param reqs Requests to dispatch
+     * @return SvcResponse list in the same order, errors are packed as responses
+     */
+    public List<SvcResponse> callBatch( List<SvcRequest> reqs);   
+ 
     /** Dispatch the execution of the next service.
      * This method is used by synchronous module implementations (SimpleService)  
      * to call next one in the service pipeline. Its is only known by the Dispatcher.
@@ -50,6 +73,14 @@ public interface Dispatcher extends Module {
      */
     public SvcResponse callPipeline( String pipe, SvcRequest req) throws Exception;
 
+    /** Dispatch the execution of a batch on a service pipeline by its name.
+     * @param pipe Service pipeline name
+     * @param reqs Requests to dispatch
+     * @return SvcResponse list in the same order, errors are packed as responses
+     * @throws Exception Unexpected error
+     */
+    public List<SvcResponse> callPipelineBatch( String pipe, List<SvcRequest> reqs) throws Exception;
+
     /** Process a message from an asynchronous service implementation.
      * After a service returned NULL because there wasn't a message yet,
      * this method is used to signal the event that now there are a message 
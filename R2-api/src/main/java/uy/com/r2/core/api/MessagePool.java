@@ -0,0 +1,210 @@
+/* MessagePool.java */
+package uy.com.r2.core.api;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/** Opt-in pool of reusable messages, for an allocation-free hot path.
+ * Each thread has its own arena of free requests and responses, with their
+ * payloads, so it needs no locks. While it is disabled they are new ones. <br>
+ * The messages taken inside a scope, as the Dispatcher opens on each call,
+ * are recycled when it ends, except the response returned and its request.
+ * They may also be recycled one by one. <br>
+ * A recycled message must not be used any more: a module that keeps a
+ * message, or a List of its payload, after its response must keep a copy
+ * (Payload.copyOf) or take it out of the pool (keep). The scopes ended by an error response are not recycled,
+ * an asynchronous module may still be working on them.
+ * @author G.Camargo
+ */
+public final class MessagePool {
+    static final int NONE = 0;
+    static final int IN_USE = 1;
+    static final int FREE = 2;
+    private static final int MAX_FREE = 64;
+    private static final ThreadLocal<Arena> ARENA = new ThreadLocal<Arena>() {
+        @Override
+        protected Arena initialValue() {
+            return new Arena();
+        }
+    };
+    private static volatile boolean enabled = false;
+
+    private MessagePool() {
+    }
+
+    /** Enable or disable the pool, disabled by default.
+     * @param enabled Boolean
+     */
+    public static void setEnabled( boolean enabled) {
+        MessagePool.enabled = enabled;
+    }
+
+    /** Test if it is enabled.
+     * @return Boolean
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Get a request, a reused one when it is enabled.
+     * @param clientNode Client node name or null
+     * @param nodeRqNr Node request number, it must change every request
+     * @param sessionNr Session ticket, only for auditory proposes
+     * @param service Requested service name
+     * @param payload Message data multimap, or null to use a pooled one
+     * @param timeOut Maximum response time in mS, or 0
+     * @return SvcRequest
+     */
+    public static SvcRequest newRequest( String clientNode, int nodeRqNr, int sessionNr,
+            String service, Map<String,List<Object>> payload, int timeOut) {
+        if( !enabled) {
+            return new SvcRequest( clientNode, nodeRqNr, sessionNr, service, payload, timeOut);
+        }
+        Arena a = ARENA.get();
+        SvcRequest r = a.requests.pollLast();
+        if( r == null) {
+            r = new SvcRequest( clientNode, nodeRqNr, sessionNr, service, payload, timeOut);
+        } else {
+            r.reset( clientNode, nodeRqNr, sessionNr, service, payload, timeOut);
+        }
+        a.take( r);
+        return r;
+    }
+
+    /** Get a response without data, a reused one when it is enabled.
+     * @param resultCode Result code, 0 is ok
+     * @param request Invocation request
+     * @return SvcResponse
+     */
+    public static SvcResponse newResponse( int resultCode, SvcRequest request) {
+        if( !enabled) {
+            return new SvcResponse( resultCode, request);
+        }
+        Arena a = ARENA.get();
+        SvcResponse r = a.responses.pollLast();
+        if( r == null) {
+            r = new SvcResponse( resultCode, request);
+        } else {
+            r.reset( resultCode, request);
+        }
+        a.take( r);
+        return r;
+    }
+
+    /** Start a scope, the messages taken until its exit are recycled then.
+     * @return Mark to exit the scope, negative when it is disabled
+     */
+    public static int enter() {
+        if( !enabled) {
+            return -1;
+        }
+        Arena a = ARENA.get();
+        ++a.depth;
+        return a.size;
+    }
+
+    /** End a scope and recycle its messages.
+     * @param mark Mark returned by enter
+     * @param keep Response returned from the scope or null, it and its
+     *   request are not recycled
+     */
+    public static void exit( int mark, SvcResponse keep) {
+        if( mark < 0) {
+            return;
+        }
+        Arena a = ARENA.get();
+        if( a.depth == 0) {
+            return;
+        }
+        --a.depth;
+        boolean drop = keep != null && keep.getResultCode() < 0;
+        SvcRequest kr = ( keep == null)? null: keep.getRequest();
+        int n = mark;
+        for( int i = mark; i < a.size; ++i) {
+            SvcMessage m = a.taken[ i];
+            a.taken[ i] = null;
+            if( m == null || m.pooled != IN_USE) {
+                continue;
+            } else if( m == keep || m == kr) {
+                a.taken[ n++] = m;   // Still used by the caller
+            } else if( drop) {
+                m.pooled = NONE;
+            } else {
+                a.free( m);
+            }
+        }
+        if( a.depth == 0) {   // Out of any scope they are not tracked
+            Arrays.fill( a.taken, mark, n, null);
+            n = mark;
+        }
+        a.size = n;
+    }
+
+    /** Take a message out of the pool, it and the request of a response are
+     * never recycled. For a module that keeps the message after its response.
+     * @param msg Message to keep, or null
+     */
+    public static void keep( SvcMessage msg) {
+        if( msg == null) {
+            return;
+        }
+        if( msg.pooled == IN_USE) {
+            msg.pooled = NONE;
+        }
+        if( msg instanceof SvcResponse) {
+            keep( ( (SvcResponse)msg).getRequest());
+        }
+    }
+
+    /** Recycle a message, when it was taken from the pool.
+     * @param msg Message not used any more, or null
+     */
+    public static void recycle( SvcMessage msg) {
+        if( msg == null || msg.pooled != IN_USE) {
+            return;
+        }
+        Arena a = ARENA.get();
+        for( int i = a.size - 1; i >= 0; --i) {
+            if( a.taken[ i] == msg) {
+                a.taken[ i] = null;
+                break;
+            }
+        }
+        a.free( msg);
+    }
+
+    /** Free messages and open scopes of a thread. */
+    private static class Arena {
+        private final ArrayDeque<SvcRequest> requests = new ArrayDeque( MAX_FREE);
+        private final ArrayDeque<SvcResponse> responses = new ArrayDeque( MAX_FREE);
+        private SvcMessage taken[] = new SvcMessage[ 16];
+        private int size = 0;
+        private int depth = 0;
+
+        private void take( SvcMessage m) {
+            m.pooled = IN_USE;
+            if( depth == 0) {
+                return;
+            }
+            if( size == taken.length) {
+                taken = Arrays.copyOf( taken, size * 2);
+            }
+            taken[ size++] = m;
+        }
+
+        private void free( SvcMessage m) {
+            m.release();
+            m.pooled = FREE;
+            if( m instanceof SvcRequest) {
+                if( requests.size() < MAX_FREE) {
+                    requests.addLast( ( SvcRequest)m);
+                }
+            } else if( responses.size() < MAX_FREE) {
+                responses.addLast( ( SvcResponse)m);
+            }
+        }
+    }
+
+}
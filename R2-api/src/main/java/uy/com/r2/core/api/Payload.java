@@ -0,0 +1,770 @@
+/* Payload.java */
+package uy.com.r2.core.api;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/** Compact Multi-Map used as the message payload.
+ * The fields are kept in insertion order on two arrays, searched one by one,
+ * that fits the few fields of a message better than a hash table. 
+ * The values are array based lists that keep a single value inline. <br>
+ * With a {@link uy.com.r2.core.api.PayloadSchema} the declared fields are 
+ * kept on its slots, with typed values, before the other ones. <br>
+ * A copy shares the arrays until one of them is modified, the Lists got
+ * before the copy are still shared. The methods that only read, as
+ * getValues(), getEntries(), keySet(), equals() or toString(), do not copy
+ * a shared payload.
+ * @author G.Camargo
+ */
+public class Payload extends AbstractMap<String,List<Object>> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final String NO_KEYS[] = new String[ 0];
+    private static final Object NO_VALUES[] = new Object[ 0];
+    private String keys[];
+    private Object values[];   // List<Object>
+    private int size = 0;
+    private PayloadSchema schema = null;
+    private Object slots[] = NO_VALUES;  // List<Object> by declared field, or null
+    private int slotCount = 0;
+    private transient boolean shared = false;
+    private transient EntrySet entrySet = null;
+    private transient EntrySet entries = null;   // To read
+    private transient KeySet keySet = null;
+    private transient PayloadHash hash = null;   // Dropped when it may be modified
+
+    /** Constructor. */
+    public Payload() {
+        this( 8);
+    }
+
+    /** Constructor with the expected number of fields.
+     * @param expected Size hint
+     */
+    public Payload( int expected) {
+        keys = ( expected > 0)? new String[ expected]: NO_KEYS;
+        values = ( expected > 0)? new Object[ expected]: NO_VALUES;
+    }
+
+    /** Constructor with a slots layout.
+     * @param schema Declared fields or null
+     * @param expected Size hint of the undeclared fields
+     */
+    public Payload( PayloadSchema schema, int expected) {
+        this( expected);
+        if( schema != null) {
+            this.schema = schema;
+            this.slots = new Object[ schema.size()];
+        }
+    }
+
+    /** Copy constructor, the Lists are copied.
+     * @param map Other payload
+     */
+    public Payload( Map<String,List<Object>> map) {
+        this( map.size());
+        for( Map.Entry<String,List<Object>> e: map.entrySet()) {
+            keys[ size] = e.getKey();
+            values[ size++] = new Values( e.getValue());
+        }
+    }
+
+    /** Copy a payload, on write when it is a Payload.
+     * @param map Payload to copy or null
+     * @return New Payload
+     */
+    public static Payload copyOf( Map<String,List<Object>> map) {
+        if( map == null) {
+            return new Payload();
+        } else if( map instanceof Payload) {
+            return ( (Payload)map).copy();
+        }
+        return new Payload( map);
+    }
+
+    /** Copy on write, both share the data until one of them is modified.
+     * @return New Payload
+     */
+    public Payload copy() {
+        Payload p = new Payload( 0);
+        share( p);
+        return p;
+    }
+
+    /** Share the data with another payload, copy on write.
+     * @param p Empty payload, it takes the data
+     */
+    protected void share( Payload p) {
+        p.keys = keys;
+        p.values = values;
+        p.size = size;
+        p.schema = schema;
+        p.slots = slots;
+        p.slotCount = slotCount;
+        p.hash = hash;
+        p.shared = true;
+        shared = true;
+    }
+
+    /** Get the slots layout.
+     * @return PayloadSchema or null
+     */
+    public PayloadSchema getSchema() {
+        return schema;
+    }
+
+    /** Get the slot of a declared field.
+     * @param key Field name
+     * @return Slot index or -1
+     */
+    public int getSlot( String key) {
+        return ( schema == null)? -1: schema.indexOf( key);
+    }
+
+    /** Get the first value of a slot.
+     * @param slot Slot index
+     * @return Object or null
+     */
+    public Object getFirst( int slot) {
+        return first( ( List<Object>)slots[ slot]);
+    }
+
+    /** Get the first value of a field, w/o copying a shared payload.
+     * @param key Field name
+     * @return Object or null
+     */
+    public Object getFirst( String key) {
+        return first( getValues( key));
+    }
+
+    /** Get the values of a field to read, w/o copying a shared payload.
+     * The List must not be modified.
+     * @param key Field name
+     * @return List or null
+     */
+    public List<Object> getValues( String key) {
+        int s = getSlot( key);
+        if( s >= 0) {
+            return ( List<Object>)slots[ s];
+        }
+        int i = indexOf( key);
+        return ( i < 0)? null: ( List<Object>)values[ i];
+    }
+
+    /** Get the fields to read, w/o copying a shared payload.
+     * The Lists must not be modified, as the ones of getValues().
+     * @return Set of the fields, the declared ones first
+     */
+    public Set<Map.Entry<String,List<Object>>> getEntries() {
+        if( entries == null) {
+            entries = new EntrySet( false);
+        }
+        return entries;
+    }
+
+    /** Get the canonical form and hash, memoized until it is modified.
+     * A List got to modify (get, entrySet) drops it, as the changes of it
+     * can't be seen.
+     * @param exclude Field name to exclude, as a signature, or null
+     * @return PayloadHash
+     */
+    public PayloadHash getHash( String exclude) {
+        PayloadHash h = hash;
+        if( h == null || !( exclude == null? h.getExcluded() == null: exclude.equals( h.getExcluded()))) {
+            h = PayloadHash.of( this, exclude);
+            hash = h;
+        }
+        return h;
+    }
+
+    /** Get the first field name.
+     * @return String or null when it is empty
+     */
+    public String getFirstKey() {
+        for( int i = 0; i < slots.length; ++i) {
+            if( slots[ i] != null) {
+                return schema.getField( i);
+            }
+        }
+        return ( size == 0)? null: keys[ 0];
+    }
+
+    /** Get the field names sorted, the declared ones are already sorted.
+     * @return Array of names
+     */
+    public String[] getSortedKeys() {
+        String ks[] = Arrays.copyOf( keys, size);
+        Arrays.sort( ks);
+        if( slotCount == 0) {
+            return ks;
+        }
+        String r[] = new String[ slotCount + size];
+        int i = 0, j = 0, k = 0;
+        while( i < slots.length || j < ks.length) {
+            while( i < slots.length && slots[ i] == null) {
+                ++i;
+            }
+            if( i < slots.length && ( j >= ks.length || schema.getField( i).compareTo( ks[ j]) <= 0)) {
+                r[ k++] = schema.getField( i++);
+            } else if( j < ks.length) {
+                r[ k++] = ks[ j++];
+            }
+        }
+        return r;
+    }
+
+    /** Add a value to a field.
+     * @param key Field name
+     * @param obj Value
+     */
+    public void add( String key, Object obj) {
+        unshare();
+        int s = getSlot( key);
+        if( s >= 0) {
+            obj = schema.convert( s, obj);
+            if( slots[ s] == null) {
+                slots[ s] = new Values( obj);
+                ++slotCount;
+            } else {
+                ( (List<Object>)slots[ s]).add( obj);
+            }
+            return;
+        }
+        int i = indexOf( key);
+        if( i < 0) {
+            append( key, new Values( obj));
+        } else if( values[ i] == null) {
+            values[ i] = new Values( obj);
+        } else {
+            ( (List<Object>)values[ i]).add( obj);
+        }
+    }
+
+    /** Set the only value of a field.
+     * @param key Field name
+     * @param obj Value
+     */
+    public void set( String key, Object obj) {
+        unshare();
+        int s = getSlot( key);
+        if( s >= 0) {
+            if( slots[ s] == null) {
+                ++slotCount;
+            }
+            slots[ s] = new Values( schema.convert( s, obj));
+            return;
+        }
+        int i = indexOf( key);
+        if( i < 0) {
+            append( key, new Values( obj));
+        } else {
+            values[ i] = new Values( obj);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size + slotCount;
+    }
+
+    @Override
+    public boolean containsKey( Object key) {
+        int s = ( schema == null)? -1: schema.indexOf( key);
+        if( s >= 0) {
+            return slots[ s] != null;
+        }
+        return indexOf( key) >= 0;
+    }
+
+    @Override
+    public List<Object> get( Object key) {
+        int s = ( schema == null)? -1: schema.indexOf( key);
+        int i = ( s >= 0)? -1: indexOf( key);
+        if( ( s >= 0 && slots[ s] == null) || ( s < 0 && i < 0)) {
+            return null;
+        }
+        unshare();   // The list may be modified
+        return ( List<Object>)( ( s >= 0)? slots[ s]: values[ i]);
+    }
+
+    @Override
+    public List<Object> put( String key, List<Object> value) {
+        unshare();
+        int s = getSlot( key);
+        if( s >= 0) {
+            List<Object> old = ( List<Object>)slots[ s];
+            if( old == null) {
+                ++slotCount;
+            }
+            slots[ s] = convert( s, value);
+            return old;
+        }
+        int i = indexOf( key);
+        if( i < 0) {
+            append( key, value);
+            return null;
+        }
+        List<Object> old = ( List<Object>)values[ i];
+        values[ i] = value;
+        return old;
+    }
+
+    @Override
+    public List<Object> remove( Object key) {
+        int s = ( schema == null)? -1: schema.indexOf( key);
+        if( s >= 0) {
+            if( slots[ s] == null) {
+                return null;
+            }
+            unshare();
+            List<Object> old = ( List<Object>)slots[ s];
+            slots[ s] = null;
+            --slotCount;
+            return old;
+        }
+        int i = indexOf( key);
+        if( i < 0) {
+            return null;
+        }
+        unshare();
+        List<Object> old = ( List<Object>)values[ i];
+        removeAt( i);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        hash = null;
+        if( shared) {
+            keys = NO_KEYS;
+            values = NO_VALUES;
+            slots = new Object[ slots.length];
+            shared = false;
+        } else {
+            Arrays.fill( keys, 0, size, null);
+            Arrays.fill( values, 0, size, null);
+            Arrays.fill( slots, null);
+        }
+        size = 0;
+        slotCount = 0;
+    }
+
+    /** Empty it to be reused, keeping its arrays if they are not shared.
+     * @param schema Slots layout of the next use or null
+     */
+    void reset( PayloadSchema schema) {
+        clear();
+        if( schema != this.schema) {
+            this.schema = schema;
+            slots = ( schema == null)? NO_VALUES: new Object[ schema.size()];
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String,List<Object>>> entrySet() {
+        unshare();   // The entries may be modified
+        if( entrySet == null) {
+            entrySet = new EntrySet( true);
+        }
+        return entrySet;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        if( keySet == null) {
+            keySet = new KeySet();
+        }
+        return keySet;
+    }
+
+    @Override
+    public boolean equals( Object o) {
+        if( o == this) {
+            return true;
+        } else if( !( o instanceof Map) || ( (Map)o).size() != size()) {
+            return false;
+        }
+        Map<?,?> m = ( Map)o;
+        Payload p = ( o instanceof Payload)? ( Payload)o: null;
+        for( Map.Entry<String,List<Object>> e: getEntries()) {
+            List<Object> v = e.getValue();
+            Object w = ( p != null)? p.getValues( e.getKey()): m.get( e.getKey());
+            if( v == null? ( w != null || !m.containsKey( e.getKey())): !v.equals( w)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for( Map.Entry<String,List<Object>> e: getEntries()) {
+            h += e.hashCode();
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder( "{");
+        for( Map.Entry<String,List<Object>> e: getEntries()) {
+            if( sb.length() > 1) {
+                sb.append( ", ");
+            }
+            sb.append( e.getKey()).append( '=').append( e.getValue());
+        }
+        return sb.append( '}').toString();
+    }
+
+    private static Object first( List<Object> l) {
+        return ( l == null || l.isEmpty())? null: l.get( 0);
+    }
+
+    /** Convert the values of a declared field, if it is typed. */
+    private List<Object> convert( int slot, List<Object> l) {
+        if( l == null || l.isEmpty() || schema.convert( slot, l.get( 0)) == l.get( 0)) {
+            return l;   // Not typed, or already converted
+        }
+        Values vs = new Values();
+        for( Object o: l) {
+            vs.add( schema.convert( slot, o));
+        }
+        return vs;
+    }
+
+    private int indexOf( Object key) {
+        if( key == null) {
+            for( int i = 0; i < size; ++i) {
+                if( keys[ i] == null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        for( int i = 0; i < size; ++i) {
+            if( key.equals( keys[ i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void append( String key, List<Object> value) {
+        if( size == keys.length) {
+            int n = Math.max( 4, size * 2);
+            keys = Arrays.copyOf( keys, n);
+            values = Arrays.copyOf( values, n);
+        }
+        keys[ size] = key;
+        values[ size++] = value;
+    }
+
+    private void removeAt( int i) {
+        --size;
+        System.arraycopy( keys, i + 1, keys, i, size - i);
+        System.arraycopy( values, i + 1, values, i, size - i);
+        keys[ size] = null;
+        values[ size] = null;
+    }
+
+    /** Get its own copy of the arrays and the Lists, when they are shared. */
+    private void unshare() {
+        hash = null;
+        if( !shared) {
+            return;
+        }
+        keys = Arrays.copyOf( keys, Math.max( size, 4));
+        Object vs[] = new Object[ keys.length];
+        for( int i = 0; i < size; ++i) {
+            if( values[ i] != null) {
+                vs[ i] = new Values( ( List<Object>)values[ i]);
+            }
+        }
+        values = vs;
+        Object ss[] = new Object[ slots.length];
+        for( int i = 0; i < slots.length; ++i) {
+            if( slots[ i] != null) {
+                ss[ i] = new Values( ( List<Object>)slots[ i]);
+            }
+        }
+        slots = ss;
+        shared = false;
+    }
+
+    /** View of the fields, the declared ones first. 
+     * The one to read does not copy a shared payload, but to remove one.
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<String,List<Object>>> {
+        private final boolean toWrite;
+
+        private EntrySet( boolean toWrite) {
+            this.toWrite = toWrite;
+        }
+
+        @Override
+        public int size() {
+            return Payload.this.size();
+        }
+
+        @Override
+        public Iterator<Map.Entry<String,List<Object>>> iterator() {
+            if( toWrite) {
+                unshare();
+            }
+            return new Iterator<Map.Entry<String,List<Object>>>() {
+                private int next = skip( 0);
+                private int last = -1;
+
+                /** Position of the next present field, slots and then the others. */
+                private int skip( int i) {
+                    while( i < slots.length && slots[ i] == null) {
+                        ++i;
+                    }
+                    return i;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next < slots.length + size;
+                }
+
+                @Override
+                public Map.Entry<String,List<Object>> next() {
+                    if( !hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    last = next;
+                    next = skip( next + 1);
+                    return new Entry( last);
+                }
+
+                @Override
+                public void remove() {
+                    if( last < 0) {
+                        throw new IllegalStateException();
+                    }
+                    unshare();   // Its positions are kept
+                    if( last < slots.length) {
+                        slots[ last] = null;
+                        --slotCount;
+                    } else {
+                        removeAt( last - slots.length);
+                        next = last;
+                    }
+                    last = -1;
+                }
+            };
+        }
+    }
+
+    /** View of the field names, to read. */
+    private class KeySet extends AbstractSet<String> {
+
+        @Override
+        public int size() {
+            return Payload.this.size();
+        }
+
+        @Override
+        public boolean contains( Object o) {
+            return containsKey( o);
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final Iterator<Map.Entry<String,List<Object>>> it = getEntries().iterator();
+            return new Iterator<String>() {
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return it.next().getKey();
+                }
+
+                @Override
+                public void remove() {
+                    it.remove();
+                }
+            };
+        }
+    }
+
+    /** A field, by its position: the slot, or the slots count plus its index. */
+    private class Entry implements Map.Entry<String,List<Object>> {
+        private final String key;
+        private final int index;
+
+        private Entry( int index) {
+            this.key = ( index < slots.length)? schema.getField( index): keys[ index - slots.length];
+            this.index = index;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public List<Object> getValue() {
+            return ( List<Object>)( ( index < slots.length)? slots[ index]: values[ index - slots.length]);
+        }
+
+        @Override
+        public List<Object> setValue( List<Object> value) {
+            unshare();
+            List<Object> old = getValue();
+            if( index < slots.length) {
+                slots[ index] = convert( index, value);
+            } else {
+                values[ index - slots.length] = value;
+            }
+            return old;
+        }
+
+        @Override
+        public boolean equals( Object o) {
+            if( !( o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry e = ( Map.Entry)o;
+            Object v = getValue();
+            return ( key == null? e.getKey() == null: key.equals( e.getKey()))
+                    && ( v == null? e.getValue() == null: v.equals( e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object v = getValue();
+            return ( key == null? 0: key.hashCode()) ^ ( v == null? 0: v.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+
+    /** Array based List, a single value is kept inline. */
+    public static class Values extends AbstractList<Object> implements RandomAccess, Serializable {
+        private static final long serialVersionUID = 1L;
+        private Object first = null;
+        private Object more[] = null;   // From the second one
+        private int size = 0;
+
+        /** Constructor, empty. */
+        public Values() {
+        }
+
+        /** Constructor with one value.
+         * @param obj Value
+         */
+        public Values( Object obj) {
+            first = obj;
+            size = 1;
+        }
+
+        /** Copy constructor.
+         * @param l Values to copy
+         */
+        public Values( List<Object> l) {
+            size = l.size();
+            if( size > 0) {
+                first = l.get( 0);
+            }
+            if( size > 1) {
+                more = new Object[ size - 1];
+                for( int i = 1; i < size; ++i) {
+                    more[ i - 1] = l.get( i);
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Object get( int index) {
+            if( index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException( "Index: " + index + ", Size: " + size);
+            }
+            return ( index == 0)? first: more[ index - 1];
+        }
+
+        @Override
+        public Object set( int index, Object obj) {
+            Object old = get( index);
+            if( index == 0) {
+                first = obj;
+            } else {
+                more[ index - 1] = obj;
+            }
+            return old;
+        }
+
+        @Override
+        public void add( int index, Object obj) {
+            if( index < 0 || index > size) {
+                throw new IndexOutOfBoundsException( "Index: " + index + ", Size: " + size);
+            }
+            if( size > 0) {
+                if( more == null) {
+                    more = new Object[ 3];
+                } else if( size - 1 == more.length) {
+                    more = Arrays.copyOf( more, more.length * 2);
+                }
+                if( index == 0) {
+                    System.arraycopy( more, 0, more, 1, size - 1);
+                    more[ 0] = first;
+                    first = obj;
+                } else {
+                    System.arraycopy( more, index - 1, more, index, size - index);
+                    more[ index - 1] = obj;
+                }
+            } else {
+                first = obj;
+            }
+            ++size;
+            ++modCount;
+        }
+
+        @Override
+        public Object remove( int index) {
+            Object old = get( index);
+            if( index == 0) {
+                first = ( size > 1)? more[ 0]: null;
+                index = 1;
+            }
+            if( size > 1) {
+                System.arraycopy( more, index, more, index - 1, size - index - 1);
+                more[ size - 2] = null;
+            }
+            --size;
+            ++modCount;
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            first = null;
+            more = null;
+            size = 0;
+            ++modCount;
+        }
+    }
+
+}
@@ -0,0 +1,277 @@
+/* PayloadHash.java */
+package uy.com.r2.core.api;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/** Canonical form of a payload and its 128 bits hash.
+ * The canonical bytes are the fields sorted by name as name=value,value,\n
+ * in UTF-8, where '\', ',', '=' and new line are escaped by '\' and a null
+ * is \0. The integers and dates (in mS) are written w/o making Strings. <br>
+ * The hash (MurmurHash3 x64 128) is calculated while the bytes are
+ * written, on a single pass. Two equal payloads have equal canonical
+ * forms, whatever its Map implementation or fields order.
+ * @author G.Camargo
+ */
+public final class PayloadHash {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final char HEX[] = "0123456789abcdef".toCharArray();
+    private final long high;
+    private final long low;
+    private final byte bytes[];
+    private final String excluded;
+
+    private PayloadHash( long high, long low, byte bytes[], String excluded) {
+        this.high = high;
+        this.low = low;
+        this.bytes = bytes;
+        this.excluded = excluded;
+    }
+
+    /** Calculate the canonical form of a payload.
+     * Use SvcMessage.getPayloadHash() to get it memoized.
+     * @param payload Payload
+     * @param exclude Field name to exclude, as a signature, or null
+     * @return PayloadHash
+     */
+    public static PayloadHash of( Map<String,List<Object>> payload, String exclude) {
+        Builder b = new Builder();
+        Payload p = ( payload instanceof Payload)? ( Payload)payload: null;
+        String keys[];
+        if( p != null) {
+            keys = p.getSortedKeys();
+        } else {
+            keys = payload.keySet().toArray( new String[ payload.size()]);
+            Arrays.sort( keys);
+        }
+        for( String k: keys) {
+            if( k.equals( exclude)) {
+                continue;
+            }
+            b.text( k);
+            b.put( '=');
+            List<Object> l = ( p != null)? p.getValues( k): payload.get( k);
+            if( l != null) {
+                for( Object o: l) {
+                    b.value( o);
+                    b.put( ',');
+                }
+            }
+            b.put( '\n');
+        }
+        return b.build( exclude);
+    }
+
+    /** Get the high 64 bits of the hash.
+     * @return Long
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    /** Get the low 64 bits of the hash.
+     * @return Long
+     */
+    public long getLow() {
+        return low;
+    }
+
+    /** Get the canonical bytes, they must not be modified.
+     * @return Array of bytes
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /** Get the field excluded.
+     * @return Field name or null
+     */
+    public String getExcluded() {
+        return excluded;
+    }
+
+    @Override
+    public int hashCode() {
+        return ( int)high;
+    }
+
+    /** Equal hash and canonical bytes.
+     * @param o Other PayloadHash
+     * @return Boolean
+     */
+    @Override
+    public boolean equals( Object o) {
+        if( !( o instanceof PayloadHash)) {
+            return false;
+        }
+        PayloadHash h = ( PayloadHash)o;
+        return high == h.high && low == h.low && Arrays.equals( bytes, h.bytes);
+    }
+
+    /** Get the hash in hexadecimal.
+     * @return String of 32 chars
+     */
+    @Override
+    public String toString() {
+        char c[] = new char[ 32];
+        for( int i = 0; i < 16; ++i) {
+            c[ 15 - i] = HEX[ ( int)( high >>> ( i * 4)) & 0xf];
+            c[ 31 - i] = HEX[ ( int)( low >>> ( i * 4)) & 0xf];
+        }
+        return new String( c);
+    }
+
+    /** Writer of the canonical bytes, hashing each 16 bytes block. */
+    private static class Builder {
+        private byte buf[] = new byte[ 64];
+        private int length = 0;
+        private int hashed = 0;
+        private long h1 = 0;
+        private long h2 = 0;
+
+        private void put( int b) {
+            if( length == buf.length) {
+                buf = Arrays.copyOf( buf, length * 2);
+            }
+            buf[ length++] = ( byte)b;
+            if( length - hashed == 16) {
+                block( getLong( hashed), getLong( hashed + 8));
+                hashed += 16;
+            }
+        }
+
+        private void value( Object o) {
+            if( o == null) {
+                put( '\\');
+                put( '0');
+            } else if( o instanceof CharSequence) {
+                text( ( CharSequence)o);
+            } else if( o instanceof Integer || o instanceof Long
+                    || o instanceof Short || o instanceof Byte) {
+                number( ( (Number)o).longValue());
+            } else if( o instanceof Date) {
+                number( ( (Date)o).getTime());
+            } else if( o instanceof byte[]) {
+                for( byte b: ( byte[])o) {
+                    put( HEX[ ( b >> 4) & 0xf]);
+                    put( HEX[ b & 0xf]);
+                }
+            } else {
+                text( o.toString());
+            }
+        }
+
+        private void number( long n) {
+            if( n < 0) {
+                put( '-');
+            } else {
+                n = -n;   // Negative, to handle Long.MIN_VALUE
+            }
+            long d = -1;
+            while( n / d >= 10) {
+                d *= 10;
+            }
+            for( ; d != 0; d /= 10) {
+                put( '0' + ( int)( n / d));
+                n %= d;
+            }
+        }
+
+        private void text( CharSequence s) {
+            for( int i = 0; i < s.length(); ++i) {
+                char c = s.charAt( i);
+                if( c == '\\' || c == ',' || c == '=' || c == '\n') {
+                    put( '\\');
+                    put( c);
+                } else if( c < 0x80) {
+                    put( c);
+                } else if( c < 0x800) {
+                    put( 0xc0 | ( c >> 6));
+                    put( 0x80 | ( c & 0x3f));
+                } else if( Character.isHighSurrogate( c) && i + 1 < s.length()
+                        && Character.isLowSurrogate( s.charAt( i + 1))) {
+                    int cp = Character.toCodePoint( c, s.charAt( ++i));
+                    put( 0xf0 | ( cp >> 18));
+                    put( 0x80 | ( ( cp >> 12) & 0x3f));
+                    put( 0x80 | ( ( cp >> 6) & 0x3f));
+                    put( 0x80 | ( cp & 0x3f));
+                } else {
+                    put( 0xe0 | ( c >> 12));
+                    put( 0x80 | ( ( c >> 6) & 0x3f));
+                    put( 0x80 | ( c & 0x3f));
+                }
+            }
+        }
+
+        private PayloadHash build( String exclude) {
+            long k1 = 0;
+            long k2 = 0;
+            int tail = length - hashed;
+            for( int i = tail - 1; i >= 8; --i) {
+                k2 = ( k2 << 8) | ( buf[ hashed + i] & 0xffL);
+            }
+            for( int i = Math.min( tail, 8) - 1; i >= 0; --i) {
+                k1 = ( k1 << 8) | ( buf[ hashed + i] & 0xffL);
+            }
+            if( tail > 8) {
+                k2 *= C2;
+                k2 = Long.rotateLeft( k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            }
+            if( tail > 0) {
+                k1 *= C1;
+                k1 = Long.rotateLeft( k1, 31);
+                k1 *= C2;
+                h1 ^= k1;
+            }
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix( h1);
+            h2 = fmix( h2);
+            h1 += h2;
+            h2 += h1;
+            return new PayloadHash( h1, h2, Arrays.copyOf( buf, length), exclude);
+        }
+
+        private long getLong( int i) {
+            long l = 0;
+            for( int j = 7; j >= 0; --j) {
+                l = ( l << 8) | ( buf[ i + j] & 0xffL);
+            }
+            return l;
+        }
+
+        private void block( long k1, long k2) {
+            k1 *= C1;
+            k1 = Long.rotateLeft( k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft( h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            k2 *= C2;
+            k2 = Long.rotateLeft( k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft( h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        private static long fmix( long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+
+}
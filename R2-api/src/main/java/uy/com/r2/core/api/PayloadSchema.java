@@ -0,0 +1,211 @@
+/* PayloadSchema.java */
+package uy.com.r2.core.api;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Slots layout of the payload of a service, compiled from its ServiceReference.
+ * The declared fields are kept on an indexed array, sorted by name, with 
+ * interned names, so a field name given as a constant is found by identity.
+ * The values of INTEGER, NUMBER and DATE fields are converted to Long, 
+ * Double and Date when they are set. The undeclared fields go on as usual. <br>
+ * The services register its reference, and the messages of the service 
+ * are created with its layout. A module registers it as its owner, so 
+ * other instance of the module, as the one drained on a swap, does not 
+ * remove it when it is shut down.
+ * @author G.Camargo
+ */
+public class PayloadSchema implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Map<String,Registered> SCHEMAS = new ConcurrentHashMap();
+    private static final String DATE_FORMATS[] = { 
+        "yyyy-MM-dd'T'HH:mm:ss.SSSZ", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd" 
+    };
+    private final String fields[];
+    private final ServiceReference.Type types[];
+
+    /** Compile a layout.
+     * @param fieldTypes Field names and types
+     */
+    public PayloadSchema( Map<String,ServiceReference.Type> fieldTypes) {
+        fields = fieldTypes.keySet().toArray( new String[ fieldTypes.size()]);
+        Arrays.sort( fields);
+        types = new ServiceReference.Type[ fields.length];
+        for( int i = 0; i < fields.length; ++i) {
+            types[ i] = fieldTypes.get( fields[ i]);
+            fields[ i] = fields[ i].intern();
+        }
+    }
+
+    /** Register the request and response layouts of a service.
+     * @param sr Service reference
+     */
+    public static void register( ServiceReference sr) {
+        register( sr, null);
+    }
+
+    /** Register the layouts of a service, replacing the ones of other owner.
+     * @param sr Service reference
+     * @param owner Module instance that registers it
+     */
+    public static void register( ServiceReference sr, Object owner) {
+        SCHEMAS.put( sr.getServiceName(), new Registered( owner, 
+                new PayloadSchema( sr.getRequestFieldTypes()),
+                new PayloadSchema( sr.getResponseFieldTypes())));
+    }
+
+    /** Remove the layouts of a service, whatever its owner.
+     * @param service Service name
+     */
+    public static void unregister( String service) {
+        SCHEMAS.remove( service);
+    }
+
+    /** Remove the layouts of a service, only if they are of this owner.
+     * @param service Service name
+     * @param owner Module instance that registered it
+     */
+    public static void unregister( String service, Object owner) {
+        Registered r = SCHEMAS.get( service);
+        if( r != null && r.owner == owner) {
+            SCHEMAS.remove( service, r);
+        }
+    }
+
+    /** Get the layout of a service.
+     * @param service Service name
+     * @param request true to get the request one, false for the response
+     * @return PayloadSchema or null when the service has not one
+     */
+    public static PayloadSchema getSchema( String service, boolean request) {
+        if( SCHEMAS.isEmpty() || service == null) {
+            return null;
+        }
+        Registered r = SCHEMAS.get( service);
+        return ( r == null)? null: ( request? r.request: r.response);
+    }
+
+    /** Create a payload with the layout of a service, if it has one.
+     * @param service Service name
+     * @param request true for a request, false for a response
+     * @param expected Number of fields expected, a size hint
+     * @return Payload
+     */
+    public static Payload newPayload( String service, boolean request, int expected) {
+        return new Payload( getSchema( service, request), expected);
+    }
+
+    /** Get the number of declared fields.
+     * @return Slots count
+     */
+    public int size() {
+        return fields.length;
+    }
+
+    /** Get the field name of a slot.
+     * @param slot Slot index
+     * @return Field name
+     */
+    public String getField( int slot) {
+        return fields[ slot];
+    }
+
+    /** Get the type of a slot.
+     * @param slot Slot index
+     * @return Type
+     */
+    public ServiceReference.Type getType( int slot) {
+        return types[ slot];
+    }
+
+    /** Get the slot of a field.
+     * @param key Field name
+     * @return Slot index, or -1 when it is not declared
+     */
+    public int indexOf( Object key) {
+        for( int i = 0; i < fields.length; ++i) {  // Interned constants
+            if( fields[ i] == key) {
+                return i;
+            }
+        }
+        if( !( key instanceof String)) {
+            return -1;
+        }
+        int i = Arrays.binarySearch( fields, key);
+        return ( i < 0)? -1: i;
+    }
+
+    /** Convert a value to the type of the slot.
+     * A value that can't be converted is kept as it is.
+     * @param slot Slot index
+     * @param value Value
+     * @return Converted value
+     */
+    public Object convert( int slot, Object value) {
+        ServiceReference.Type t = types[ slot];
+        if( value == null || t == null || t == ServiceReference.STRING || t == ServiceReference.ENUM) {
+            return value;
+        }
+        try {
+            if( t == ServiceReference.INTEGER) {
+                if( value instanceof Long) {
+                    return value;
+                } else if( value instanceof Number) {
+                    double d = ( (Number)value).doubleValue();
+                    return ( d == ( long)d)? ( Object)( long)d: value;
+                }
+                return Long.parseLong( value.toString().trim());
+            } else if( t == ServiceReference.NUMBER) {
+                if( value instanceof Double) {
+                    return value;
+                } else if( value instanceof Number) {
+                    return ( (Number)value).doubleValue();
+                }
+                return Double.parseDouble( value.toString().trim());
+            } else if( t == ServiceReference.DATE) {
+                if( value instanceof Date) {
+                    return value;
+                } else if( value instanceof Number) {
+                    return new Date( ( (Number)value).longValue());
+                }
+                String s = value.toString().trim();
+                for( String f: DATE_FORMATS) {  // The whole text must be parsed
+                    ParsePosition pp = new ParsePosition( 0);
+                    Date d = new SimpleDateFormat( f).parse( s, pp);
+                    if( d != null && pp.getIndex() == s.length()) {
+                        return d;
+                    }
+                }
+            }
+        } catch( NumberFormatException x) { }
+        return value;
+    }
+
+    private void readObject( ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        for( int i = 0; i < fields.length; ++i) {
+            fields[ i] = fields[ i].intern();
+        }
+    }
+
+    /** Layouts of a service and the module that registered them. */
+    private static class Registered {
+        private final Object owner;
+        private final PayloadSchema request;
+        private final PayloadSchema response;
+
+        private Registered( Object owner, PayloadSchema request, PayloadSchema response) {
+            this.owner = owner;
+            this.request = request;
+            this.response = response;
+        }
+    }
+
+}
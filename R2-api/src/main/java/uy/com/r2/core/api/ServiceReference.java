@@ -1,6 +1,7 @@
 /* ServiceReference.java */
 package uy.com.r2.core.api;
 
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -98,6 +99,35 @@ public class ServiceReference {
         }
     }
     
+    /** Get the service name.
+     * @return String
+     */
+    public String getServiceName( ) {
+        return serviceName;
+    }
+
+    /** Get the types of the request fields.
+     * @return Map of field name and type
+     */
+    public Map<String,Type> getRequestFieldTypes( ) {
+        return getTypes( requestFields);
+    }
+
+    /** Get the types of the response fields.
+     * @return Map of field name and type
+     */
+    public Map<String,Type> getResponseFieldTypes( ) {
+        return getTypes( responseFields);
+    }
+
+    private static Map<String,Type> getTypes( Map<String,Field> fields) {
+        Map<String,Type> m = new HashMap();
+        for( Map.Entry<String,Field> e: fields.entrySet()) {
+            m.put( e.getKey(), e.getValue().type);
+        }
+        return m;
+    }
+
     public Set<Integer> getResultCodes( ) {
         return resultCodes.keySet();
     }
@@ -174,7 +204,8 @@ public class ServiceReference {
         return sb.toString();
     }
     
-    public static class Type {
+    public static class Type implements Serializable {
+        private static final long serialVersionUID = 1L;
         final String name;
         Type( String name) {
             this.name = name;
@@ -183,6 +214,15 @@ public class ServiceReference {
         public String toString() {
             return name;
         } 
+        /** Keep the constants unique, they are compared by identity. */
+        private Object readResolve() {
+            for( Type t: new Type[] { STRING, INTEGER, NUMBER, DATE, ENUM}) {
+                if( t.name.equals( name)) {
+                    return t;
+                }
+            }
+            return this;
+        }
     }
     
 } 
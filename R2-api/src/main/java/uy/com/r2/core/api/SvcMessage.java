@@ -2,20 +2,20 @@
 package uy.com.r2.core.api;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 /** Abstract base class of service invocation {@link uy.com.r2.core.api.SvcRequest}
  * and response {@link uy.com.r2.core.api.SvcResponse}.
- * It hast a "payload" data stored in a Multi-Map (Map of Lists).
+ * It hast a "payload" data stored in a Multi-Map (Map of Lists), by default
+ * a compact {@link uy.com.r2.core.api.Payload}.
  * @author G.Camargo
  */
 public abstract class SvcMessage implements Serializable {
     private static final long serialVersionUID = 1L;
     private final String requestId;
-    private final Map<String,List<Object>> payload;
+    private Map<String,List<Object>> payload;
+    transient int pooled = MessagePool.NONE;
     
     /** Constructor.
      * @param requestId Message id
@@ -23,12 +23,37 @@ public abstract class SvcMessage implements Serializable {
      */
     public SvcMessage( String requestId, Map<String,List<Object>> data) {
         if( data == null) {
-            data = new HashMap();
+            data = new Payload();
         }
         this.requestId = requestId;
         this.payload = data;
     }
     
+    /** Release the data of a recycled message, used by the {@link MessagePool}.
+     * A Payload is emptied and kept, the arrays shared by its copies are left to them.
+     */
+    void release() {
+        if( payload != null && payload.getClass() == Payload.class) {
+            payload.clear();
+        } else {
+            payload = null;
+        }
+    }
+    
+    /** Set the payload of a reused message, used by the {@link MessagePool}.
+     * @param schema Slots layout of the next use or null
+     * @param data Data map of the next use, or null to reuse the emptied one
+     */
+    void resetPayload( PayloadSchema schema, Map<String,List<Object>> data) {
+        if( data != null) {
+            payload = data;
+        } else if( payload != null && payload.getClass() == Payload.class) {
+            ( (Payload)payload).reset( schema);
+        } else {
+            payload = new Payload( schema, 8);
+        }
+    }
+    
     /** Get the data contents.
      * @return Map of Lists
      */
@@ -36,11 +61,44 @@ public abstract class SvcMessage implements Serializable {
         return payload;
     }
     
+    /** Replace the data contents, as a decoded one.
+     * The message is the same one for the Dispatcher and the other modules,
+     * unlike a clone.
+     * @param data New data map, null is an empty Payload
+     */
+    public void setPayload( Map<String,List<Object>> data) {
+        payload = ( data == null)? new Payload(): data;
+    }
+    
+    /** Get the canonical form and 128 bits hash of the data.
+     * It is memoized on a Payload until it is modified, to be shared by 
+     * the modules that key or sign the messages.
+     * @return PayloadHash
+     */
+    public PayloadHash getPayloadHash( ) {
+        return getPayloadHash( null);
+    }
+    
+    /** Get the canonical form and 128 bits hash of the data, w/o a field.
+     * @param exclude Field name to exclude, as a signature, or null
+     * @return PayloadHash
+     */
+    public PayloadHash getPayloadHash( String exclude) {
+        if( payload instanceof Payload) {
+            return ( (Payload)payload).getHash( exclude);
+        }
+        return PayloadHash.of( payload, exclude);
+    }
+    
     /** Extract the first element with this name form data.
      * @param field Data name to extract or null = any one
      * @return Object or null
      */
     public Object get( String field) {
+        if( payload instanceof Payload) {
+            Payload p = ( Payload)payload;
+            return p.getFirst( ( field == null)? p.getFirstKey(): field);
+        }
         if( field == null && payload != null && !payload.isEmpty()) {
             field = ( String)payload.keySet().toArray()[ 0];
         }    
@@ -57,9 +115,13 @@ public abstract class SvcMessage implements Serializable {
      * @return Data
      */
     public Map<String,List<Object>> add( String field, Object obj) {
+        if( payload instanceof Payload) {
+            ( (Payload)payload).add( field, obj);
+            return payload;
+        }
         List<Object> l;
         if( !payload.containsKey( field)) {
-            l = new LinkedList();
+            l = new Payload.Values();
             payload.put( field, l);
         } else {
             l = payload.get( field);
@@ -74,12 +136,14 @@ public abstract class SvcMessage implements Serializable {
      * @return Data
      */
     public Map<String,List<Object>> put( String field, Object obj) {
+        if( payload instanceof Payload) {
+            ( (Payload)payload).set( field, obj);
+            return payload;
+        }
         if( payload.containsKey( field)) {
             payload.remove( field);
         }
-        List<Object> l = new LinkedList();
-        l.add( obj);
-        payload.put( field, l);
+        payload.put( field, new Payload.Values( obj));
         return payload;
     }
     
@@ -93,12 +157,12 @@ public abstract class SvcMessage implements Serializable {
             Map<String,List<Object>> payload, String field, Object obj) {
         List<Object> l;
         if( payload == null) {
-            payload = new HashMap();
+            payload = new Payload();
         }    
-        if( ( !payload.containsKey( field)) || payload.get( field).isEmpty()) {
-            l = new LinkedList();
-            l.add( obj);
-            payload.put( field, l);
+        if( payload instanceof Payload) {
+            ( (Payload)payload).add( field, obj);
+        } else if( ( !payload.containsKey( field)) || payload.get( field).isEmpty()) {
+            payload.put( field, new Payload.Values( obj));
         } else {
             l = payload.get( field);
             l.add( obj);
@@ -10,17 +10,22 @@ import java.io.Serializable;
  */
 public class SvcRequest extends SvcMessage implements Serializable, Cloneable {
     private static final long serialVersionUID = 1L;
+    /** HTTP header with the time left to the deadline in mS, relative to avoid clock skew. */
+    public static final String TIME_LEFT_HEADER = "X-R2-Time-Left";
 
     private static String defaultClientNode = null;
     
-    private final String clientNode;
-    private final int nodeRqNr;
-    private final int sessionNr;
-    private final int timeOut;
-    private final String service;
-    private final long requestTime;
-    private final double amount;
-    private final String currency;
+    private String clientNode;
+    private int nodeRqNr;
+    private int sessionNr;
+    private int timeOut;
+    private String service;
+    private long requestTime;
+    private double amount;
+    private String currency;
+    private long deadline;
+    private transient long correlationId = 0;
+    private transient String requestId = null;   // Formatted on demand
     
     /** Build a request with amount and currency.
      * It should be created right on the event to make a service call, the time 
@@ -36,11 +41,8 @@ public class SvcRequest extends SvcMessage implements Serializable, Cloneable {
      */
     public SvcRequest( String clientNode, int nodeRqNr, int sessionNr, String service, 
             Map<String,List<Object>> payload, double amount, String currency, int timeOut) {
-        super( setReqId( clientNode, service, sessionNr, nodeRqNr), payload);
-        if( clientNode == null) {
-            clientNode = defaultClientNode;
-        }
-        this.clientNode = clientNode;
+        super( null, ( payload == null)? PayloadSchema.newPayload( service, true, 8): payload);
+        this.clientNode = clientNode( clientNode);
         this.nodeRqNr = nodeRqNr;
         this.sessionNr = sessionNr;
         this.service = service;
@@ -48,6 +50,7 @@ public class SvcRequest extends SvcMessage implements Serializable, Cloneable {
         this.amount = amount;
         this.currency = currency;
         this.requestTime = System.currentTimeMillis();
+        this.deadline = ( timeOut > 0)? requestTime + timeOut: 0;
     }
     
     /** Build a request without amount and currency.
@@ -62,11 +65,8 @@ public class SvcRequest extends SvcMessage implements Serializable, Cloneable {
      */
     public SvcRequest( String clientNode, int nodeRqNr, int sessionNr, String service, 
             Map<String,List<Object>> payload, int timeOut) {
-        super( setReqId( clientNode, service, sessionNr, nodeRqNr), payload);
-        if( clientNode == null) {
-            clientNode = defaultClientNode;
-        }
-        this.clientNode = clientNode;
+        super( null, ( payload == null)? PayloadSchema.newPayload( service, true, 8): payload);
+        this.clientNode = clientNode( clientNode);
         this.nodeRqNr = nodeRqNr;
         this.sessionNr = sessionNr;
         this.service = service;
@@ -74,23 +74,62 @@ public class SvcRequest extends SvcMessage implements Serializable, Cloneable {
         this.amount = 0d;
         this.currency = null;
         this.requestTime = System.currentTimeMillis();
+        this.deadline = ( timeOut > 0)? requestTime + timeOut: 0;
     }
 
-    private static String setReqId( String clientNode, String service, int sessionNr, int nodeRqNr) { 
+    private static String clientNode( String clientNode) { 
         if( clientNode == null) {
             clientNode = defaultClientNode;
         } else if( defaultClientNode == null) {
             defaultClientNode = clientNode;
         }
-        StringBuilder sb = new StringBuilder();
-        sb.append( clientNode);
-        sb.append( '@');
-        sb.append( service);
-        sb.append( '.');
-        sb.append( Integer.toString( sessionNr));
-        sb.append( '#');
-        sb.append( Integer.toString( nodeRqNr));
-        return sb.toString();
+        return clientNode;
+    }
+    
+    /** Set it again to be reused, used by the {@link MessagePool}.
+     * @param clientNode Client node name or null
+     * @param nodeRqNr Node request number
+     * @param sessionNr Session ticket
+     * @param service Requested service name
+     * @param payload Message data multimap, or null to reuse the emptied one
+     * @param timeOut Maximum response time in mS, or 0 
+     */
+    void reset( String clientNode, int nodeRqNr, int sessionNr, String service, 
+            Map<String,List<Object>> payload, int timeOut) {
+        resetPayload( PayloadSchema.getSchema( service, true), payload);
+        this.clientNode = clientNode( clientNode);
+        this.nodeRqNr = nodeRqNr;
+        this.sessionNr = sessionNr;
+        this.service = service;
+        this.timeOut = timeOut;
+        this.amount = 0d;
+        this.currency = null;
+        this.requestTime = System.currentTimeMillis();
+        this.deadline = ( timeOut > 0)? requestTime + timeOut: 0;
+        this.correlationId = 0;
+        this.requestId = null;
+    }
+    
+    /** Get the key information of the request, as clientNode@service.sessionNr#nodeRqNr.
+     * It is formatted on the first use.
+     * @return String
+     */
+    @Override
+    public String getRequestId( ) {
+        String id = requestId;
+        if( id == null) {
+            StringBuilder sb = new StringBuilder( 32);
+            sb.append( clientNode);
+            sb.append( '@');
+            sb.append( service);
+            sb.append( '.');
+            sb.append( sessionNr);
+            sb.append( '#');
+            sb.append( nodeRqNr);
+            id = sb.toString();
+            requestId = id;
+        }
+        return id;
     }
     
     /** Clone with new data. To make a new message.
@@ -98,8 +137,20 @@ public class SvcRequest extends SvcMessage implements Serializable, Cloneable {
      * @return SvcRequest
      */
     public SvcRequest clone( Map<String,List<Object>> payload) {
-        return new SvcRequest( clientNode, nodeRqNr, sessionNr, service, 
+        SvcRequest r = new SvcRequest( clientNode, nodeRqNr, sessionNr, service, 
             payload, amount, currency, timeOut);
+        r.correlationId = correlationId;
+        r.deadline = deadline;
+        r.requestId = requestId;
+        return r;
+    }
+    
+    /** Clone with a copy on write of the data.
+     * @return SvcRequest
+     */
+    @Override
+    public SvcRequest clone() {
+        return clone( Payload.copyOf( getPayload()));
     }
     
     /** Get the service name of the request.
@@ -151,6 +202,60 @@ public class SvcRequest extends SvcMessage implements Serializable, Cloneable {
         return currency;
     }
 
+    /** Get the numeric id given by the local Dispatcher to this request.
+     * It is local to this JVM, not serialized, and used to find the running 
+     * pipeline without hashing the request id.
+     * @return Correlation id, or 0 when it was not dispatched
+     */
+    public long getCorrelationId( ) {
+        return correlationId;
+    }
+    
+    /** Set the numeric id given by the local Dispatcher.
+     * It is used only by the Dispatcher, or cleared (0) on a copy to be 
+     * run as another pipeline.
+     * @param correlationId Correlation id
+     */
+    public void setCorrelationId( long correlationId) {
+        this.correlationId = correlationId;
+    }
+    
+    /** Get the absolute deadline to get a response.
+     * It starts as the request time plus the time out, and it is carried to
+     * the called nodes and modules.
+     * @return Absolute time (currentTimeMillis), or 0 when it has not one
+     */
+    public long getDeadline( ) {
+        return deadline;
+    }
+    
+    /** Set the absolute deadline, as received from the caller.
+     * It can only make the deadline earlier.
+     * @param deadline Absolute time (currentTimeMillis), 0 is ignored
+     */
+    public void setDeadline( long deadline) {
+        if( deadline > 0 && ( this.deadline == 0 || deadline < this.deadline)) {
+            this.deadline = deadline;
+        }
+    }
+    
+    /** Get the time left to the deadline.
+     * @return Interval in mS, Long.MAX_VALUE without deadline, or &lt;= 0 when expired
+     */
+    public long getTimeLeft( ) {
+        if( deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return deadline - System.currentTimeMillis();
+    }
+    
+    /** Test if the deadline has passed.
+     * @return Boolean
+     */
+    public boolean isExpired( ) {
+        return deadline != 0 && System.currentTimeMillis() >= deadline;
+    }
+    
     /** Get the absolute time of the request.
      * @return Absolute time (currentTimeMillis)
      */
@@ -33,8 +33,8 @@ public class SvcResponse extends SvcMessage implements Serializable {
     public static final String MSG_EXCEPTION = "Not registered module ";
     public static final String MSG_NOT_FOUND = "Not found";
 
-    private final int resultCode;
-    private final SvcRequest request;
+    private int resultCode;
+    private SvcRequest request;
     private transient int responseTime;
     
     /** Build a simple response without any data.
@@ -43,7 +43,7 @@ public class SvcResponse extends SvcMessage implements Serializable {
      * @param request Invocation request
      */
     public SvcResponse( int resultCode, SvcRequest request) {
-        super( request.getRequestId(), null);
+        super( null, PayloadSchema.newPayload( request.getServiceName(), false, 8));
         this.responseTime = ( int)( System.currentTimeMillis() - 
                 request.getAbsoluteTime());
         this.resultCode = resultCode;
@@ -57,7 +57,7 @@ public class SvcResponse extends SvcMessage implements Serializable {
      * @param request Invocation request
      */
     public SvcResponse( Map<String,List<Object>> data, int resultCode, SvcRequest request) {
-        super( request.getRequestId(), data);
+        super( null, data);
         if( resultCode < 0) {
             log.warn( "The resultCode (" + resultCode +
                     ") should not be negative on a normal SvcResponse " +
@@ -80,7 +80,7 @@ public class SvcResponse extends SvcMessage implements Serializable {
      */
     public SvcResponse( String reasonOrAction, int errorResultCode, Throwable exception, 
             SvcRequest request) {
-        super( request.getRequestId(), null);
+        super( null, PayloadSchema.newPayload( request.getServiceName(), false, 8));
         if( errorResultCode >= 0) {
             log.warn( "The resultCode " + errorResultCode + " of error '" + reasonOrAction  
                     + "' should be negative or generic exception " + RES_CODE_EXCEPTION 
@@ -102,7 +102,7 @@ public class SvcResponse extends SvcMessage implements Serializable {
      * @param request Invocation request
      */
     public SvcResponse( String reasonOrAction, int errorResultCode, SvcRequest request) {
-        super( request.getRequestId(), null);
+        super( null, PayloadSchema.newPayload( request.getServiceName(), false, 8));
         if( errorResultCode >= 0) {
             log.warn( "The resultCode " + errorResultCode + " of error '" + reasonOrAction  
                     + "' should be negative on SvcErrorResponses from " + request);
@@ -114,6 +114,23 @@ public class SvcResponse extends SvcMessage implements Serializable {
         addToMap( super.getPayload(), "ReasonOrAction", reasonOrAction);
     }
 
+    /** Set it again to be reused, used by the {@link MessagePool}.
+     * @param resultCode Result code
+     * @param request Invocation request
+     */
+    void reset( int resultCode, SvcRequest request) {
+        resetPayload( PayloadSchema.getSchema( request.getServiceName(), false), null);
+        this.resultCode = resultCode;
+        this.request = request;
+        this.responseTime = ( int)( System.currentTimeMillis() - request.getAbsoluteTime());
+    }
+
+    @Override
+    void release() {
+        super.release();
+        request = null;
+    }
+
     /** Clone with new data. To make a new message.
      * @param data New data
      * @return SvcRequest
@@ -122,6 +139,14 @@ public class SvcResponse extends SvcMessage implements Serializable {
         return new SvcResponse( data, resultCode, request);
     }
     
+    /** Clone with a copy on write of the data.
+     * @return SvcResponse
+     */
+    @Override
+    public SvcResponse clone() {
+        return clone( Payload.copyOf( getPayload()));
+    }
+    
     /** Get the original request.
      * @return SvcRequest
      */
@@ -129,6 +154,14 @@ public class SvcResponse extends SvcMessage implements Serializable {
         return request;
     }
     
+    /** Get the key information of the request.
+     * @return String
+     */
+    @Override
+    public String getRequestId( ) {
+        return ( request == null)? null: request.getRequestId();
+    }
+    
     /** Get the result code.
      * @return Result code, lower than 0 means it is fatal/unexpected
      */
@@ -0,0 +1,92 @@
+/* MessagePoolTest.java */
+package uy.com.r2.core.api.test;
+
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uy.com.r2.core.api.MessagePool;
+import uy.com.r2.core.api.Payload;
+import uy.com.r2.core.api.SvcRequest;
+import uy.com.r2.core.api.SvcResponse;
+
+/**
+ * MessagePool test methods.
+ * @author G.Camargo
+ */
+public class MessagePoolTest {
+
+    /**
+     * Test of the request id, formatted on demand.
+     */
+    @Test
+    public void testRequestId() {
+        System.out.println( "requestId" );
+        SvcRequest req = new SvcRequest( "Node", 7, 3, "Svc", null, 0);
+        assertEquals( "Should be node@service.session#number", "Node@Svc.3#7", req.getRequestId());
+        assertEquals( "Response should have the request id", req.getRequestId(), 
+                new SvcResponse( 0, req).getRequestId());
+        assertEquals( "Clone should have the same id", req.getRequestId(), req.clone().getRequestId());
+    }
+
+    /**
+     * Test of recycling the messages of a scope.
+     */
+    @Test
+    public void testScope() {
+        System.out.println( "scope" );
+        MessagePool.setEnabled( true);
+        try {
+            int mark = MessagePool.enter();
+            SvcRequest req = MessagePool.newRequest( "Node", 1, 0, "Svc", null, 0);
+            req.add( "A", "1");
+            SvcResponse resp = MessagePool.newResponse( 0, req);
+            resp.add( "B", "2");
+            Payload copy = Payload.copyOf( resp.getPayload());
+            List<Object> values = req.getPayload().get( "A");
+            MessagePool.exit( mark, null);
+            assertEquals( "A copy should survive the recycle", "2", copy.getFirst( "B"));
+            assertEquals( "A List got before should survive", "1", values.get( 0));
+            mark = MessagePool.enter();
+            SvcRequest req2 = MessagePool.newRequest( "Node", 2, 0, "Svc", null, 0);
+            SvcResponse resp2 = MessagePool.newResponse( 0, req2);
+            assertTrue( "Should reuse the request", req == req2);
+            assertTrue( "Should reuse the response", resp == resp2);
+            assertTrue( "Should be empty", req2.getPayload().isEmpty() && resp2.getPayload().isEmpty());
+            assertEquals( "Should have the new id", "Node@Svc.0#2", resp2.getRequestId());
+            MessagePool.exit( mark, resp2);
+            mark = MessagePool.enter();
+            assertTrue( "The kept one should not be reused", 
+                    resp2 != MessagePool.newResponse( 0, req2));
+            MessagePool.exit( mark, null);
+        } finally {
+            MessagePool.setEnabled( false);
+        }
+    }
+
+    /**
+     * Test of taking messages out of the pool.
+     */
+    @Test
+    public void testKeep() {
+        System.out.println( "keep" );
+        MessagePool.setEnabled( true);
+        try {
+            int mark = MessagePool.enter();
+            SvcRequest req = MessagePool.newRequest( "Node", 1, 0, "Svc", null, 0);
+            SvcResponse resp = MessagePool.newResponse( 0, req);
+            resp.add( "B", "2");
+            MessagePool.keep( resp);
+            MessagePool.exit( mark, null);
+            mark = MessagePool.enter();
+            SvcRequest req2 = MessagePool.newRequest( "Node", 2, 0, "Svc", null, 0);
+            assertTrue( "The kept request should not be reused", req != req2);
+            assertTrue( "The kept response should not be reused", resp != MessagePool.newResponse( 0, req2));
+            MessagePool.exit( mark, null);
+            assertEquals( "Should keep its data", "2", resp.get( "B"));
+            assertEquals( "Should keep its id", "Node@Svc.0#1", resp.getRequestId());
+        } finally {
+            MessagePool.setEnabled( false);
+        }
+    }
+
+}
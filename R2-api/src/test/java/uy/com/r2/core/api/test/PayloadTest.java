@@ -0,0 +1,196 @@
+/* PayloadTest.java */
+package uy.com.r2.core.api.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uy.com.r2.core.api.Payload;
+import uy.com.r2.core.api.PayloadHash;
+import uy.com.r2.core.api.PayloadSchema;
+import uy.com.r2.core.api.ServiceReference;
+
+/**
+ * Payload test methods.
+ * @author G.Camargo
+ */
+public class PayloadTest {
+
+    /**
+     * Test of add and get, compared with a HashMap.
+     */
+    @Test
+    public void testAddGet() {
+        System.out.println( "addGet" );
+        Payload p = new Payload( 1);
+        p.add( "A", "1");
+        p.add( "B", "2");
+        p.add( "A", "3");
+        p.set( "C", "4");
+        assertEquals( "Should have 3 fields", 3, p.size());
+        assertEquals( "Should get the first one", "1", p.getFirst( "A"));
+        assertEquals( "Should keep the order", "A", p.getFirstKey());
+        Map<String,List<Object>> m = new HashMap( p);
+        assertEquals( "Should be equal to a HashMap", m, p);
+        assertEquals( "Should have the same hash", m.hashCode(), p.hashCode());
+        p.get( "A").remove( 0);
+        assertEquals( "Should remove from the list", "3", p.getFirst( "A"));
+        assertNull( "Should remove a field", p.remove( "X"));
+        p.remove( "B");
+        assertFalse( "Should not contain it", p.containsKey( "B"));
+        assertEquals( "Should have 2 fields", 2, p.size());
+    }
+
+    /**
+     * Test of copy on write.
+     */
+    @Test
+    public void testCopy() {
+        System.out.println( "copy" );
+        Payload p = new Payload();
+        p.add( "A", "1");
+        p.add( "B", "2");
+        Payload c = p.copy();
+        assertEquals( "Should be equal", p, c);
+        c.add( "A", "x");
+        c.set( "B", "y");
+        assertEquals( "Should not change the original", 1, p.get( "A").size());
+        assertEquals( "Should not change the original", "2", p.getFirst( "B"));
+        p.get( "A").add( "z");
+        assertEquals( "Should not change the copy", "x", c.get( "A").get( 1));
+        Iterator<Map.Entry<String,List<Object>>> it = p.copy().entrySet().iterator();
+        it.next();
+        it.remove();
+        assertEquals( "Should not remove from the original", 2, p.size());
+    }
+
+    /**
+     * Test of the slots of the declared fields.
+     * @throws Exception Unexpected
+     */
+    @Test
+    public void testSchema() throws Exception {
+        System.out.println( "schema" );
+        ServiceReference sr = new ServiceReference( "PayloadTest");
+        sr.addRequestField( "Id", "Identifier", ServiceReference.INTEGER);
+        sr.addRequestField( "Amount", "Amount", ServiceReference.NUMBER);
+        sr.addRequestField( "Name", "Name", ServiceReference.STRING);
+        PayloadSchema.register( sr);
+        Payload p = PayloadSchema.newPayload( "PayloadTest", true, 2);
+        PayloadSchema.unregister( "PayloadTest");
+        assertNotNull( "Should have slots", p.getSchema());
+        p.add( "Z", "1");
+        p.add( "Id", "12");
+        p.set( "Amount", 1);
+        p.add( "B", "2");
+        assertEquals( "Should convert to Long", 12L, p.getFirst( "Id"));
+        assertEquals( "Should convert to Double", 1.0, p.getFirst( "Amount"));
+        assertEquals( "Should get by slot", 12L, p.getFirst( p.getSlot( "Id")));
+        assertEquals( "Should have 4 fields", 4, p.size());
+        assertEquals( "Should be sorted", Arrays.asList( "Amount", "B", "Id", "Z"), Arrays.asList( p.getSortedKeys()));
+        Map<String,List<Object>> m = new HashMap( p);
+        assertEquals( "Should be equal to a HashMap", m, p);
+        Payload c = p.copy();
+        c.remove( "Id");
+        c.add( "Amount", "x");
+        assertEquals( "Should not change the original", 4, p.size());
+        assertEquals( "Should keep what can't be converted", "x", c.get( "Amount").get( 1));
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream( bo);
+        os.writeObject( p);
+        os.close();
+        Payload o = ( Payload)new ObjectInputStream( new ByteArrayInputStream( bo.toByteArray())).readObject();
+        assertEquals( "Should be equal", p, o);
+        assertEquals( "Should keep the slots", 12L, o.getFirst( o.getSlot( "Id")));
+        Object oldOwner = new Object();
+        Object newOwner = new Object();
+        PayloadSchema.register( sr, oldOwner);
+        PayloadSchema.register( sr, newOwner);
+        PayloadSchema.unregister( "PayloadTest", oldOwner);
+        assertNotNull( "Should keep the one of other owner", PayloadSchema.getSchema( "PayloadTest", true));
+        PayloadSchema.unregister( "PayloadTest", newOwner);
+        assertNull( "Should remove its own", PayloadSchema.getSchema( "PayloadTest", true));
+    }
+
+    /**
+     * Test of serialization.
+     * @throws Exception Unexpected
+     */
+    @Test
+    public void testSerialization() throws Exception {
+        System.out.println( "serialization" );
+        Payload p = new Payload();
+        p.add( "A", "1");
+        p.add( "A", 2);
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream( bo);
+        os.writeObject( p.copy());
+        os.close();
+        Object o = new ObjectInputStream( new ByteArrayInputStream( bo.toByteArray())).readObject();
+        assertEquals( "Should be equal", p, o);
+    }
+
+    /**
+     * Test of the canonical hash.
+     * @throws Exception Unexpected
+     */
+    @Test
+    public void testHash() throws Exception {
+        System.out.println( "hash" );
+        Payload p = new Payload();
+        p.add( "B", 12);
+        p.add( "A", "x,y");
+        p.add( "A", null);
+        Map<String,List<Object>> m = new HashMap();
+        m.put( "A", Arrays.asList( ( Object)"x,y", null));
+        m.put( "B", Arrays.asList( ( Object)12L));
+        PayloadHash h = p.getHash( null);
+        assertEquals( "Should be sorted and escaped", "A=x\\,y,\\0,\nB=12,\n", 
+                new String( h.getBytes(), "UTF-8"));
+        assertEquals( "Should not depend on the Map", h, PayloadHash.of( m, null));
+        assertTrue( "Should be memoized", h == p.getHash( null));
+        assertTrue( "A copy should share it", h == p.copy().getHash( null));
+        assertEquals( "Should exclude a field", "B=12,\n", 
+                new String( p.getHash( "A").getBytes(), "UTF-8"));
+        p.add( "C", "1");
+        assertFalse( "Should change when modified", h.equals( p.getHash( null)));
+        assertEquals( "Should be 32 hex chars", 32, h.toString().length());
+    }
+
+    /**
+     * Test the reads of a shared payload do not copy it.
+     */
+    @Test
+    public void testSharedRead() {
+        System.out.println( "sharedRead" );
+        Payload p = new Payload();
+        p.add( "A", "1");
+        p.add( "B", "2");
+        Map<String,List<Object>> m = new HashMap( p);
+        PayloadHash h = p.getHash( null);
+        Payload c = p.copy();
+        assertEquals( "Should be the same text", "{A=[1], B=[2]}", c.toString());
+        assertEquals( "Should be equal", p, c);
+        assertEquals( "Should be the same hash code", p.hashCode(), c.hashCode());
+        assertTrue( "Should be equal to a Map", c.equals( m));
+        assertEquals( "Should have the keys", Arrays.asList( "A", "B"), Arrays.asList( c.keySet().toArray()));
+        for( Map.Entry<String,List<Object>> e: c.getEntries()) {
+            assertNotNull( e.getValue());
+        }
+        assertTrue( "Should share the Lists", p.getValues( "A") == c.getValues( "A"));
+        assertTrue( "Should keep the hash", h == c.getHash( null));
+        Iterator<String> it = c.keySet().iterator();
+        it.next();
+        it.remove();
+        assertEquals( "Should remove from the copy", "{B=[2]}", c.toString());
+        assertEquals( "Should not remove from the original", 2, p.size());
+    }
+
+}
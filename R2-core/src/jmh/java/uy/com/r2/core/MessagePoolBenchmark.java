@@ -0,0 +1,129 @@
+/* MessagePoolBenchmark.java */
+package uy.com.r2.core;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import uy.com.r2.core.api.ConfigItemDescriptor;
+import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.Dispatcher;
+import uy.com.r2.core.api.MessagePool;
+import uy.com.r2.core.api.SimpleService;
+import uy.com.r2.core.api.SvcRequest;
+import uy.com.r2.core.api.SvcResponse;
+
+/** Allocation of a dispatched call, with and without the MessagePool.
+ * Run it with: mvn -Pjmh test-compile exec:exec <br>
+ * It fails when the pooled call allocates more than r2.maxAllocPerCall
+ * bytes (96 by default). The Dispatcher puts nothing on the heap, the 64
+ * bytes a call measured with the thread allocated bytes (the counter of
+ * gc.alloc.rate.norm) are the Lists of the payload fields.
+ * @author G.Camargo
+ */
+@State( Scope.Thread)
+@BenchmarkMode( Mode.AverageTime)
+@OutputTimeUnit( TimeUnit.NANOSECONDS)
+@Warmup( iterations = 3, time = 1)
+@Measurement( iterations = 5, time = 1)
+@Fork( 1)
+public class MessagePoolBenchmark {
+    private static final String ALLOC_NORM = "gc.alloc.rate.norm";
+
+    @Param( { "false", "true"})
+    public boolean pooled;
+
+    private Dispatcher dispatcher;
+    private int nodeRqNr = 0;
+
+    /** Service that answers a field of the request. */
+    public static class Rate implements SimpleService {
+
+        @Override
+        public SvcResponse call( SvcRequest req, Configuration cfg) throws Exception {
+            SvcResponse resp = MessagePool.newResponse( 0, req);
+            resp.add( "Rate", req.get( "Currency"));
+            return resp;
+        }
+
+        @Override
+        public List<ConfigItemDescriptor> getConfigDescriptors() {
+            return new LinkedList();
+        }
+
+        @Override
+        public Map<String,Object> getStatusVars() {
+            return new HashMap();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        SvcCatalog catalog = SvcCatalog.getCatalog();
+        Configuration cfg = new Configuration();
+        cfg.put( "class", Rate.class.getName());
+        catalog.installModule( "Rate", cfg);
+        cfg = new Configuration();
+        cfg.put( "class", SimpleDispatcher.class.getName());
+        cfg.put( "DefaultServicePipeline", "Rate");
+        cfg.put( "PooledMessages", "" + pooled);
+        catalog.updateConfiguration( "SvcDispatcher", cfg);
+        dispatcher = SvcCatalog.getDispatcher();
+    }
+
+    @Benchmark
+    public int call() {
+        int mark = MessagePool.enter();
+        SvcRequest req = MessagePool.newRequest( "Bench", ++nodeRqNr, 0, "Rate", null, 0);
+        req.add( "Currency", "USD");
+        SvcResponse resp = dispatcher.call( req);
+        int rc = resp.getResultCode();
+        MessagePool.exit( mark, null);
+        return rc;
+    }
+
+    public static void main( String args[]) throws Exception {
+        double max = Double.parseDouble( System.getProperty( "r2.maxAllocPerCall", "96"));
+        Options opt = new OptionsBuilder()
+                .include( MessagePoolBenchmark.class.getSimpleName())
+                .addProfiler( GCProfiler.class)
+                .build();
+        for( RunResult rr: new Runner( opt).run()) {
+            BenchmarkParams p = rr.getParams();
+            for( Map.Entry<String,Result> e: rr.getSecondaryResults().entrySet()) {
+                if( !e.getKey().endsWith( ALLOC_NORM)) {
+                    continue;
+                }
+                double bytes = e.getValue().getScore();
+                System.out.println( "pooled=" + p.getParam( "pooled") + " " + bytes + " bytes/call");
+                if( "true".equals( p.getParam( "pooled")) && bytes > max) {
+                    throw new Exception( "Pooled call allocates " + bytes + " bytes, over " + max);
+                }
+            }
+        }
+    }
+
+}
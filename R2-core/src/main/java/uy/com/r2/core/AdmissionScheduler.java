@@ -0,0 +1,447 @@
+/* AdmissionScheduler.java */
+package uy.com.r2.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import uy.com.r2.core.api.ConfigItemDescriptor;
+import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.SvcRequest;
+
+/** Admission control in front of the Dispatcher.
+ * Up to AdmissionMaxActive requests are dispatched at the same time, the
+ * others wait on a queue by client Node or by Pipeline name. The queues are
+ * served by weighted fair queuing: each one advances its virtual finish time
+ * by cost / weight when a request is admitted, and the lowest one goes next.
+ * So a noisy client gets only its share when others are waiting. <br>
+ * The requests with an amount from AdmissionPriorityAmount have their own
+ * queue, always served first. <br>
+ * A request waits up to its deadline or AdmissionQueueTimeOut, then it is
+ * rejected, an asynchronous one by a timer. The admission is kept on the
+ * RunningPipeline: the calls made by its modules are not queued, on any 
+ * thread it runs or it is resumed.
+ * @author G.Camargo
+ */
+class AdmissionScheduler {
+    static final String NONE = "None";
+    static final String NODE = "Node";
+    static final String PIPELINE = "Pipeline";
+    private static final String PRIORITY_QUEUE = "(Priority)";
+    private static final Logger LOG = Logger.getLogger( AdmissionScheduler.class);
+
+    private final Object lock = new Object();
+    private final Map<String,FairQueue> queues = new HashMap();
+    private final List<FairQueue> activeQueues = new ArrayList();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private FairQueue priorityQueue = null;
+    private ScheduledThreadPoolExecutor timer = null;
+    private int active = 0;
+    private int waiting = 0;
+    private double virtualTime = 0;
+    private volatile String mode = NONE;
+    private volatile int maxActive = 100;
+    private volatile int maxQueue = 10000;
+    private volatile int queueTimeOut = 1000;
+    private volatile double priorityAmount = 0;
+    private volatile Map<String,Integer> weights = new HashMap();
+
+    /** Add the configuration descriptors.
+     * @param l Module configuration descriptors list
+     */
+    static void addConfigDescriptors( List<ConfigItemDescriptor> l) {
+        l.add( new ConfigItemDescriptor( "Admission", ConfigItemDescriptor.STRING,
+                "Admission fair queues by: None, Node or Pipeline", NONE));
+        l.add( new ConfigItemDescriptor( "AdmissionMaxActive", ConfigItemDescriptor.INTEGER,
+                "Requests dispatched at the same time, over it they wait on the fair queues", "100"));
+        l.add( new ConfigItemDescriptor( "AdmissionWeight.*", ConfigItemDescriptor.INTEGER,
+                "Weight of the fair queue, by Node or Pipeline name, 1 by default"));
+        l.add( new ConfigItemDescriptor( "AdmissionPriorityAmount", ConfigItemDescriptor.DOUBLE,
+                "Requests with this amount or more go first, 0 is disabled", "0"));
+        l.add( new ConfigItemDescriptor( "AdmissionQueue", ConfigItemDescriptor.INTEGER,
+                "Maximum number of waiting requests, over it they are rejected", "10000"));
+        l.add( new ConfigItemDescriptor( "AdmissionQueueTimeOut", ConfigItemDescriptor.INTEGER,
+                "Maximum wait in mS on the queue", "1000"));
+    }
+
+    /** Set the configuration.
+     * @param cfg Dispatcher configuration
+     * @throws Exception Invalid configuration
+     */
+    void setConfiguration( Configuration cfg) throws Exception {
+        String m = cfg.getString( "Admission");
+        if( NODE.equalsIgnoreCase( m)) {
+            m = NODE;
+        } else if( PIPELINE.equalsIgnoreCase( m)) {
+            m = PIPELINE;
+        } else {
+            m = NONE;
+        }
+        maxActive = Math.max( 1, cfg.getInt( "AdmissionMaxActive"));
+        maxQueue = cfg.getInt( "AdmissionQueue");
+        queueTimeOut = cfg.getInt( "AdmissionQueueTimeOut");
+        priorityAmount = cfg.getDouble( "AdmissionPriorityAmount");
+        weights = cfg.getIntMap( "AdmissionWeight.*");
+        synchronized( lock) {
+            for( FairQueue q: queues.values()) {
+                q.weight = getWeight( q.name);
+            }
+        }
+        mode = m;
+        LOG.debug( "Admission " + m + " " + maxActive + " " + weights);
+        release( null, 0);  // Admit the waiting ones if it grows
+    }
+
+    /** Test if it has to be used.
+     * @return Boolean
+     */
+    boolean isEnabled() {
+        return !NONE.equals( mode);
+    }
+
+    /** Take a place to dispatch a request, it may wait on its queue.
+     * The calls of an admitted pipeline must not take another one.
+     * @param req Request to dispatch
+     * @param pipeline Pipeline name
+     * @param cost Number of requests it represents, as a batch
+     * @return Boolean: false when it was rejected
+     */
+    boolean acquire( SvcRequest req, String pipeline, int cost) {
+        Ticket t = new Ticket( req, cost, null);
+        synchronized( lock) {
+            if( !offer( t, getKey( req, pipeline))) {
+                return false;
+            }
+        }
+        if( !t.admitted) {
+            long end = System.currentTimeMillis()
+                    + Math.min( queueTimeOut, Math.max( 0, req.getTimeLeft()));
+            try {
+                synchronized( t) {
+                    while( !t.admitted) {
+                        long w = end - System.currentTimeMillis();
+                        if( w <= 0) {
+                            break;
+                        }
+                        t.wait( w);
+                    }
+                }
+            } catch( InterruptedException x) {
+                LOG.debug( "Interrupted waiting admission " + req.getRequestId());
+            }
+            synchronized( lock) {
+                if( !t.admitted) {
+                    cancel( t);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Ask for a place to dispatch a request w/o waiting.
+     * The task is called when it is admitted, right now or when another
+     * request ends, or when it is rejected. A queued one is rejected by a
+     * timer when it waits too long.
+     * @param req Request to dispatch
+     * @param pipeline Pipeline name
+     * @param task To run when it is admitted or rejected
+     */
+    void acquire( SvcRequest req, String pipeline, Task task) {
+        final Ticket t = new Ticket( req, 1, task);
+        boolean ok;
+        synchronized( lock) {
+            ok = offer( t, getKey( req, pipeline));
+            if( ok && !t.admitted) {
+                if( timer == null) {
+                    timer = new ScheduledThreadPoolExecutor( 1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread( Runnable r) {
+                            Thread th = new Thread( r, "AdmissionTimer");
+                            th.setDaemon( true);
+                            return th;
+                        }
+                    });
+                    timer.setRemoveOnCancelPolicy( true);
+                }
+                t.timer = timer.schedule( new Runnable() {
+                    @Override
+                    public void run() {
+                        expire( t);
+                    }
+                }, Math.min( queueTimeOut, Math.max( 0, req.getTimeLeft())), TimeUnit.MILLISECONDS);
+            }
+        }
+        if( !ok) {
+            task.rejected();
+        } else if( t.admitted) {
+            task.admitted();
+        }
+    }
+
+    /** Release a place taken by acquire().
+     * @param exec Executor to run the asynchronous tasks admitted
+     */
+    void release( Executor exec) {
+        release( exec, 1);
+    }
+
+    /** Stop the timer, the waiting ones are left to its deadlines. */
+    void shutdown() {
+        synchronized( lock) {
+            if( timer != null) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+    }
+
+    /** Add the status vars.
+     * @param map Status vars map
+     */
+    void getStatusVars( Map<String,Object> map) {
+        map.put( "Admission", mode);
+        if( NONE.equals( mode)) {
+            return;
+        }
+        map.put( "AdmissionMaxActive", maxActive);
+        map.put( "AdmissionAdmitted", admitted.get());
+        map.put( "AdmissionRejected", rejected.get());
+        List<FairQueue> qs;
+        synchronized( lock) {
+            map.put( "AdmissionActive", active);
+            map.put( "AdmissionWaiting", waiting);
+            qs = new ArrayList( queues.values());
+        }
+        for( FairQueue q: qs) {
+            String p = "AdmissionQueue." + q.name + ".";
+            map.put( p + "Weight", q.weight);
+            map.put( p + "Depth", q.tickets.size());
+            map.put( p + "Admitted", q.admitted.get());
+            map.put( p + "TimeOuts", q.timeOuts.get());
+            q.waitTime.getStatusVars( map, p + "WaitTime");
+        }
+    }
+
+    /** Get the queue name of a request. */
+    private String getKey( SvcRequest req, String pipeline) {
+        if( priorityAmount > 0 && req.getAmount() >= priorityAmount) {
+            return PRIORITY_QUEUE;
+        }
+        return PIPELINE.equals( mode)? pipeline: req.getClientNode();
+    }
+
+    private int getWeight( String name) {
+        Integer w = weights.get( name);
+        return ( w == null || w < 1)? 1: w;
+    }
+
+    /** Admit or queue a ticket, under lock.
+     * @return Boolean: false when it was rejected
+     */
+    private boolean offer( Ticket t, String key) {
+        FairQueue q = queues.get( key);
+        if( q == null) {
+            q = new FairQueue( "" + key, getWeight( key));
+            queues.put( q.name, q);
+            if( PRIORITY_QUEUE.equals( key)) {
+                priorityQueue = q;
+            }
+        }
+        t.queue = q;
+        if( active < maxActive && waiting == 0) {
+            ++active;
+            admit( t);
+            return true;
+        }
+        if( waiting >= maxQueue) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        if( q.tickets.isEmpty() && q != priorityQueue) {  // Becomes active
+            q.finish = Math.max( q.finish, virtualTime);
+            activeQueues.add( q);
+        }
+        q.tickets.add( t);
+        ++waiting;
+        return true;
+    }
+
+    /** Remove a ticket not admitted, under lock.
+     * @return Boolean: false when it was not queued any more
+     */
+    private boolean cancel( Ticket t) {
+        if( !t.queue.tickets.remove( t)) {
+            return false;
+        }
+        --waiting;
+        if( t.queue.tickets.isEmpty()) {
+            activeQueues.remove( t.queue);
+        }
+        t.queue.timeOuts.incrementAndGet();
+        rejected.incrementAndGet();
+        return true;
+    }
+
+    /** Reject an asynchronous ticket that waited too long, by the timer. */
+    private void expire( Ticket t) {
+        synchronized( lock) {
+            if( t.admitted || !cancel( t)) {
+                return;
+            }
+        }
+        LOG.debug( "Admission timed out " + t.req.getRequestId());
+        t.task.rejected();
+    }
+
+    /** Free places and admit the next tickets. */
+    private void release( Executor exec, int places) {
+        List<Ticket> next = null;
+        List<Ticket> expired = null;
+        synchronized( lock) {
+            active -= places;
+            while( active < maxActive && waiting > 0) {
+                Ticket t = poll();
+                if( t.task != null && isExpired( t)) {  // Nobody waits it
+                    if( expired == null) {
+                        expired = new LinkedList();
+                    }
+                    expired.add( t);
+                    stopTimer( t);
+                    t.queue.timeOuts.incrementAndGet();
+                    rejected.incrementAndGet();
+                    continue;
+                }
+                ++active;
+                admit( t);
+                if( next == null) {
+                    next = new LinkedList();
+                }
+                next.add( t);
+            }
+        }
+        if( expired != null) {
+            for( Ticket t: expired) {
+                t.task.rejected();
+            }
+        }
+        if( next != null) {
+            for( final Ticket t: next) {
+                if( t.task == null) {
+                    synchronized( t) {
+                        t.notify();
+                    }
+                } else if( exec == null) {
+                    t.task.admitted();
+                } else {
+                    exec.execute( new Runnable() {
+                        @Override
+                        public void run() {
+                            t.task.admitted();
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /** Take the next ticket by weighted fair queuing, under lock. */
+    private Ticket poll() {
+        FairQueue q = null;
+        if( priorityQueue != null && !priorityQueue.tickets.isEmpty()) {
+            q = priorityQueue;
+        } else {
+            double min = Double.MAX_VALUE;
+            for( FairQueue aq: activeQueues) {
+                double f = aq.finish + (double)aq.tickets.getFirst().cost / aq.weight;
+                if( f < min) {
+                    min = f;
+                    q = aq;
+                }
+            }
+        }
+        Ticket t = q.tickets.removeFirst();
+        --waiting;
+        if( q != priorityQueue) {
+            q.finish += (double)t.cost / q.weight;
+            virtualTime = q.finish;
+            if( q.tickets.isEmpty()) {
+                activeQueues.remove( q);
+            }
+        }
+        return t;
+    }
+
+    private void admit( Ticket t) {
+        t.admitted = true;
+        stopTimer( t);
+        admitted.incrementAndGet();
+        t.queue.admitted.incrementAndGet();
+        t.queue.waitTime.record( ( System.nanoTime() - t.time) / 1000);
+    }
+
+    private static void stopTimer( Ticket t) {
+        if( t.timer != null) {
+            t.timer.cancel( false);
+            t.timer = null;
+        }
+    }
+
+    private boolean isExpired( Ticket t) {
+        return t.req.isExpired()
+                || ( System.nanoTime() - t.time) / 1000000 > queueTimeOut;
+    }
+
+    /** Asynchronous admission callback. */
+    interface Task {
+
+        /** It was admitted, it has to call release() when it ends. */
+        void admitted();
+
+        /** It was rejected by a full queue or waiting time out. */
+        void rejected();
+    }
+
+    /** A request waiting its turn. */
+    private static class Ticket {
+        private final SvcRequest req;
+        private final int cost;
+        private final Task task;
+        private final long time = System.nanoTime();
+        private FairQueue queue;
+        private ScheduledFuture<?> timer = null;   // Time out of an asynchronous one, under lock
+        private volatile boolean admitted = false;
+
+        private Ticket( SvcRequest req, int cost, Task task) {
+            this.req = req;
+            this.cost = Math.max( 1, cost);
+            this.task = task;
+        }
+    }
+
+    /** Queue of a Node or Pipeline. */
+    private static class FairQueue {
+        private final String name;
+        private final LinkedList<Ticket> tickets = new LinkedList();
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong timeOuts = new AtomicLong();
+        private final LatencyHistogram waitTime = new LatencyHistogram();
+        private int weight;
+        private double finish = 0;
+
+        private FairQueue( String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/* BatchPipeline.java */
+package uy.com.r2.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+import uy.com.r2.core.api.SvcMessage;
+import uy.com.r2.core.api.SvcRequest;
+import uy.com.r2.core.api.SvcResponse;
+
+/** A batch of requests running the same pipeline.
+ * Each request has its own RunningPipeline, and all of them go step by step
+ * together: the requests go forward by the lowest step, then the responses
+ * go back by the highest one. So the module of each step may get the whole 
+ * group in one call when it implements BatchService, otherwise it is called 
+ * once by each request.
+ * @author G.Camargo
+ */
+class BatchPipeline {
+    private static final Logger LOG = Logger.getLogger( BatchPipeline.class);
+    private final PipelinePlan plan;
+    private final List<SvcRequest> reqs;
+    private final RunningPipeline rps[];
+    private final SvcResponse resps[];
+    
+    /** Constructor.
+     * @param plan Compiled pipeline
+     * @param reqs Requests to process
+     */
+    BatchPipeline( PipelinePlan plan, List<SvcRequest> reqs) {
+        this.plan = plan;
+        this.reqs = reqs;
+        this.rps = new RunningPipeline[ reqs.size()];
+        this.resps = new SvcResponse[ reqs.size()];
+    }
+    
+    /** Run all the batch to the end.
+     * @param registry Registry of running pipelines, or null to not register them
+     * @param admitted It has a place of the AdmissionScheduler
+     * @return SvcResponse array in the same order of the requests
+     */
+    SvcResponse[] run( InFlightRegistry registry, boolean admitted) {
+        long ids[] = new long[ rps.length];
+        for( int i = 0; i < rps.length; ++i) {
+            SvcRequest req = reqs.get( i);
+            rps[ i] = new RunningPipeline( plan, req);
+            rps[ i].setAdmitted( admitted);
+            if( registry != null) {
+                ids[ i] = registry.register( rps[ i], req);
+                if( ids[ i] == 0) {
+                    resps[ i] = new SvcResponse( SvcResponse.MSG_TOPPED + "RunningPipelines", 
+                            SvcResponse.RES_CODE_TOPPED, null, req);
+                    rps[ i] = null;
+                }
+            }
+        }
+        try {
+            while( runGroup()) {
+                // Next group
+            }
+            for( int i = 0; i < rps.length; ++i) {
+                if( rps[ i] != null) {
+                    resps[ i] = rps[ i].getFinalResponse();
+                }
+            }
+        } finally {
+            for( long id: ids) {
+                if( id != 0) {
+                    registry.remove( id);
+                }
+            }
+        }
+        return resps;
+    }
+    
+    /** Run the next group of pipelines on the same step.
+     * @return Boolean: false when all ended
+     */
+    private boolean runGroup() {
+        int minRequest = Integer.MAX_VALUE;
+        int maxResponse = -1;
+        for( RunningPipeline rp: rps) {
+            if( rp == null || rp.isEnded()) {
+                continue;
+            }
+            if( rp.getMessage() instanceof SvcRequest) {
+                minRequest = Math.min( minRequest, rp.getIndex());
+            } else {
+                maxResponse = Math.max( maxResponse, rp.getIndex());
+            }
+        }
+        boolean forward = minRequest != Integer.MAX_VALUE;
+        int index = forward? minRequest: maxResponse;
+        if( index < 0) {
+            return false;
+        }
+        List<RunningPipeline> group = new ArrayList();
+        List<SvcMessage> msgs = new ArrayList();
+        for( RunningPipeline rp: rps) {
+            if( rp != null && !rp.isEnded() && rp.getIndex() == index &&
+                    ( rp.getMessage() instanceof SvcRequest) == forward) {
+                group.add( rp);
+                msgs.add( rp.getMessage());
+            }
+        }
+        ModuleInfo mi = ( index < plan.size())? plan.getModule( index): null;
+        if( mi != null && group.size() > 1 && mi.isBatch()) {
+            if( LOG.isTraceEnabled()) {
+                LOG.trace( "run batch index=" + index + " " + plan.getModuleName( index) 
+                        + " size=" + group.size());
+            }
+            boolean resumed[] = new boolean[ group.size()];
+            for( int i = 0; i < resumed.length; ++i) {
+                resumed[ i] = group.get( i).isResumed();
+            }
+            long t0 = System.nanoTime();
+            List<SvcMessage> r;
+            RunningPipeline outer = RunningPipeline.setRunning( group.get( 0));
+            try {
+                r = mi.processBatch( msgs, resumed);
+            } finally {
+                RunningPipeline.setRunning( outer);
+            }
+            for( int i = 0; i < group.size(); ++i) {
+                group.get( i).setProcessed( r.get( i), t0);
+            }
+        } else {   // One by one
+            for( RunningPipeline rp: group) {
+                rp.step();
+            }
+        }
+        return true;
+    }
+    
+}
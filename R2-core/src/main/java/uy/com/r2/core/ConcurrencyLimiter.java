@@ -0,0 +1,287 @@
+/* ConcurrencyLimiter.java */
+package uy.com.r2.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import uy.com.r2.core.api.ConfigItemDescriptor;
+import uy.com.r2.core.api.Configuration;
+
+/** Limit of concurrent calls to a module.
+ * The calls over the limit wait on a bounded queue up to a time out, or are
+ * rejected. The limit is adjusted from each call latency and drops by the
+ * implementation: <br>
+ * Fixed: Static limit, LimitActiveThreads <br>
+ * AIMD: Additive increase while it is used, multiplicative decrease on drop <br>
+ * Gradient: Follows the ratio between the long term and the recent latency <br>
+ * Or any subclass name, with a public constructor w/o arguments.
+ * @author G.Camargo
+ */
+public abstract class ConcurrencyLimiter {
+    public static final String NONE = "None";
+    public static final String FIXED = "Fixed";
+    public static final String AIMD = "AIMD";
+    public static final String GRADIENT = "Gradient";
+    private static final int INITIAL_LIMIT = 20;
+
+    private final Object lock = new Object();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong queueTimeOuts = new AtomicLong();
+    private volatile int topActive = 0;
+    private volatile int limit = 1;
+    protected int minLimit = 1;
+    protected int maxLimit = 1000;
+    private int maxQueue = 0;
+    private int queueTimeOut = 0;
+
+    /** Build the limiter set by the module configuration.
+     * @param cfg Module configuration
+     * @return ConcurrencyLimiter or null when it has not limit
+     * @throws Exception Invalid configuration
+     */
+    public static ConcurrencyLimiter newConcurrencyLimiter( Configuration cfg) throws Exception {
+        String mode = cfg.getString( "Limiter");
+        if( mode == null || mode.isEmpty() || NONE.equalsIgnoreCase( mode)) {
+            if( !cfg.containsKey( "LimitActiveThreads")) {
+                return null;
+            }
+            mode = FIXED;
+        }
+        ConcurrencyLimiter l;
+        if( FIXED.equalsIgnoreCase( mode)) {
+            l = new Fixed();
+        } else if( AIMD.equalsIgnoreCase( mode)) {
+            l = new Aimd();
+        } else if( GRADIENT.equalsIgnoreCase( mode)) {
+            l = new Gradient();
+        } else {
+            l = ( ConcurrencyLimiter)Class.forName( mode).getDeclaredConstructor().newInstance();
+        }
+        l.setConfiguration( cfg);
+        return l;
+    }
+
+    /** Add the configuration descriptors.
+     * @param l Module configuration descriptors list
+     */
+    public static void addConfigDescriptors( List<ConfigItemDescriptor> l) {
+        l.add( new ConfigItemDescriptor( "Limiter", ConfigItemDescriptor.STRING,
+               "Concurrency limiter: None, Fixed, AIMD, Gradient or a class name (internal)", NONE));
+        l.add( new ConfigItemDescriptor( "LimitActiveThreads", ConfigItemDescriptor.INTEGER,
+               "Fixed or initial limit of the concurrent calls to this module, "
+               + "LimitMax or 20 by default (internal)"));
+        l.add( new ConfigItemDescriptor( "LimitMin", ConfigItemDescriptor.INTEGER,
+               "Minimum limit of concurrent calls of an adaptive limiter (internal)", "1"));
+        l.add( new ConfigItemDescriptor( "LimitMax", ConfigItemDescriptor.INTEGER,
+               "Maximum limit of concurrent calls of an adaptive limiter (internal)", "1000"));
+        l.add( new ConfigItemDescriptor( "LimitQueue", ConfigItemDescriptor.INTEGER,
+               "Calls that may wait over the limit, 0 rejects them (internal)", "0"));
+        l.add( new ConfigItemDescriptor( "LimitQueueTimeOut", ConfigItemDescriptor.INTEGER,
+               "Maximum wait in mS of a queued call (internal)", "100"));
+    }
+
+    /** Set the configuration.
+     * @param cfg Module configuration
+     * @throws Exception Invalid configuration
+     */
+    protected void setConfiguration( Configuration cfg) throws Exception {
+        minLimit = Math.max( 1, cfg.getInt( "LimitMin"));
+        maxLimit = Math.max( minLimit, cfg.getInt( "LimitMax"));
+        maxQueue = cfg.getInt( "LimitQueue");
+        queueTimeOut = cfg.getInt( "LimitQueueTimeOut");
+        int l;
+        if( cfg.containsKey( "LimitActiveThreads")) {
+            l = cfg.getInt( "LimitActiveThreads");
+        } else {
+            l = ( this instanceof Fixed)? maxLimit: INITIAL_LIMIT;
+        }
+        if( !( this instanceof Fixed)) {
+            l = Math.min( Math.max( l, minLimit), maxLimit);
+        }
+        setLimit( l);
+    }
+
+    /** Take a place to run a call, it may wait on the queue.
+     * @param maxWait Maximum time to wait in mS, as the call time out
+     * @return Start time in nS, or -1 when it was rejected
+     */
+    public long acquire( long maxWait) {
+        if( tryAcquire()) {
+            return System.nanoTime();
+        }
+        if( maxQueue <= 0 || waiting.incrementAndGet() > maxQueue) {
+            if( maxQueue > 0) {
+                waiting.decrementAndGet();
+            }
+            rejected.incrementAndGet();
+            return -1;
+        }
+        queued.incrementAndGet();
+        long end = System.currentTimeMillis() + Math.min( maxWait, queueTimeOut);
+        try {
+            synchronized( lock) {
+                while( !tryAcquire()) {
+                    long w = end - System.currentTimeMillis();
+                    if( w <= 0) {
+                        queueTimeOuts.incrementAndGet();
+                        rejected.incrementAndGet();
+                        return -1;
+                    }
+                    lock.wait( w);
+                }
+            }
+        } catch( InterruptedException x) {
+            rejected.incrementAndGet();
+            return -1;
+        } finally {
+            waiting.decrementAndGet();
+        }
+        return System.nanoTime();
+    }
+
+    /** Release the place taken by a successful acquire().
+     * @param startTime Value returned by acquire()
+     * @param dropped The call failed by overload, like a time out
+     */
+    public void release( long startTime, boolean dropped) {
+        int a = active.getAndDecrement();
+        onSample( System.nanoTime() - startTime, a, dropped);
+        if( waiting.get() > 0) {  // Wake up one of the queue
+            synchronized( lock) {
+                lock.notify();
+            }
+        }
+    }
+
+    /** Get the current limit.
+     * @return Limit of concurrent calls
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** Add the status variables.
+     * @param map Status vars map
+     */
+    public void getStatusVars( Map<String,Object> map) {
+        map.put( "Limiter", getClass().getSimpleName());
+        map.put( "Limit", limit);
+        map.put( "ActiveCount", active.get());
+        map.put( "TopActiveCount", topActive);
+        map.put( "QueueDepth", waiting.get());
+        map.put( "Queued", queued.get());
+        map.put( "QueueTimeOuts", queueTimeOuts.get());
+        map.put( "Rejected", rejected.get());
+    }
+
+    /** Set a new limit, wakes up the waiting calls if it grows.
+     * @param newLimit New limit
+     */
+    protected void setLimit( int newLimit) {
+        int old = limit;
+        limit = newLimit;
+        if( newLimit > old && waiting.get() > 0) {
+            synchronized( lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** Process the result of a call, to adjust the limit.
+     * @param rtt Call time in nS
+     * @param inFlight Active calls when it ended, including it
+     * @param dropped The call failed by overload
+     */
+    protected abstract void onSample( long rtt, int inFlight, boolean dropped);
+
+    private boolean tryAcquire() {
+        int a;
+        do {
+            a = active.get();
+            if( a >= limit) {
+                return false;
+            }
+        } while( !active.compareAndSet( a, a + 1));
+        if( a + 1 > topActive) {
+            topActive = a + 1;
+        }
+        return true;
+    }
+
+    /** Static limit. */
+    public static class Fixed extends ConcurrencyLimiter {
+
+        @Override
+        protected void onSample( long rtt, int inFlight, boolean dropped) {
+        }
+    }
+
+    /** Additive increase and multiplicative decrease. */
+    public static class Aimd extends ConcurrencyLimiter {
+        private static final double BACKOFF = 0.9;
+        private double value;
+
+        @Override
+        protected synchronized void setConfiguration( Configuration cfg) throws Exception {
+            super.setConfiguration( cfg);
+            value = getLimit();
+        }
+
+        @Override
+        protected synchronized void onSample( long rtt, int inFlight, boolean dropped) {
+            if( dropped) {
+                value = Math.max( minLimit, value * BACKOFF);
+            } else if( inFlight * 2 >= value) {  // Increase only when used
+                value = Math.min( maxLimit, value + 1 / value);
+            }
+            setLimit( ( int)value);
+        }
+    }
+
+    /** Latency gradient, the limit is reduced when the recent latency grows
+     * over the long term one, and increased by a queue allowance when not. */
+    public static class Gradient extends ConcurrencyLimiter {
+        private static final double SHORT_ALPHA = 0.1;
+        private static final double LONG_ALPHA = 1.0 / 600;
+        private static final double SMOOTHING = 0.2;
+        private double value;
+        private double shortRtt = 0;
+        private double longRtt = 0;
+
+        @Override
+        protected synchronized void setConfiguration( Configuration cfg) throws Exception {
+            super.setConfiguration( cfg);
+            value = getLimit();
+            shortRtt = 0;
+            longRtt = 0;
+        }
+
+        @Override
+        protected synchronized void onSample( long rtt, int inFlight, boolean dropped) {
+            if( shortRtt == 0) {
+                shortRtt = longRtt = rtt;
+            }
+            shortRtt += ( rtt - shortRtt) * SHORT_ALPHA;
+            longRtt += ( rtt - longRtt) * LONG_ALPHA;
+            if( longRtt > 2 * shortRtt) {  // Recovering, forget the old latency
+                longRtt *= 0.95;
+            }
+            double gradient = ( shortRtt > 0)? longRtt / shortRtt: 1.0;
+            gradient = Math.max( 0.5, Math.min( 1.0, gradient));
+            if( dropped) {
+                gradient = 0.5;
+            } else if( gradient >= 1.0 && inFlight * 2 < value) {  
+                return;  // Not used, nothing to learn
+            }
+            double target = value * gradient + Math.sqrt( value);
+            value = value * ( 1 - SMOOTHING) + target * SMOOTHING;
+            value = Math.max( minLimit, Math.min( maxLimit, value));
+            setLimit( ( int)value);
+        }
+    }
+
+}
@@ -0,0 +1,296 @@
+/* InFlightRegistry.java */
+package uy.com.r2.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.apache.log4j.Logger;
+import uy.com.r2.core.api.SvcRequest;
+
+/** Bounded registry of the running pipelines.
+ * Each registered pipeline gets a compact numeric correlation id, and a
+ * deadline taken from the request deadline or a default time out.
+ * The id is also its slot in a fixed table, so register, get and remove
+ * put nothing on the heap; the ids that collide with a long running one
+ * go to an overflow map.
+ * Other table, hashed by the request fields, finds a pipeline by its
+ * request id, with its own overflow map keyed by the request id.
+ * The ids are given in order, so the oldest one is the lowest id still
+ * running: a mark that only goes forward finds it.
+ * A hashed timer wheel is swept by a reaper thread to expire the pipelines
+ * that still wait a message after its deadline. A pipeline is put in the
+ * wheel only when it has to wait one.
+ * Remove an entry is lock free, the wheel drops it lazily.
+ * @author G.Camargo
+ */
+class InFlightRegistry {
+    private static final Logger LOG = Logger.getLogger( InFlightRegistry.class);
+    private static final int WHEEL_SIZE = 1024;  // Power of 2
+    private static final int TICK_MS = 10;
+    private static final int SLOTS = 1 << 16;    // Power of 2
+    private static final int RETRIES = 4;
+
+    private final AtomicReferenceArray<RunningPipeline> slots = new AtomicReferenceArray( SLOTS);
+    private final Map<Long,RunningPipeline> overflow = new ConcurrentHashMap();
+    private final AtomicReferenceArray<RunningPipeline> requests = new AtomicReferenceArray( SLOTS);
+    private final Map<String,RunningPipeline> requestOverflow = new ConcurrentHashMap();
+    private final ConcurrentLinkedQueue<RunningPipeline> wheel[];
+    private final AtomicLong lastId = new AtomicLong();
+    private final AtomicLong oldestId = new AtomicLong( 1);   // Lowest id that may run
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final long startTime = System.currentTimeMillis();
+    private volatile long currentTick = 0;
+    private volatile int capacity = 100000;
+    private volatile int defaultTimeOut = 60000;
+    private volatile TaskExecutor reaper = null;
+
+    InFlightRegistry() {
+        wheel = new ConcurrentLinkedQueue[ WHEEL_SIZE];
+        for( int i = 0; i < WHEEL_SIZE; ++i) {
+            wheel[ i] = new ConcurrentLinkedQueue();
+        }
+    }
+
+    /** Set the limits.
+     * @param capacity Maximum number of running pipelines, 0 is unlimited
+     * @param defaultTimeOut Deadline in mS of requests without time out
+     */
+    void setLimits( int capacity, int defaultTimeOut) {
+        this.capacity = ( capacity <= 0)? Integer.MAX_VALUE: capacity;
+        this.defaultTimeOut = ( defaultTimeOut <= 0)? Integer.MAX_VALUE: defaultTimeOut;
+    }
+
+    /** Register a running pipeline.
+     * @param rp Running pipeline
+     * @param req Request been processed
+     * @return Correlation id, or 0 when it is full
+     */
+    long register( RunningPipeline rp, SvcRequest req) {
+        if( count.incrementAndGet() > capacity) {
+            count.decrementAndGet();
+            rejected.incrementAndGet();
+            return 0;
+        }
+        long deadline = req.getAbsoluteTime() + defaultTimeOut;
+        if( req.getDeadline() > 0 && req.getDeadline() < deadline) {
+            deadline = req.getDeadline();
+        }
+        long id = 0;
+        for( int i = 0; i < RETRIES && id == 0; ++i) {
+            id = lastId.incrementAndGet();
+            rp.registered( this, id, deadline);
+            if( !slots.compareAndSet( slot( id), null, rp)) {
+                id = 0;   // Used by a long running one
+            }
+        }
+        if( id == 0) {
+            id = lastId.incrementAndGet();
+            rp.registered( this, id, deadline);
+            overflow.put( id, rp);
+        }
+        int i = requestSlot( req);
+        if( requests.compareAndSet( i, null, rp)) {
+            rp.setRequestSlot( i);
+        } else {
+            rp.setRequestSlot( -1);
+            requestOverflow.put( req.getRequestId(), rp);
+        }
+        req.setCorrelationId( id);
+        return id;
+    }
+
+    /** Get a running pipeline by its correlation id.
+     * @param id Correlation id
+     * @return RunningPipeline or null
+     */
+    RunningPipeline get( long id) {
+        RunningPipeline rp = slots.get( slot( id));
+        if( rp != null && rp.getCorrelationId() == id) {
+            return rp;
+        }
+        return overflow.isEmpty()? null: overflow.get( id);
+    }
+
+    /** Get a running pipeline by its request id.
+     * Only needed when the message lost its correlation id.
+     * @param req Request, or other with the same request id
+     * @return RunningPipeline or null
+     */
+    RunningPipeline find( SvcRequest req) {
+        RunningPipeline rp = requests.get( requestSlot( req));
+        if( rp != null && rp.isRequest( req)) {
+            return rp;
+        }
+        return requestOverflow.isEmpty()? null: requestOverflow.get( req.getRequestId());
+    }
+
+    /** Remove a running pipeline.
+     * @param id Correlation id
+     */
+    void remove( long id) {
+        int i = slot( id);
+        RunningPipeline rp = slots.get( i);
+        if( rp == null || rp.getCorrelationId() != id || !slots.compareAndSet( i, rp, null)) {
+            rp = overflow.isEmpty()? null: overflow.remove( id);
+        }
+        if( rp != null) {
+            int r = rp.getRequestSlot();
+            if( r < 0 || !requests.compareAndSet( r, rp, null)) {
+                requestOverflow.remove( rp.getRequestId(), rp);
+            }
+            rp.unregistered();
+            count.decrementAndGet();
+        }
+    }
+
+    /** Get all the running pipelines.
+     * @return Iterable
+     */
+    Iterable<RunningPipeline> getRunningPipelines() {
+        List<RunningPipeline> l = new ArrayList();
+        for( int i = 0; i < SLOTS; ++i) {
+            RunningPipeline rp = slots.get( i);
+            if( rp != null) {
+                l.add( rp);
+            }
+        }
+        l.addAll( overflow.values());
+        return l;
+    }
+
+    /** Get the number of running pipelines.
+     * @return Integer
+     */
+    int size() {
+        return count.get();
+    }
+
+    /** Add the status vars.
+     * @param map Status vars map
+     */
+    void getStatusVars( Map<String,Object> map) {
+        long now = System.currentTimeMillis();
+        long last = lastId.get();
+        long id = oldestId.get();
+        RunningPipeline rp = null;
+        while( id <= last && ( rp = get( id)) == null) {
+            ++id;   // Ended, each id is passed once
+        }
+        long o = oldestId.get();
+        while( o < id && !oldestId.compareAndSet( o, id)) {
+            o = oldestId.get();
+        }
+        long oldest = ( rp == null)? now: Math.min( now, rp.getRegisterTime());
+        map.put( "InFlightCount", count.get());
+        map.put( "InFlightCapacity", capacity);
+        map.put( "InFlightExpirations", expirations.get());
+        map.put( "InFlightRejected", rejected.get());
+        map.put( "InFlightOldestAge", now - oldest);
+    }
+
+    /** Stop the reaper. */
+    synchronized void shutdown() {
+        if( reaper != null) {
+            reaper.shutdown();
+            reaper = null;
+        }
+    }
+
+    /** A registered pipeline has to wait a message, put it in the wheel.
+     * Called with the lock of the pipeline held.
+     * @param rp Running pipeline
+     */
+    void waiting( RunningPipeline rp) {
+        if( !rp.isScheduled()) {
+            rp.setScheduled( true);
+            schedule( rp, rp.getDeadline());
+        }
+    }
+
+    /** Put it in the wheel, start the reaper when needed. */
+    private void schedule( RunningPipeline rp, long deadline) {
+        long tick = ( deadline - startTime) / TICK_MS;
+        long now = currentTick;
+        if( tick <= now) {
+            tick = now + 1;
+        }
+        rp.setRounds( ( tick - now - 1) / WHEEL_SIZE);
+        wheel[ (int)( tick & ( WHEEL_SIZE - 1))].add( rp);
+        if( reaper == null) {
+            startReaper();
+        }
+    }
+
+    private synchronized void startReaper() {
+        if( reaper != null) {
+            return;
+        }
+        final TaskExecutor te = new TaskExecutor( "InFlightReaper", TaskExecutor.PLATFORM, 1);
+        reaper = te;
+        te.execute( new Runnable() {
+            @Override
+            public void run() {
+                while( !te.isShutdown()) {
+                    try {
+                        Thread.sleep( TICK_MS);
+                        long target = ( System.currentTimeMillis() - startTime) / TICK_MS;
+                        while( currentTick < target) {
+                            expireTick( ++currentTick);
+                        }
+                    } catch( Exception x) {
+                        LOG.warn( "Reaper failed " + x, x);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Sweep one bucket of the wheel. 
+     * A pipeline that is running again is dropped, it is put back in the 
+     * wheel when it has to wait again.
+     */
+    private void expireTick( long tick) {
+        Iterator<RunningPipeline> it = wheel[ (int)( tick & ( WHEEL_SIZE - 1))].iterator();
+        while( it.hasNext()) {
+            RunningPipeline rp = it.next();
+            if( rp.isUnregistered()) {
+                it.remove();
+                rp.setScheduled( false);
+            } else if( rp.getRounds() > 0) {
+                rp.setRounds( rp.getRounds() - 1);
+            } else {
+                it.remove();
+                rp.setScheduled( false);   // Before, a new wait puts it back
+                if( rp.expire()) {         // It was waiting, delivered time out
+                    expirations.incrementAndGet();
+                    LOG.debug( "Expired " + rp);
+                }
+            }
+        }
+    }
+
+    private static int slot( long id) {
+        return ( int)id & ( SLOTS - 1);
+    }
+
+    /** Slot of the request id, from its fields, nothing is formatted. */
+    private static int requestSlot( SvcRequest req) {
+        int h = req.getNodeRqNr() * 31 + req.getSessionNr();
+        if( req.getClientNode() != null) {
+            h = h * 31 + req.getClientNode().hashCode();
+        }
+        if( req.getServiceName() != null) {
+            h = h * 31 + req.getServiceName().hashCode();
+        }
+        return ( h ^ ( h >>> 16)) & ( SLOTS - 1);
+    }
+
+}
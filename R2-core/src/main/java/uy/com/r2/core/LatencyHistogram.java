@@ -0,0 +1,173 @@
+/* LatencyHistogram.java */
+package uy.com.r2.core;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Fixed memory and lock free histogram of latencies.
+ * The values are counted on log-linear buckets: each power of 2 is split in
+ * 16 linear sub-buckets, so a percentile has an error lower than 6.25%.
+ * Values from 0 to 2^40 fit on 592 buckets, greater ones are counted on 
+ * the last one. The unit is given by the caller, usually micro-seconds.
+ * @author G.Camargo
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXP = 39;
+    private static final long MAX_VALUE = ( 1L << ( MAX_EXP + 1)) - 1;
+    private static final int BUCKETS = ( MAX_EXP - SUB_BITS + 2) * SUB_COUNT;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    
+    /** Add a value.
+     * @param value Latency, negative is taken as 0
+     */
+    public void record( long value) {
+        record( value, 1);
+    }
+    
+    /** Add the same value many times.
+     * @param value Latency, negative is taken as 0
+     * @param times Number of times
+     */
+    public void record( long value, long times) {
+        if( value < 0) {
+            value = 0;
+        }
+        buckets.addAndGet( indexOf( value), times);
+        count.add( times);
+        sum.add( value * times);
+        long m = max.get();
+        while( value > m && !max.compareAndSet( m, value)) {
+            m = max.get();
+        }
+    }
+    
+    /** Get the number of values recorded.
+     * @return Count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+    
+    /** Get the maximum value recorded.
+     * @return Maximum
+     */
+    public long getMax() {
+        return max.get();
+    }
+    
+    /** Get the sum of the values recorded.
+     * @return Sum
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+    
+    /** Get the average value.
+     * @return Average, 0 if empty
+     */
+    public double getMean() {
+        long c = count.sum();
+        return ( c == 0)? 0: ( double)sum.sum() / c;
+    }
+    
+    /** Get few percentiles in one pass.
+     * Each one is the upper value of its bucket, but no more than the maximum.
+     * @param ps Percentiles as fractions, ascending, like 0.5, 0.99
+     * @return Values, in the same order
+     */
+    public long[] getPercentiles( double... ps) {
+        long snapshot[] = new long[ BUCKETS];
+        long total = 0;
+        for( int i = 0; i < BUCKETS; ++i) {
+            snapshot[ i] = buckets.get( i);
+            total += snapshot[ i];
+        }
+        long r[] = new long[ ps.length];
+        if( total == 0) {
+            return r;
+        }
+        long m = max.get();
+        int bi = 0;
+        long acc = snapshot[ 0];
+        for( int p = 0; p < ps.length; ++p) {
+            long target = Math.max( 1, ( long)Math.ceil( ps[ p] * total));
+            while( acc < target && bi < BUCKETS - 1) {
+                acc += snapshot[ ++bi];
+            }
+            r[ p] = Math.min( upperValueOf( bi), m);
+        }
+        return r;
+    }
+    
+    /** Get few percentiles without copying the buckets.
+     * The values recorded while it runs may be counted or not.
+     * @param ps Percentiles as fractions, ascending, like 0.5, 0.99
+     * @param r Values, in the same order
+     */
+    public void getPercentiles( double ps[], long r[]) {
+        long total = 0;
+        for( int i = 0; i < BUCKETS; ++i) {
+            total += buckets.get( i);
+        }
+        long m = max.get();
+        int bi = 0;
+        long acc = buckets.get( 0);
+        for( int p = 0; p < ps.length; ++p) {
+            if( total == 0) {
+                r[ p] = 0;
+                continue;
+            }
+            long target = Math.max( 1, ( long)Math.ceil( ps[ p] * total));
+            while( acc < target && bi < BUCKETS - 1) {
+                acc += buckets.get( ++bi);
+            }
+            r[ p] = Math.min( upperValueOf( bi), m);
+        }
+    }
+    
+    /** Add the summary as status variables.
+     * Count, Avg, P50, P90, P99, P999 and Max, each one with the prefix.
+     * @param map Status vars map
+     * @param prefix Variable name prefix
+     */
+    public void getStatusVars( Map<String,Object> map, String prefix) {
+        long p[] = getPercentiles( 0.5, 0.9, 0.99, 0.999);
+        map.put( prefix + "Count", getCount());
+        map.put( prefix + "Avg", Math.round( getMean()));
+        map.put( prefix + "P50", p[ 0]);
+        map.put( prefix + "P90", p[ 1]);
+        map.put( prefix + "P99", p[ 2]);
+        map.put( prefix + "P999", p[ 3]);
+        map.put( prefix + "Max", getMax());
+    }
+    
+    private static int indexOf( long value) {
+        if( value < SUB_COUNT) {
+            return ( int)value;
+        }
+        if( value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        int e = 63 - Long.numberOfLeadingZeros( value);
+        return ( e - SUB_BITS + 1) * SUB_COUNT 
+                + ( int)( ( value >>> ( e - SUB_BITS)) & ( SUB_COUNT - 1));
+    }
+    
+    private static long upperValueOf( int index) {
+        if( index < SUB_COUNT) {
+            return index;
+        }
+        int e = index / SUB_COUNT + SUB_BITS - 1;
+        long lower = ( long)( SUB_COUNT + index % SUB_COUNT) << ( e - SUB_BITS);
+        return lower + ( 1L << ( e - SUB_BITS)) - 1;
+    }
+    
+}
@@ -0,0 +1,350 @@
+/* MetricsRegistry.java */
+package uy.com.r2.core;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Registry of typed metrics, exposed as Prometheus text format.
+ * The modules register counters, gauges and latency summaries, each one 
+ * identified by its name and labels. Registering again the same one 
+ * replaces it, so a replaced module goes on with the same series. <br>
+ * The series names and labels are rendered once, when registered, and 
+ * the scrape reuses the same buffers: it is cheap enough to be polled 
+ * every few seconds, unlike getStatusVars().
+ * @author G.Camargo
+ */
+public class MetricsRegistry {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double QUANTILES[] = { 0.5, 0.9, 0.99, 0.999};
+    private static final String QUANTILE_LABELS[] = { "0.5", "0.9", "0.99", "0.999"};
+    private static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    private final Map<String,Metric> metrics = new TreeMap();
+    private volatile Metric sorted[] = new Metric[ 0];
+    // Scrape buffers, guarded by this
+    private final StringBuilder text = new StringBuilder( 16384);
+    private final long values[] = new long[ QUANTILES.length];
+    private byte bytes[] = new byte[ 16384];
+
+    private MetricsRegistry() {
+    }
+
+    /** Get the registry.
+     * @return The only one instance
+     */
+    public static MetricsRegistry getRegistry() {
+        return REGISTRY;
+    }
+
+    /** Register a metric, it replaces the one with the same name and labels.
+     * @param <M> Metric type
+     * @param m Metric
+     * @return The same metric
+     */
+    public <M extends Metric> M register( M m) {
+        synchronized( metrics) {
+            metrics.put( m.key, m);
+            sorted = metrics.values().toArray( new Metric[ metrics.size()]);
+        }
+        return m;
+    }
+
+    /** Get a registered counter, or register a new one.
+     * @param name Metric name
+     * @param help Description
+     * @param labels Label names and values: name1, value1, name2, value2...
+     * @return Counter
+     */
+    public Counter counter( String name, String help, String... labels) {
+        Counter c = new Counter( name, help, labels);
+        synchronized( metrics) {
+            Metric m = metrics.get( c.key);
+            if( m instanceof Counter) {
+                return (Counter)m;
+            }
+        }
+        return register( c);
+    }
+
+    /** Get a registered gauge, or register a new one.
+     * @param name Metric name
+     * @param help Description
+     * @param labels Label names and values: name1, value1, name2, value2...
+     * @return Gauge
+     */
+    public Gauge gauge( String name, String help, String... labels) {
+        Gauge g = new Gauge( name, help, labels);
+        synchronized( metrics) {
+            Metric m = metrics.get( g.key);
+            if( m instanceof Gauge) {
+                return (Gauge)m;
+            }
+        }
+        return register( g);
+    }
+
+    /** Get a registered latency summary, or register a new one.
+     * @param name Metric name
+     * @param help Description
+     * @param labels Label names and values: name1, value1, name2, value2...
+     * @return Summary
+     */
+    public Summary summary( String name, String help, String... labels) {
+        Summary s = new Summary( name, help, labels);
+        synchronized( metrics) {
+            Metric m = metrics.get( s.key);
+            if( m instanceof Summary) {
+                return (Summary)m;
+            }
+        }
+        return register( s);
+    }
+
+    /** Remove a metric, only if it is the registered one.
+     * @param m Metric
+     */
+    public void unregister( Metric m) {
+        synchronized( metrics) {
+            if( metrics.get( m.key) == m) {
+                metrics.remove( m.key);
+                sorted = metrics.values().toArray( new Metric[ metrics.size()]);
+            }
+        }
+    }
+
+    /** Render all the metrics and write them.
+     * Only one scrape runs at a time, the buffer is reused.
+     * @param out Receiver of the rendered text
+     * @throws IOException Error writing
+     */
+    public synchronized void scrape( Output out) throws IOException {
+        text.setLength( 0);
+        String last = null;
+        for( Metric m: sorted) {
+            if( !m.name.equals( last)) {
+                text.append( "# HELP ").append( m.name).append( ' ').append( m.help).append( '\n');
+                text.append( "# TYPE ").append( m.name).append( ' ').append( m.type).append( '\n');
+                last = m.name;
+            }
+            m.write( this);
+        }
+        int len = text.length();
+        if( bytes.length < len) {
+            bytes = new byte[ len + len / 2];
+        }
+        for( int i = 0; i < len; ++i) {  // Names and values are ASCII
+            char c = text.charAt( i);
+            bytes[ i] = ( c < 128)? ( byte)c: ( byte)'?';
+        }
+        out.write( bytes, len);
+    }
+
+    /** Get the number of registered metrics.
+     * @return Count
+     */
+    public int size() {
+        return sorted.length;
+    }
+
+    /** Receiver of a scrape. */
+    public interface Output {
+
+        /** Write the rendered text.
+         * @param buf Buffer, valid only during the call
+         * @param len Bytes to write
+         * @throws IOException Error writing
+         */
+        void write( byte buf[], int len) throws IOException;
+    }
+
+    /** Base of a metric series. */
+    public abstract static class Metric {
+        final String name;
+        final String help;
+        final String type;
+        final String key;
+        final String labels;  // {a="b",c="d"} or empty
+
+        private Metric( String name, String help, String type, String labels[]) {
+            this.name = name;
+            this.help = help.replace( "\\", "\\\\").replace( "\n", "\\n");
+            this.type = type;
+            this.labels = renderLabels( labels, null, null);
+            this.key = name + this.labels;
+        }
+
+        abstract void write( MetricsRegistry r);
+    }
+
+    /** Monotonic counter.
+     * It may be sub-classed to report a value kept by the module.
+     */
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        /** Constructor.
+         * @param name Metric name, it should end with _total
+         * @param help Description
+         * @param labels Label names and values: name1, value1, name2, value2...
+         */
+        public Counter( String name, String help, String... labels) {
+            super( name, help, "counter", labels);
+        }
+
+        /** Count one. */
+        public void inc() {
+            value.increment();
+        }
+
+        /** Add some.
+         * @param n Amount
+         */
+        public void add( long n) {
+            value.add( n);
+        }
+
+        /** Get the actual value.
+         * @return Value
+         */
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        void write( MetricsRegistry r) {
+            r.text.append( key).append( ' ').append( get()).append( '\n');
+        }
+    }
+
+    /** Value that goes up and down.
+     * It may be sub-classed to report a value kept by the module.
+     */
+    public static class Gauge extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        /** Constructor.
+         * @param name Metric name
+         * @param help Description
+         * @param labels Label names and values: name1, value1, name2, value2...
+         */
+        public Gauge( String name, String help, String... labels) {
+            super( name, help, "gauge", labels);
+        }
+
+        /** Set the value.
+         * @param v Value
+         */
+        public void set( long v) {
+            value.set( v);
+        }
+
+        /** Add some, negative to subtract.
+         * @param n Amount
+         */
+        public void add( long n) {
+            value.addAndGet( n);
+        }
+
+        /** Get the actual value.
+         * @return Value
+         */
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        void write( MetricsRegistry r) {
+            r.text.append( key).append( ' ').append( get()).append( '\n');
+        }
+    }
+
+    /** Latencies summary: quantiles, count and sum, over a LatencyHistogram.
+     * It may be sub-classed to report a histogram kept by the module.
+     */
+    public static class Summary extends Metric {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final String quantiles[] = new String[ QUANTILES.length];
+
+        /** Constructor.
+         * @param name Metric name, with its unit, like _microseconds
+         * @param help Description
+         * @param labels Label names and values: name1, value1, name2, value2...
+         */
+        public Summary( String name, String help, String... labels) {
+            super( name, help, "summary", labels);
+            for( int i = 0; i < QUANTILES.length; ++i) {
+                quantiles[ i] = name + renderLabels( labels, "quantile", QUANTILE_LABELS[ i]);
+            }
+        }
+
+        /** Add a value.
+         * @param value Latency
+         */
+        public void record( long value) {
+            histogram.record( value);
+        }
+
+        /** Get the histogram to report.
+         * @return LatencyHistogram
+         */
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+
+        /** Get the number of values, from the histogram.
+         * It may be overridden when the histogram is reset, as a counter.
+         * @return Count
+         */
+        public long getCount() {
+            return getHistogram().getCount();
+        }
+
+        /** Get the sum of the values, from the histogram.
+         * It may be overridden when the histogram is reset, as a counter.
+         * @return Sum
+         */
+        public long getSum() {
+            return getHistogram().getSum();
+        }
+
+        @Override
+        void write( MetricsRegistry r) {
+            LatencyHistogram h = getHistogram();
+            h.getPercentiles( QUANTILES, r.values);
+            for( int i = 0; i < quantiles.length; ++i) {
+                r.text.append( quantiles[ i]).append( ' ').append( r.values[ i]).append( '\n');
+            }
+            r.text.append( name).append( "_sum").append( labels)
+                    .append( ' ').append( getSum()).append( '\n');
+            r.text.append( name).append( "_count").append( labels)
+                    .append( ' ').append( getCount()).append( '\n');
+        }
+    }
+
+    /** Render the labels as {a="b",c="d"}, plus an extra one. */
+    private static String renderLabels( String labels[], String extraName, String extraValue) {
+        if( ( labels == null || labels.length == 0) && extraName == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder( "{");
+        for( int i = 0; labels != null && i + 1 < labels.length; i += 2) {
+            if( sb.length() > 1) {
+                sb.append( ',');
+            }
+            sb.append( labels[ i]).append( "=\"");
+            sb.append( labels[ i + 1].replace( "\\", "\\\\").replace( "\"", "\\\"").replace( "\n", "\\n"));
+            sb.append( '"');
+        }
+        if( extraName != null) {
+            if( sb.length() > 1) {
+                sb.append( ',');
+            }
+            sb.append( extraName).append( "=\"").append( extraValue).append( '"');
+        }
+        return sb.append( '}').toString();
+    }
+
+}
@@ -1,12 +1,16 @@
 /* ModuleInfo.java */
 package uy.com.r2.core;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.log4j.Logger;
 import uy.com.r2.core.api.AsyncService;
+import uy.com.r2.core.api.BatchService;
 import uy.com.r2.core.api.ConfigItemDescriptor;
 import uy.com.r2.core.api.Module;
 import uy.com.r2.core.api.Configuration;
@@ -20,26 +24,36 @@ import uy.com.r2.svc.tools.SvcMonitor;
 
 /** Module Information structure and methods.
  * It has: Module name, Module implementation, Configuration & Status Vars.
+ * The statistics are lock free, with a latency histogram in micro-seconds
+ * of each call to the module, and they are reset each StatsInterval.
+ * The metrics are cumulative totals by module name, never reset: they go
+ * on when it is configured again or replaced.
+ * The concurrent calls may be limited by a ConcurrencyLimiter.
+ * It counts the requests in flight, from the request to its response, to
+ * drain it when the module is replaced.
  * To be used only in this package. 
  * @author Gustavo Camargo
  */
 public class ModuleInfo implements Module {
     private final static Logger LOG = Logger.getLogger(ModuleInfo.class);
+    private final static Map<String,Totals> TOTALS = new ConcurrentHashMap();
     private final String moduleName;
     private final Module moduleImpl;
     private final AsyncService asyncImpl;  // Module Wrapped as AsyncService
-    private final Object lockConcCtrl = new Object();
-    private boolean concCtrl = false;
+    private final Object lockStats = new Object();
+    private final LongAdder inFlight = new LongAdder();
+    private volatile ConcurrencyLimiter limiter = null;
     private AsyncService monitorImpl = null;
     private Configuration cfg = new Configuration();
 
-    private int limitActiveCount = Integer.MAX_VALUE;
     private int timeOut = Integer.MAX_VALUE;
+    private int drainTimeOut = 30000;
     // Statistics
-    private int activeCount = 0;
-    private int topActiveCount = 0;
-    private int count = 0;
-    private int errorCount = 0;
+    private volatile int statsInterval = 0;
+    private volatile Stats stats = new Stats();
+    private volatile Stats lastStats = null;
+    private final Totals totals;
+    private MetricsRegistry.Metric metrics[] = null;
     
     /** Constructor
      * @param name Module name
@@ -48,6 +62,9 @@ public class ModuleInfo implements Module {
     ModuleInfo( String name, Module impl) {
         this.moduleName = name;
         this.moduleImpl = impl;
+        Totals t = new Totals();
+        Totals t0 = TOTALS.putIfAbsent( name, t);
+        this.totals = ( t0 == null)? t: t0;
         if( impl instanceof AsyncService) {
             this.asyncImpl = (AsyncService)impl;
         } else if( impl instanceof SimpleService) {
@@ -103,10 +120,7 @@ public class ModuleInfo implements Module {
             }
         }    
         // Apply generic configuration
-        if( cfg.containsKey( "LimitActiveThreads")) {
-            limitActiveCount = cfg.getInt( "LimitActiveThreads");
-            concCtrl = true;
-        }
+        limiter = ( asyncImpl != null)? ConcurrencyLimiter.newConcurrencyLimiter( cfg): null;
         if( cfg.getBoolean( "Monitor") && asyncImpl != null) {
             LOG.trace( "Monitor instanced on " + moduleName);
             monitorImpl = new SvcMonitor( asyncImpl, moduleName);
@@ -119,12 +133,15 @@ public class ModuleInfo implements Module {
         if( timeOut == 0) {
             timeOut = Integer.MAX_VALUE;
         }
+        statsInterval = cfg.getInt( "StatsInterval");
+        drainTimeOut = cfg.getInt( "DrainTimeOut");
         // Reset status
         LOG.debug( "Statics of " + moduleName + " restarted");
-        activeCount = 0;
-        topActiveCount = 0;
-        count = 0;
-        errorCount = 0;
+        stats = new Stats();
+        lastStats = null;
+        if( asyncImpl != null && metrics == null) {
+            registerMetrics();
+        }
         // Update config
         if( moduleImpl instanceof StartableModule) {  
             ( (StartableModule)moduleImpl).start( this.cfg);
@@ -137,12 +154,24 @@ public class ModuleInfo implements Module {
     @Override
     public Map<String,Object> getStatusVars() {
         Map<String,Object> m = new TreeMap();
+        Stats st = getStats();
+        if( statsInterval > 0) {  // Report the last ended interval
+            st = lastStats;
+            if( st == null) {
+                st = new Stats();
+            }
+            m.put( "StatsIntervalStart", st.startTime);
+        }
+        long count = st.count.sum();
+        long errorCount = st.errorCount.sum();
         m.put( "Count", count);
         m.put( "ErrorCount", errorCount);
         m.put( "ServiceLevel", 1 - errorCount / ( count + 0.000001));
-        if( concCtrl) {
-            m.put( "ActiveCount", activeCount);
-            m.put( "TopActiveCount", topActiveCount);
+        m.put( "InFlight", getInFlight());
+        st.latency.getStatusVars( m, "Latency");
+        ConcurrencyLimiter lim = limiter;
+        if( lim != null) {
+            lim.getStatusVars( m);
         }
         Map<String,Object> mm = getImplementation().getStatusVars();
         if( mm != null) {
@@ -168,11 +197,16 @@ public class ModuleInfo implements Module {
                "Wrap module with SvcMonitor to get statistics and acitvity (internal)", "false"));
         cdl.add( new ConfigItemDescriptor( "MonitorLastNr", ConfigItemDescriptor.INTEGER, 
                "Keep last messages to show in Monitor mode (intenal)", "5"));
+        cdl.add( new ConfigItemDescriptor( "DrainTimeOut", ConfigItemDescriptor.INTEGER, 
+               "Maximum time in mS to wait the requests in flight when it is replaced (internal)", 
+               "30000"));
         if( asyncImpl != null ) {  // SimpleService or AsyncService only 
-            cdl.add( new ConfigItemDescriptor( "LimitActiveThreads", ConfigItemDescriptor.BOOLEAN,
-                   "Keep track and limit the concurrent threads ons this module (internal)"));
+            ConcurrencyLimiter.addConfigDescriptors( cdl);
             cdl.add( new ConfigItemDescriptor( "TimeOut", ConfigItemDescriptor.INTEGER,
                    "Time out of this module (internal)"));
+            cdl.add( new ConfigItemDescriptor( "StatsInterval", ConfigItemDescriptor.INTEGER,
+                   "Interval in mS to reset the statistics, reporting the last one, 0 is never (internal)", 
+                   "0"));
         }
         return cdl;
     }
@@ -180,38 +214,128 @@ public class ModuleInfo implements Module {
     /** Stop service. */
     @Override
     public void shutdown() {
+        if( metrics != null) {
+            for( MetricsRegistry.Metric m: metrics) {
+                MetricsRegistry.getRegistry().unregister( m);
+            }
+        }
         getImplementation().shutdown();
     }
     
-    SvcMessage processMessage( SvcMessage msg) {
+    /** Register the metrics of the module, read from its totals.
+     * The quantiles are of the current statistics.
+     */
+    private void registerMetrics() {
+        MetricsRegistry reg = MetricsRegistry.getRegistry();
+        metrics = new MetricsRegistry.Metric[] {
+            reg.register( new MetricsRegistry.Counter( "r2_module_requests_total", 
+                    "Requests processed by the module", "module", moduleName) {
+                @Override
+                public long get() {
+                    return totals.count.sum();
+                }
+            }),
+            reg.register( new MetricsRegistry.Counter( "r2_module_errors_total", 
+                    "Responses with result code lower than 0", "module", moduleName) {
+                @Override
+                public long get() {
+                    return totals.errorCount.sum();
+                }
+            }),
+            reg.register( new MetricsRegistry.Gauge( "r2_module_in_flight", 
+                    "Requests processed and not yet responded", "module", moduleName) {
+                @Override
+                public long get() {
+                    return inFlight.sum();
+                }
+            }),
+            reg.register( new MetricsRegistry.Summary( "r2_module_latency_microseconds", 
+                    "Time processing each message", "module", moduleName) {
+                @Override
+                public LatencyHistogram getHistogram() {
+                    return stats.latency;
+                }
+
+                @Override
+                public long getCount() {
+                    return totals.latencyCount.sum();
+                }
+
+                @Override
+                public long getSum() {
+                    return totals.latencySum.sum();
+                }
+            })
+        };
+    }
+    
+    /** Get the number of requests processed and not yet responded.
+     * @return Requests in flight
+     */
+    long getInFlight() {
+        return inFlight.sum();
+    }
+    
+    /** Get the maximum time to drain the requests in flight.
+     * @return Time out in mS
+     */
+    int getDrainTimeOut() {
+        return drainTimeOut;
+    }
+    
+    /** Process a message.
+     * @param msg SvcRequest or SvcResponse
+     * @param resumed The module waited it, its request is already counted
+     * @return Processed message
+     */
+    SvcMessage processMessage( SvcMessage msg, boolean resumed) {
+        SvcMessage out = process( msg);
+        countInFlight( msg, out, resumed);
+        return out;
+    }
+    
+    /** Count a request going on, or a response coming back. 
+     * A request resumed was counted when the module returned to wait it.
+     */
+    private void countInFlight( SvcMessage in, SvcMessage out, boolean resumed) {
+        if( in instanceof SvcResponse || ( resumed && out instanceof SvcResponse)) {
+            inFlight.decrement();
+        } else if( !resumed && !( out instanceof SvcResponse)) {  // Next module or waiting
+            inFlight.increment();
+        }
+    }
+    
+    private SvcMessage process( SvcMessage msg) {
         SvcRequest req = ( msg instanceof SvcRequest) ? 
                 (SvcRequest)msg:
                 ((SvcResponse)msg).getRequest();
+        Stats st = getStats();
         // Chech Timed out processing
-        int to = getTimeOut( req);
-        if( to != Integer.MAX_VALUE) {
-            int t = ( int)( System.currentTimeMillis() - req.getAbsoluteTime());
-            if( t > to) {
-                ++count;
-                ++errorCount;
-                LOG.warn( "Timed out processing " + moduleName);
-                return new SvcResponse( SvcResponse.MSG_TIMEOUT, 
-                        SvcResponse.RES_CODE_TIMEOUT, null, req);
-            }
+        long deadline = getDeadline( req);
+        if( System.currentTimeMillis() > deadline) {
+            count( st, 1);
+            error( st);
+            LOG.warn( "Timed out processing " + moduleName);
+            return new SvcResponse( SvcResponse.MSG_TIMEOUT, 
+                    SvcResponse.RES_CODE_TIMEOUT, null, req);
         }
         // Process    
         SvcResponse resp = null;
-        if( !takeOne()) {  // Too many running instances, cancel!
-            ++count;
-            ++errorCount;
-            LOG.warn( "Too many concurrent active " + moduleName + " " + topActiveCount);
+        ConcurrencyLimiter lim = limiter;
+        long start = 0;
+        if( lim != null && ( start = lim.acquire( getWaitTime( deadline))) < 0) {  
+            // Too many running instances, cancel!
+            count( st, 1);
+            error( st);
+            LOG.warn( "Too many concurrent active " + moduleName + " " + lim.getLimit());
             return new SvcResponse( SvcResponse.MSG_TOPPED + moduleName, 
                 SvcResponse.RES_CODE_TOPPED, null, req);
         }
+        long t0 = System.nanoTime();
         try {
             AsyncService as = ( monitorImpl != null)? monitorImpl: asyncImpl;
             if( msg instanceof SvcRequest) {
-                ++count;
+                count( st, 1);
                 msg = as.onRequest( req, cfg);
                 /*
                 if( LOG.isDebugEnabled() && msg instanceof SvcResponse) {
@@ -230,50 +354,203 @@ public class ModuleInfo implements Module {
             LOG.warn( s, ex);
             msg = resp = new SvcResponse( s, SvcResponse.RES_CODE_EXCEPTION, ex, req);
         } finally {
-            releaseOne();
+            if( lim != null) {
+                lim.release( start, isDropped( resp));
+            }
+            latency( st, ( System.nanoTime() - t0) / 1000, 1);
             if( resp != null && resp.getResultCode() < 0) {
-                ++errorCount;
+                error( st);
             }
         }
         return msg;
     }
 
-    /** Running instances accounting, if can add one more. */
-    private boolean takeOne() {
-        if( concCtrl) {
-            synchronized( lockConcCtrl) {  
-                if( activeCount >= limitActiveCount) {
-                    return false;
+    /** Test if the module can process a batch in one call.
+     * A monitored module is called once for each message.
+     * @return Boolean
+     */
+    boolean isBatch() {
+        return monitorImpl == null && moduleImpl instanceof BatchService;
+    }
+    
+    /** Process a batch of messages of the same type.
+     * @param msgs SvcRequest list or SvcResponse list
+     * @param resumed Which ones the module waited, as in processMessage
+     * @return Processed messages, in the same order and size
+     */
+    List<SvcMessage> processBatch( List<SvcMessage> msgs, boolean resumed[]) {
+        List<SvcMessage> out = batch( msgs);
+        for( int i = 0; i < msgs.size(); ++i) {
+            countInFlight( msgs.get( i), out.get( i), resumed[ i]);
+        }
+        return out;
+    }
+    
+    private List<SvcMessage> batch( List<SvcMessage> msgs) {
+        Stats st = getStats();
+        List<SvcMessage> out = new ArrayList( msgs.size());
+        // Chech Timed out processing
+        List<SvcMessage> in = new ArrayList( msgs.size());
+        for( SvcMessage m: msgs) {
+            SvcRequest req = ( m instanceof SvcRequest) ? 
+                    (SvcRequest)m: ((SvcResponse)m).getRequest();
+            if( System.currentTimeMillis() > getDeadline( req)) {
+                count( st, 1);
+                error( st);
+                LOG.warn( "Timed out processing " + moduleName);
+                out.add( new SvcResponse( SvcResponse.MSG_TIMEOUT, 
+                        SvcResponse.RES_CODE_TIMEOUT, null, req));
+            } else {
+                in.add( m);
+                out.add( null);  // To set later
+            }
+        }
+        if( in.isEmpty()) {
+            return out;
+        }
+        List<? extends SvcMessage> r = null;
+        Exception ex = null;
+        ConcurrencyLimiter lim = limiter;
+        long start = 0;
+        boolean topped = lim != null && ( start = lim.acquire( getWaitTime( 
+                getDeadline( getRequest( in.get( 0)))))) < 0;
+        if( topped) {  // Too many running instances, cancel!
+            count( st, in.size());
+            LOG.warn( "Too many concurrent active " + moduleName + " " + lim.getLimit());
+        } else {
+            long t0 = System.nanoTime();
+            try {
+                BatchService bs = (BatchService)moduleImpl;
+                if( in.get( 0) instanceof SvcRequest) {
+                    count( st, in.size());
+                    r = bs.onRequests( (List)in, cfg);
+                } else {
+                    r = bs.onResponses( (List)in, cfg);
                 }
-                ++activeCount;
-                if( activeCount > topActiveCount) {
-                    topActiveCount = activeCount;
+                if( r == null || r.size() != in.size()) {
+                    throw new Exception( "Invalid batch result size from " + moduleName);
                 }
+            } catch( Exception x) {
+                ex = x;
+            } finally {
+                if( lim != null) {
+                    lim.release( start, ex != null);
+                }
+                // Each one of the batch gets the average time
+                latency( st, ( System.nanoTime() - t0) / 1000 / in.size(), in.size());
             }
         }
-        return true;
-    }
-
-    /** Get request timeout.
-     */
-    private int getTimeOut( SvcRequest req) {
-        int to = req.getTimeOut();
-        if( to == 0) {
-            to = Integer.MAX_VALUE;
+        // Merge results
+        int j = 0;
+        for( int i = 0; i < out.size(); ++i) {
+            if( out.get( i) != null) {
+                continue;
+            }
+            SvcMessage m = in.get( j);
+            SvcRequest req = ( m instanceof SvcRequest) ? 
+                    (SvcRequest)m: ((SvcResponse)m).getRequest();
+            if( topped) {
+                m = new SvcResponse( SvcResponse.MSG_TOPPED + moduleName, 
+                        SvcResponse.RES_CODE_TOPPED, null, req);
+            } else if( ex instanceof SvcException) {
+                String s = ex.getMessage() + " on module '" + moduleName + "'";
+                m = new SvcResponse( s, ( (SvcException)ex).getErrorCode(), ex, req);
+            } else if( ex != null) {
+                String s = "Unexpected error on module '" + moduleName + "' " + ex;
+                m = new SvcResponse( s, SvcResponse.RES_CODE_EXCEPTION, ex, req);
+            } else {
+                m = r.get( j);
+            }
+            if( m instanceof SvcResponse && ( (SvcResponse)m).getResultCode() < 0) {
+                error( st);
+            }
+            out.set( i, m);
+            ++j;
         }
-        to = ( to > timeOut)? timeOut: to;   // min
-        return to;
+        if( ex != null) {
+            LOG.warn( "Batch of " + in.size() + " failed on module '" + moduleName + "'", ex);
+        }
+        return out;
     }
 
-    /** Decrement running instances accounting. */
-    private void releaseOne() {
-        if( concCtrl) {
-            synchronized( lockConcCtrl) {  
-                if( activeCount > 0) {
-                    --activeCount;
+    /** Get the statistics of the current interval, start a new one when ended. */
+    private Stats getStats() {
+        Stats st = stats;
+        if( statsInterval > 0 && System.currentTimeMillis() - st.startTime >= statsInterval) {
+            synchronized( lockStats) {
+                if( stats == st) {
+                    lastStats = st;
+                    stats = new Stats();
                 }
+                st = stats;
             }
         }
+        return st;
+    }
+
+    private void count( Stats st, long n) {
+        st.count.add( n);
+        totals.count.add( n);
+    }
+
+    private void error( Stats st) {
+        st.errorCount.increment();
+        totals.errorCount.increment();
+    }
+
+    /** Record a latency some times, as the average of a batch. */
+    private void latency( Stats st, long us, long n) {
+        st.latency.record( us, n);
+        totals.latencyCount.add( n);
+        totals.latencySum.add( us * n);
+    }
+
+    private static SvcRequest getRequest( SvcMessage m) {
+        return ( m instanceof SvcRequest) ? (SvcRequest)m: ((SvcResponse)m).getRequest();
+    }
+
+    /** Get the maximum time to wait a place to run, the time left. */
+    private static long getWaitTime( long deadline) {
+        if( deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return deadline - System.currentTimeMillis();
+    }
+
+    /** Test if the response means an overload, to be reported to the limiter. */
+    private static boolean isDropped( SvcResponse resp) {
+        return resp != null && ( resp.getResultCode() == SvcResponse.RES_CODE_TIMEOUT 
+                || resp.getResultCode() == SvcResponse.RES_CODE_TOPPED);
+    }
+
+    /** Get the request deadline, bounded by the module time out.
+     * @return Absolute time, Long.MAX_VALUE when it has not one
+     */
+    private long getDeadline( SvcRequest req) {
+        long d = req.getDeadline();
+        if( d == 0) {
+            d = Long.MAX_VALUE;
+        }
+        if( timeOut != Integer.MAX_VALUE && req.getAbsoluteTime() + timeOut < d) {
+            d = req.getAbsoluteTime() + timeOut;   // min
+        }
+        return d;
+    }
+
+    /** Cumulative totals of a module name, for the metrics. */
+    private static class Totals {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errorCount = new LongAdder();
+        private final LongAdder latencyCount = new LongAdder();
+        private final LongAdder latencySum = new LongAdder();
+    }
+
+    /** Statistics of an interval. */
+    private static class Stats {
+        private final long startTime = System.currentTimeMillis();
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errorCount = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
     }
 
     /** SimpleService wrapper as a AsyncService. */
@@ -0,0 +1,87 @@
+/* PipelinePlan.java */
+package uy.com.r2.core;
+
+/** Compiled and immutable service pipeline.
+ * It keeps the module names and its ModuleInfo already resolved from the
+ * catalog, so a RunningPipeline doesn't search the catalog on each step.
+ * It must be compiled again when the catalog changes.
+ * @author G.Camargo
+ */
+public class PipelinePlan {
+    private final String name;
+    private final String moduleNames[];
+    private final ModuleInfo modules[];
+    private final long catalogVersion;
+
+    /** Compile a pipeline.
+     * Not installed modules are resolved as null, and fails on execution.
+     * @param name Pipeline name
+     * @param moduleNames Modules name array
+     * @param catalog Catalog to resolve the modules
+     */
+    PipelinePlan( String name, String moduleNames[], SvcCatalog catalog) {
+        this.name = name;
+        this.catalogVersion = catalog.getVersion();
+        if( moduleNames == null) {
+            moduleNames = new String[ 0];
+        }
+        this.moduleNames = moduleNames.clone();
+        this.modules = new ModuleInfo[ moduleNames.length];
+        for( int i = 0; i < moduleNames.length; ++i) {
+            modules[ i] = catalog.getModuleInfo( moduleNames[ i]);
+        }
+    }
+
+    /** Get the pipeline name.
+     * @return String
+     */
+    public String getName() {
+        return name;
+    }
+
+    /** Get the number of modules.
+     * @return Integer
+     */
+    public int size() {
+        return modules.length;
+    }
+
+    /** Get the module name of a step.
+     * @param index Step number
+     * @return Module name
+     */
+    public String getModuleName( int index) {
+        return moduleNames[ index];
+    }
+
+    /** Get the resolved module of a step.
+     * @param index Step number
+     * @return ModuleInfo or null when it was not installed
+     */
+    ModuleInfo getModule( int index) {
+        return modules[ index];
+    }
+
+    /** Get the catalog version used to compile it.
+     * @return Catalog version number
+     */
+    long getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    /** Dump the module names.
+     * @return String
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append( name);
+        sb.append( ": ");
+        for( String m: moduleNames) {
+            sb.append( m);
+            sb.append( ',');
+        }
+        return sb.toString();
+    }
+
+}
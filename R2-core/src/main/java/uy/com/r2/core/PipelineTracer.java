@@ -0,0 +1,372 @@
+/* PipelineTracer.java */
+package uy.com.r2.core;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import uy.com.r2.core.api.ConfigItemDescriptor;
+import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.SvcRequest;
+
+/** Sampled traces of the running pipelines.
+ * A sampled request records a span for each step: module, phase (request or
+ * response), the time waiting an asynchronous message, the queue time since
+ * the message was ready until the module got it, the service time of the
+ * module and the result code. The times are measured in nS and reported
+ * in uS. <br>
+ * The last traces are kept in memory to be queried, and they are written
+ * by a background thread to a rolling file, one trace by line.
+ * @author G.Camargo
+ */
+public class PipelineTracer {
+    private static final Logger LOG = Logger.getLogger( PipelineTracer.class);
+    private static final PipelineTracer TRACER = new PipelineTracer();
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Trace> last = new ArrayDeque();
+    private final LinkedBlockingQueue<Trace> toWrite = new LinkedBlockingQueue( 10000);
+    private final AtomicLong traces = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile double sampling = 0;
+    private volatile long minTime = 0;
+    private volatile int keep = 1000;
+    private volatile String fileName = "";
+    private volatile long fileSize = 10000000;
+    private volatile int files = 5;
+    private TaskExecutor writer = null;
+
+    private PipelineTracer() {
+    }
+
+    /** Get the tracer.
+     * @return The only one instance
+     */
+    public static PipelineTracer getTracer() {
+        return TRACER;
+    }
+
+    /** Add the configuration descriptors, used by the Dispatcher.
+     * @param l Module configuration descriptors list
+     */
+    public static void addConfigDescriptors( List<ConfigItemDescriptor> l) {
+        l.add( new ConfigItemDescriptor( "TraceSampling", ConfigItemDescriptor.STRING,
+                "Ratio of requests traced, from 0 (none) to 1 (all)", "0"));
+        l.add( new ConfigItemDescriptor( "TraceMinTime", ConfigItemDescriptor.INTEGER,
+                "Only keep the traces slower than this time in mS", "0"));
+        l.add( new ConfigItemDescriptor( "TraceKeep", ConfigItemDescriptor.INTEGER,
+                "Number of last traces kept in memory to query", "1000"));
+        l.add( new ConfigItemDescriptor( "TraceFile", ConfigItemDescriptor.STRING,
+                "File to write the traces, empty is none", ""));
+        l.add( new ConfigItemDescriptor( "TraceFileSize", ConfigItemDescriptor.INTEGER,
+                "Size in bytes of the trace file to roll it", "10000000"));
+        l.add( new ConfigItemDescriptor( "TraceFiles", ConfigItemDescriptor.INTEGER,
+                "Number of rolled trace files kept, as TraceFile.1 to TraceFile.n", "5"));
+    }
+
+    /** Set the configuration.
+     * @param cfg Dispatcher configuration
+     * @throws Exception Invalid configuration
+     */
+    public void setConfiguration( Configuration cfg) throws Exception {
+        sampling = cfg.getDouble( "TraceSampling");
+        minTime = cfg.getLong( "TraceMinTime") * 1000;
+        keep = cfg.getInt( "TraceKeep");
+        fileSize = cfg.getInt( "TraceFileSize");
+        files = cfg.getInt( "TraceFiles");
+        String fn = cfg.getString( "TraceFile");
+        fileName = ( fn == null)? "": fn.trim();
+        synchronized( lock) {
+            while( last.size() > keep) {
+                last.removeFirst();
+            }
+            if( !fileName.isEmpty() && writer == null) {
+                writer = new TaskExecutor( "TraceWriter", TaskExecutor.PLATFORM, 1);
+                writer.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        write();
+                    }
+                });
+            }
+        }
+    }
+
+    /** Start a trace if the request is sampled.
+     * @param req Request
+     * @return Trace or null
+     */
+    Trace sample( SvcRequest req) {
+        double s = sampling;
+        if( s <= 0 || ( s < 1 && ThreadLocalRandom.current().nextDouble() >= s)) {
+            return null;
+        }
+        traces.incrementAndGet();
+        return new Trace( req);
+    }
+
+    /** Keep an ended trace.
+     * @param t Trace
+     * @param resultCode Result code of the final response
+     */
+    void end( Trace t, int resultCode) {
+        t.end = System.nanoTime();
+        t.resultCode = resultCode;
+        if( t.end - t.start < minTime * 1000) {
+            return;
+        }
+        synchronized( lock) {
+            last.addLast( t);
+            if( last.size() > keep) {
+                last.removeFirst();
+            }
+        }
+        if( !fileName.isEmpty() && !toWrite.offer( t)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /** Get the last traces, from the newest.
+     * @param requestId Request id to search, or null
+     * @param service Service name to search, or null
+     * @param minTime Minimum time in mS
+     * @param max Maximum number of traces
+     * @return List of traces
+     */
+    public List<Trace> getTraces( String requestId, String service, long minTime, int max) {
+        List<Trace> l = new LinkedList();
+        synchronized( lock) {
+            Iterator<Trace> it = last.descendingIterator();
+            while( it.hasNext() && l.size() < max) {
+                Trace t = it.next();
+                if( ( requestId == null || requestId.equals( t.requestId))
+                        && ( service == null || service.equals( t.service))
+                        && t.getTime() >= minTime * 1000) {
+                    l.add( t);
+                }
+            }
+        }
+        return l;
+    }
+
+    /** Add the status vars.
+     * @param map Status vars map
+     */
+    void getStatusVars( Map<String,Object> map) {
+        map.put( "TraceSampling", sampling);
+        map.put( "Traces", traces.get());
+        map.put( "TracesWritten", written.get());
+        map.put( "TracesDropped", dropped.get());
+    }
+
+    /** Writer loop, it rolls the file when it is full. */
+    private void write() {
+        Writer w = null;
+        File f = null;
+        try {
+            for( ; ;) {
+                Trace t = toWrite.poll( 1, TimeUnit.SECONDS);
+                String fn = fileName;
+                if( w != null && ( t == null || f.length() > fileSize || !f.getPath().equals( fn))) {
+                    w.close();
+                    w = null;
+                }
+                if( t == null) {
+                    continue;
+                }
+                if( fn.isEmpty()) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                if( w == null) {
+                    f = new File( fn);
+                    if( f.length() > fileSize) {
+                        roll( fn);
+                    }
+                    w = new FileWriter( f, true);
+                }
+                w.write( t.toString());
+                w.write( '\n');
+                written.incrementAndGet();
+                if( toWrite.isEmpty()) {
+                    w.flush();
+                }
+            }
+        } catch( Exception x) {
+            LOG.warn( "Trace writer stopped " + x, x);
+        } finally {
+            try {
+                w.close();
+            } catch( Exception xx) { }
+            synchronized( lock) {
+                writer = null;
+            }
+        }
+    }
+
+    /** Rename TraceFile.n-1 to TraceFile.n, ..., TraceFile to TraceFile.1 */
+    private void roll( String fn) {
+        new File( fn + "." + files).delete();
+        for( int i = files - 1; i >= 1; --i) {
+            new File( fn + "." + i).renameTo( new File( fn + "." + ( i + 1)));
+        }
+        if( files > 0) {
+            new File( fn).renameTo( new File( fn + ".1"));
+        } else {
+            new File( fn).delete();
+        }
+    }
+
+    /** Spans of a request. */
+    public static class Trace {
+        private final String requestId;
+        private final String service;
+        private final long time = System.currentTimeMillis();
+        private final long start = System.nanoTime();
+        private final List<Span> spans = new ArrayList();
+        private long ready = start;
+        private long async = 0;
+        private long end = 0;
+        private int resultCode = 0;
+
+        private Trace( SvcRequest req) {
+            this.requestId = req.getRequestId();
+            this.service = req.getServiceName();
+        }
+
+        /** A message was delivered by an asynchronous module. */
+        synchronized void delivered() {
+            long now = System.nanoTime();
+            async = now - ready;
+            ready = now;
+        }
+
+        /** Add a step.
+         * @param module Module name
+         * @param request Phase: true is request, false is response
+         * @param t0 Start time in nS
+         * @param resultCode Result code, when it ends with a response
+         */
+        synchronized void add( String module, boolean request, long t0, int resultCode) {
+            long now = System.nanoTime();
+            spans.add( new Span( module, request, async, t0 - ready, now - t0, resultCode));
+            async = 0;
+            ready = now;
+        }
+
+        /** Get the request id.
+         * @return String
+         */
+        public String getRequestId() {
+            return requestId;
+        }
+
+        /** Get the service name.
+         * @return String
+         */
+        public String getService() {
+            return service;
+        }
+
+        /** Get the result code of the final response.
+         * @return Integer
+         */
+        public int getResultCode() {
+            return resultCode;
+        }
+
+        /** Get the total time.
+         * @return Time in uS
+         */
+        public long getTime() {
+            return ( end - start) / 1000;
+        }
+
+        /** Get the spans as text.
+         * @return List of Strings
+         */
+        public synchronized List<String> getSpans() {
+            List<String> l = new ArrayList( spans.size());
+            for( Span s: spans) {
+                l.add( s.toString());
+            }
+            return l;
+        }
+
+        /** Get the trace as a line of text.
+         * @return String
+         */
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append( new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss.SSS").format( new Date( time)));
+            sb.append( ' ');
+            sb.append( requestId);
+            sb.append( ' ');
+            sb.append( service);
+            sb.append( " rc=");
+            sb.append( resultCode);
+            sb.append( " t=");
+            sb.append( getTime());
+            for( Span s: spans) {
+                sb.append( " | ");
+                sb.append( s);
+            }
+            return sb.toString();
+        }
+    }
+
+    /** One step of a pipeline. */
+    private static class Span {
+        private final String module;
+        private final boolean request;
+        private final long async;
+        private final long queue;
+        private final long service;
+        private final int resultCode;
+
+        private Span( String module, boolean request, long async, long queue, long service,
+                int resultCode) {
+            this.module = module;
+            this.request = request;
+            this.async = async;
+            this.queue = queue;
+            this.service = service;
+            this.resultCode = resultCode;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append( module);
+            sb.append( request? " Req": " Res");
+            if( async > 0) {
+                sb.append( " a=");
+                sb.append( async / 1000);
+            }
+            sb.append( " q=");
+            sb.append( queue / 1000);
+            sb.append( " s=");
+            sb.append( service / 1000);
+            if( !request || resultCode != 0) {
+                sb.append( " rc=");
+                sb.append( resultCode);
+            }
+            return sb.toString();
+        }
+    }
+
+}
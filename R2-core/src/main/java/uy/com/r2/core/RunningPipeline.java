@@ -1,37 +1,68 @@
 /* RunningPipeline.java */
 package uy.com.r2.core;
 
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import org.apache.log4j.Logger;
 import uy.com.r2.core.api.Dispatcher;
+import uy.com.r2.core.api.MessagePool;
 import uy.com.r2.core.api.SvcMessage;
 import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
 
 /** A structure to keep a sequence of modules running.
+ * While the MessagePool is enabled they are reused, each thread keeps the
+ * ones that ended without waiting any message.
  * @author Gustavo Camargo
  */
 public class RunningPipeline {
     private static final Logger LOG = Logger.getLogger( RunningPipeline.class);
-    private final SvcCatalog core = SvcCatalog.getCatalog();
-    private final SvcRequest req0;
-    private final String toStrPrefix;
+    private static final int MAX_FREE = 16;
+    private static final ThreadLocal<ArrayDeque<RunningPipeline>> FREE = new ThreadLocal<ArrayDeque<RunningPipeline>>() {
+        @Override
+        protected ArrayDeque<RunningPipeline> initialValue() {
+            return new ArrayDeque();
+        }
+    };
+    private static final ThreadLocal<RunningPipeline> RUNNING = new ThreadLocal();
+    private volatile SvcRequest req0;
     private final Object lock = new Object();
-    private String moduleNames[];
+    private PipelinePlan plan;
     private int index;
     private SvcMessage msg;
-    private boolean stop = false;
+    private SvcMessage pending = null;   // Message received while running
+    private boolean suspended = false;   // Waiting a message as a continuation
+    private boolean waiting = false;     // A thread is blocked waiting a message
+    private boolean resumed = false;     // The message was received while waiting
+    private CompletableFuture<SvcResponse> future = null;
+    private Executor workers = null;
+    private volatile boolean stop = false;
+    private PipelineTracer.Trace trace;
+    // Kept by the InFlightRegistry
+    private InFlightRegistry registry = null;
+    private volatile long correlationId = 0;
+    private long deadline;
+    private long registerTime;
+    private int requestSlot = -1;                // In the request id table, -1 in its overflow
+    private long rounds;
+    private volatile boolean scheduled = false;  // It is in the timer wheel
+    private boolean timed = false;               // It was in the wheel, can't be reused
+    private volatile boolean unregistered = false;
+    private volatile boolean admitted = false;   // It, or its caller, has a place of the AdmissionScheduler
     
     /** Create a running catalog.
-     * It receives the list of service names to call one by one.
-     * @param modules Modules name array
+     * It receives the compiled pipeline of modules to call one by one.
+     * @param plan Compiled pipeline
      * @param req Request to process
      */
-    RunningPipeline( String pipeName, String modules[], SvcRequest req) {
-        this.moduleNames = modules;
+    RunningPipeline( PipelinePlan plan, SvcRequest req) {
+        this.plan = plan;
         this.req0 = req;
         this.index = 0;
         this.msg = req;
-        this.toStrPrefix = pipeName + ": ";
+        this.trace = PipelineTracer.getTracer().sample( req);
         /*
         if( LOG.isTraceEnabled()) {
             LOG.trace( "new RunningPipeline( " + req.getRequestId() + " ) " + toString() + " " + modules[ 0]);
@@ -39,30 +70,188 @@ public class RunningPipeline {
         */
     }
     
+    /** Get a running pipeline, a reused one while the MessagePool is enabled.
+     * @param plan Compiled pipeline
+     * @param req Request to process
+     * @return RunningPipeline
+     */
+    static RunningPipeline take( PipelinePlan plan, SvcRequest req) {
+        if( !MessagePool.isEnabled()) {
+            return new RunningPipeline( plan, req);
+        }
+        RunningPipeline rp = FREE.get().pollLast();
+        if( rp == null) {
+            return new RunningPipeline( plan, req);
+        }
+        rp.plan = plan;
+        rp.req0 = req;
+        rp.index = 0;
+        rp.msg = req;
+        rp.stop = false;
+        rp.admitted = false;
+        rp.resumed = false;
+        rp.trace = PipelineTracer.getTracer().sample( req);
+        return rp;
+    }
+    
+    /** Give it back to be reused, after it ended and it was removed from
+     * the registry. It is kept only if it never waited a message, nor it
+     * was run as a continuation, so no other thread may still have it.
+     */
+    void recycle() {
+        if( !MessagePool.isEnabled() || timed || future != null || stop || index >= 0 
+                || ( registry != null && !unregistered)) {
+            return;
+        }
+        msg = null;
+        pending = null;
+        registry = null;
+        correlationId = 0;
+        unregistered = false;
+        ArrayDeque<RunningPipeline> f = FREE.get();
+        if( f.size() < MAX_FREE) {
+            f.addLast( this);
+        }
+    }
+    
+    /** Registered in the InFlightRegistry.
+     * @param registry InFlightRegistry
+     * @param id Correlation id
+     * @param deadline Absolute time to expire it, in mS
+     */
+    void registered( InFlightRegistry registry, long id, long deadline) {
+        this.registry = registry;
+        this.deadline = deadline;
+        this.registerTime = System.currentTimeMillis();
+        this.unregistered = false;
+        this.correlationId = id;
+    }
+    
+    void unregistered() {
+        unregistered = true;
+    }
+    
+    boolean isUnregistered() {
+        return unregistered;
+    }
+    
+    long getCorrelationId() {
+        return correlationId;
+    }
+    
+    long getDeadline() {
+        return deadline;
+    }
+    
+    long getRegisterTime() {
+        return registerTime;
+    }
+    
+    int getRequestSlot() {
+        return requestSlot;
+    }
+    
+    void setRequestSlot( int requestSlot) {
+        this.requestSlot = requestSlot;
+    }
+    
+    long getRounds() {
+        return rounds;
+    }
+    
+    void setRounds( long rounds) {
+        this.rounds = rounds;
+    }
+    
+    boolean isScheduled() {
+        return scheduled;
+    }
+    
+    void setScheduled( boolean scheduled) {
+        this.scheduled = scheduled;
+        timed |= scheduled;
+    }
+    
+    /** Set when it was admitted, or it was called by an admitted one.
+     * @param admitted Boolean
+     */
+    void setAdmitted( boolean admitted) {
+        this.admitted = admitted;
+    }
+    
+    /** Test if a module of an admitted pipeline is running on this thread,
+     * so the calls it makes are nested and must not wait another place.
+     * @return Boolean
+     */
+    static boolean isNested() {
+        RunningPipeline rp = RUNNING.get();
+        return rp != null && rp.admitted;
+    }
+    
+    /** Set the pipeline whose module runs on this thread.
+     * @param rp RunningPipeline or null
+     * @return The previous one, to set it back
+     */
+    static RunningPipeline setRunning( RunningPipeline rp) {
+        RunningPipeline p = RUNNING.get();
+        RUNNING.set( rp);
+        return p;
+    }
+    
+    /** It has to wait a message, with the lock held. */
+    private void toWait() {
+        if( registry != null) {
+            registry.waiting( this);
+        }
+    }
+    
     /** Run one module a time */
     private boolean runStep( boolean blocking) {
-        String moduleName = null;
+        int step = index;
+        boolean request = msg instanceof SvcRequest;
+        long t0 = ( trace != null)? System.nanoTime(): 0;
         try {
-            if( index >= moduleNames.length || moduleNames[ index] == null) {
+            if( index >= plan.size()) {
                 String s = req0.getServiceName();
                 if( s.equals( Dispatcher.SVC_GETSERVICESLIST)) {
                     msg = new SvcResponse( "", 0, req0);
                    --index;
+                   traced( step, request, t0);
                    return true;
                 }
                 throw new Exception( "Service '" + s + "' not implemented in pipeline");
             }
-            moduleName = moduleNames[ index];
-            LOG.trace( "run index=" + index + " " + moduleName + " " + msg);
-            ModuleInfo mi = core.getModuleInfo( moduleName);
+            ModuleInfo mi = plan.getModule( index);
+            if( LOG.isTraceEnabled()) {
+                LOG.trace( "run index=" + index + " " + plan.getModuleName( index) + " " + msg);
+            }
             if( mi == null) {
-                throw new Exception( "Module '" + moduleName + "' not installed"); 
+                throw new Exception( "Module '" + plan.getModuleName( index) + "' not installed"); 
+            }
+            boolean r = resumed;
+            resumed = false;
+            RunningPipeline outer = setRunning( this);
+            try {
+                msg = mi.processMessage( msg, r);
+            } finally {
+                RUNNING.set( outer);
             }
-            msg = mi.processMessage( msg);
             if( msg == null) {  // Nothing to do here, wait some msg
+                traced( step, request, t0);
                 if( blocking) {
                     synchronized( lock) {
-                        lock.wait();
+                        waiting = true;
+                        toWait();
+                        try {
+                            while( pending == null && !stop) {
+                                lock.wait();
+                            }
+                        } finally {
+                            waiting = false;
+                        }
+                        msg = pending;
+                        pending = null;
+                        resumed = true;
                     }
                 }
                 return false;
@@ -80,37 +269,165 @@ public class RunningPipeline {
                     SvcResponse.RES_CODE_EXCEPTION, x, (SvcRequest)r);
             --index;
         }
+        traced( step, request, t0);
         return true;
     }
     
+    /** Record the span of a step on a sampled request, and the end of it.
+     * @param step Index of the step run
+     * @param request Phase
+     * @param t0 Start time in nS
+     */
+    private void traced( int step, boolean request, long t0) {
+        if( trace == null) {
+            return;
+        }
+        int rc = ( msg instanceof SvcResponse)? ( (SvcResponse)msg).getResultCode(): 0;
+        String name = ( step < plan.size())? plan.getModuleName( step): "(End)";
+        trace.add( name, request, t0, rc);
+        if( index < 0) {
+            PipelineTracer.getTracer().end( trace, rc);
+        }
+    }
+    
+    /** Run the current step, as a part of a batch.
+     * It blocks if the module has to wait a message.
+     */
+    void step() {
+        runStep( true);
+    }
+    
+    /** Set the message processed by the module of the current step, as a batch.
+     * @param m SvcRequest to go on, or SvcResponse to return
+     * @param t0 Start time of the batch in nS
+     */
+    void setProcessed( SvcMessage m, long t0) {
+        int step = index;
+        boolean request = msg instanceof SvcRequest;
+        resumed = false;
+        if( m instanceof SvcRequest) {
+            msg = m;
+            ++index;
+        } else if( m instanceof SvcResponse) {
+            msg = m;
+            --index;
+        } else {
+            SvcRequest r = ( msg instanceof SvcRequest)? (SvcRequest)msg: req0;
+            msg = new SvcResponse( "Invalid batch response running pipe " + toString(), 
+                    SvcResponse.RES_CODE_EXCEPTION, new Exception( "" + m), r);
+            --index;
+        }
+        traced( step, request, t0);
+    }
+    
+    /** Get the index of the current step.
+     * @return Index in the pipeline, lower than 0 when it ended
+     */
+    int getIndex() {
+        return index;
+    }
+    
+    /** Get the current message.
+     * @return SvcRequest or SvcResponse
+     */
+    SvcMessage getMessage() {
+        return msg;
+    }
+    
+    /** Test if the current message was received while the module waited it.
+     * @return Boolean
+     */
+    boolean isResumed() {
+        return resumed;
+    }
+    
+    /** Test if it ended, or it was stopped.
+     * @return Boolean
+     */
+    boolean isEnded() {
+        return index < 0 || stop;
+    }
+    
     /** Process a message from an asynchronous module.
      * @param msg Request or Response from the module
+     * @param id Correlation id it was found by, it is dropped when it was reused
      */
-    void onMessage( SvcMessage msg) {
+    void onMessage( SvcMessage msg, long id) {
+        deliver( msg, false, id);
+    }
+    
+    /** Deliver a message to the waiting thread or resume the continuation.
+     * @param msg Request or Response
+     * @param onlyWaiting Deliver only if it is waiting and w/o a pending message
+     * @param id Expected correlation id
+     * @return Boolean: delivered
+     */
+    private boolean deliver( SvcMessage msg, boolean onlyWaiting, long id) {
+        boolean resume;
         synchronized( lock) {
-            this.msg = msg;
-            lock.notifyAll();
+            if( onlyWaiting && ( !( waiting || suspended) || pending != null)) {
+                return false;
+            }
+            if( id != correlationId) {   // Late message, it runs other request
+                LOG.debug( "Dropped late message " + msg);
+                return false;
+            }
+            if( trace != null) {
+                trace.delivered();
+            }
+            resume = suspended;
+            if( resume) {  // Continue on a worker thread
+                suspended = false;
+                this.msg = msg;
+                resumed = true;
+            } else {       // Some thread is running or waiting it
+                pending = msg;
+                lock.notifyAll();
+            }
+        }
+        if( resume) {
+            workers.execute( new Runnable() {
+                @Override
+                public void run() {
+                    runAsync();
+                }
+            });
         }
+        return true;
+    }
+    
+    /** Deliver a time out response if it is waiting a message.
+     * @return Boolean: true when it was waiting 
+     */
+    boolean expire() {
+        return deliver( new SvcResponse( SvcResponse.MSG_TIMEOUT, 
+                SvcResponse.RES_CODE_TIMEOUT, null, req0), true, correlationId);
+    }
+    
+    /** Get the request id been processed.
+     * @return Request id
+     */
+    String getRequestId() {
+        return req0.getRequestId();
+    }
+    
+    /** It runs a request with the same request id, nothing is formatted.
+     * @param req Request
+     * @return true if it is
+     */
+    boolean isRequest( SvcRequest req) {
+        SvcRequest r = req0;
+        return r != null && r.getNodeRqNr() == req.getNodeRqNr() 
+                && r.getSessionNr() == req.getSessionNr()
+                && Objects.equals( r.getClientNode(), req.getClientNode())
+                && Objects.equals( r.getServiceName(), req.getServiceName());
     }
     
     /** Get the next module name to runStep.
      * @return Name of the module to be executed next
      */
     String next() {
-        return moduleNames[ ++index];
-    }
-
-    /** Add a new module to runStep.
-     * @param moduleName The module to runStep now
-     * @deprecated Its only needed by the deprecated method callService()
-     */
-    void add( String moduleName) {
-        if( index >= moduleNames.length) {  // Expand the array
-           String nmn[] = new String[ index + 10];
-           System.arraycopy( moduleNames, 0, nmn, 0, moduleNames.length);
-           moduleNames = nmn;
-        }
-        moduleNames[ index] = moduleName;
+        return plan.getModuleName( ++index);
     }
     
     /** Non blocking method to run, some times can get a response.
@@ -137,6 +454,13 @@ public class RunningPipeline {
         while( index >= actualIndex && !stop) {
             runStep( true);
         }
+        return getFinalResponse();
+    }
+    
+    /** Get the response after it ended.
+     * @return SvcResponse, or error packed as a response
+     */
+    SvcResponse getFinalResponse() {
         if( !( msg instanceof SvcResponse )) {
             Exception x = new Exception( "Cast error running " + toString());
             LOG.warn( "run failed: " + toString(), x);
@@ -146,9 +470,59 @@ public class RunningPipeline {
         return (SvcResponse)msg;
     }
     
+    /** Non blocking method to run as a continuation.
+     * When a module has to wait a message, the pipeline is suspended without
+     * keeping any thread, and its resumed by onMessage on a worker thread.
+     * @param future To be completed with the final response
+     * @param workers Executor used to resume the pipeline
+     */
+    void start( CompletableFuture<SvcResponse> future, Executor workers) {
+        this.future = future;
+        this.workers = workers;
+        runAsync();
+    }
+    
+    /** Run until the end or until a module has to wait a message. */
+    private void runAsync() {
+        while( index >= 0 && !stop) {
+            if( !runStep( false)) {
+                synchronized( lock) {
+                    if( pending == null) {  // Suspend it
+                        suspended = true;
+                        toWait();
+                        return;
+                    }
+                    msg = pending;          // Already received, go on
+                    pending = null;
+                    resumed = true;
+                }
+            }
+        }
+        if( stop) {
+            future.complete( new SvcResponse( "Pipeline stopped " + toString(), 
+                    SvcResponse.RES_CODE_EXCEPTION, req0));
+        } else if( msg instanceof SvcResponse) {
+            future.complete( (SvcResponse)msg);
+        } else {
+            LOG.warn( "run failed: " + toString(), new Exception());
+            future.complete( new SvcResponse( "Ended running pipe w/o SvcResponse " + toString()
+                    , SvcResponse.RES_CODE_EXCEPTION, new Exception( ""), req0));
+        }
+    }
+    
     void stop() {
-        stop = true;
+        boolean wasSuspended;
+        synchronized( lock) {
+            stop = true;
+            wasSuspended = suspended;
+            suspended = false;
+            lock.notifyAll();
+        }
         LOG.debug( "stopping " + toString());
+        if( wasSuspended && future != null) {
+            future.complete( new SvcResponse( "Pipeline stopped " + toString(), 
+                    SvcResponse.RES_CODE_EXCEPTION, req0));
+        }
     }
 
     /** Dump status.
@@ -157,15 +531,11 @@ public class RunningPipeline {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append( toStrPrefix);
-        for( String m: moduleNames) {
-            sb.append( m);
-            sb.append( ',');
-        }
+        sb.append( plan.toString());
         sb.append( '[');
         sb.append( index);
         sb.append( "] ");
-        sb.append( msg.toString());
+        sb.append( msg);
         return sb.toString();
     }
 
@@ -1,15 +1,24 @@
 /* SimpleDispatcher.java */
 package uy.com.r2.core;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import org.apache.log4j.Logger;
 import uy.com.r2.core.api.ConfigItemDescriptor;
 import uy.com.r2.core.api.Configuration;
 import uy.com.r2.core.api.Dispatcher;
+import uy.com.r2.core.api.MessagePool;
 import uy.com.r2.core.api.SvcMessage;
 import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
@@ -22,6 +31,8 @@ import uy.com.r2.core.api.StartableModule;
  * Note thar a single thread server may need another implementation with a 
  * thread pool to dispatch multiple request concurrently, in that way he 
  * Catalog has a Configuration item to set the Dispatcher class.
+ * An AdmissionScheduler may limit the requests dispatched at the same time,
+ * with weighted fair queues by client Node or Pipeline.
  * @author G.Camargo
  */
 public class SimpleDispatcher implements Dispatcher, StartableModule {
@@ -29,10 +40,21 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
     
     // Current running pipeline
     private static Exception instanced = null;
-    private final Map<String,RunningPipeline> runningPipelines = new ConcurrentHashMap();
-    private Map<String,String[]> defPipes = new ConcurrentHashMap();
-    private Map<String,String> nodePipes = new ConcurrentHashMap();
-    private String defaultServicePipeline[] = new String[ 0];
+    private final InFlightRegistry runningPipelines = new InFlightRegistry();
+    private final AdmissionScheduler admission = new AdmissionScheduler();
+    private volatile Plans plans = new Plans( new String[ 0], new HashMap(), new HashMap());
+    private volatile TaskExecutor workers = null;
+    private final Executor resumer = new Executor() {
+        @Override
+        public void execute( Runnable r) {
+            if( !getWorkers().execute( r)) {  // Overloaded, run it here
+                r.run();
+            }
+        }
+    };
+    private final AtomicInteger asyncCount = new AtomicInteger();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchRequests = new AtomicLong();
     private boolean stopped = false;
       
     SimpleDispatcher( ) {
@@ -45,30 +67,62 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
     }
     
     /** Start running a service call, and wait a response.
+     * With PooledMessages the messages taken from the MessagePool while it
+     * runs are recycled on return, except the response and its request.
      * @param req Request to dispatch
      * @return SvcResponse or error packed as a response 
      */
     @Override
     public SvcResponse call( SvcRequest req) {
+        int mark = MessagePool.enter();
+        if( mark < 0) {
+            return dispatch( req);
+        }
+        SvcResponse resp = null;
+        try {
+            resp = dispatch( req);
+            return resp;
+        } finally {
+            MessagePool.exit( mark, resp);
+        }
+    }
+    
+    private SvcResponse dispatch( SvcRequest req) {
         // Get the defined pipe to use
-        String modsToRun[] = defaultServicePipeline;
-        String rpn = nodePipes.get( req.getClientNode());
-        if( rpn != null) {   // Defined RunningPipe by name
-            String[] mtr = defPipes.get( rpn);
-            if( mtr == null || mtr.length == 0) {
-                return newExceptionResponse( "RunningPipeline name '" + rpn + "' undefined", req);
-            } else {
-                modsToRun = mtr;
-            }
+        Plans ps = getPlans();
+        PipelinePlan plan = ps.nodes.get( req.getClientNode());
+        if( plan == null) {
+            plan = ps.defaultPlan;
+        } else if( plan.size() == 0) {  // Defined RunningPipe by name
+            return newExceptionResponse( "RunningPipeline name '" + plan.getName() + "' undefined", req);
         }
         // Build the Running pipe
-        RunningPipeline rp = new RunningPipeline( "(Default)", modsToRun, req);
-        runningPipelines.put( req.getRequestId(), rp);
+        RunningPipeline rp = RunningPipeline.take( plan, req);
+        long id = runningPipelines.register( rp, req);
+        if( id == 0) {
+            return newToppedResponse( req);
+        }
+        // Wait its turn, unless it is called by an admitted one
+        boolean admitted = false;
+        if( admission.isEnabled() && !RunningPipeline.isNested()) {
+            if( !admission.acquire( req, plan.getName(), 1)) {
+                runningPipelines.remove( id);
+                return newRejectedResponse( req);
+            }
+            admitted = true;
+        }
+        rp.setAdmitted( admission.isEnabled());
         // Run to the end
         //SvcResponse resp = rp.getFinalResponse(); // In the past this method forces to wai to the end
-        SvcResponse resp = rp.getResponse();
-        runningPipelines.remove( req.getRequestId());
-        return resp;
+        try {
+            return rp.getResponse();
+        } finally {
+            runningPipelines.remove( id);
+            rp.recycle();
+            if( admitted) {
+                admission.release( resumer);
+            }
+        }
     }
     
     /** Start the execution of a request in asynchronous mode, w/o waiting its response.
@@ -79,23 +133,160 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
     @Override
     public SvcResponse process( SvcRequest req) {
         // Get the defined pipe to use
-        String modsToRun[] = defaultServicePipeline;
-        String rpn = nodePipes.get( req.getClientNode());
-        if( rpn != null) {   // Defined RunningPipe by name
-            String[] mtr = defPipes.get( rpn);
-            if( mtr == null || mtr.length == 0) {
-                return newExceptionResponse( "RunningPipeline name '" + rpn + "' undefined", req);
-            } else {
-                modsToRun = mtr;
-            }
+        Plans ps = getPlans();
+        PipelinePlan plan = ps.nodes.get( req.getClientNode());
+        if( plan == null) {
+            plan = ps.defaultPlan;
+        } else if( plan.size() == 0) {  // Defined RunningPipe by name
+            return newExceptionResponse( "RunningPipeline name '" + plan.getName() + "' undefined", req);
         }
         // Build the Running pipe
-        RunningPipeline rp = new RunningPipeline( "(Default)", modsToRun, req);
-        runningPipelines.put( req.getRequestId(), rp);
+        RunningPipeline rp = RunningPipeline.take( plan, req);
+        long id = runningPipelines.register( rp, req);
+        if( id == 0) {
+            return newToppedResponse( req);
+        }
+        // Wait its turn, unless it is called by an admitted one
+        boolean admitted = false;
+        if( admission.isEnabled() && !RunningPipeline.isNested()) {
+            if( !admission.acquire( req, plan.getName(), 1)) {
+                runningPipelines.remove( id);
+                return newRejectedResponse( req);
+            }
+            admitted = true;
+        }
+        rp.setAdmitted( admission.isEnabled());
         // Try to run 
-        SvcResponse resp = rp.getResponse();
-        //runningPipelines.remove( req.getRequestId());
-        return resp;
+        try {
+            return rp.getResponse();
+        } finally {
+            runningPipelines.remove( id);
+            rp.recycle();
+            if( admitted) {
+                admission.release( resumer);
+            }
+        }
+    }
+    
+    /** Start the execution of a request as a continuation, w/o blocking.
+     * When an asynchronous module has to wait, the pipeline is suspended
+     * and resumed by onMessage on a worker thread.
+     * @param req Request to dispatch
+     * @return Future of the SvcResponse, errors are packed as a response
+     */
+    @Override
+    public CompletableFuture<SvcResponse> callAsync( SvcRequest req) {
+        final CompletableFuture<SvcResponse> future = new CompletableFuture();
+        // Get the defined pipe to use
+        Plans ps = getPlans();
+        PipelinePlan plan = ps.nodes.get( req.getClientNode());
+        if( plan == null) {
+            plan = ps.defaultPlan;
+        } else if( plan.size() == 0) {  // Defined RunningPipe by name
+            future.complete( newExceptionResponse( "RunningPipeline name '" + plan.getName() + "' undefined", req));
+            return future;
+        }
+        // Build the Running pipe
+        final RunningPipeline rp = new RunningPipeline( plan, req);
+        final long id = runningPipelines.register( rp, req);
+        if( id == 0) {
+            future.complete( newToppedResponse( req));
+            return future;
+        }
+        asyncCount.incrementAndGet();
+        future.whenComplete( new BiConsumer<SvcResponse,Throwable>() {
+            @Override
+            public void accept( SvcResponse r, Throwable t) {
+                runningPipelines.remove( id);
+                asyncCount.decrementAndGet();
+            }
+        });
+        if( !admission.isEnabled() || RunningPipeline.isNested()) {
+            // Run until the end or until it has to wait
+            rp.setAdmitted( admission.isEnabled());
+            rp.start( future, resumer);
+            return future;
+        }
+        // Wait its turn w/o blocking
+        final SvcRequest rq = req;
+        admission.acquire( req, plan.getName(), new AdmissionScheduler.Task() {
+            @Override
+            public void admitted() {
+                future.whenComplete( new BiConsumer<SvcResponse,Throwable>() {
+                    @Override
+                    public void accept( SvcResponse r, Throwable t) {
+                        admission.release( resumer);
+                    }
+                });
+                rp.setAdmitted( true);
+                rp.start( future, resumer);
+            }
+
+            @Override
+            public void rejected() {
+                future.complete( newRejectedResponse( rq));
+            }
+        });
+        return future;
+    }
+    
+    /** Start running a batch of service calls, and wait all the responses.
+     * The requests are grouped by its pipeline, and each group runs step by 
+     * step together.
+     * @param reqs Requests to dispatch
+     * @return SvcResponse list in the same order, errors are packed as responses
+     */
+    @Override
+    public List<SvcResponse> callBatch( List<SvcRequest> reqs) {
+        batchCount.incrementAndGet();
+        batchRequests.addAndGet( reqs.size());
+        SvcResponse resps[] = new SvcResponse[ reqs.size()];
+        // Group by the defined pipe to use
+        Plans ps = getPlans();
+        Map<PipelinePlan,List<Integer>> groups = new LinkedHashMap();
+        for( int i = 0; i < resps.length; ++i) {
+            SvcRequest req = reqs.get( i);
+            PipelinePlan plan = ps.nodes.get( req.getClientNode());
+            if( plan == null) {
+                plan = ps.defaultPlan;
+            } else if( plan.size() == 0) {  // Defined RunningPipe by name
+                resps[ i] = newExceptionResponse( "RunningPipeline name '" + plan.getName() + "' undefined", req);
+                continue;
+            }
+            List<Integer> g = groups.get( plan);
+            if( g == null) {
+                g = new ArrayList();
+                groups.put( plan, g);
+            }
+            g.add( i);
+        }
+        // Run each group to the end
+        for( Map.Entry<PipelinePlan,List<Integer>> e: groups.entrySet()) {
+            List<Integer> g = e.getValue();
+            List<SvcRequest> rs = new ArrayList( g.size());
+            for( int i: g) {
+                rs.add( reqs.get( i));
+            }
+            SvcResponse r[];
+            if( !admission.isEnabled() || RunningPipeline.isNested()) {
+                r = new BatchPipeline( e.getKey(), rs).run( runningPipelines, admission.isEnabled());
+            } else if( admission.acquire( rs.get( 0), e.getKey().getName(), rs.size())) {
+                try {  // Once, but its cost is the batch size
+                    r = new BatchPipeline( e.getKey(), rs).run( runningPipelines, true);
+                } finally {
+                    admission.release( resumer);
+                }
+            } else {
+                r = new SvcResponse[ rs.size()];
+                for( int i = 0; i < r.length; ++i) {
+                    r[ i] = newRejectedResponse( rs.get( i));
+                }
+            }
+            for( int i = 0; i < r.length; ++i) {
+                resps[ g.get( i)] = r[ i];
+            }
+        }
+        return Arrays.asList( resps);
     }
     
     /** Dispatch the next module service call.
@@ -108,7 +299,7 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
         if( req == null) {
             throw new Exception( "callNext with Null request", new NullPointerException());
         }
-        RunningPipeline rp = runningPipelines.get( req.getRequestId());
+        RunningPipeline rp = getRunningPipeline( req);
         if( rp == null) {
             return newExceptionResponse( "callNext( " + req.getRequestId() + ") can't find RunningPipeline", req);
         }
@@ -129,6 +320,8 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
     }
     
     /** Dispatch the execution of a service pipeline by its name.
+     * A request without correlation id, as a copy of one, is registered to
+     * get its own, otherwise it runs as a part of its running pipeline.
      * @param pipe Service pipeline name
      * @param req Request to dispatch
      * @return SvcResponse or error packed as a response 
@@ -141,13 +334,29 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
         }
         /**/
         // Search Pipeline
-        String rpns[] = defPipes.get( pipe);
-        if( rpns == null) {
+        PipelinePlan plan = getPlans().pipes.get( pipe);
+        if( plan == null) {
             return newExceptionResponse( "Can't find pipeline name '" + pipe + "' to request " + req, req);
         }
         // Run 
-        RunningPipeline rp = new RunningPipeline( pipe, rpns, req);
-        SvcResponse resp = rp.getResponse();
+        RunningPipeline rp = RunningPipeline.take( plan, req);
+        rp.setAdmitted( RunningPipeline.isNested());
+        long id = 0;
+        if( req.getCorrelationId() == 0) {
+            id = runningPipelines.register( rp, req);
+            if( id == 0) {
+                return newToppedResponse( req);
+            }
+        }
+        SvcResponse resp;
+        try {
+            resp = rp.getResponse();
+        } finally {
+            if( id != 0) {
+                runningPipelines.remove( id);
+            }
+        }
+        rp.recycle();
         /**/
         if( LOG.isDebugEnabled()) {
             LOG.debug("callPipeline( " + pipe + ") resp. =  " + resp);
@@ -156,6 +365,28 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
         return resp;
     }
     
+    /** Dispatch the execution of a batch on a service pipeline by its name.
+     * @param pipe Service pipeline name
+     * @param reqs Requests to dispatch
+     * @return SvcResponse list in the same order, errors are packed as responses
+     */
+    @Override
+    public List<SvcResponse> callPipelineBatch( String pipe, List<SvcRequest> reqs) {
+        batchCount.incrementAndGet();
+        batchRequests.addAndGet( reqs.size());
+        // Search Pipeline
+        PipelinePlan plan = getPlans().pipes.get( pipe);
+        if( plan == null) {
+            List<SvcResponse> l = new ArrayList( reqs.size());
+            for( SvcRequest req: reqs) {
+                l.add( newExceptionResponse( "Can't find pipeline name '" + pipe + "' to request " + req, req));
+            }
+            return l;
+        }
+        // Run as a part of the caller, w/o registering
+        return Arrays.asList( new BatchPipeline( plan, reqs).run( null, RunningPipeline.isNested()));
+    }
+    
     /** Get the status report.
      * @return Map of status variables
      */
@@ -167,6 +398,19 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
             map.put( "Version", "" + pak.getImplementationVersion());
         } 
         map.put( "RunningPipelinesCount", runningPipelines.size());
+        runningPipelines.getStatusVars( map);
+        admission.getStatusVars( map);
+        PipelineTracer.getTracer().getStatusVars( map);
+        map.put( "PlansCatalogVersion", plans.defaultPlan.getCatalogVersion());
+        map.put( "AsyncPipelinesCount", asyncCount.get());
+        map.put( "BatchCount", batchCount.get());
+        map.put( "BatchRequests", batchRequests.get());
+        TaskExecutor w = workers;
+        if( w != null) {
+            for( Map.Entry<String,Object> e: w.getStatusVars().entrySet()) {
+                map.put( "AsyncWorkers" + e.getKey(), e.getValue());
+            }
+        }
         map.put( "Stopped", stopped);
         return map;
     } 
@@ -178,14 +422,17 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
     @Override
     public void onMessage( SvcMessage msg) throws Exception {
         LOG.debug( "onMessage " + msg);
-        RunningPipeline rp = runningPipelines.get( msg.getRequestId());
-        if( rp == null) {
+        SvcRequest req = ( msg instanceof SvcResponse)? 
+                ( (SvcResponse)msg).getRequest(): (SvcRequest)msg;
+        RunningPipeline rp = getRunningPipeline( req);
+        long id = ( rp == null)? 0: rp.getCorrelationId();
+        if( rp == null || ( id != req.getCorrelationId() && !rp.getRequestId().equals( req.getRequestId()))) {
             Exception x = new Exception( "Can't find " + msg.getRequestId() 
                     + " to dispatch onMessage " + msg);
             LOG.debug( x.getMessage(), x);
             throw x;
         } else {
-            rp.onMessage( msg);
+            rp.onMessage( msg, id);
         }
     }
     
@@ -195,15 +442,76 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
      */
     @Override
     public void start( Configuration cfg) throws Exception {
-        defaultServicePipeline = cfg.getString( "DefaultServicePipeline").split( ",");
+        String defaultServicePipeline[] = cfg.getString( "DefaultServicePipeline").split( ",");
         LOG.debug( "DefaultServicePipeline " + cfg.getString( "DefaultServicePipeline"));
-        defPipes = new ConcurrentHashMap();
+        Map<String,String[]> defPipes = new HashMap();
         Map<String,String> rps = cfg.getStringMap( "Pipeline.*");
         for( String n: rps.keySet()) {
             defPipes.put(  n, rps.get( n).split( ","));
             LOG.debug( "Pipeline " + n + "=" + rps.get( n));
         }
-        nodePipes = cfg.getStringMap( "Node.*");
+        plans = new Plans( defaultServicePipeline, defPipes, cfg.getStringMap( "Node.*"));
+        runningPipelines.setLimits( cfg.getInt( "MaxInFlight"), cfg.getInt( "InFlightTimeOut"));
+        admission.setConfiguration( cfg);
+        PipelineTracer.getTracer().setConfiguration( cfg);
+        MessagePool.setEnabled( cfg.getBoolean( "PooledMessages"));
+        registerMetrics();
+        TaskExecutor w;
+        synchronized( this) {
+            w = workers;
+            workers = TaskExecutor.newTaskExecutor( "AsyncWorker", cfg);
+        }
+        if( w != null) {
+            w.shutdown();
+        }
+    }
+    
+    /** Register the metrics of the dispatcher. */
+    private void registerMetrics() {
+        MetricsRegistry reg = MetricsRegistry.getRegistry();
+        reg.register( new MetricsRegistry.Gauge( "r2_dispatcher_running_pipelines", 
+                "Pipelines running or waiting a message") {
+            @Override
+            public long get() {
+                return runningPipelines.size();
+            }
+        });
+        reg.register( new MetricsRegistry.Gauge( "r2_dispatcher_async_pipelines", 
+                "Pipelines started by callAsync not yet ended") {
+            @Override
+            public long get() {
+                return asyncCount.get();
+            }
+        });
+        reg.register( new MetricsRegistry.Counter( "r2_dispatcher_batch_requests_total", 
+                "Requests dispatched by batches") {
+            @Override
+            public long get() {
+                return batchRequests.get();
+            }
+        });
+    }
+    
+    /** Get the worker threads used to resume asynchronous pipelines.
+     * @return Executor
+     */
+    private synchronized TaskExecutor getWorkers() {
+        if( workers == null || workers.isShutdown()) {
+            workers = new TaskExecutor( "AsyncWorker", TaskExecutor.FIXED, 4);
+        }
+        return workers;
+    }
+    
+    /** Get the compiled pipelines, compile it again if the catalog has changed.
+     * @return Actual compiled pipelines
+     */
+    private Plans getPlans() {
+        Plans p = plans;
+        if( p.defaultPlan.getCatalogVersion() != SvcCatalog.getCatalog().getVersion()) {
+            p = new Plans( p.defaultServicePipeline, p.defPipes, p.nodePipes);
+            plans = p;
+        }
+        return p;
     }
     
     /** Get the configuration descriptors of this module.
@@ -220,6 +528,16 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
                 "List of services to dispatch by Pipeline name; separated by comma (,) "));
         l.add( new ConfigItemDescriptor( "Node.*", ConfigItemDescriptor.STRING,
                 "Pipelinee name to use, by Client Node"));
+        l.add( new ConfigItemDescriptor( "MaxInFlight", ConfigItemDescriptor.INTEGER,
+                "Maximum number of running pipelines, over it requests are rejected", "100000"));
+        l.add( new ConfigItemDescriptor( "InFlightTimeOut", ConfigItemDescriptor.INTEGER,
+                "Time out in mS to expire a waiting pipeline when the request has not one", "60000"));
+        l.add( new ConfigItemDescriptor( "PooledMessages", ConfigItemDescriptor.BOOLEAN,
+                "Reuse the messages taken from the MessagePool and the running pipelines, recycled at the end of each call", "false"));
+        AdmissionScheduler.addConfigDescriptors( l);
+        PipelineTracer.addConfigDescriptors( l);
+        // Workers to resume the pipelines started by callAsync
+        TaskExecutor.addConfigDescriptors( l, TaskExecutor.FIXED, "4");
         return l;        
     }
 
@@ -228,11 +546,43 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
     public void shutdown() {
         LOG.debug( "shutdown");
         stopped = true;
-        for( String k: runningPipelines.keySet()) {
-            runningPipelines.get(  k).stop();
+        MessagePool.setEnabled( false);
+        for( RunningPipeline rp: runningPipelines.getRunningPipelines()) {
+            rp.stop();
+        }
+        runningPipelines.shutdown();
+        admission.shutdown();
+        synchronized( this) {
+            if( workers != null) {
+                workers.shutdown();
+                workers = null;
+            }
         }
     }
 
+    /** Get the running pipeline of a request.
+     * By its correlation id, or by its request id only when it has none.
+     * A correlation id not found is of a pipeline that already ended.
+     */
+    private RunningPipeline getRunningPipeline( SvcRequest req) {
+        if( req.getCorrelationId() != 0) {
+            return runningPipelines.get( req.getCorrelationId());
+        }
+        return runningPipelines.find( req);
+    }
+    
+    private SvcResponse newToppedResponse( SvcRequest req) {
+        LOG.warn( "Too many running pipelines " + runningPipelines.size());
+        return new SvcResponse( SvcResponse.MSG_TOPPED + "running pipelines", 
+                SvcResponse.RES_CODE_TOPPED, null, req);
+    }
+    
+    private SvcResponse newRejectedResponse( SvcRequest req) {
+        LOG.info( "Not admitted " + req.getRequestId());
+        return new SvcResponse( SvcResponse.MSG_TOPPED + "waiting requests", 
+                SvcResponse.RES_CODE_TOPPED, null, req);
+    }
+    
     private SvcResponse newExceptionResponse( String msg, SvcRequest req) {
         Exception x = new Exception( msg);
         SvcResponse resp = new SvcResponse( msg, SvcResponse.RES_CODE_EXCEPTION, req);
@@ -240,5 +590,35 @@ public class SimpleDispatcher implements Dispatcher, StartableModule {
         return resp;
     } 
     
+    /** Immutable set of compiled pipelines, swapped as a whole. */
+    private static class Plans {
+        private final String defaultServicePipeline[];
+        private final Map<String,String[]> defPipes;
+        private final Map<String,String> nodePipes;
+        private final PipelinePlan defaultPlan;
+        private final Map<String,PipelinePlan> pipes = new HashMap();
+        private final Map<String,PipelinePlan> nodes = new HashMap();
+
+        private Plans( String defaultServicePipeline[], Map<String,String[]> defPipes, 
+                Map<String,String> nodePipes) {
+            SvcCatalog catalog = SvcCatalog.getCatalog();
+            this.defaultServicePipeline = defaultServicePipeline;
+            this.defPipes = defPipes;
+            this.nodePipes = nodePipes;
+            this.defaultPlan = new PipelinePlan( "(Default)", defaultServicePipeline, catalog);
+            for( String n: defPipes.keySet()) {
+                pipes.put( n, new PipelinePlan( n, defPipes.get( n), catalog));
+            }
+            for( String n: nodePipes.keySet()) {
+                String rpn = nodePipes.get( n);
+                PipelinePlan p = pipes.get( rpn);
+                if( p == null) {  // Undefined, empty plan to report it
+                    p = new PipelinePlan( rpn, null, catalog);
+                }
+                nodes.put( n, p);
+            }
+        }
+    }
+    
 }
 
@@ -3,6 +3,7 @@ package uy.com.r2.core;
 
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -10,6 +11,8 @@ import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.log4j.Logger;
 import uy.com.r2.core.api.Dispatcher;
 import uy.com.r2.core.api.ConfigItemDescriptor;
@@ -20,6 +23,11 @@ import uy.com.r2.core.api.Module;
  * This module is almost the core of the entire system. It keeps the list
  * of the installed modules, and a special one module: the Dispatcher.
  * By a convention it must be called "SvcDispatcher" or it si auto installed.
+ * The modules are kept on an immutable snapshot, each change publishes a new
+ * one with a new version, so the lookups done on each pipeline step never 
+ * lock nor see a map been modified.
+ * When the class of a module changes, the new one is started and published
+ * before the old one is drained of its requests in flight and shut down.
  * @author G.Camargo
  */
 public class SvcCatalog implements Module {
@@ -28,15 +36,32 @@ public class SvcCatalog implements Module {
     
     private static final Logger LOG = Logger.getLogger( SvcCatalog.class);
     private static final Object LOCK = new Object();
-    private static SvcCatalog catalog = null;
-    private static Dispatcher dispatcher = null;
+    private static volatile SvcCatalog catalog = null;
+    private static volatile Dispatcher dispatcher = null;
 
-    private boolean stopping = false;
-    private final HashMap<String,ModuleInfo> modules;
+    private volatile boolean stopping = false;
+    private final AtomicReference<Snapshot> snapshot;
+    private final Map<ModuleInfo,Long> draining = new ConcurrentHashMap();
+    private TaskExecutor drainer = null;
     
     private SvcCatalog() {  // Private constructor.
-        modules = new HashMap();
-        modules.put( CATALOG_NAME, new ModuleInfo( CATALOG_NAME, this));
+        Map<String,ModuleInfo> m = new HashMap();
+        m.put( CATALOG_NAME, new ModuleInfo( CATALOG_NAME, this));
+        snapshot = new AtomicReference( new Snapshot( Collections.unmodifiableMap( m), 0));
+        MetricsRegistry.getRegistry().register( new MetricsRegistry.Gauge( 
+                "r2_catalog_version", "Version of the installed modules catalog") {
+            @Override
+            public long get() {
+                return snapshot.get().version;
+            }
+        });
+        MetricsRegistry.getRegistry().register( new MetricsRegistry.Gauge( 
+                "r2_catalog_draining_modules", "Replaced modules waiting its requests in flight") {
+            @Override
+            public long get() {
+                return draining.size();
+            }
+        });
     }  
     
     /** Get the Catalog instance.
@@ -90,12 +115,17 @@ public class SvcCatalog implements Module {
         if( cfg == null) {
             cfg = new Configuration();
         }
-        String className = "" + cfg.getString( "class");
-        LOG.trace( "installModule " + moduleName + " " + className);
+        LOG.trace( "installModule " + moduleName + " " + cfg.getString( "class"));
         // Sepecial names Catalog & Deployer
         if( CATALOG_NAME.equals( moduleName)) {
             return;
         }
+        installModule( moduleName, newModule( cfg), cfg);
+    } 
+    
+    /** Instance the module class. */
+    private Module newModule( Configuration cfg) throws Exception {
+        String className = "" + cfg.getString( "class");
         // Load from the net
         ClassLoader loader = getClass().getClassLoader();
         String loaderDesc = "";
@@ -111,7 +141,7 @@ public class SvcCatalog implements Module {
         } catch ( Exception xx) {
             throw new Exception( "Can't load '" + className + "' " + loaderDesc, xx);
         }
-        installModule( moduleName, moduleImpl, cfg);
+        return moduleImpl;
     } 
           
     /** Instance a internal module with a given implementations and configure it.
@@ -128,11 +158,10 @@ public class SvcCatalog implements Module {
         }
         LOG.info( "installModule " + moduleName + " " + cfg.toString());
         // setup modules map
-        if( modules.containsKey( moduleName)) {
+        ModuleInfo mi = new ModuleInfo( moduleName, moduleImpl);
+        if( !publish( moduleName, mi, null)) {
             throw new Exception( "Module '" + moduleName + "' is already installed.");
         }
-        ModuleInfo mi = new ModuleInfo( moduleName, moduleImpl);
-        modules.put( moduleName, mi);
         // setup configuration
         updateConfiguration( moduleName, cfg);
     } 
@@ -149,20 +178,85 @@ public class SvcCatalog implements Module {
         }
         LOG.info( "updateConfiguration " + moduleName + " " + cfg.toString());
         // setConfiguration
-        ModuleInfo mi = modules.get( moduleName);
+        ModuleInfo mi = getModuleInfo( moduleName);
         if( mi == null) {  // New module
             installModule( moduleName, cfg);
         } else if( !mi.isTheSameClass( cfg)                    // If diff class
                 && mi.getConfiguration().containsKey( "class") // && has cfg 
                 && !CATALOG_NAME.equals( moduleName)) {        // && not this
-            uninstallModule( moduleName);     
-            mi.setConfiguration( cfg);        // Do not re-enter
-            installModule( moduleName, cfg);
+            swapModule( moduleName, mi, cfg);
+            return;
         } else {
              mi.setConfiguration( cfg);
         }
+        publish( null, null, null);  // Only a new version
     }
      
+    /** Replace a module by a new instance of other class.
+     * The new one is started and receives the new requests, the old one is
+     * shut down when its requests in flight end, or on its DrainTimeOut.
+     * @param moduleName Module name
+     * @param old Actual module
+     * @param cfg Configuration with the new class
+     * @throws Exception Unexpected error, the old one remains
+     */
+    private void swapModule( String moduleName, ModuleInfo old, Configuration cfg) 
+            throws Exception {
+        LOG.info( "swapModule " + moduleName + " " + cfg.getString( "class"));
+        Module impl = newModule( cfg);
+        ModuleInfo mi = new ModuleInfo( moduleName, impl);
+        try {
+            mi.setConfiguration( cfg);
+        } catch( Exception x) {  // Release the new one, the old one remains
+            mi.shutdown();
+            throw x;
+        }
+        if( !publish( moduleName, mi, old)) {
+            mi.shutdown();
+            throw new Exception( "Module '" + moduleName + "' changed while it was replaced");
+        }
+        if( DISPATCHER_NAME.equals( moduleName) && impl instanceof Dispatcher) {
+            dispatcher = ( Dispatcher)impl;
+        }
+        drain( old);
+    }
+    
+    /** Shut down a replaced module after its requests in flight end. */
+    private void drain( final ModuleInfo mi) {
+        final long t0 = System.currentTimeMillis();
+        draining.put( mi, t0);
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while( mi.getInFlight() > 0 && !stopping
+                            && System.currentTimeMillis() - t0 < mi.getDrainTimeOut()) {
+                        Thread.sleep( 10);
+                    }
+                } catch( InterruptedException x) { 
+                } finally {
+                    if( mi.getInFlight() > 0) {
+                        LOG.warn( "Module " + mi.getName() + " shut down with " 
+                                + mi.getInFlight() + " requests in flight");
+                    }
+                    LOG.info( "Drained " + mi.getName() + " in " 
+                            + ( System.currentTimeMillis() - t0) + " mS");
+                    draining.remove( mi);
+                    mi.shutdown();
+                }
+            }
+        };
+        synchronized( draining) {
+            if( drainer == null) {
+                drainer = new TaskExecutor( "ModuleDrain", TaskExecutor.PLATFORM, 0);
+            }
+            if( drainer.execute( r)) {
+                return;
+            }
+        }
+        r.run();
+    }
+    
     /** Free the service module.
      * @param moduleName Module name
      * @throws Exception Not found 
@@ -173,11 +267,10 @@ public class SvcCatalog implements Module {
             LOG.info( "Module " + moduleName + " can't be uninstalled, ignored");
             return;
         }
-        ModuleInfo mi = modules.get( moduleName);
-        if( mi == null) {
+        ModuleInfo mi = getModuleInfo( moduleName);
+        if( mi == null || !publish( moduleName, null, mi)) {
             throw new Exception( "Module '" + moduleName + "' not found");
         }
-        modules.remove( moduleName);
         mi.shutdown();
     } 
     
@@ -186,7 +279,16 @@ public class SvcCatalog implements Module {
      * @return InstalledModule
      */
     public ModuleInfo getModuleInfo( String moduleName) {
-        return modules.get( moduleName);
+        return snapshot.get().modules.get( moduleName);
+    } 
+    
+    /** Get the catalog version.
+     * It changes every time a module is installed, uninstalled or configured,
+     * used to know when the compiled pipelines must be updated.
+     * @return Version number
+     */
+    public long getVersion( ) {
+        return snapshot.get().version;
     } 
     
     /** Get all the module names.
@@ -194,7 +296,7 @@ public class SvcCatalog implements Module {
      */
     public Set<String> getModuleNames( ) {
         // return ordered clone
-        return new TreeSet( modules.keySet());
+        return new TreeSet( snapshot.get().modules.keySet());
     } 
     
     /** Test if system is shutting down.
@@ -224,12 +326,23 @@ public class SvcCatalog implements Module {
         if( pak != null) {
             map.put( "Version", "" + pak.getImplementationVersion());
         } 
-        map.put( "ModuleNames", getModuleNames());
-        Set<String> mns = getModuleNames();
-        mns.remove( SvcCatalog.CATALOG_NAME);  // Avoid Loop
-        for( String n: mns) {
-            Map<String,Object> v = getModuleInfo( n).getStatusVars();
-            map.put( "Module_" + n, v);
+        Snapshot s = snapshot.get();  // The same version on all the report
+        map.put( "ModuleNames", new TreeSet( s.modules.keySet()));
+        map.put( "CatalogVersion", s.version);
+        map.put( "CatalogVersionTime", s.time);
+        map.put( "CatalogModulesCount", s.modules.size());
+        for( Map.Entry<String,ModuleInfo> e: new TreeMap<String,ModuleInfo>( s.modules).entrySet()) {
+            if( !CATALOG_NAME.equals( e.getKey())) {  // Avoid Loop
+                map.put( "Module_" + e.getKey(), e.getValue().getStatusVars());
+            }
+        }
+        map.put( "DrainingModules", draining.size());
+        for( Map.Entry<ModuleInfo,Long> e: draining.entrySet()) {
+            Map<String,Object> v = new TreeMap();
+            v.put( "InFlight", e.getKey().getInFlight());
+            v.put( "DrainTime", System.currentTimeMillis() - e.getValue());
+            v.put( "DrainTimeOut", e.getKey().getDrainTimeOut());
+            map.put( "Draining_" + e.getKey().getName(), v);
         }
         return map;
     }
@@ -249,8 +362,53 @@ public class SvcCatalog implements Module {
                 uninstallModule( n);
             } catch( Exception ex) { }
         }
-        modules.clear();
+        synchronized( draining) {
+            if( drainer != null) {
+                drainer.shutdown();
+            }
+        }
         LOG.debug( "Catalog shutdown ended");
     }    
 
+    /** Publish a new snapshot, retrying if another change was published.
+     * @param name Module name to change, or null to get only a new version
+     * @param add ModuleInfo to install, it fails if the name is in use
+     * @param remove ModuleInfo to uninstall or replace, it fails if it is not installed
+     * @return Boolean: false when it failed
+     */
+    private boolean publish( String name, ModuleInfo add, ModuleInfo remove) {
+        for( ; ;) {
+            Snapshot s = snapshot.get();
+            Map<String,ModuleInfo> m = s.modules;
+            if( name != null) {
+                if( ( add != null && remove == null && m.containsKey( name)) 
+                        || ( remove != null && m.get( name) != remove)) {
+                    return false;
+                }
+                Map<String,ModuleInfo> c = new HashMap( m);
+                if( add != null) {
+                    c.put( name, add);
+                } else {
+                    c.remove( name);
+                }
+                m = Collections.unmodifiableMap( c);
+            }
+            if( snapshot.compareAndSet( s, new Snapshot( m, s.version + 1))) {
+                return true;
+            }
+        }
+    }
+
+    /** Immutable version of the catalog. */
+    private static class Snapshot {
+        private final Map<String,ModuleInfo> modules;
+        private final long version;
+        private final long time = System.currentTimeMillis();
+
+        private Snapshot( Map<String,ModuleInfo> modules, long version) {
+            this.modules = modules;
+            this.version = version;
+        }
+    }
+
 }
@@ -0,0 +1,216 @@
+/* TaskExecutor.java */
+package uy.com.r2.core;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import uy.com.r2.core.api.ConfigItemDescriptor;
+import uy.com.r2.core.api.Configuration;
+
+/** Configurable execution backend used by the core and the connectors.
+ * Instead of starting a raw Thread on each task, the modules get one of
+ * this executors, selected by its configuration: <br>
+ * Platform: Pool of platform threads up to MaxThreads, rejects over it <br>
+ * Fixed: Fixed pool of MaxThreads platform threads, queues over it <br>
+ * Virtual: One virtual thread per task, w/o limit (JVM 21 or newer) <br>
+ * @author G.Camargo
+ */
+public class TaskExecutor {
+    public static final String PLATFORM = "Platform";
+    public static final String FIXED = "Fixed";
+    public static final String VIRTUAL = "Virtual";
+
+    private static final Logger LOG = Logger.getLogger( TaskExecutor.class);
+    private final String name;
+    private final String mode;
+    private final int maxThreads;
+    private final ExecutorService executor;
+    private final AtomicInteger activeTasks = new AtomicInteger();
+    private final AtomicLong tasks = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile int topActiveTasks = 0;
+
+    /** Constructor.
+     * @param name Name used to set the thread names
+     * @param mode Platform, Fixed or Virtual
+     * @param maxThreads Maximum platform threads, not used by Virtual
+     */
+    public TaskExecutor( String name, String mode, int maxThreads) {
+        if( maxThreads <= 0) {
+            maxThreads = Integer.MAX_VALUE;
+        }
+        ExecutorService es = null;
+        if( VIRTUAL.equalsIgnoreCase( mode)) {
+            es = newVirtualThreadExecutor();
+            if( es == null) {
+                LOG.warn( name + " virtual threads not supported by this JVM, using " + PLATFORM);
+                mode = PLATFORM;
+            } else {
+                mode = VIRTUAL;
+            }
+        }
+        if( es == null && FIXED.equalsIgnoreCase( mode) && maxThreads != Integer.MAX_VALUE) {
+            mode = FIXED;
+            es = new ThreadPoolExecutor( maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory( name));
+        } else if( es == null) {
+            mode = PLATFORM;
+            es = new ThreadPoolExecutor( 0, maxThreads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new NamedThreadFactory( name));
+        }
+        this.name = name;
+        this.mode = mode;
+        this.maxThreads = maxThreads;
+        this.executor = es;
+        LOG.debug( "TaskExecutor " + name + " " + mode + " " + maxThreads);
+    }
+
+    /** Build a executor from the module configuration.
+     * It uses the items "Execution" and "MaxThreads".
+     * @param name Name used to set the thread names
+     * @param cfg Module configuration
+     * @return New TaskExecutor
+     * @throws Exception Parsing error
+     */
+    public static TaskExecutor newTaskExecutor( String name, Configuration cfg) throws Exception {
+        return new TaskExecutor( name, cfg.getString( "Execution"), cfg.getInt( "MaxThreads"));
+    }
+
+    /** Add the configuration descriptors used to select the executor.
+     * @param l Module configuration descriptors list
+     * @param defaultMode Default execution mode
+     * @param defaultMaxThreads Default maximum of threads
+     */
+    public static void addConfigDescriptors( List<ConfigItemDescriptor> l,
+            String defaultMode, String defaultMaxThreads) {
+        addConfigDescriptor( l, defaultMode);
+        l.add( new ConfigItemDescriptor( "MaxThreads", ConfigItemDescriptor.INTEGER,
+                "Maximum number of Threads used to run concurrent tasks, 0 is unlimited",
+                defaultMaxThreads));
+    }
+
+    /** Add only the configuration descriptor of the execution mode.
+     * @param l Module configuration descriptors list
+     * @param defaultMode Default execution mode
+     */
+    public static void addConfigDescriptor( List<ConfigItemDescriptor> l, String defaultMode) {
+        l.add( new ConfigItemDescriptor( "Execution", ConfigItemDescriptor.STRING,
+                "Execution backend: Platform (pool up to MaxThreads), Fixed (MaxThreads pool "
+                + "and queue) or Virtual (one virtual thread per task)", defaultMode));
+    }
+
+    /** Run a task.
+     * @param task Runnable to execute
+     * @return Boolean: false when it was rejected by overload
+     */
+    public boolean execute( final Runnable task) {
+        int a = activeTasks.incrementAndGet();
+        if( a > topActiveTasks) {
+            topActiveTasks = a;
+        }
+        try {
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        activeTasks.decrementAndGet();
+                    }
+                }
+            });
+        } catch( RejectedExecutionException x) {
+            activeTasks.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        tasks.incrementAndGet();
+        return true;
+    }
+
+    /** Get the execution mode really used.
+     * @return Platform, Fixed or Virtual
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /** Get the status report.
+     * @return Map of status variables
+     */
+    public Map<String,Object> getStatusVars() {
+        Map<String,Object> map = new TreeMap();
+        map.put( "Execution", mode);
+        if( maxThreads != Integer.MAX_VALUE) {
+            map.put( "MaxThreads", maxThreads);
+        }
+        if( executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor tpe = ( ThreadPoolExecutor)executor;
+            map.put( "Carriers", tpe.getPoolSize());
+            map.put( "TopCarriers", tpe.getLargestPoolSize());
+            map.put( "QueuedTasks", tpe.getQueue().size());
+        } else {  // Virtual threads are mounted on the ForkJoinPool carriers
+            map.put( "Carriers", Integer.getInteger( "jdk.virtualThreadScheduler.parallelism",
+                    Runtime.getRuntime().availableProcessors()));
+        }
+        map.put( "ActiveTasks", activeTasks.get());
+        map.put( "TopActiveTasks", topActiveTasks);
+        map.put( "Tasks", tasks.get());
+        map.put( "RejectedTasks", rejected.get());
+        return map;
+    }
+
+    /** Stop accepting tasks, running ones are not interrupted. */
+    public void shutdown() {
+        LOG.debug( "shutdown " + name);
+        executor.shutdown();
+    }
+
+    /** Test if it is shut down.
+     * @return Boolean
+     */
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /** Get Executors.newVirtualThreadPerTaskExecutor() when the JVM has it.
+     * @return ExecutorService or null
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class.getMethod( "newVirtualThreadPerTaskExecutor");
+            return ( ExecutorService)m.invoke( null);
+        } catch( Exception x) {
+            return null;
+        }
+    }
+
+    /** Platform thread factory with numbered names. */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger nr = new AtomicInteger();
+
+        private NamedThreadFactory( String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread( Runnable r) {
+            Thread t = new Thread( r, name + "_" + nr.incrementAndGet());
+            t.setDaemon( true);
+            return t;
+        }
+    }
+
+}
@@ -76,16 +76,20 @@ public class AsyncClient implements AsyncService {
     }
 
     /** Process a response phase.
-     * If something goes wrong it should throw a Exception to clearly set 
-     * what module originates the failure.
-     * @param resp SvcResponse message from next module, or null (no next)
+     * The response read from the channel, or the time out delivered by the 
+     * Dispatcher when the request deadline expires, then the request is 
+     * cancelled and its late response is ignored.
+     * @param resp SvcResponse message
      * @param cfg Module configuration 
      * @return SvcResponse message to caller
      * @throws Exception Unexpected error
      */
     @Override
     public SvcResponse onResponse( SvcResponse resp, Configuration cfg) throws Exception {
-        throw new UnsupportedOperationException( "AsyncClient.onResponse() is invalid");
+        if( channelTh != null) {
+            channelTh.cancel( resp.getRequest());
+        }
+        return resp;
     }
     
     /** Get the status report.
@@ -130,6 +134,7 @@ public class AsyncClient implements AsyncService {
     private class ChannelRunnable implements Runnable {
         private final Socket socket;
         private final ConcurrentHashMap<String,SvcRequest> reqMap = new ConcurrentHashMap();
+        private final ConcurrentHashMap<SvcRequest,String> msgIds = new ConcurrentHashMap();
         private InputStream inS = null;
         private OutputStream outS = null;
 
@@ -165,8 +170,12 @@ public class AsyncClient implements AsyncService {
             } catch( Exception x) { 
                 LOG.info( "Failed set SetMsgId in msg " + s, x);
             }
-            // Store Request by msgId
-            reqMap.put( msgId, rq);
+            // Store Request by msgId, and the msgId of the request
+            msgIds.put( rq, msgId);
+            SvcRequest old = reqMap.put( msgId, rq);
+            if( old != null && old != rq) {
+                msgIds.remove( old, msgId);
+            }
             // Send
             byte buff[] = ( "" + s).getBytes();
             LOG.trace( "Content to send: '" + s);
@@ -186,10 +195,11 @@ public class AsyncClient implements AsyncService {
                     while( inS.available() == 0) {
                         for( Object id: reqMap.keySet()) {
                             SvcRequest r = reqMap.get( id);
-                            if( ( int)( System.currentTimeMillis() - r.getAbsoluteTime()) > r.getTimeOut()) {
+                            if( r.isExpired()) {
                                 LOG.warn( "Timeout from req. " + r.toString());
-                                reqMap.remove( id);
-                                SvcResponse rp = new SvcResponse( SvcResponse.RES_CODE_TIMEOUT, r);
+                                remove( r);
+                                SvcResponse rp = new SvcResponse( SvcResponse.MSG_TIMEOUT, 
+                                        SvcResponse.RES_CODE_TIMEOUT, r);
                                 SvcCatalog.getDispatcher().onMessage( rp);
                             }
                         }
@@ -215,6 +225,7 @@ public class AsyncClient implements AsyncService {
                     if( rq == null) {
                         throw new Exception( "Failed to get Request for MsgId " + msgId);
                     }
+                    msgIds.remove( rq, msgId);
                     SvcResponse r = new SvcResponse( 0, rq);
                     SvcCatalog.getDispatcher().onMessage( r);
                 } catch( Exception x) { 
@@ -223,6 +234,21 @@ public class AsyncClient implements AsyncService {
             }            
         }
         
+        /** Forget a request, its response will be ignored. */
+        void cancel( SvcRequest rq) {
+            if( remove( rq)) {
+                LOG.debug( "Cancelled req. " + rq.getRequestId());
+            }
+        }
+
+        /** Remove a request by its msgId.
+         * @return true if it was pending
+         */
+        private boolean remove( SvcRequest rq) {
+            String msgId = msgIds.remove( rq);
+            return msgId != null && reqMap.remove( msgId, rq);
+        }
+        
         void close() throws Exception {
             socket.close();
             inS = null;
@@ -8,6 +8,7 @@ import java.util.Map;
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.InputStreamReader;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.HttpURLConnection;
 import java.io.InputStream;
@@ -25,6 +26,8 @@ import uy.com.r2.core.api.Configuration;
  * It invokes a remote service with getPayLoad() parameters nor get( "serializedJson")
  * and stores with put( "SerializedJson") the response.
  * This is a reference implementation !!!!.
+ * The time left to the request deadline is sent on the X-R2-Time-Left header,
+ * and used as connection and read time out.
  * This module should return NULL to put to wait the response, and use a 
  * second Thread to call onMessage when has the response.
  * @author G.Camargo
@@ -33,7 +36,6 @@ public class HttpClient implements SimpleService {
     private static final Logger log = Logger.getLogger(HttpClient.class);
     private Map<String,String> svcUrl = new HashMap();
     private String defaultUrl = null;
-    private int sleepTimeWait = 10;
     private String userAgentHeader = ""; 
     private String acceptHeader = ""; 
     
@@ -51,8 +53,6 @@ public class HttpClient implements SimpleService {
                 ConfigItemDescriptor.DEPLOYER));
         l.add( new ConfigItemDescriptor( "DoPost", ConfigItemDescriptor.URL,
                 "Use ethod POST (or GET) to call", "true"));
-        l.add( new ConfigItemDescriptor( "SleepTimeWait", ConfigItemDescriptor.INTEGER,
-                "Sleep time waiting for a response, in mS", "10"));
         l.add( new ConfigItemDescriptor( "UserAgentHeader", ConfigItemDescriptor.INTEGER,
                 "User-agetn header on requests", ""));
         l.add( new ConfigItemDescriptor( "AccpetHeader", ConfigItemDescriptor.INTEGER,
@@ -73,7 +73,6 @@ public class HttpClient implements SimpleService {
     private void setConfiguration( Configuration cfg) throws Exception {
         svcUrl = cfg.getStringMap( "Url.*");
         defaultUrl = cfg.getString( "Url");
-        sleepTimeWait = cfg.getInt( "SleepTimeWait");
         userAgentHeader = cfg.getString( "UserAgentHeader");
         acceptHeader = cfg.getString( "AccpetHeader");
     }
@@ -86,14 +85,16 @@ public class HttpClient implements SimpleService {
     @Override
     public SvcResponse call( SvcRequest req, Configuration cfg) throws Exception {
         setConfiguration( cfg);
-        int to = req.getTimeOut();
-        long at = req.getAbsoluteTime();
-        if( to > 0) {
-            at += to;
-        } else {
-            at = Long.MAX_VALUE;
+        if( req.isExpired()) {
+            return new SvcResponse( SvcResponse.MSG_TIMEOUT, SvcResponse.RES_CODE_TIMEOUT, req);
+        }
+        String r;
+        try {
+            r = invoke( cfg.getBoolean( "DoPost"), req);
+        } catch( SocketTimeoutException x) {
+            log.info( "Timed out invoking " + req.getServiceName() + " " + x);
+            return new SvcResponse( SvcResponse.MSG_TIMEOUT, SvcResponse.RES_CODE_TIMEOUT, req);
         }
-        String r = invoke( cfg.getBoolean( "DoPost"), req, at);
         SvcResponse resp = new SvcResponse( 0, req);
         resp.put( "SerializedJson", r);
         return resp;
@@ -117,8 +118,7 @@ public class HttpClient implements SimpleService {
     public void shutdown() {
     }
 
-    private String invoke( boolean doPost, SvcRequest req, long endTime) 
-            throws Exception {
+    private String invoke( boolean doPost, SvcRequest req) throws Exception {
         log.debug("invoke " + (doPost? "POST": "GET") + req); 
         String strUrl = prepareUrl( doPost, req);
         try {
@@ -130,6 +130,13 @@ public class HttpClient implements SimpleService {
             }
             conn.setRequestProperty( "User-Agent", userAgentHeader);
             conn.setRequestProperty( "Accept", acceptHeader);
+            long left = req.getTimeLeft();
+            if( left != Long.MAX_VALUE) {
+                int to = ( int)Math.max( 1, Math.min( left, Integer.MAX_VALUE));
+                conn.setRequestProperty( SvcRequest.TIME_LEFT_HEADER, "" + to);
+                conn.setConnectTimeout( to);
+                conn.setReadTimeout( to);
+            }
             if( doPost) {
                 // get serialized req
                 String serializedParams = "" + req.get( "SerializedJson");
@@ -153,12 +160,6 @@ public class HttpClient implements SimpleService {
             BufferedReader br = new BufferedReader( new InputStreamReader( is));
             StringBuilder sb = new StringBuilder();
             for( ; ;) {
-                if( is.available() == 0) {
-                    if( System.currentTimeMillis() > endTime) {
-                        break;
-                    }
-                    Thread.sleep( sleepTimeWait);
-                }
                 String line = br.readLine();
                 if( line == null) {
                     break;
@@ -169,6 +170,8 @@ public class HttpClient implements SimpleService {
             conn.disconnect();
             log.trace( "resp: " + sb.toString());
             return sb.toString();
+        } catch( SocketTimeoutException x) {
+            throw x;
         } catch( Exception x) {
             throw new Exception( x + " invoking " + req.getServiceName() + " " + strUrl, x);
         }
@@ -1,6 +1,7 @@
 /* JdbcService.java */
 package uy.com.r2.svc.conn;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.HashMap;
@@ -10,9 +11,11 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
+import java.sql.SQLTimeoutException;
 import java.util.LinkedHashMap;
 import org.apache.log4j.Logger;
 import uy.com.r2.core.SvcCatalog;
+import uy.com.r2.core.api.BatchService;
 import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
 import uy.com.r2.core.api.SimpleService;
@@ -20,6 +23,9 @@ import uy.com.r2.core.api.ConfigItemDescriptor;
 import uy.com.r2.core.api.Configuration;
 import uy.com.r2.core.api.Dispatcher;
 import uy.com.r2.core.api.SvcMessage;
+import uy.com.r2.core.api.Payload;
+import uy.com.r2.core.api.PayloadSchema;
+import uy.com.r2.core.api.ServiceReference;
 
 
 /** JDBC service module.
@@ -27,9 +33,12 @@ import uy.com.r2.core.api.SvcMessage;
  * but it need some work to be really useful, as it can be.
  * This is a reference implementation !!!!.
  * It should support stored procedures.
+ * The batched calls of a service with Batch=true are executed as one JDBC
+ * batch update.
+ * The time left to the request deadline is set as the query time out.
  * @author G.Camargo
  */
-public class JdbcService implements SimpleService {
+public class JdbcService implements SimpleService, BatchService {
     private static final Logger log = Logger.getLogger(JdbcService.class);
     private String driverClass = "";
     private String url = "";
@@ -59,6 +68,8 @@ public class JdbcService implements SimpleService {
                 "Service and SQL parameters separated by coma (,)"));
         l.add( new ConfigItemDescriptor( "Service.*.RowName", ConfigItemDescriptor.STRING,
                 "Name of a tuple", null));
+        l.add( new ConfigItemDescriptor( "Service.*.Batch", ConfigItemDescriptor.BOOLEAN,
+                "Execute the batched calls as a JDBC batch update, only for SQL w/o result set", null));
         l.add( new ConfigItemDescriptor( "SeptUpTest", ConfigItemDescriptor.BOOLEAN, 
                 "Check connection on startup", "false"));
         return l;
@@ -83,13 +94,26 @@ public class JdbcService implements SimpleService {
         Map<String,String> svcsSQL = cfg.getStringMap( "Service.*.SQL");
         Map<String,String> svcsParams = cfg.getStringMap( "Service.*.Params");
         Map<String,String> svcsRowName = cfg.getStringMap( "Service.*.RowName");
+        Map<String,String> svcsBatch = cfg.getStringMap( "Service.*.Batch");
+        if( svcs != null) {
+            for( String k: svcs.keySet()) {
+                PayloadSchema.unregister( k, this);
+            }
+        }
         svcs = new HashMap();
         for( String k: svcsSQL.keySet()) {
             ServiceInfo si = new ServiceInfo();
             si.sqlSentence = svcsSQL.get( k);
             String pns = svcsParams.get( k);
             si.paramNames = ( pns != null)? svcsParams.get( k).split( ","): new String[ 0];
+            ServiceReference sr = new ServiceReference( k);
+            for( int i = 0; i < si.paramNames.length; ++i) {
+                si.paramNames[ i] = si.paramNames[ i].intern();  // Found by identity
+                sr.addRequestField( si.paramNames[ i], "SQL parameter " + ( i + 1), ServiceReference.STRING);
+            }
+            PayloadSchema.register( sr, this);
             si.rowName = svcsRowName.get( k);
+            si.batch = Boolean.parseBoolean( svcsBatch.get( k));
             svcs.put( k, si);
             log.debug( "Service " + k + " " + si.sqlSentence);
         }
@@ -117,12 +141,90 @@ public class JdbcService implements SimpleService {
             }
             //throw new Exception( SvcResponse.MSG_INVALID_SERVICE + req.getServiceName());
             resp = SvcCatalog.getDispatcher().callNext( req);
+        } else if( req.isExpired()) {
+            resp = new SvcResponse( SvcResponse.MSG_TIMEOUT, SvcResponse.RES_CODE_TIMEOUT, req);
         } else {
-            resp = new SvcResponse( execute( req.getPayload(), si), 0, req);
+            try {
+                resp = new SvcResponse( execute( req.getPayload(), si, req.getTimeLeft()), 0, req);
+            } catch( SQLTimeoutException x) {
+                resp = new SvcResponse( SvcResponse.MSG_TIMEOUT, SvcResponse.RES_CODE_TIMEOUT, x, req);
+            }
         }
         return resp;
     }
 
+    /** Batch of service calls.
+     * The calls of services configured as Batch are grouped and executed
+     * as JDBC batch updates, with the "UpdateCount" of each one. The
+     * others are called one by one.
+     * @param reqs Invocation messages
+     * @param cfg Module configuration
+     * @return SvcResponse list
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public List<SvcMessage> onRequests( List<SvcRequest> reqs, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        SvcMessage resps[] = new SvcMessage[ reqs.size()];
+        Map<String,List<Integer>> batches = new HashMap();
+        for( int i = 0; i < resps.length; ++i) {
+            SvcRequest req = reqs.get( i);
+            ServiceInfo si = svcs.get( req.getServiceName());
+            if( si != null && si.batch && req.isExpired()) {
+                resps[ i] = new SvcResponse( SvcResponse.MSG_TIMEOUT, SvcResponse.RES_CODE_TIMEOUT, req);
+            } else if( si != null && si.batch) {
+                List<Integer> b = batches.get( req.getServiceName());
+                if( b == null) {
+                    b = new ArrayList();
+                    batches.put( req.getServiceName(), b);
+                }
+                b.add( i);
+            } else {
+                try {
+                    resps[ i] = call( req, cfg);
+                } catch( Exception x) {
+                    resps[ i] = new SvcResponse( x.getMessage(), SvcResponse.RES_CODE_EXCEPTION, x, req);
+                }
+            }
+        }
+        for( Map.Entry<String,List<Integer>> e: batches.entrySet()) {
+            List<SvcRequest> l = new ArrayList( e.getValue().size());
+            for( int i: e.getValue()) {
+                l.add( reqs.get( i));
+            }
+            try {
+                int r[] = executeBatch( l, svcs.get( e.getKey()));
+                for( int j = 0; j < l.size(); ++j) {
+                    SvcResponse resp = new SvcResponse( 0, l.get( j));
+                    resp.put( "UpdateCount", r[ j]);
+                    resps[ e.getValue().get( j)] = resp;
+                }
+            } catch( Exception x) {
+                int rc = ( x instanceof SQLTimeoutException)? 
+                        SvcResponse.RES_CODE_TIMEOUT: SvcResponse.RES_CODE_EXCEPTION;
+                for( int i: e.getValue()) {
+                    resps[ i] = new SvcResponse( x.getMessage(), rc, x, reqs.get( i));
+                }
+            }
+        }
+        List<SvcMessage> l = new ArrayList( resps.length);
+        for( SvcMessage m: resps) {
+            l.add( m);
+        }
+        return l;
+    }
+
+    /** Batch of responses, nothing to do.
+     * @param resps SvcResponse messages
+     * @param cfg Module configuration
+     * @return The same SvcResponse list
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public List<SvcResponse> onResponses( List<SvcResponse> resps, Configuration cfg) throws Exception {
+        return resps;
+    }
+
     /** Get the status report.
      * @return Variable and value map
      */
@@ -146,6 +248,11 @@ public class JdbcService implements SimpleService {
     /** Release all the allocated resources. */
     @Override
     public void shutdown() {
+        if( svcs != null) {
+            for( String k: svcs.keySet()) {
+                PayloadSchema.unregister( k, this);
+            }
+        }
         try {
             conn.close();
         } catch( Exception x) { }
@@ -160,8 +267,8 @@ public class JdbcService implements SimpleService {
         return conn;
     }
     
-    private Map<String,List<Object>> execute( Map<String,List<Object>> input, ServiceInfo si) 
-            throws Exception {
+    private Map<String,List<Object>> execute( Map<String,List<Object>> input, ServiceInfo si,
+            long timeLeft) throws Exception {
         ++si.uses;
         PreparedStatement ps = null;
         ResultSet rs = null;
@@ -169,14 +276,8 @@ public class JdbcService implements SimpleService {
             long t0 = System.currentTimeMillis();
             log.trace( "sqlSentence=" + si.sqlSentence);
             ps = getConnection().prepareStatement( si.sqlSentence);
-            for( int i = 0; i < si.paramNames.length; ++i) {
-                Object o = null;
-                try {
-                    o = input.get( si.paramNames[ i]).get( 0);
-                } catch( Exception xx) { }
-                ps.setObject( i + 1, o);
-                log.trace( "arg" + (i + 1) + "=" + o);
-            }
+            setQueryTimeout( ps, timeLeft);
+            setParams( ps, input, si);
             if( ps.execute()) {
                 rs = ps.getResultSet();
             }
@@ -197,6 +298,9 @@ public class JdbcService implements SimpleService {
             }    
             si.time += ( int)(System.currentTimeMillis() - t0);
             return resp;
+        } catch( SQLTimeoutException x) {
+            ++si.errors;
+            throw x;
         } catch( Exception x) {
             ++si.errors;
             throw new Exception( "" + x + " url= " + url + " user=" + user, x);
@@ -206,10 +310,62 @@ public class JdbcService implements SimpleService {
         }
     }
     
+    /** Set the query time out in seconds, rounded up, from the time left. */
+    private static void setQueryTimeout( PreparedStatement ps, long timeLeft) throws Exception {
+        if( timeLeft != Long.MAX_VALUE) {
+            ps.setQueryTimeout( ( int)Math.min( Math.max( 1, ( timeLeft + 999) / 1000), Integer.MAX_VALUE));
+        }
+    }
+    
+    private int[] executeBatch( List<SvcRequest> reqs, ServiceInfo si) throws Exception {
+        si.uses += reqs.size();
+        PreparedStatement ps = null;
+        try {
+            long t0 = System.currentTimeMillis();
+            log.trace( "sqlSentence=" + si.sqlSentence + " batch=" + reqs.size());
+            ps = getConnection().prepareStatement( si.sqlSentence);
+            long timeLeft = Long.MAX_VALUE;
+            for( SvcRequest req: reqs) {
+                timeLeft = Math.min( timeLeft, req.getTimeLeft());
+            }
+            setQueryTimeout( ps, timeLeft);
+            for( SvcRequest req: reqs) {
+                setParams( ps, req.getPayload(), si);
+                ps.addBatch();
+            }
+            int r[] = ps.executeBatch();
+            si.time += ( int)(System.currentTimeMillis() - t0);
+            return r;
+        } catch( SQLTimeoutException x) {
+            si.errors += reqs.size();
+            throw x;
+        } catch( Exception x) {
+            si.errors += reqs.size();
+            throw new Exception( "" + x + " url= " + url + " user=" + user, x);
+        } finally {   // Allways release 
+            try { ps.close(); } catch( Exception xx) { }
+        }
+    }
+
+    private void setParams( PreparedStatement ps, Map<String,List<Object>> input, ServiceInfo si) 
+            throws Exception {
+        for( int i = 0; i < si.paramNames.length; ++i) {
+            Object o = null;
+            if( input instanceof Payload) {
+                o = ( (Payload)input).getFirst( si.paramNames[ i]);
+            } else try {
+                o = input.get( si.paramNames[ i]).get( 0);
+            } catch( Exception xx) { }
+            ps.setObject( i + 1, o);
+            log.trace( "arg" + (i + 1) + "=" + o);
+        }
+    }
+    
     private class ServiceInfo {
         String sqlSentence;
         String paramNames[];
         String rowName;
+        boolean batch = false;
         int uses = 0;
         int errors = 0;
         int time = 0;
@@ -2,6 +2,7 @@
 package uy.com.r2.svc.conn;
 
 import java.io.BufferedReader;
+import java.io.FilterOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.LinkedList;
@@ -9,22 +10,31 @@ import java.util.List;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URLDecoder;
-import java.util.ArrayList;
 import org.apache.log4j.Logger;
+import uy.com.r2.core.MetricsRegistry;
 import uy.com.r2.core.SvcCatalog;
+import uy.com.r2.core.TaskExecutor;
 import uy.com.r2.core.api.ConfigItemDescriptor;
 import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.MessagePool;
+import uy.com.r2.core.api.PayloadSchema;
+import uy.com.r2.core.api.SvcMessage;
 import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
 import uy.com.r2.core.api.StartableModule;
+import uy.com.r2.svc.tools.JsonBody;
 
 /**
  * Micro HTTP server, to process remote commands.
+ * A POST with a JSON body is read into the request fields, and a 
+ * {@link uy.com.r2.svc.tools.JsonBody} response is written as it is 
+ * generated, chunked to an HTTP/1.1 client.
  *
  * @author G.Camargo
  */
@@ -35,6 +45,7 @@ public class MicroHttpServer implements StartableModule {
     private int txNr = 0;
     private ListenerThread server = null;
     private String pipe = "";
+    private String metricsPath = "";
 
     /** Get the configuration descriptors of this module.
      * @return ConfigItemDescriptor List
@@ -49,8 +60,9 @@ public class MicroHttpServer implements StartableModule {
                 "Encoding", System.getProperty( "file.encoding")));
         l.add( new ConfigItemDescriptor( "Pipeline", ConfigItemDescriptor.STRING,
                 "System Pipeline name to route requests", ""));
-        l.add( new ConfigItemDescriptor( "MaxThreads", ConfigItemDescriptor.INTEGER,
-                "Maximum number of Threads used to serve current requests", "5"));
+        l.add( new ConfigItemDescriptor( "MetricsPath", ConfigItemDescriptor.STRING,
+                "Path to scrape the metrics in Prometheus text format, empty is none", "/metrics"));
+        TaskExecutor.addConfigDescriptors( l, TaskExecutor.PLATFORM, "5");
         l.add( new ConfigItemDescriptor( "TimeOut", ConfigItemDescriptor.INTEGER,
                 "Maximum time to dispatch a request", "5000"));
         return l;
@@ -67,12 +79,14 @@ public class MicroHttpServer implements StartableModule {
         }
         encoding = cfg.getString( "Encoding");
         pipe = cfg.getString( "Pipeline");
+        metricsPath = cfg.getString( "MetricsPath");
         // Shutdown if it was up
         if( server != null) {
             server.shutdown();
         }
         // Start the server to this port
-        server = new ListenerThread( cfg.getInt( "Port"), cfg.getInt( "MaxThreads"), 
+        server = new ListenerThread( cfg.getInt( "Port"), 
+                TaskExecutor.newTaskExecutor( "HttpWorker_" + cfg.getInt( "Port"), cfg), 
                 this, cfg.getInt( "TimeOut"));
         server.start();
         cfg.clearUpdated();
@@ -104,7 +118,9 @@ public class MicroHttpServer implements StartableModule {
         }
     }
 
-    private void handle( WorkerThread reqResp) throws Exception {
+    private void handle( Worker reqResp) throws Exception {
+        int mark = -1;
+        SvcResponse last = null;
         try {
             String thr = Thread.currentThread().getName();
             LOG.trace(thr + " *** handler " + reqResp.getRequestURI());
@@ -117,6 +133,10 @@ public class MicroHttpServer implements StartableModule {
                 reqResp.sendResponseHeaders( 404, 0);
                 return;
             }
+            if( !metricsPath.isEmpty() && metricsPath.equals( "/" + svc)) {
+                sendMetrics( reqResp);
+                return;
+            }
             String node = reqResp.getRemoteAddress().getHostName();
             Map<String,String> rqh = reqResp.getRequestHeaders();
             if( rqh.containsKey( "Node")) {
@@ -130,17 +150,33 @@ public class MicroHttpServer implements StartableModule {
             String query = reqResp.getRequestURI().getRawQuery();
             Map<String, List<Object>> params = null;
             try {
-                params = parseQueryString( query);
+                params = parseQueryString( svc, query);
             } catch( Exception ex) {
                 LOG.warn( thr + " error parsing query " + query + ", ignored", ex);
             }
+            String contentType = rqh.get( "Content-Type");
+            if( reqResp.hasRequestBody() && contentType != null && contentType.contains( "json")) {
+                if( params == null) {
+                    params = PayloadSchema.newPayload( svc, true, 8);
+                }
+                JsonBody.read( reqResp.getRequestBody(), params);  // Straight from the socket
+            }
             if( LOG.isTraceEnabled()) {
                 LOG.trace( thr + " *** svc=" + svc + " node=" + node + " ua=" + userAgent);
                 LOG.trace( thr + " *** params=" + params);
             }
             // Invoke service
-            SvcRequest req = new SvcRequest( node, ++txNr, 0, svc, params, 0);
-            SvcResponse resp = new SvcResponse( 1, req);
+            mark = MessagePool.enter();
+            SvcRequest req = MessagePool.newRequest( node, ++txNr, 0, svc, params, 0);
+            String timeLeft = rqh.get( SvcRequest.TIME_LEFT_HEADER);
+            if( timeLeft != null) {  // Deadline from the caller
+                try {
+                    req.setDeadline( req.getAbsoluteTime() + Long.parseLong( timeLeft.trim()));
+                } catch( NumberFormatException x) {
+                    LOG.debug( thr + " invalid " + SvcRequest.TIME_LEFT_HEADER + " " + timeLeft);
+                }
+            }
+            SvcResponse resp;
             try {
                 // Dispatch invocation
                 if( !pipe.isEmpty()) {
@@ -150,65 +186,95 @@ public class MicroHttpServer implements StartableModule {
                 }
             } catch( Exception ex) {
                 LOG.warn( thr + " dispatch error " + ex, ex);
+                resp = new SvcResponse( 1, req);
             }     
+            last = resp;
             //LOG.trace( thr + " *** to send " + resp.toString().substring( 40) + "...");
             // Prepare and send HTTP sr
-            StringBuilder sr = new StringBuilder();
+            Object body;
             if( userAgent != null && resp.get( "SerializedHtml") != null) {
                 LOG.trace( "**** HTML response");
                 reqResp.getResponseHeaders().put( "Content-Type", "text/html");
-                sr.append( "" + resp.get( "SerializedHtml"));
+                body = resp.get( "SerializedHtml");
             } else if( resp.get( "SerializedJson") != null) {
                 LOG.trace( "**** JSON response");
-                reqResp.getResponseHeaders().put( "Content-Typee", "application/json");
-                sr.append( "" + resp.get( "SerializedJson"));
+                reqResp.getResponseHeaders().put( "Content-Type", "application/json");
+                body = resp.get( "SerializedJson");
             } else {
                 LOG.trace( "**** TXT response");
-                sr.append( "" + resp.getPayload());
+                body = resp.getPayload();
             }
-            sr.append( "\n");
             reqResp.getResponseHeaders().put( "ResultCode", "" + resp.getResultCode());
-            reqResp.sendResponseHeaders( 200, sr.length());
-            LOG.trace( thr + " *** sr = " + sr);
+            Utf8Writer w = null;
+            try {
+                if( body instanceof JsonBody) {  // Unknown size, generated while it is sent
+                    reqResp.sendResponseHeaders( 200, -1);
+                    w = new Utf8Writer( reqResp.getResponseBody());
+                    ( (JsonBody)body).writeTo( w);
+                } else {
+                    String sr = "" + body;
+                    reqResp.sendResponseHeaders( 200, Utf8Writer.length( sr) + 1);
+                    w = new Utf8Writer( reqResp.getResponseBody());
+                    w.write( sr);
+                }
+                w.write( '\n');
+                w.close();
+            } finally {
+                if( w != null) {
+                    w.discard();   // The buffer back to the pool, on an error
+                }
+            }
             OutputStream os = reqResp.getResponseBody();
-            os.write( sr.toString().getBytes());
             os.flush();
             os.close();
-            LOG.trace( thr + " *** end response lrg=" + sr.length());
+            LOG.trace( thr + " *** end response lrg=" + w.getCount());
+            if( resp.getResultCode() >= 0) {   // Sent, all of them may be recycled
+                last = null;
+            }
         } catch( Exception x) {
             LOG.info( "" + x, x);
             throw new IOException( x);
+        } finally {
+            MessagePool.exit( mark, last);
         }    
     }
 
-    private static Map<String, List<Object>> parseQueryString( String queryString)throws Exception {
-        Map<String, List<Object>> parameters = new HashMap();
-        if( queryString != null && !queryString.isEmpty()) {
-            String pairs[] = queryString.split( "[&]");
-            for( String pair : pairs) {
-                String param[] = pair.split( "[=]");
-                String key = null;
-                String value = null;
-                if( param.length > 0) {
-                    key = URLDecoder.decode( param[ 0], encoding); 
-                }
-                if( param.length > 1) {
-                    value = URLDecoder.decode( param[ 1], encoding);
-                }
-                if( parameters.containsKey( key)) {
-                    List<Object> lst = parameters.get( key);
-                    lst.add( value);
-                } else {
-                    List<Object> lst = new ArrayList<Object>();
-                    lst.add( value);
-                    parameters.put( key, lst);
-                }
+    /** Scrape the metrics, w/o dispatching a request. */
+    private void sendMetrics( final Worker reqResp) throws Exception {
+        reqResp.getResponseHeaders().put( "Content-Type", MetricsRegistry.CONTENT_TYPE);
+        MetricsRegistry.getRegistry().scrape( new MetricsRegistry.Output() {
+            @Override
+            public void write( byte buf[], int len) throws IOException {
+                reqResp.sendResponseHeaders( 200, len);
+                reqResp.getResponseBody().write( buf, 0, len);
             }
+        });
+        reqResp.getResponseBody().flush();
+    }
+
+    private static Map<String, List<Object>> parseQueryString( String svc, String queryString)
+            throws Exception {
+        if( queryString == null || queryString.isEmpty()) {
+            return PayloadSchema.newPayload( svc, true, 8);
+        }
+        String pairs[] = queryString.split( "[&]");
+        Map<String, List<Object>> parameters = PayloadSchema.newPayload( svc, true, pairs.length);
+        for( String pair : pairs) {
+            String param[] = pair.split( "[=]");
+            String key = null;
+            String value = null;
+            if( param.length > 0) {
+                key = URLDecoder.decode( param[ 0], encoding); 
+            }
+            if( param.length > 1) {
+                value = URLDecoder.decode( param[ 1], encoding);
+            }
+            SvcMessage.addToMap( parameters, key, value);
         }
         return parameters;
     }
     
-    private class WorkerThread extends Thread {
+    private class Worker implements Runnable {
         private final Socket soc;
         private final ListenerThread listener;
         private final MicroHttpServer handler;
@@ -217,24 +283,24 @@ public class MicroHttpServer implements StartableModule {
         private URI uri;
         private Map<String, String> reqHeaders = new HashMap();
         private OutputStream outStream = null;
+        private BufferedReader reader = null;
+        private boolean post = false;
+        private boolean http11 = false;
         private Map<String, String> respHeaders = new HashMap();
         
-        private WorkerThread( int port, Socket soc, ListenerThread listener, 
+        private Worker( Socket soc, ListenerThread listener, 
                 MicroHttpServer handler, int timeout) {
             this.soc = soc;
             this.listener = listener;
             this.handler = handler;
             this.timeout = timeout;
-            setName( "HttpWorker_" + port + "_" + getId());
-            LOG.trace( "worker " + getName() +" starting");
         }
         
         @Override
         public void run() {
-            BufferedReader reader = null;
             long tmp = System.currentTimeMillis();
             try {
-                reader = new BufferedReader( new InputStreamReader( soc.getInputStream()));
+                reader = new BufferedReader( new InputStreamReader( soc.getInputStream(), encoding));
                 outStream = soc.getOutputStream();
                 
                 // Read HTTP headers and parse out the route.
@@ -247,6 +313,8 @@ public class MicroHttpServer implements StartableModule {
                         int start = line.indexOf( '/');
                         int end = line.indexOf( ' ', start);
                         route = line.substring( start, end);
+                        post = line.startsWith( "POST");
+                        http11 = line.endsWith( "HTTP/1.1");
                     } else if( line.contains( ": ")) {
                         int sov = line.indexOf( ": ") ;
                         reqHeaders.put( line.substring( 0, sov), line.substring( sov + 2));
@@ -300,12 +368,32 @@ public class MicroHttpServer implements StartableModule {
             return outStream;
         }
 
-        private void sendResponseHeaders( int httpRetCode, int len) throws Exception {
-            if( !respHeaders.containsKey( "Content-Length")) {
-                respHeaders.put( "Content-Length", "" + len);
+        private boolean hasRequestBody() {
+            String cl = reqHeaders.get( "Content-Length");
+            return post && cl != null && !cl.trim().equals( "0");
+        }
+
+        private Reader getRequestBody() {
+            return reader;
+        }
+
+        /** Send the headers.
+         * @param httpRetCode HTTP result code
+         * @param len Content length, or -1 if it is unknown 
+         */
+        private void sendResponseHeaders( int httpRetCode, long len) throws IOException {
+            String version = "HTTP/1.0 ";
+            if( len >= 0) {
+                if( !respHeaders.containsKey( "Content-Length")) {
+                    respHeaders.put( "Content-Length", "" + len);
+                }
+            } else if( http11) {  // Chunked, else ended when the connection is closed
+                version = "HTTP/1.1 ";
+                respHeaders.put( "Transfer-Encoding", "chunked");
+                respHeaders.put( "Connection", "close");
             }
             String line;
-            line = "HTTP/1.0 " + httpRetCode + " " + ( ( httpRetCode == 200)? "OK": "Error") + "\r\n";
+            line = version + httpRetCode + " " + ( ( httpRetCode == 200)? "OK": "Error") + "\r\n";
             outStream.write( line.getBytes( encoding));
             for( String h: respHeaders.keySet()) {
                 String v = respHeaders.get( h);
@@ -314,46 +402,82 @@ public class MicroHttpServer implements StartableModule {
             }
             outStream.write( '\r');
             outStream.write( '\n');
+            if( len < 0 && http11) {
+                outStream = new ChunkedOutputStream( outStream);
+            }
+        }
+
+    }
+
+    /** HTTP/1.1 chunked body, the last chunk is sent when it is closed. */
+    private static class ChunkedOutputStream extends FilterOutputStream {
+        private boolean closed = false;
+
+        private ChunkedOutputStream( OutputStream os) {
+            super( os);
+        }
+
+        @Override
+        public void write( int b) throws IOException {
+            write( new byte[] { ( byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write( byte b[], int off, int len) throws IOException {
+            if( len == 0) {
+                return;
+            }
+            out.write( ( Integer.toHexString( len) + "\r\n").getBytes( "US-ASCII"));
+            out.write( b, off, len);
+            out.write( '\r');
+            out.write( '\n');
         }
 
+        @Override
+        public void close() throws IOException {
+            if( closed) {
+                return;
+            }
+            closed = true;
+            out.write( "0\r\n\r\n".getBytes( "US-ASCII"));
+            out.flush();
+            out.close();
+        }
     }
 
     class ListenerThread extends Thread {
         private final Object sync = new Object(); 
-        private final int port;
-        private final int maxThreads;
+        private final TaskExecutor executor;
         private final int timeout;
         private final MicroHttpServer handler;
         private ServerSocket serSoc;
-        private int workers = 0;
-        private int maxWorkers = 0;
         private int requests = 0;
         private int errors = 0;
 
-        private ListenerThread( int port, int maxThreads, MicroHttpServer handler, 
+        private ListenerThread( int port, TaskExecutor executor, MicroHttpServer handler, 
                 int timeout) throws Exception {
-            this.port = port;
             this.serSoc = new ServerSocket( port);
-            this.maxThreads = maxThreads;
+            this.executor = executor;
             this.handler = handler;
             this.timeout = timeout;
             setName( "HttpListener_" + port);
         }
 
-        private void releaseInfo( WorkerThread wrkr, boolean error) {
-            synchronized( sync) {
-                --workers;
-                if( error) {
+        private void releaseInfo( Worker wrkr, boolean error) {
+            if( error) {
+                synchronized( sync) {
                     ++errors;
                 }
             }
-            LOG.trace( "relese " + wrkr.getName() + " error=" + error);
+            LOG.trace( "relese " + Thread.currentThread().getName() + " error=" + error);
         }
         
         private Map<String, Object> getStatusVars() {
             Map<String, Object> map = new HashMap();
-            map.put( "Workers", "" + workers);
-            map.put( "MaxWorkers", "" + maxWorkers);
+            Map<String, Object> em = executor.getStatusVars();
+            map.putAll( em);
+            map.put( "Workers", "" + em.get( "ActiveTasks"));
+            map.put( "MaxWorkers", "" + em.get( "TopActiveTasks"));
             map.put( "Requests", "" + requests);
             map.put( "RequestErrors", "" + errors);
             return map; 
@@ -364,6 +488,7 @@ public class MicroHttpServer implements StartableModule {
                 serSoc.close();
                 serSoc = null;
             } catch( IOException ex ) { }
+            executor.shutdown();
         }
 
         @Override
@@ -371,21 +496,15 @@ public class MicroHttpServer implements StartableModule {
             while( serSoc != null) {
                 try {
                     Socket s = serSoc.accept();
-                    boolean overloaded;
                     synchronized( sync) {
-                        overloaded = ( workers >= maxThreads);
                         ++requests;
-                        if( !overloaded) {
-                            ++workers;
-                            maxWorkers = ( workers > maxWorkers)? workers: maxWorkers; 
-                        }
                     }
-                    if( overloaded) {
+                    if( !executor.execute( new Worker( s, this, handler, timeout))) {
                         s.close();
-                        ++errors;
-                        throw new Exception( "Request overload " + maxThreads);
-                    } else {
-                        new WorkerThread( port, s, this, handler, timeout).start();
+                        synchronized( sync) {
+                            ++errors;
+                        }
+                        throw new Exception( "Request overload " + executor.getStatusVars().get( "MaxThreads"));
                     }
                 } catch( Exception ex) {
                     if( serSoc != null) {
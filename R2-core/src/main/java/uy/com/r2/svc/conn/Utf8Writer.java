@@ -0,0 +1,178 @@
+/* Utf8Writer.java */
+package uy.com.r2.svc.conn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Writer of UTF-8 text straight to an output stream.
+ * The text is encoded on a buffer taken from a pool and given back when 
+ * the writer is closed, so a response is sent w/o building a String and 
+ * its bytes. Closing it does not close the stream.
+ * @author G.Camargo
+ */
+public class Utf8Writer extends Writer {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED = 64;
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private final OutputStream os;
+    private byte buf[];
+    private int len = 0;
+    private long count = 0;
+    private char high = 0;   // Surrogate waiting the next char
+
+    /** Constructor.
+     * @param os Output stream
+     */
+    public Utf8Writer( OutputStream os) {
+        this.os = os;
+        buf = POOL.poll();
+        if( buf == null) {
+            buf = new byte[ BUFFER_SIZE];
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /** Get the number of UTF-8 bytes of a text.
+     * @param s Text
+     * @return Bytes count
+     */
+    public static long length( CharSequence s) {
+        long n = 0;
+        for( int i = 0; i < s.length(); ++i) {
+            char c = s.charAt( i);
+            if( c < 0x80) {
+                ++n;
+            } else if( c < 0x800) {
+                n += 2;
+            } else if( Character.isHighSurrogate( c) && i + 1 < s.length() 
+                    && Character.isLowSurrogate( s.charAt( i + 1))) {
+                n += 4;
+                ++i;
+            } else if( Character.isSurrogate( c)) {
+                ++n;   // Unpaired, written as '?'
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    /** Get the number of bytes written.
+     * @return Bytes count
+     */
+    public long getCount() {
+        return count + len;
+    }
+
+    @Override
+    public void write( int c) throws IOException {
+        put( ( char)c);
+    }
+
+    @Override
+    public void write( char cb[], int off, int n) throws IOException {
+        for( int i = off; i < off + n; ++i) {
+            put( cb[ i]);
+        }
+    }
+
+    @Override
+    public void write( String s, int off, int n) throws IOException {
+        for( int i = off; i < off + n; ++i) {
+            put( s.charAt( i));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        os.flush();
+    }
+
+    /** Flush and give back the buffer. */
+    @Override
+    public void close() throws IOException {
+        if( buf == null) {
+            return;
+        }
+        if( high != 0) {
+            high = 0;
+            put( '?');
+        }
+        try {
+            flush();
+        } finally {
+            giveBack();
+        }
+    }
+
+    /** Give back the buffer w/o writing what is left, after an error.
+     * It does nothing when it is already closed.
+     */
+    public void discard() {
+        if( buf == null) {
+            return;
+        }
+        len = 0;
+        high = 0;
+        giveBack();
+    }
+
+    private void giveBack() {
+        if( pooled.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer( buf);
+        } else {
+            pooled.decrementAndGet();
+        }
+        buf = null;
+    }
+
+    private void put( char c) throws IOException {
+        if( len + 4 > buf.length) {
+            drain();
+        }
+        if( high != 0) {
+            char h = high;
+            high = 0;
+            if( Character.isLowSurrogate( c)) {
+                int cp = Character.toCodePoint( h, c);
+                buf[ len++] = ( byte)( 0xF0 | ( cp >> 18));
+                buf[ len++] = ( byte)( 0x80 | ( ( cp >> 12) & 0x3F));
+                buf[ len++] = ( byte)( 0x80 | ( ( cp >> 6) & 0x3F));
+                buf[ len++] = ( byte)( 0x80 | ( cp & 0x3F));
+                return;
+            }
+            buf[ len++] = '?';   // Unpaired surrogate
+            put( c);
+            return;
+        }
+        if( c < 0x80) {
+            buf[ len++] = ( byte)c;
+        } else if( c < 0x800) {
+            buf[ len++] = ( byte)( 0xC0 | ( c >> 6));
+            buf[ len++] = ( byte)( 0x80 | ( c & 0x3F));
+        } else if( Character.isHighSurrogate( c)) {
+            high = c;
+        } else if( Character.isLowSurrogate( c)) {
+            buf[ len++] = '?';
+        } else {
+            buf[ len++] = ( byte)( 0xE0 | ( c >> 12));
+            buf[ len++] = ( byte)( 0x80 | ( ( c >> 6) & 0x3F));
+            buf[ len++] = ( byte)( 0x80 | ( c & 0x3F));
+        }
+    }
+
+    private void drain() throws IOException {
+        if( len > 0) {
+            os.write( buf, 0, len);
+            count += len;
+            len = 0;
+        }
+    }
+
+}
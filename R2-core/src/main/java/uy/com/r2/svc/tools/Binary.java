@@ -0,0 +1,225 @@
+/* Binary.java */
+package uy.com.r2.svc.tools;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import uy.com.r2.core.api.AsyncService;
+import uy.com.r2.core.api.BatchService;
+import uy.com.r2.core.api.ConfigItemDescriptor;
+import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.SvcMessage;
+import uy.com.r2.core.api.SvcRequest;
+import uy.com.r2.core.api.SvcResponse;
+
+/** Serialize to and De-serialize from the compact binary format.
+ * It works as the Json module, on the "SerializedBinary" field with the 
+ * bytes of the {@link uy.com.r2.svc.tools.BinaryCodec} format, where the
+ * response has its result code. 
+ * A batch is processed in bulk, reusing the same buffer.
+ * @author G.Camargo
+ */
+public class Binary implements AsyncService, BatchService {
+    public static final String SERIALIZED_BINARY = "SerializedBinary";
+    private static final Logger LOG = Logger.getLogger( Binary.class);
+    private boolean serverMode = true;
+    private boolean procRequest = true;
+    private boolean procResponse = true;
+    // Statistics
+    private long decodedBytes = 0;
+    private long encodedBytes = 0;
+    private int maxLength = 0;
+    private String maxLengthId = "";
+     
+    /** Get the configuration descriptors of this module.
+     * @return ConfigItemDescriptor List
+     */
+    @Override
+    public List<ConfigItemDescriptor> getConfigDescriptors() {
+        LinkedList<ConfigItemDescriptor> l = new LinkedList<ConfigItemDescriptor>();
+        l.add( new ConfigItemDescriptor( "ServerMode", ConfigItemDescriptor.BOOLEAN,
+                "Decode the request and encode the resp., or do it as client", "true"));
+        l.add( new ConfigItemDescriptor( "ProcessRequest", ConfigItemDescriptor.BOOLEAN,
+                "Process the Requests (default true)", "true"));
+        l.add( new ConfigItemDescriptor( "ProcessResponse", ConfigItemDescriptor.BOOLEAN,
+                "Process the Responses (default true)", "true"));
+        return l;
+    }
+
+    /** Inject configuration to this module, (re)start, and reset statistics.
+     * @param cfg Variable and value map
+     * @throws Exception Unexpected error
+     */
+    private void setConfiguration( Configuration cfg) throws Exception {
+        if( !cfg.isUpdated()) {
+            return;
+        }
+        serverMode = cfg.getBoolean( "ServerMode");
+        procRequest = cfg.getBoolean( "ProcessRequest");
+        procResponse = cfg.getBoolean( "ProcessResponse");
+        // reset statistics
+        decodedBytes = 0;
+        encodedBytes = 0;
+        maxLength = 0;
+        maxLengthId = "";
+        cfg.clearUpdated();
+    }
+
+    /** Process a service call.
+     * If something goes wrong it should throw a Exception to clearly set 
+     * what module originates the failure.
+     * @param cfg Module configuration
+     * @param req Invocation message from caller
+     * @return SvcRequest to dispatch to the next module or SvcResponse to caller
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public SvcMessage onRequest( SvcRequest req, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        return processRequest( req, new BinaryCodec.Encoder( 256));
+    }
+
+    private SvcMessage processRequest( SvcRequest req, BinaryCodec.Encoder enc) throws Exception {
+        if( !procRequest) {
+            return req;
+        }
+        if( serverMode) {  // Decode the serialized field into the payload
+            ByteBuffer b = getBytes( req, req.getRequestId());
+            new BinaryCodec.Decoder( b).readPayload( req.getPayload());
+        } else {  // Put a serialized field with the payload
+            enc.reset();
+            enc.writePayload( req.getPayload());
+            req.put( SERIALIZED_BINARY, encoded( enc, req.getRequestId()));
+        }
+        return req;
+    }
+
+    /** Process a response.
+     * If something goes wrong it should throw a Exception to clearly set 
+     * what module originates the failure.
+     * @param res SvcResponse message from next module
+     * @param cfg Module configuration
+     * @return SvcResponse message to caller
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public SvcResponse onResponse( SvcResponse res, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        return processResponse( res, new BinaryCodec.Encoder( 256));
+    }
+
+    private SvcResponse processResponse( SvcResponse res, BinaryCodec.Encoder enc) throws Exception {
+        if( !procResponse) {
+            return res;
+        }
+        if( !serverMode) {  // Decode the serialized field, with its result code
+            ByteBuffer b = getBytes( res, res.getRequestId());
+            SvcResponse r = new BinaryCodec.Decoder( b).readResponse( res.getRequest());
+            if( res.getResultCode() != 0) {
+                r = new SvcResponse( r.getPayload(), res.getResultCode(), res.getRequest());
+            }
+            res = r;
+        } else {  // Put a serialized field with the payload and result code
+            enc.reset();
+            enc.writeResponse( res);
+            res.put( SERIALIZED_BINARY, encoded( enc, res.getRequestId()));
+        }
+        return res;
+    }
+
+    /** Process a batch of service calls.
+     * A failed one gets an error response, and the others go on.
+     * @param reqs Invocation messages from caller
+     * @param cfg Module configuration
+     * @return SvcRequest or SvcResponse list
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public List<SvcMessage> onRequests( List<SvcRequest> reqs, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        BinaryCodec.Encoder enc = new BinaryCodec.Encoder( 4096);
+        List<SvcMessage> l = new ArrayList( reqs.size());
+        for( SvcRequest req: reqs) {
+            try {
+                l.add( processRequest( req, enc));
+            } catch( Exception x) {
+                l.add( new SvcResponse( x.getMessage(), SvcResponse.RES_CODE_EXCEPTION, x, req));
+            }
+        }
+        return l;
+    }
+
+    /** Process a batch of responses.
+     * @param resps SvcResponse messages from next module
+     * @param cfg Module configuration
+     * @return SvcResponse list
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public List<SvcResponse> onResponses( List<SvcResponse> resps, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        BinaryCodec.Encoder enc = new BinaryCodec.Encoder( 4096);
+        List<SvcResponse> l = new ArrayList( resps.size());
+        for( SvcResponse res: resps) {
+            try {
+                l.add( processResponse( res, enc));
+            } catch( Exception x) {
+                l.add( new SvcResponse( x.getMessage(), SvcResponse.RES_CODE_EXCEPTION, x, res.getRequest()));
+            }
+        }
+        return l;
+    }
+
+    /** Get the status report.
+     * @return Variable and value map
+     */
+    @Override
+    public Map<String, Object> getStatusVars() {
+        Map<String,Object> m = new HashMap();
+        m.put( "DecodedBytes", decodedBytes);
+        m.put( "EncodedBytes", encodedBytes);
+        m.put( "MaxLength", maxLength);
+        m.put( "MaxLengthId", maxLengthId);
+        return m;
+    }
+
+    /** Release all the allocated resources. */
+    @Override
+    public void shutdown() {
+    }
+
+    private byte[] encoded( BinaryCodec.Encoder enc, String id) {
+        byte b[] = enc.toByteArray();
+        LOG.trace( "encoded " + b.length);
+        encodedBytes += b.length;
+        if( b.length > maxLength) {
+            maxLength = b.length;
+            maxLengthId = id;
+        }
+        return b;
+    }
+
+    private ByteBuffer getBytes( SvcMessage m, String id) throws Exception {
+        Object o = m.get( SERIALIZED_BINARY);
+        ByteBuffer b;
+        if( o instanceof byte[]) {
+            b = ByteBuffer.wrap( ( byte[])o);
+        } else if( o instanceof ByteBuffer) {
+            b = ( (ByteBuffer)o).duplicate();
+        } else {
+            throw new Exception( "Field " + SERIALIZED_BINARY + " has not binary data: " + o);
+        }
+        LOG.trace( "decode " + b.remaining());
+        decodedBytes += b.remaining();
+        if( b.remaining() > maxLength) {
+            maxLength = b.remaining();
+            maxLengthId = id;
+        }
+        return b;
+    }
+
+}
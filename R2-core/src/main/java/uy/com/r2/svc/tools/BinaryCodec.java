@@ -0,0 +1,659 @@
+/* BinaryCodec.java */
+package uy.com.r2.svc.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import uy.com.r2.core.api.Payload;
+import uy.com.r2.core.api.PayloadSchema;
+import uy.com.r2.core.api.SvcRequest;
+import uy.com.r2.core.api.SvcResponse;
+
+/** Compact binary format of the messages.
+ * A message is a kind byte, its header and the payload: the fields count
+ * and each field name and values. The counts and lengths are varints, the 
+ * integers are zig-zag varints, and the values are typed by a tag byte. <br>
+ * The field names are kept on a string table of the stream: the first time
+ * a name goes as text and then as its index, so the encoder and the decoder 
+ * of a stream must be used in the same order, or reset between messages. <br>
+ * The encoder and the decoder stream over a ByteBuffer, flushed to or filled 
+ * from a channel, or growing in memory when there is not one. <br>
+ * The other Serializable values go as Java serialized objects, but the 
+ * decoder refuses them unless it is set to read trusted data, as its own 
+ * encoded data stored in memory: never from the network. <br>
+ * The messages read from a channel are limited to a maximum size, checked
+ * before the buffer grows, as their lengths are not trusted.
+ * @author G.Camargo
+ */
+public class BinaryCodec {
+    /** Message kinds */
+    public static final byte PAYLOAD = 'P';
+    public static final byte REQUEST = 'Q';
+    public static final byte RESPONSE = 'S';
+    private static final int MAX_NAMES = 1024;
+    /** Default maximum size of a message read from a channel */
+    public static final int MAX_SIZE = 16 << 20;
+    // Value tags
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte TRUE = 5;
+    private static final byte FALSE = 6;
+    private static final byte DATE = 7;
+    private static final byte BYTES = 8;
+    private static final byte LIST = 9;
+    private static final byte MAP = 10;
+    private static final byte OBJECT = 11;
+
+    private BinaryCodec() {
+    }
+
+    /** Encode a payload alone.
+     * @param data Payload
+     * @return Bytes
+     * @throws IOException Not serializable value
+     */
+    public static byte[] encode( Map<String,List<Object>> data) throws IOException {
+        return new Encoder( 256).writePayload( data).toByteArray();
+    }
+
+    /** Decode a payload alone.
+     * @param data Bytes
+     * @return Payload
+     * @throws IOException Invalid or truncated data
+     */
+    public static Map<String,List<Object>> decode( byte data[]) throws IOException {
+        return new Decoder( ByteBuffer.wrap( data)).readPayload( null);
+    }
+
+    /** Streaming encoder. */
+    public static class Encoder {
+        private final WritableByteChannel channel;
+        private final Map<String,Integer> names = new HashMap();
+        private ByteBuffer buf;
+        private long written = 0;
+
+        /** Encoder to memory, the buffer grows as needed.
+         * @param size Initial size
+         */
+        public Encoder( int size) {
+            this( ByteBuffer.allocate( Math.max( size, 16)), null);
+        }
+
+        /** Encoder to a channel.
+         * @param buf Buffer, it is flushed to the channel when it is full
+         * @param channel Channel or null to grow the buffer
+         */
+        public Encoder( ByteBuffer buf, WritableByteChannel channel) {
+            this.buf = buf;
+            this.channel = channel;
+        }
+
+        /** Clear the buffer and the string table, to start a new stream. */
+        public void reset() {
+            buf.clear();
+            names.clear();
+            written = 0;
+        }
+
+        /** Get the number of bytes encoded since the reset.
+         * @return Bytes count
+         */
+        public long getWritten() {
+            return written + buf.position();
+        }
+
+        /** Get the buffer, ready to be read.
+         * @return ByteBuffer view of the data not flushed
+         */
+        public ByteBuffer getBuffer() {
+            ByteBuffer b = buf.duplicate();
+            b.flip();
+            return b;
+        }
+
+        /** Get a copy of the data not flushed.
+         * @return Bytes
+         */
+        public byte[] toByteArray() {
+            ByteBuffer b = getBuffer();
+            byte r[] = new byte[ b.remaining()];
+            b.get( r);
+            return r;
+        }
+
+        /** Write the buffered data to the channel.
+         * @throws IOException Channel error
+         */
+        public void flush() throws IOException {
+            if( channel == null) {
+                return;
+            }
+            buf.flip();
+            while( buf.hasRemaining()) {
+                written += channel.write( buf);
+            }
+            buf.clear();
+        }
+
+        /** Write a payload alone.
+         * @param data Payload
+         * @return This encoder
+         * @throws IOException Not serializable value or channel error
+         */
+        public Encoder writePayload( Map<String,List<Object>> data) throws IOException {
+            ensure( 1);
+            buf.put( PAYLOAD);
+            putPayload( data);
+            return this;
+        }
+
+        /** Write a request, with its header.
+         * The deadline goes as the time left, as the HTTP header does.
+         * @param req Request
+         * @return This encoder
+         * @throws IOException Not serializable value or channel error
+         */
+        public Encoder writeRequest( SvcRequest req) throws IOException {
+            ensure( 1);
+            buf.put( REQUEST);
+            putString( req.getClientNode());
+            putVarLong( req.getNodeRqNr() & 0xFFFFFFFFL);
+            putVarLong( req.getSessionNr() & 0xFFFFFFFFL);
+            putName( req.getServiceName());
+            putVarLong( zigZag( req.getTimeOut()));
+            long left = req.getTimeLeft();
+            putVarLong( ( left == Long.MAX_VALUE)? 0: Math.max( 1, left));
+            ensure( 8);
+            buf.putDouble( req.getAmount());
+            putString( req.getCurrency());
+            putPayload( req.getPayload());
+            return this;
+        }
+
+        /** Write a response, its request goes apart.
+         * @param res Response
+         * @return This encoder
+         * @throws IOException Not serializable value or channel error
+         */
+        public Encoder writeResponse( SvcResponse res) throws IOException {
+            ensure( 1);
+            buf.put( RESPONSE);
+            putVarLong( zigZag( res.getResultCode()));
+            putPayload( res.getPayload());
+            return this;
+        }
+
+        private void putPayload( Map<String,List<Object>> data) throws IOException {
+            if( data == null) {
+                putVarLong( 0);
+                return;
+            }
+            putVarLong( data.size());
+            Set<Map.Entry<String,List<Object>>> es = ( data instanceof Payload)? 
+                    ( (Payload)data).getEntries(): data.entrySet();   // Not copied to read
+            for( Map.Entry<String,List<Object>> e: es) {
+                putName( e.getKey());
+                List<Object> l = e.getValue();
+                if( l == null) {
+                    putVarLong( 0);
+                    continue;
+                }
+                putVarLong( l.size());
+                for( Object o: l) {
+                    putValue( o);
+                }
+            }
+        }
+
+        private void putName( String name) throws IOException {
+            Integer i = names.get( name);
+            if( i != null) {
+                putVarLong( i + 1);
+                return;
+            }
+            putVarLong( 0);
+            putString( name);
+            if( names.size() < MAX_NAMES) {
+                names.put( name, names.size());
+            }
+        }
+
+        private void putValue( Object o) throws IOException {
+            ensure( 1);
+            if( o == null) {
+                buf.put( NULL);
+            } else if( o instanceof String) {
+                buf.put( STRING);
+                putString( ( String)o);
+            } else if( o instanceof Integer || o instanceof Short || o instanceof Byte) {
+                buf.put( INTEGER);
+                putVarLong( zigZag( ( (Number)o).longValue()));
+            } else if( o instanceof Long) {
+                buf.put( LONG);
+                putVarLong( zigZag( ( Long)o));
+            } else if( o instanceof Double || o instanceof Float) {
+                buf.put( DOUBLE);
+                ensure( 8);
+                buf.putDouble( ( (Number)o).doubleValue());
+            } else if( o instanceof Boolean) {
+                buf.put( ( Boolean)o? TRUE: FALSE);
+            } else if( o instanceof Date) {
+                buf.put( DATE);
+                putVarLong( zigZag( ( (Date)o).getTime()));
+            } else if( o instanceof byte[]) {
+                buf.put( BYTES);
+                putBytes( ( byte[])o);
+            } else if( o instanceof List) {
+                buf.put( LIST);
+                List<Object> l = ( List<Object>)o;
+                putVarLong( l.size());
+                for( Object v: l) {
+                    putValue( v);
+                }
+            } else if( o instanceof Map) {
+                buf.put( MAP);
+                Map<Object,Object> m = ( Map<Object,Object>)o;
+                putVarLong( m.size());
+                for( Map.Entry<Object,Object> e: m.entrySet()) {
+                    putName( "" + e.getKey());
+                    putValue( e.getValue());
+                }
+            } else if( o instanceof Serializable) {
+                buf.put( OBJECT);
+                ByteArrayOutputStream bo = new ByteArrayOutputStream();
+                ObjectOutputStream os = new ObjectOutputStream( bo);
+                os.writeObject( o);
+                os.close();
+                putBytes( bo.toByteArray());
+            } else {
+                buf.put( STRING);
+                putString( o.toString());
+            }
+        }
+
+        private void putString( String s) throws IOException {
+            if( s == null) {
+                putVarLong( 0);
+                return;
+            }
+            int n = s.length();
+            ensure( n + 10);
+            int p = buf.position();
+            putVarLong( n + 1);
+            for( int i = 0; i < n; ++i) {  // ASCII fast path
+                char c = s.charAt( i);
+                if( c >= 0x80) {
+                    buf.position( p);
+                    byte b[] = s.getBytes( StandardCharsets.UTF_8);
+                    putVarLong( b.length + 1);
+                    ensure( b.length);
+                    buf.put( b);
+                    return;
+                }
+                buf.put( ( byte)c);
+            }
+        }
+
+        private void putBytes( byte b[]) throws IOException {
+            putVarLong( b.length);
+            ensure( b.length);
+            buf.put( b);
+        }
+
+        private void putVarLong( long v) throws IOException {
+            ensure( 10);
+            while( ( v & ~0x7FL) != 0) {
+                buf.put( ( byte)( ( v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            buf.put( ( byte)v);
+        }
+
+        /** Make room for n bytes, flushing or growing the buffer. */
+        private void ensure( int n) throws IOException {
+            if( buf.remaining() >= n) {
+                return;
+            }
+            flush();
+            if( buf.remaining() < n) {
+                ByteBuffer b = buf.isDirect()? 
+                        ByteBuffer.allocateDirect( Math.max( buf.capacity() * 2, buf.position() + n)):
+                        ByteBuffer.allocate( Math.max( buf.capacity() * 2, buf.position() + n));
+                buf.flip();
+                b.put( buf);
+                buf = b;
+            }
+        }
+    }
+
+    /** Streaming decoder. */
+    public static class Decoder {
+        private final ReadableByteChannel channel;
+        private final List<String> names = new ArrayList();
+        private ByteBuffer buf;
+        private long read = 0;
+        private long start = 0;     // Where the message begins
+        private int maxSize = MAX_SIZE;
+        private boolean objects = false;
+
+        /** Decoder of the data on a buffer.
+         * @param buf Buffer ready to be read
+         */
+        public Decoder( ByteBuffer buf) {
+            this.buf = buf;
+            this.channel = null;
+        }
+
+        /** Decoder of a channel.
+         * @param buf Empty buffer, filled from the channel
+         * @param channel Channel
+         */
+        public Decoder( ByteBuffer buf, ReadableByteChannel channel) {
+            buf.clear();
+            buf.limit( 0);
+            this.buf = buf;
+            this.channel = channel;
+        }
+
+        /** Clear the string table, to start a new stream. */
+        public void reset() {
+            names.clear();
+        }
+
+        /** Allow the Java serialized objects, only for trusted data.
+         * @param objects true to deserialize them, false by default
+         * @return This decoder
+         */
+        public Decoder setObjects( boolean objects) {
+            this.objects = objects;
+            return this;
+        }
+
+        /** Set the maximum size of a message read from the channel.
+         * @param maxSize Bytes
+         * @return This decoder
+         */
+        public Decoder setMaxSize( int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /** Get the number of bytes decoded.
+         * @return Bytes count
+         */
+        public long getRead() {
+            return read + buf.position();
+        }
+
+        /** Is there more data to decode.
+         * @return true if it has more data
+         * @throws IOException Channel error
+         */
+        public boolean hasMore() throws IOException {
+            return buf.hasRemaining() || ( channel != null && fill( 1));
+        }
+
+        /** Read a payload alone.
+         * @param target Payload to put the fields or null to create it
+         * @return Payload
+         * @throws IOException Invalid or truncated data
+         */
+        public Map<String,List<Object>> readPayload( Map<String,List<Object>> target) 
+                throws IOException {
+            kind( PAYLOAD);
+            if( target == null) {
+                target = new Payload();
+            }
+            getPayload( target);
+            return target;
+        }
+
+        /** Read a request.
+         * Its deadline is set from the time left when it was written.
+         * @return Request
+         * @throws IOException Invalid or truncated data
+         */
+        public SvcRequest readRequest() throws IOException {
+            kind( REQUEST);
+            String clientNode = getString();
+            int nodeRqNr = ( int)getVarLong();
+            int sessionNr = ( int)getVarLong();
+            String service = getName();
+            int timeOut = ( int)unZigZag( getVarLong());
+            long left = getVarLong();
+            require( 8);
+            double amount = buf.getDouble();
+            String currency = getString();
+            Payload p = PayloadSchema.newPayload( service, true, 8);
+            getPayload( p);
+            SvcRequest req = new SvcRequest( clientNode, nodeRqNr, sessionNr, service, p, amount, currency, timeOut);
+            if( left > 0) {  // Deadline from the caller
+                req.setDeadline( req.getAbsoluteTime() + left);
+            }
+            return req;
+        }
+
+        /** Read a response.
+         * @param req Request of the response
+         * @return Response
+         * @throws IOException Invalid or truncated data
+         */
+        public SvcResponse readResponse( SvcRequest req) throws IOException {
+            kind( RESPONSE);
+            int rc = ( int)unZigZag( getVarLong());
+            SvcResponse res = new SvcResponse( rc, req);
+            getPayload( res.getPayload());
+            return res;
+        }
+
+        private void kind( byte k) throws IOException {
+            start = getRead();
+            require( 1);
+            byte b = buf.get();
+            if( b != k) {
+                throw new IOException( "Expected message kind " + ( char)k + " and got " + b);
+            }
+        }
+
+        private void getPayload( Map<String,List<Object>> target) throws IOException {
+            int n = getCount();
+            for( int i = 0; i < n; ++i) {
+                String k = getName();
+                int c = getCount();
+                Payload.Values l = new Payload.Values();
+                for( int j = 0; j < c; ++j) {
+                    l.add( getValue());
+                }
+                target.put( k, l);
+            }
+        }
+
+        private String getName() throws IOException {
+            int i = getLength();
+            if( i > 0) {
+                if( i > names.size()) {
+                    throw new IOException( "Invalid field name index " + i);
+                }
+                return names.get( i - 1);
+            }
+            String s = getString();
+            if( names.size() < MAX_NAMES) {
+                names.add( s);
+            }
+            return s;
+        }
+
+        private Object getValue() throws IOException {
+            require( 1);
+            byte t = buf.get();
+            switch( t) {
+            case NULL:
+                return null;
+            case STRING:
+                return getString();
+            case INTEGER:
+                return ( int)unZigZag( getVarLong());
+            case LONG:
+                return unZigZag( getVarLong());
+            case DOUBLE:
+                require( 8);
+                return buf.getDouble();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case DATE:
+                return new Date( unZigZag( getVarLong()));
+            case BYTES:
+                return getBytes( getLength());
+            case LIST:
+                int n = getCount();
+                List<Object> l = new ArrayList();
+                for( int i = 0; i < n; ++i) {
+                    l.add( getValue());
+                }
+                return l;
+            case MAP:
+                n = getCount();
+                Map<String,Object> m = new LinkedHashMap();
+                for( int i = 0; i < n; ++i) {
+                    String k = getName();
+                    m.put( k, getValue());
+                }
+                return m;
+            case OBJECT:
+                if( !objects) {
+                    throw new IOException( "Serialized objects not allowed");
+                }
+                try {
+                    return new ObjectInputStream( new ByteArrayInputStream( getBytes( getLength()))).readObject();
+                } catch( ClassNotFoundException x) {
+                    throw new IOException( "Unknown class " + x.getMessage(), x);
+                }
+            default:
+                throw new IOException( "Invalid value tag " + t);
+            }
+        }
+
+        private String getString() throws IOException {
+            int n = getLength();
+            if( n == 0) {
+                return null;
+            }
+            --n;
+            require( n);
+            String s;
+            if( buf.hasArray()) {
+                s = new String( buf.array(), buf.arrayOffset() + buf.position(), n, StandardCharsets.UTF_8);
+                buf.position( buf.position() + n);
+            } else {
+                byte b[] = new byte[ n];
+                buf.get( b);
+                s = new String( b, StandardCharsets.UTF_8);
+            }
+            return s;
+        }
+
+        private byte[] getBytes( int n) throws IOException {
+            require( n);
+            byte b[] = new byte[ n];
+            buf.get( b);
+            return b;
+        }
+
+        private int getLength() throws IOException {
+            long v = getVarLong();
+            if( v < 0 || v > Integer.MAX_VALUE) {
+                throw new IOException( "Invalid length " + v);
+            }
+            return ( int)v;
+        }
+
+        /** A count of items, each one takes at least a byte. */
+        private int getCount() throws IOException {
+            int n = getLength();
+            if( channel == null && n > buf.remaining()) {
+                throw new IOException( "Invalid count " + n + ", " + buf.remaining() + " bytes left");
+            } else if( n > maxSize) {
+                throw new IOException( "Invalid count " + n + ", over the maximum message size");
+            }
+            return n;
+        }
+
+        private long getVarLong() throws IOException {
+            long v = 0;
+            for( int s = 0; s < 64; s += 7) {
+                require( 1);
+                byte b = buf.get();
+                v |= ( long)( b & 0x7F) << s;
+                if( b >= 0) {
+                    return v;
+                }
+            }
+            throw new IOException( "Invalid varint");
+        }
+
+        /** Make sure there are n bytes to read, filling the buffer. 
+         * The message can't grow over the maximum size from the channel.
+         */
+        private void require( int n) throws IOException {
+            if( buf.remaining() >= n) {
+                return;
+            }
+            if( channel != null && getRead() - start + n > maxSize) {
+                throw new IOException( "Message over the maximum size of " + maxSize + " bytes");
+            }
+            if( channel == null || !fill( n)) {
+                throw new EOFException( "Truncated data, " + n + " bytes expected");
+            }
+        }
+
+        private boolean fill( int n) throws IOException {
+            read += buf.position();
+            if( buf.capacity() < n) {
+                ByteBuffer b = buf.isDirect()? ByteBuffer.allocateDirect( n): ByteBuffer.allocate( n);
+                b.put( buf);
+                buf = b;
+            } else {
+                buf.compact();
+            }
+            try {
+                while( buf.position() < n) {
+                    if( channel.read( buf) < 0) {
+                        return false;
+                    }
+                }
+            } finally {
+                buf.flip();
+            }
+            return true;
+        }
+    }
+
+    private static long zigZag( long v) {
+        return ( v << 1) ^ ( v >> 63);
+    }
+
+    private static long unZigZag( long v) {
+        return ( v >>> 1) ^ -( v & 1);
+    }
+
+}
@@ -1,31 +1,75 @@
 /* Cache.java */
 package uy.com.r2.svc.tools;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
+import uy.com.r2.core.SvcCatalog;
+import uy.com.r2.core.TaskExecutor;
 import uy.com.r2.core.api.SvcMessage;
 import uy.com.r2.core.api.AsyncService;
+import uy.com.r2.core.api.Payload;
+import uy.com.r2.core.api.PayloadHash;
 import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
 import uy.com.r2.core.api.ConfigItemDescriptor;
 import uy.com.r2.core.api.Configuration;
 
 /**
- * Trivial cache service. 
- * This module stores responses by it service name and payload.
+ * Cache service. 
+ * This module stores responses by its service name and the canonical hash
+ * of its payload (memoized on the request), on a 
+ * concurrent cache by service bounded by entries and weight (the estimated
+ * size in bytes of the responses), with W-TinyLFU admission. The expired 
+ * entries are removed a few at a time on each write. <br>
+ * Optionally the entries evicted go to a second tier off-heap, encoded by
+ * the BinaryCodec on direct buffers with its own size and FIFO eviction,
+ * and they are promoted back on a hit. So a working set much bigger than the
+ * heap tier is kept w/o putting it on the garbage collector. <br>
+ * An entry older than TimeToRefresh (soft TTL) and younger than 
+ * TimeToDiscard (hard TTL) is served stale while one refresh of it runs, on
+ * the RefreshPipeline in background, or else the request that found it
+ * stale goes on to the next module. The hot entries are refreshed the
+ * same way before they get stale. The not found results are kept by its 
+ * own time.
  * @author G.Camargo
  */
 public class Cache implements AsyncService {
 
     private static final Logger LOG = Logger.getLogger( Cache.class );
-    private Map<String, CacheEntry> cache = new HashMap();
-    private HashSet<String> cacheableServices = new HashSet();
-    private int ttd = 1000 * 60 * 10;  // 10 minutes
+    private static final int REFRESH_TIME_OUT = 30000;
+    private final Map<String,TinyLfuCache<PayloadHash,CacheEntry>> caches = new ConcurrentHashMap();
+    private volatile Set<String> cacheableServices = new HashSet();
+    private volatile int ttd = 1000 * 60 * 10;  // 10 minutes
+    private int ttr = 0;
+    private volatile int notFoundTtd = 10000;
+    private Map<String,Integer> svcTtd = new HashMap();
+    private Map<String,Integer> svcTtr = new HashMap();
+    private volatile int refreshAhead = 0;
+    private volatile int refreshAheadHits = 2;
+    private volatile String refreshPipeline = "";
+    private TaskExecutor executor = null;
+    private String executorSettings = "";   // Execution and MaxThreads, empty w/o executor
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshesAhead = new AtomicLong();
+    private final AtomicLong refreshErrors = new AtomicLong();
+    private int maxEntries = 10000;
+    private long maxWeight = 10000000;
+    private Map<String,Integer> svcMaxEntries = new HashMap();
+    private Map<String,Integer> svcMaxWeight = new HashMap();
+    private final Map<String,OffHeapStore> stores = new ConcurrentHashMap();
+    private int offHeapSize = 0;
+    private int offHeapMaxEntries = 100000;
+    private Map<String,Integer> svcOffHeapSize = new HashMap();
 
     /**
      * Get the configuration descriptors of this module.
@@ -39,20 +83,98 @@ public class Cache implements AsyncService {
                 "Cacheable services names, comma separated"));
         l.add( new ConfigItemDescriptor( "TimeToDiscard", ConfigItemDescriptor.INTEGER,
                 "Time in mS to discard a cache entry", "60000"));
+        l.add( new ConfigItemDescriptor( "TimeToRefresh", ConfigItemDescriptor.INTEGER,
+                "Time in mS to serve a cache entry w/o refreshing it, 0 is TimeToDiscard", "0"));
+        l.add( new ConfigItemDescriptor( "Service.*.TimeToDiscard", ConfigItemDescriptor.INTEGER,
+                "Time in mS to discard a cache entry of this service"));
+        l.add( new ConfigItemDescriptor( "Service.*.TimeToRefresh", ConfigItemDescriptor.INTEGER,
+                "Time in mS to serve a cache entry of this service w/o refreshing it"));
+        l.add( new ConfigItemDescriptor( "NotFoundTimeToDiscard", ConfigItemDescriptor.INTEGER,
+                "Time in mS to discard a not found result", "10000"));
+        l.add( new ConfigItemDescriptor( "RefreshAhead", ConfigItemDescriptor.INTEGER,
+                "Percent of TimeToRefresh to refresh a hot entry before it, 0 is disabled", "0"));
+        l.add( new ConfigItemDescriptor( "RefreshAheadHits", ConfigItemDescriptor.INTEGER,
+                "Hits of an entry to be hot", "2"));
+        l.add( new ConfigItemDescriptor( "RefreshPipeline", ConfigItemDescriptor.STRING,
+                "Service pipeline to refresh in background, the modules after this one; "
+                + "empty to go on with the request that found it stale", ""));
+        l.add( new ConfigItemDescriptor( "MaxEntries", ConfigItemDescriptor.INTEGER,
+                "Maximum number of entries by service", "10000"));
+        l.add( new ConfigItemDescriptor( "MaxWeight", ConfigItemDescriptor.INTEGER,
+                "Maximum size in bytes of the entries by service, 0 is unlimited", "10000000"));
+        l.add( new ConfigItemDescriptor( "Service.*.MaxEntries", ConfigItemDescriptor.INTEGER,
+                "Maximum number of entries of this service"));
+        l.add( new ConfigItemDescriptor( "Service.*.MaxWeight", ConfigItemDescriptor.INTEGER,
+                "Maximum size in bytes of the entries of this service"));
+        l.add( new ConfigItemDescriptor( "OffHeapSize", ConfigItemDescriptor.INTEGER,
+                "Size in MB of the off-heap tier by service, 0 is disabled", "0"));
+        l.add( new ConfigItemDescriptor( "OffHeapMaxEntries", ConfigItemDescriptor.INTEGER,
+                "Maximum number of entries of the off-heap tier by service", "100000"));
+        l.add( new ConfigItemDescriptor( "Service.*.OffHeapSize", ConfigItemDescriptor.INTEGER,
+                "Size in MB of the off-heap tier of this service"));
         l.add( new ConfigItemDescriptor( "ResetCache", ConfigItemDescriptor.BOOLEAN,
                 "Discad all cached entrys", "false"));
+        TaskExecutor.addConfigDescriptors( l, TaskExecutor.PLATFORM, "4");
         return l;
     }
 
-    private void setConfiguration( Configuration cfg) throws Exception {
+    private synchronized void setConfiguration( Configuration cfg) throws Exception {
         if( !cfg.isUpdated()) {
             return;
         }
         ttd = cfg.getInt( "TimeToDiscard");
+        ttr = cfg.getInt( "TimeToRefresh");
+        svcTtd = cfg.getIntMap( "Service.*.TimeToDiscard");
+        svcTtr = cfg.getIntMap( "Service.*.TimeToRefresh");
+        notFoundTtd = cfg.getInt( "NotFoundTimeToDiscard");
+        refreshAhead = cfg.getInt( "RefreshAhead");
+        refreshAheadHits = cfg.getInt( "RefreshAheadHits");
+        String rp = cfg.getString( "RefreshPipeline");
+        refreshPipeline = ( rp == null)? "": rp.trim();
+        String es = refreshPipeline.isEmpty()? "": 
+                cfg.getString( "Execution") + "/" + cfg.getInt( "MaxThreads");
+        if( !es.equals( executorSettings)) {  // Created again only if changed
+            if( executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            if( !es.isEmpty()) {
+                executor = TaskExecutor.newTaskExecutor( "CacheRefresh", cfg);
+            }
+            executorSettings = es;
+        }
+        maxEntries = cfg.getInt( "MaxEntries");
+        maxWeight = cfg.getLong( "MaxWeight");
+        svcMaxEntries = cfg.getIntMap( "Service.*.MaxEntries");
+        svcMaxWeight = cfg.getIntMap( "Service.*.MaxWeight");
+        Map<String,Integer> ohs = cfg.getIntMap( "Service.*.OffHeapSize");
+        if( offHeapSize != cfg.getInt( "OffHeapSize") || !svcOffHeapSize.equals( ohs)
+                || offHeapMaxEntries != cfg.getInt( "OffHeapMaxEntries")) {
+            stores.clear();  // Created again with the new sizes
+        }
+        offHeapSize = cfg.getInt( "OffHeapSize");
+        offHeapMaxEntries = cfg.getInt( "OffHeapMaxEntries");
+        svcOffHeapSize = ohs;
+        Set<String> s = new HashSet();
+        String ss = cfg.getString( "CacheablesServices");
+        if( ss != null) {
+            for( String n: ss.split( ",")) {
+                if( !n.trim().isEmpty()) {
+                    s.add( n.trim());
+                }
+            }
+        }
+        cacheableServices = s;
+        caches.keySet().retainAll( s);
+        stores.keySet().retainAll( s);
+        for( Map.Entry<String,TinyLfuCache<PayloadHash,CacheEntry>> e: caches.entrySet()) {
+            e.getValue().setLimits( getMaxEntries( e.getKey()), getMaxWeight( e.getKey()));
+            if( cfg.getBoolean( "ResetCache")) {
+                e.getValue().clear();
+            }
+        }
         if( cfg.getBoolean( "ResetCache")) {
-            String sa[] = cfg.getString( "CacheablesServices").split( ",");
-            cacheableServices = new HashSet( Arrays.asList( sa));
-            cache = new HashMap();
+            stores.clear();
         }
         cfg.clearUpdated();
     }
@@ -70,18 +192,38 @@ public class Cache implements AsyncService {
     @Override
     public SvcMessage onRequest( SvcRequest req, Configuration cfg) throws Exception {
         setConfiguration( cfg);
-        SvcMessage rr;
-        CacheEntry ce = cache.get( req.getServiceName() + req.getPayload().toString());
-        if( ce != null && ce.expTime > System.currentTimeMillis()) {
-            // Catched response
-            ce.hits++;
-            rr = new SvcResponse( ce.res, ce.rc, req );
-            LOG.trace( "Served from cache" );
-        } else {
-            rr = req;  // Execute this one
-            LOG.trace( "Go on to the next, cache size=" + cache.size() );
+        TinyLfuCache<PayloadHash,CacheEntry> c = caches.get( req.getServiceName());
+        if( c == null) {
+            return req;  // Not cacheable or empty
+        }
+        PayloadHash key = req.getPayloadHash();
+        long now = System.currentTimeMillis();
+        CacheEntry ce = c.get( key, now);
+        if( ce == null) {
+            ce = promote( req.getServiceName(), c, key, now);
+        }
+        if( ce == null) {
+            LOG.trace( "Go on to the next, cache size=" + c.size());
+            return req;  // Execute this one
+        }
+        if( now >= ce.fresh) {  // Stale
+            staleHits.incrementAndGet();
+            if( ce.startRefresh( now, req) && !refresh( req, key)) {
+                LOG.trace( "Stale, go on to the next to refresh it");
+                return req;
+            }
+        } else if( refreshAhead > 0 && ++ce.hits >= refreshAheadHits 
+                && isAhead( req.getServiceName(), ce, now)
+                && ce.startRefresh( now, req)) {
+            refreshesAhead.incrementAndGet();
+            if( !refresh( req, key)) {
+                LOG.trace( "Hot, go on to the next to refresh it");
+                return req;
+            }
         }
-        return rr;
+        // Catched response
+        LOG.trace( "Served from cache" );
+        return new SvcResponse( Payload.copyOf( ce.res), ce.rc, req);
     }
 
     /**
@@ -96,18 +238,81 @@ public class Cache implements AsyncService {
     public SvcResponse onResponse( SvcResponse resp, Configuration cfg) throws Exception {
         setConfiguration( cfg);
         SvcRequest req = resp.getRequest();
-        if( cacheableServices.contains( req.getServiceName())) {  // Is cacheable
-            CacheEntry ce = new CacheEntry();
-            ce.req = req.getPayload();
-            ce.res = resp.getPayload();
-            ce.expTime = System.currentTimeMillis() + ttd;
-            ce.rc = resp.getResultCode();
-            cache.put( req.getServiceName() + req.getPayload().toString(), ce);
-            LOG.trace( "Saved to cache, cache size=" + cache.size());
+        String svc = req.getServiceName();
+        if( resp.getResultCode() < 0 || !cacheableServices.contains( svc)) {
+            return resp;  // Not cacheable
         }
+        store( svc, req.getPayloadHash(), resp);
         return resp;
     }
 
+    /** Save a response, with the TTLs by its service or as not found. */
+    private void store( String svc, PayloadHash key, SvcResponse resp) {
+        TinyLfuCache<PayloadHash,CacheEntry> c = caches.get( svc);
+        if( c == null) {
+            synchronized( this) {
+                c = caches.get( svc);
+                if( c == null) {
+                    c = new TinyLfuCache( getMaxEntries( svc), getMaxWeight( svc));
+                    c.setListener( new Demoter( svc));
+                    caches.put( svc, c);
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        long hard;
+        long soft;
+        if( resp.getResultCode() == SvcResponse.RES_CODE_NOT_FOUND) {
+            hard = notFoundTtd;
+            soft = hard;
+        } else {
+            hard = getTimeToDiscard( svc);
+            soft = getTimeToRefresh( svc);
+        }
+        CacheEntry ce = new CacheEntry();
+        ce.res = Payload.copyOf( resp.getPayload());  // The response may be reused
+        ce.rc = resp.getResultCode();
+        ce.fresh = now + soft;
+        OffHeapStore st = stores.get( svc);
+        if( st != null) {
+            st.remove( key);  // Replaced
+        }
+        c.put( key, ce, key.getBytes().length + weigh( ce.res), now + hard);
+        LOG.trace( "Saved to cache, cache size=" + c.size());
+    }
+
+    /** Start the refresh of an entry in background, when it is possible.
+     * @return false if the request must go on to refresh it
+     */
+    private boolean refresh( SvcRequest req, PayloadHash key) {
+        refreshes.incrementAndGet();
+        TaskExecutor ex;
+        String pipe;
+        synchronized( this) {
+            ex = executor;
+            pipe = refreshPipeline;
+        }
+        if( ex == null) {
+            return false;
+        }
+        // A copy, the request may be reused after its response
+        SvcRequest rq = req.clone( Payload.copyOf( req.getPayload()));
+        rq.setCorrelationId( 0);   // It runs as other pipeline
+        if( !ex.execute( new Refresh( pipe, rq, key))) {
+            refreshErrors.incrementAndGet();  // Topped, it is served stale 
+        }
+        return true;
+    }
+
+    /** Test if a hot entry must be refreshed ahead. */
+    private boolean isAhead( String svc, CacheEntry ce, long now) {
+        int ra = refreshAhead;
+        if( ra <= 0 || ce.rc == SvcResponse.RES_CODE_NOT_FOUND) {
+            return false;  // The not found are not refreshed
+        }
+        return now >= ce.fresh - getTimeToRefresh( svc) * ( 100 - Math.min( ra, 100)) / 100;
+    }
+
     /**
      * Get the status report.
      *
@@ -120,10 +325,43 @@ public class Cache implements AsyncService {
         if( pak != null) {
             map.put( "Version", "" + pak.getImplementationVersion());
         } 
-        map.put( "Size", cache.size() );
-        for( String s : cache.keySet() ) {
-            map.put( "HitsOnService_" + s, "" + cache.get( s).hits );
+        int size = 0;
+        long weight = 0;
+        int offHeapEntries = 0;
+        long offHeapBytes = 0;
+        long now = System.currentTimeMillis();
+        for( Map.Entry<String,TinyLfuCache<PayloadHash,CacheEntry>> e: caches.entrySet()) {
+            String s = e.getKey();
+            TinyLfuCache c = e.getValue();
+            c.expire( now);
+            size += c.size();
+            weight += c.getWeight();
+            map.put( "Size_" + s, c.size());
+            map.put( "Weight_" + s, c.getWeight());
+            map.put( "Hits_" + s, c.getHits());
+            map.put( "Misses_" + s, c.getMisses());
+            map.put( "Evictions_" + s, c.getEvictions());
+            map.put( "Expirations_" + s, c.getExpirations());
+            map.put( "HitRatio_" + s, c.getHitRatio());
+            OffHeapStore st = stores.get( s);
+            if( st != null) {
+                offHeapEntries += st.size();
+                offHeapBytes += st.getAllocated();
+                map.put( "OffHeapSize_" + s, st.size());
+                map.put( "OffHeapBytes_" + s, st.getAllocated());
+                map.put( "OffHeapHits_" + s, st.getHits());
+                map.put( "OffHeapMisses_" + s, st.getMisses());
+                map.put( "OffHeapEvictions_" + s, st.getEvictions());
+            }
         }
+        map.put( "Size", size);
+        map.put( "Weight", weight);
+        map.put( "OffHeapSize", offHeapEntries);
+        map.put( "OffHeapBytes", offHeapBytes);
+        map.put( "StaleHits", staleHits.get());
+        map.put( "Refreshes", refreshes.get());
+        map.put( "RefreshesAhead", refreshesAhead.get());
+        map.put( "RefreshErrors", refreshErrors.get());
         return map;
     }
 
@@ -132,15 +370,172 @@ public class Cache implements AsyncService {
      */
     @Override
     public void shutdown() {
-        cache = new HashMap<String, CacheEntry>();
+        for( TinyLfuCache c: caches.values()) {
+            c.clear();
+        }
+        caches.clear();
+        stores.clear();
+        synchronized( this) {
+            if( executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            executorSettings = "";
+        }
+    }
+
+    private synchronized int getMaxEntries( String svc) {
+        Integer i = svcMaxEntries.get( svc);
+        return ( i == null)? maxEntries: i;
+    }
+
+    private synchronized long getMaxWeight( String svc) {
+        Integer i = svcMaxWeight.get( svc);
+        return ( i == null)? maxWeight: i;
+    }
+
+    private synchronized long getTimeToDiscard( String svc) {
+        Integer i = svcTtd.get( svc);
+        return ( i == null)? ttd: i;
+    }
+
+    /** The soft TTL, up to the hard one. */
+    private synchronized long getTimeToRefresh( String svc) {
+        long hard = getTimeToDiscard( svc);
+        Integer i = svcTtr.get( svc);
+        long soft = ( i == null)? ttr: i;
+        return ( soft <= 0 || soft > hard)? hard: soft;
+    }
+
+    private synchronized long getOffHeapSize( String svc) {
+        Integer i = svcOffHeapSize.get( svc);
+        return ( ( i == null)? offHeapSize: i) * 1024L * 1024L;
+    }
+
+    /** Get the off-heap tier of a service, creating it when enabled. */
+    private OffHeapStore getStore( String svc) {
+        OffHeapStore st = stores.get( svc);
+        if( st != null) {
+            return st;
+        }
+        synchronized( this) {
+            st = stores.get( svc);
+            long size = getOffHeapSize( svc);
+            if( st == null && size > 0 && caches.containsKey( svc)) {
+                st = new OffHeapStore( size, offHeapMaxEntries);
+                stores.put( svc, st);
+            }
+            return st;
+        }
+    }
+
+    /** Move an entry from the off-heap tier to the heap one. */
+    private CacheEntry promote( String svc, TinyLfuCache<PayloadHash,CacheEntry> c, 
+            PayloadHash key, long now) throws IOException {
+        OffHeapStore st = stores.get( svc);
+        OffHeapStore.Entry e = ( st == null)? null: st.get( key, now);
+        if( e == null) {
+            return null;
+        }
+        CacheEntry ce = new CacheEntry();
+        ce.res = ( Payload)new BinaryCodec.Decoder( e.data).setObjects( true).readPayload( null);
+        ce.rc = e.rc;
+        ce.fresh = e.fresh;
+        st.remove( key);
+        c.put( key, ce, key.getBytes().length + weigh( ce.res), e.expires);
+        LOG.trace( "Promoted from off-heap, size=" + st.size());
+        return ce;
+    }
+
+    /** Estimate the size in bytes of a payload, w/o copying a shared one. */
+    private static int weigh( Payload payload) {
+        int w = 32;
+        for( String k: payload.getSortedKeys()) {
+            w += 48 + 2 * ( ( k == null)? 0: k.length());
+            for( Object o: payload.getValues( k)) {
+                w += 16;
+                if( o instanceof CharSequence) {
+                    w += 24 + 2 * ( (CharSequence)o).length();
+                } else if( o instanceof byte[]) {
+                    w += ( (byte[])o).length;
+                } else if( o != null) {
+                    w += 16;
+                }
+            }
+        }
+        return w;
     }
 
     private static class CacheEntry {
-        Map<String, List<Object>> req;
-        Map<String, List<Object>> res;
+        Payload res;
         int rc;
-        long expTime;
-        int hits = 0;
+        long fresh;          // Served w/o refreshing it until this time
+        volatile int hits;   // Approximate, to know if it is hot
+        private long refreshing = 0;
+
+        /** Take the refresh of the entry, only one at a time. */
+        private synchronized boolean startRefresh( long now, SvcRequest req) {
+            if( refreshing > now) {
+                return false;
+            }
+            refreshing = now + ( ( req.getTimeOut() > 0)? req.getTimeOut(): REFRESH_TIME_OUT);
+            return true;
+        }
+    }
+
+    /** Refresh of a stale or hot entry, on the RefreshPipeline. */
+    private class Refresh implements Runnable {
+        private final String pipe;
+        private final SvcRequest req;
+        private final PayloadHash key;
+
+        private Refresh( String pipe, SvcRequest req, PayloadHash key) {
+            this.pipe = pipe;
+            this.req = req;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            SvcResponse r;
+            try {
+                r = SvcCatalog.getDispatcher().callPipeline( pipe, req);
+            } catch( Exception x) {
+                r = new SvcResponse( "Cache refresh", SvcResponse.RES_CODE_EXCEPTION, x, req);
+            }
+            String svc = req.getServiceName();
+            if( r.getResultCode() < 0 || !cacheableServices.contains( svc)) {
+                refreshErrors.incrementAndGet();
+                LOG.debug( "Not refreshed " + r);
+                return;  // Served stale until it expires or other refresh
+            }
+            store( svc, key, r);
+        }
+    }
+
+    /** Moves the entries evicted from the heap to the off-heap tier. */
+    private class Demoter implements TinyLfuCache.Listener<PayloadHash,CacheEntry> {
+        private final String svc;
+
+        private Demoter( String svc) {
+            this.svc = svc;
+        }
+
+        @Override
+        public void evicted( PayloadHash key, CacheEntry ce, long expires) {
+            OffHeapStore st = getStore( svc);
+            if( st == null || expires <= System.currentTimeMillis()) {
+                return;
+            }
+            try {
+                ByteBuffer b = new BinaryCodec.Encoder( 256).writePayload( ce.res).getBuffer();
+                if( !st.put( key, b, ce.rc, ce.fresh, expires)) {
+                    LOG.trace( "Too big for off-heap, " + b.remaining() + " bytes");
+                }
+            } catch( IOException x) {
+                LOG.warn( "Not encoded to off-heap " + key, x);
+            }
+        }
     }
 
 }
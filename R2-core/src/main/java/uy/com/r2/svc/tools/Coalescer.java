@@ -0,0 +1,229 @@
+/* Coalescer.java */
+package uy.com.r2.svc.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import uy.com.r2.core.LatencyHistogram;
+import uy.com.r2.core.SvcCatalog;
+import uy.com.r2.core.api.AsyncService;
+import uy.com.r2.core.api.ConfigItemDescriptor;
+import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.Payload;
+import uy.com.r2.core.api.SvcMessage;
+import uy.com.r2.core.api.SvcRequest;
+import uy.com.r2.core.api.SvcResponse;
+
+/** Single-flight module, to coalesce identical requests in flight.
+ * The requests with the same service name and payload than another one in
+ * flight wait it, only the first one goes on to the next module. Its response
+ * is cloned to each waiting request and delivered by Dispatcher.onMessage().
+ * When the first one is dropped by time out or overload, the waiting ones 
+ * are dispatched again, so one of them goes on. <br>
+ * The responses find their flight by the request id, so the next modules 
+ * may change or clone the request.
+ * @author G.Camargo
+ */
+public class Coalescer implements AsyncService {
+    private static final Logger LOG = Logger.getLogger( Coalescer.class);
+    private final Map<List,Flight> flights = new ConcurrentHashMap();
+    private final Map<String,Flight> requests = new ConcurrentHashMap();  // By request id
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final LatencyHistogram fanIn = new LatencyHistogram();
+    private Set<String> services = new HashSet();
+    private int maxFanIn = 1000;
+
+    /** Get the configuration descriptors of this module.
+     * @return ConfigItemDescriptor List
+     */
+    @Override
+    public List<ConfigItemDescriptor> getConfigDescriptors() {
+        LinkedList<ConfigItemDescriptor> l = new LinkedList();
+        l.add( new ConfigItemDescriptor( "Services", ConfigItemDescriptor.STRING,
+                "Services names to coalesce, comma separated, empty is all", ""));
+        l.add( new ConfigItemDescriptor( "MaxFanIn", ConfigItemDescriptor.INTEGER,
+                "Maximum requests waiting the same one, over it they go on", "1000"));
+        return l;
+    }
+
+    private synchronized void setConfiguration( Configuration cfg) throws Exception {
+        if( !cfg.isUpdated()) {
+            return;
+        }
+        Set<String> s = new HashSet();
+        String ss = cfg.getString( "Services");
+        if( ss != null && !ss.trim().isEmpty()) {
+            for( String n: ss.split( ",")) {
+                s.add( n.trim());
+            }
+        }
+        services = s;
+        maxFanIn = cfg.getInt( "MaxFanIn");
+        cfg.clearUpdated();
+    }
+
+    /** Invocation dispatch phase.
+     * @param req Invocation message from caller
+     * @param cfg Module configuration
+     * @return The request to go on, or null to wait the one in flight
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public SvcMessage onRequest( SvcRequest req, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        if( !isCoalesced( req)) {
+            return req;
+        }
+        List key = getKey( req);
+        for( ; ;) {
+            Flight f = flights.get( key);
+            if( f == null) {
+                f = new Flight( key, req);
+                if( flights.putIfAbsent( key, f) == null) {
+                    requests.put( req.getRequestId(), f);
+                    leaders.incrementAndGet();
+                    return req;  // The first one, go on
+                }
+            } else if( f.join( req, maxFanIn, requests)) {
+                coalesced.incrementAndGet();
+                return null;  // Wait it
+            } else if( !f.isEnded()) {
+                return req;   // Too many waiting, go on
+            }
+        }
+    }
+
+    /** Process a response phase.
+     * The response of the first request is cloned to the waiting ones.
+     * @param resp SvcResponse message
+     * @param cfg Module configuration
+     * @return SvcResponse message to caller
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public SvcResponse onResponse( SvcResponse resp, Configuration cfg) throws Exception {
+        SvcRequest req = resp.getRequest();
+        Flight f = requests.get( req.getRequestId());
+        if( f == null) {
+            return resp;
+        }
+        if( !f.leaderId.equals( req.getRequestId())) {  // A waiting one, by time out
+            f.leave( req, requests);
+            return resp;
+        }
+        flights.remove( f.key, f);
+        List<SvcRequest> ws = f.end( requests);
+        fanIn.record( ws.size() + 1);
+        boolean dropped = resp.getResultCode() == SvcResponse.RES_CODE_TIMEOUT 
+                || resp.getResultCode() == SvcResponse.RES_CODE_TOPPED;
+        for( SvcRequest w: ws) {
+            SvcMessage m;
+            if( dropped && !w.isExpired()) {  // Try it again
+                retried.incrementAndGet();
+                m = w;
+            } else {
+                m = new SvcResponse( Payload.copyOf( resp.getPayload()), resp.getResultCode(), w);
+            }
+            try {
+                SvcCatalog.getDispatcher().onMessage( m);
+            } catch( Exception x) {
+                LOG.debug( "Can't deliver coalesced " + m, x);
+            }
+        }
+        return resp;
+    }
+
+    /** Get the status report.
+     * @return Variable and value map
+     */
+    @Override
+    public Map<String, Object> getStatusVars() {
+        Map<String,Object> map = new HashMap();
+        Package pak = getClass().getPackage();
+        if( pak != null) {
+            map.put( "Version", "" + pak.getImplementationVersion());
+        } 
+        map.put( "Flights", flights.size());
+        map.put( "Leaders", leaders.get());
+        map.put( "Coalesced", coalesced.get());
+        map.put( "Retried", retried.get());
+        fanIn.getStatusVars( map, "FanIn");
+        return map;
+    }
+
+    /** Release all the allocated resources. */
+    @Override
+    public void shutdown() {
+        flights.clear();
+        requests.clear();
+    }
+
+    private boolean isCoalesced( SvcRequest req) {
+        Set<String> s = services;
+        return s.isEmpty() || s.contains( req.getServiceName());
+    }
+
+    /** Service name and canonical hash of the payload, taken on the request. */
+    private static List getKey( SvcRequest req) {
+        return Arrays.asList( req.getServiceName(), req.getPayloadHash());
+    }
+
+    /** The request in flight and the ones waiting it.
+     * Each one is also in the map by request id while it waits.
+     */
+    private static class Flight {
+        private final List key;
+        private final String leaderId;
+        private final List<SvcRequest> waiters = new LinkedList();
+        private boolean ended = false;
+
+        private Flight( List key, SvcRequest leader) {
+            this.key = key;
+            this.leaderId = leader.getRequestId();
+        }
+
+        private synchronized boolean join( SvcRequest req, int max, Map<String,Flight> requests) {
+            if( ended || waiters.size() >= max) {
+                return false;
+            }
+            waiters.add( req);
+            requests.put( req.getRequestId(), this);
+            return true;
+        }
+
+        private synchronized void leave( SvcRequest req, Map<String,Flight> requests) {
+            Iterator<SvcRequest> it = waiters.iterator();
+            while( it.hasNext()) {
+                if( it.next().getRequestId().equals( req.getRequestId())) {
+                    it.remove();
+                }
+            }
+            requests.remove( req.getRequestId(), this);
+        }
+
+        private synchronized boolean isEnded() {
+            return ended;
+        }
+
+        private synchronized List<SvcRequest> end( Map<String,Flight> requests) {
+            ended = true;
+            requests.remove( leaderId, this);
+            for( SvcRequest w: waiters) {
+                requests.remove( w.getRequestId(), this);
+            }
+            return new ArrayList( waiters);
+        }
+    }
+
+}
@@ -0,0 +1,353 @@
+/* FanOut.java */
+package uy.com.r2.svc.tools;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import uy.com.r2.core.SvcCatalog;
+import uy.com.r2.core.TaskExecutor;
+import uy.com.r2.core.api.AsyncService;
+import uy.com.r2.core.api.ConfigItemDescriptor;
+import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.SvcMessage;
+import uy.com.r2.core.api.SvcRequest;
+import uy.com.r2.core.api.SvcResponse;
+
+/** Scatter-gather module to call few pipelines at the same time.
+ * It sends a copy of the request to each configured pipeline, each one
+ * on its own task, and merges the response payloads by the strategy: <br>
+ * All: waits all the pipelines, merges all the payloads <br>
+ * FirstSuccessful: the first response with result code &gt;= 0 <br>
+ * Quorum: waits the first Quorum successful responses and merges them <br>
+ * The branches not ended on the request deadline are treated as failed,
+ * the merged response is delivered by Dispatcher.onMessage().
+ * @author G.Camargo
+ */
+public class FanOut implements AsyncService {
+    public static final String ALL = "All";
+    public static final String FIRST_SUCCESSFUL = "FirstSuccessful";
+    public static final String QUORUM = "Quorum";
+    private static final Logger LOG = Logger.getLogger( FanOut.class);
+    private static final int DEADLINE_MARGIN = 20;
+    private final Map<SvcRequest,Gather> gathers = new ConcurrentHashMap();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong branchErrors = new AtomicLong();
+    private final AtomicLong branchTimeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private String pipelines[] = new String[ 0];
+    private String strategy = ALL;
+    private int quorum = 1;
+    private int timeOut = 0;
+    private TaskExecutor executor = null;
+    private String executorSettings = "";   // Execution and MaxThreads
+    private ScheduledThreadPoolExecutor timer = null;
+
+    /** Get the configuration descriptors of this module.
+     * @return ConfigItemDescriptor List
+     */
+    @Override
+    public List<ConfigItemDescriptor> getConfigDescriptors() {
+        LinkedList<ConfigItemDescriptor> l = new LinkedList();
+        l.add( new ConfigItemDescriptor( "Pipelines", ConfigItemDescriptor.STRING, 
+                "Service pipelines names to call at the same time, comma separated", ""));
+        l.add( new ConfigItemDescriptor( "Strategy", ConfigItemDescriptor.STRING, 
+                "Responses merge strategy: All, FirstSuccessful or Quorum", ALL));
+        l.add( new ConfigItemDescriptor( "Quorum", ConfigItemDescriptor.INTEGER, 
+                "Successful responses needed by the Quorum strategy", "1"));
+        l.add( new ConfigItemDescriptor( "BranchTimeOut", ConfigItemDescriptor.INTEGER, 
+                "Time out in mS of each branch when the request has not one", "10000"));
+        TaskExecutor.addConfigDescriptors( l, TaskExecutor.PLATFORM, "0");
+        return l;
+    }
+    
+    private synchronized void setConfiguration( Configuration cfg) throws Exception {
+        if( !cfg.isUpdated()) {
+            return;
+        }
+        pipelines = cfg.getString( "Pipelines").split( ",");
+        strategy = cfg.getString( "Strategy");
+        quorum = cfg.getInt( "Quorum");
+        if( quorum < 1 || quorum > pipelines.length) {
+            quorum = pipelines.length;
+        }
+        timeOut = cfg.getInt( "BranchTimeOut");
+        String es = cfg.getString( "Execution") + "/" + cfg.getInt( "MaxThreads");
+        if( !es.equals( executorSettings)) {  // Created again only if changed
+            if( executor != null) {
+                executor.shutdown();
+            }
+            executor = TaskExecutor.newTaskExecutor( "FanOut", cfg);
+            executorSettings = es;
+        }
+        if( timer == null) {
+            timer = new ScheduledThreadPoolExecutor( 1, new ThreadFactory() {
+                @Override
+                public Thread newThread( Runnable r) {
+                    Thread t = new Thread( r, "FanOutTimer");
+                    t.setDaemon( true);
+                    return t;
+                }
+            });
+            timer.setRemoveOnCancelPolicy( true);
+        }
+        cfg.clearUpdated();
+    }
+
+    /** Invocation dispatch phase.
+     * It starts a branch by pipeline and returns null, the merged response
+     * is dispatched later.
+     * @param req Invocation message from caller
+     * @param cfg Module configuration
+     * @return null, or a SvcResponse on error
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public SvcMessage onRequest( SvcRequest req, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        calls.incrementAndGet();
+        String ps[] = pipelines;
+        long to = req.getTimeLeft();
+        if( to == Long.MAX_VALUE) {
+            to = req.getAbsoluteTime() + timeOut - System.currentTimeMillis();
+        }
+        // Ends a bit before the request deadline, to send the partial response
+        to -= DEADLINE_MARGIN;
+        Gather g = new Gather( req, ps, strategy, quorum);
+        gathers.put( req, g);
+        g.timer = timer.schedule( g, Math.max( to, 0), TimeUnit.MILLISECONDS);
+        for( int i = 0; i < ps.length; ++i) {
+            if( !executor.execute( new Branch( g, i))) {
+                g.onBranch( i, new SvcResponse( SvcResponse.MSG_TOPPED + "FanOut branches", 
+                        SvcResponse.RES_CODE_TOPPED, null, req));
+            }
+        }
+        return null;
+    }
+
+    /** Process a response phase.
+     * The merged response, or a time out from the Dispatcher.
+     * @param resp SvcResponse message
+     * @param cfg Module configuration
+     * @return SvcResponse message to caller
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public SvcResponse onResponse( SvcResponse resp, Configuration cfg) throws Exception {
+        Gather g = gathers.remove( resp.getRequest());
+        if( g != null) {  // Not merged yet, cancel it
+            g.end();
+        }
+        return resp;
+    }
+
+    /** Get the status report.
+     * @return Variable and value map
+     */
+    @Override
+    public Map<String, Object> getStatusVars() {
+        Map<String,Object> map = new HashMap();
+        Package pak = getClass().getPackage();
+        if( pak != null) {
+            map.put( "Version", "" + pak.getImplementationVersion());
+        } 
+        map.put( "Strategy", strategy);
+        map.put( "Calls", calls.get());
+        map.put( "Running", gathers.size());
+        map.put( "Failures", failures.get());
+        map.put( "BranchErrors", branchErrors.get());
+        map.put( "BranchTimeouts", branchTimeouts.get());
+        if( executor != null) {
+            map.putAll( executor.getStatusVars());
+        }
+        return map;
+    }
+
+    /** Release all the allocated resources. */
+    @Override
+    public synchronized void shutdown() {
+        if( executor != null) {
+            executor.shutdown();
+            executorSettings = "";
+        }
+        if( timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    /** One branch call. */
+    private class Branch implements Runnable {
+        private final Gather gather;
+        private final int index;
+
+        private Branch( Gather gather, int index) {
+            this.gather = gather;
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            SvcResponse r;
+            if( gather.isEnded()) {
+                return;
+            }
+            try {
+                SvcRequest rq = gather.req.clone();
+                rq.setCorrelationId( 0);   // It runs as other pipeline
+                r = SvcCatalog.getDispatcher().callPipeline( gather.pipes[ index], rq);
+            } catch( Exception x) {
+                r = new SvcResponse( "FanOut branch " + gather.pipes[ index], 
+                        SvcResponse.RES_CODE_EXCEPTION, x, gather.req);
+            }
+            gather.onBranch( index, r);
+        }
+    }
+
+    /** Responses of a request, also its time out task. */
+    private class Gather implements Runnable {
+        private final SvcRequest req;
+        private final String pipes[];
+        private final String strategy;
+        private final int quorum;
+        private final SvcResponse responses[];
+        private final List<SvcResponse> successful = new LinkedList();
+        private int count = 0;
+        private boolean ended = false;
+        private ScheduledFuture<?> timer = null;
+
+        private Gather( SvcRequest req, String pipes[], String strategy, int quorum) {
+            this.req = req;
+            this.pipes = pipes;
+            this.strategy = strategy;
+            this.quorum = quorum;
+            this.responses = new SvcResponse[ pipes.length];
+        }
+
+        /** Time out. */
+        @Override
+        public void run() {
+            SvcResponse resp;
+            synchronized( this) {
+                if( ended) {
+                    return;
+                }
+                for( int i = 0; i < responses.length; ++i) {
+                    if( responses[ i] == null) {
+                        branchTimeouts.incrementAndGet();
+                        LOG.debug( "Time out on branch " + pipes[ i] + " " + req);
+                    }
+                }
+                if( ALL.equals( strategy) || successful.isEmpty() 
+                        || ( QUORUM.equals( strategy) && successful.size() < quorum)) {
+                    resp = merge( SvcResponse.RES_CODE_TIMEOUT, true);
+                } else {
+                    resp = merge( 0, true);
+                }
+            }
+            dispatch( resp);
+        }
+
+        private synchronized boolean isEnded() {
+            return ended;
+        }
+
+        private synchronized void end() {
+            ended = true;
+            if( timer != null) {
+                timer.cancel( false);
+            }
+        }
+
+        private void onBranch( int index, SvcResponse r) {
+            SvcResponse resp = null;
+            synchronized( this) {
+                if( ended) {
+                    return;
+                }
+                responses[ index] = r;
+                ++count;
+                if( r.getResultCode() < 0) {
+                    branchErrors.incrementAndGet();
+                } else {
+                    successful.add( r);
+                }
+                if( FIRST_SUCCESSFUL.equals( strategy)) {
+                    if( r.getResultCode() >= 0) {
+                        resp = merge( r.getResultCode(), false);
+                    } else if( count == responses.length) {  // All failed
+                        resp = r;
+                    }
+                } else if( QUORUM.equals( strategy)) {
+                    if( successful.size() >= quorum) {
+                        resp = merge( 0, false);
+                    } else if( responses.length - count + successful.size() < quorum) {
+                        resp = merge( r.getResultCode(), false);  // Can't get it
+                    }
+                } else if( count == responses.length) {  // All
+                    int rc = 0;
+                    for( SvcResponse rr: responses) {
+                        if( rr.getResultCode() < 0) {
+                            rc = rr.getResultCode();
+                        }
+                    }
+                    resp = merge( rc, false);
+                }
+            }
+            if( resp != null) {
+                dispatch( resp);
+            }
+        }
+
+        /** Merge the successful payloads, the failed pipelines are listed. */
+        private SvcResponse merge( int resultCode, boolean timedOut) {
+            String failed = "";
+            for( int i = 0; i < responses.length; ++i) {
+                if( ( responses[ i] == null && timedOut) 
+                        || ( responses[ i] != null && responses[ i].getResultCode() < 0)) {
+                    failed += ( failed.isEmpty()? "": ",") + pipes[ i];
+                }
+            }
+            SvcResponse resp;
+            if( resultCode < 0) {
+                resp = new SvcResponse( "FanOut failed on " + failed, resultCode, req);
+            } else {
+                resp = new SvcResponse( resultCode, req);
+                if( !failed.isEmpty()) {
+                    resp.add( "FanOutFailed", failed);
+                }
+            }
+            for( SvcResponse r: successful) {
+                for( Map.Entry<String,List<Object>> e: r.getPayload().entrySet()) {
+                    for( Object o: e.getValue()) {
+                        resp.add( e.getKey(), o);
+                    }
+                }
+            }
+            return resp;
+        }
+
+        private void dispatch( SvcResponse resp) {
+            if( gathers.remove( req) == null) {
+                return;  // Already dispatched
+            }
+            end();
+            if( resp.getResultCode() < 0) {
+                failures.incrementAndGet();
+            }
+            try {
+                SvcCatalog.getDispatcher().onMessage( resp);
+            } catch( Exception x) {
+                LOG.info( "Failed to dispatch FanOut response " + resp, x);
+            }
+        }
+    }
+
+}
@@ -5,8 +5,10 @@ import java.util.List;
 import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import org.apache.log4j.Logger;
 import uy.com.r2.core.SvcCatalog;
+import uy.com.r2.core.TaskExecutor;
 import uy.com.r2.core.api.ConfigItemDescriptor;
 import uy.com.r2.core.api.Configuration;
 import uy.com.r2.core.api.SvcRequest;
@@ -21,9 +23,9 @@ public class FilePathSynchronizer implements StartableModule {
     private final static Logger log = Logger.getLogger( FilePathSynchronizer.class);
     private final static String RMT = "_Undefined_";
     private static int txNr = 0;
-    private boolean stop = false;
     private int interval = 1000;
     private Worker wrk = null;
+    private TaskExecutor executor = null;
     private Map<String,String> pathMap = null;
     private int bufferSize = 10240;
     private String remote = null;
@@ -41,19 +43,34 @@ public class FilePathSynchronizer implements StartableModule {
                 "Interval to synchronize", "5000"));
         l.add( new ConfigItemDescriptor( "RemoteServer", ConfigItemDescriptor.STRING, 
                 "Remote server name to synchronize from", null));
+        TaskExecutor.addConfigDescriptor( l, TaskExecutor.PLATFORM);
         return l;
     }
     
-    /** Configure. */
+    /** Configure.
+     * The previous Worker is stopped, and its executor released, before 
+     * the new one is started.
+     */
     @Override
     public void start( Configuration cfg) throws Exception {
+        if( wrk != null) {
+            wrk.halt();
+            wrk = null;
+            executor.shutdown();
+            executor = null;
+        }
         interval = cfg.getInt( "Interval");
         remote = cfg.getString( "RemoteServer");
         pathMap = cfg.getStringMap( "Path.*");
-        // resest statistics
-        stop = false;
-        wrk = new Worker();
-        wrk.start();
+        if( executor == null) {
+            executor = new TaskExecutor( "FilePathSynchronizer", cfg.getString( "Execution"), 1);
+        }
+        Worker w = new Worker();
+        if( !executor.execute( w)) {
+            ++errorCount;
+            throw new Exception( "Can't start the synchronization worker");
+        }
+        wrk = w;
     }
     
     /** Get the status report.
@@ -66,6 +83,9 @@ public class FilePathSynchronizer implements StartableModule {
         if( pak != null) {
             map.put( "Version", "" + pak.getImplementationVersion());
         } 
+        if( executor != null) {
+            map.putAll( executor.getStatusVars());
+        }
         if( wrk != null) {
             map.putAll( wrk.getStatusVars());
         } else {
@@ -77,27 +97,56 @@ public class FilePathSynchronizer implements StartableModule {
     /** Release all the allocated resources. */
     @Override
     public void shutdown() {
-        stop = true;
         if( wrk != null) {
-            wrk.interrupt();
+            wrk.halt();
+        }
+        if( executor != null) {
+            executor.shutdown();
         }
+        executor = null;
         wrk = null;
     }
     
-    class Worker extends Thread {
+    class Worker implements Runnable {
         
         private HashMap<String,Long> namesAndLen = new HashMap();
         private String path = null;
+        private final CountDownLatch done = new CountDownLatch( 1);
+        private volatile boolean stop = false;
 
         @Override
         public void run() {
-            while( !stop) {
-                try {
-                    sleep( interval);
-                } catch( InterruptedException ex) { }
-                for( String k: pathMap.keySet()) {
-                    syncPathRecursive( pathMap.get( k));
-                }    
+            try {
+                while( !stop) {
+                    synchronized( this) {
+                        try {
+                            if( !stop) {
+                                wait( interval);
+                            }
+                        } catch( InterruptedException ex) { }
+                    }
+                    for( String k: pathMap.keySet()) {
+                        if( stop) {
+                            break;
+                        }
+                        syncPathRecursive( pathMap.get( k));
+                    }    
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /** Stop the loop and wait it ends. */
+        void halt() {
+            synchronized( this) {
+                stop = true;
+                notifyAll();
+            }
+            try {
+                done.await();
+            } catch( InterruptedException ex) {
+                Thread.currentThread().interrupt();
             }
         }
 
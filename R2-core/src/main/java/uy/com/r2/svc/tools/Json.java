@@ -1,7 +1,6 @@
 /* Json.java */
 package uy.com.r2.svc.tools;
 
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Map;
 import java.util.HashMap;
@@ -11,16 +10,25 @@ import java.util.ArrayList;
 import com.google.gson.Gson;
 import org.apache.log4j.Logger;
 import uy.com.r2.core.api.AsyncService;
+import uy.com.r2.core.api.BatchService;
 import uy.com.r2.core.api.ConfigItemDescriptor;
 import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.Payload;
+import uy.com.r2.core.api.PayloadSchema;
 import uy.com.r2.core.api.SvcMessage;
 import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
 
 /** Serialize to JSON and De-serialize from JSON.
+ * The parsed JSON is a {@link uy.com.r2.svc.tools.JsonPayload}, its fields
+ * are parsed when they are used and written back as they came when they 
+ * were not modified. The request goes on with the parsed payload, it is not
+ * cloned. With Streaming the response is a 
+ * {@link uy.com.r2.svc.tools.JsonBody}, generated by the connector.
+ * A batch is processed in bulk, reusing the same buffer.
  * @author G.Camargo
  */
-public class Json implements AsyncService {
+public class Json implements AsyncService, BatchService {
     public static final String SERIALIZED_JSON = "SerializedJson";
     public static final String RESULT_CODE = "ResultCode";
     private static final Logger LOG = Logger.getLogger( Json.class);
@@ -28,6 +36,7 @@ public class Json implements AsyncService {
     private boolean serverMode = true;
     private boolean procRequest = true;
     private boolean procResponse = true;
+    private boolean streaming = false;
     // Statistics
     private int parsedCount = 0;
     private int maxLength = 0;
@@ -46,6 +55,8 @@ public class Json implements AsyncService {
                 "Process the Requests (default true)", "true"));
         l.add( new ConfigItemDescriptor( "ProcessResponse", ConfigItemDescriptor.BOOLEAN,
                 "Process the Responses (default true)", "true"));
+        l.add( new ConfigItemDescriptor( "Streaming", ConfigItemDescriptor.BOOLEAN,
+                "Put the response as a JsonBody written by the connector, on server mode", "false"));
         return l;
     }
 
@@ -60,6 +71,7 @@ public class Json implements AsyncService {
         serverMode = cfg.getBoolean( "ServerMode");
         procRequest = cfg.getBoolean( "ProcessRequest");
         procResponse = cfg.getBoolean( "ProcessResponse");
+        streaming = cfg.getBoolean( "Streaming");
         // reset statistics
         parsedCount = 0;
         generatedCount = 0;
@@ -79,18 +91,20 @@ public class Json implements AsyncService {
     @Override
     public SvcMessage onRequest( SvcRequest req, Configuration cfg) throws Exception {
         setConfiguration( cfg);
+        return processRequest( req, new StringWriter());
+    }
+
+    private SvcMessage processRequest( SvcRequest req, StringWriter sw) throws Exception {
         if( !procRequest) {
             return req;
         }
         if( serverMode) {  // Take Serialixed field Data an parse it
-            Map<String, List<Object>> r;
-            r = fromJSON( "" + req.get( SERIALIZED_JSON), req.getRequestId());
-            // Add parsed params is better
-            for( String k: r.keySet()) {
-                req.getPayload().put( k, r.get( k));  // Already is a list
-            }
+            JsonPayload r = fromJSON( "" + req.get( SERIALIZED_JSON), 
+                    PayloadSchema.getSchema( req.getServiceName(), true), req.getRequestId());
+            r.putAbsent( req.getPayload());  // The parsed params replace the others
+            req.setPayload( r);  // The same request goes on
         } else {  // Put a Serialized field with JSON contents
-            req.put( SERIALIZED_JSON, toJSON( req.getPayload(), req.getRequestId()));
+            req.put( SERIALIZED_JSON, toJSON( req.getPayload(), null, req.getRequestId(), sw));
         }
         return req;
     }
@@ -106,31 +120,80 @@ public class Json implements AsyncService {
     @Override
     public SvcResponse onResponse( SvcResponse res, Configuration cfg) throws Exception {
         setConfiguration( cfg);
+        return processResponse( res, new StringWriter());
+    }
+
+    private SvcResponse processResponse( SvcResponse res, StringWriter sw) throws Exception {
         if( !procResponse) {
             return res;
         }
         if( !serverMode) {  // Take Serialized field an parse it
-            Map<String, List<Object>> r = fromJSON("" + res.get( SERIALIZED_JSON), res.getRequestId());
+            JsonPayload r = fromJSON("" + res.get( SERIALIZED_JSON), 
+                    PayloadSchema.getSchema( res.getRequest().getServiceName(), false), res.getRequestId());
             // Remove SerializedJson and try to parse ResultCode
             r.remove( SERIALIZED_JSON);
             int rc = res.getResultCode();
             if( r.containsKey( RESULT_CODE) && rc == 0) {
-                rc = Integer.parseInt( "" + r.get( RESULT_CODE).toArray()[ 0]);
+                rc = Integer.parseInt( "" + r.getFirst( RESULT_CODE));
                 r.remove( RESULT_CODE);
             }
-            res = new SvcResponse( rc, res.getRequest());
-            res.getPayload().putAll( r);
+            res = new SvcResponse( r, rc, res.getRequest());
         } else {  // Put a Serialized field with JSON contents
-            Map<String,List<Object>> m = new HashMap( res.getPayload());
-            List<Object> l = new ArrayList();
-            l.add( "" + res.getResultCode());
-            m.put( RESULT_CODE, l);
+            Payload m = new Payload( 1);
+            m.add( RESULT_CODE, "" + res.getResultCode());
             // Add or replace a "SerialisexJson" field with JSON
-            res.put( SERIALIZED_JSON, toJSON( m, res.getRequestId()));
+            if( streaming) {  // Generated while it is sent
+                res.put( SERIALIZED_JSON, new JsonBody( Payload.copyOf( res.getPayload()), m, mapper));
+            } else {
+                res.put( SERIALIZED_JSON, toJSON( res.getPayload(), m, res.getRequestId(), sw));
+            }
         }
         return res;
     }
 
+    /** Process a batch of service calls.
+     * A failed one gets an error response, and the others go on.
+     * @param reqs Invocation messages from caller
+     * @param cfg Module configuration
+     * @return SvcRequest or SvcResponse list
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public List<SvcMessage> onRequests( List<SvcRequest> reqs, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        StringWriter sw = new StringWriter();
+        List<SvcMessage> l = new ArrayList( reqs.size());
+        for( SvcRequest req: reqs) {
+            try {
+                l.add( processRequest( req, sw));
+            } catch( Exception x) {
+                l.add( new SvcResponse( x.getMessage(), SvcResponse.RES_CODE_EXCEPTION, x, req));
+            }
+        }
+        return l;
+    }
+
+    /** Process a batch of responses.
+     * @param resps SvcResponse messages from next module
+     * @param cfg Module configuration
+     * @return SvcResponse list
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public List<SvcResponse> onResponses( List<SvcResponse> resps, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        StringWriter sw = new StringWriter();
+        List<SvcResponse> l = new ArrayList( resps.size());
+        for( SvcResponse res: resps) {
+            try {
+                l.add( processResponse( res, sw));
+            } catch( Exception x) {
+                l.add( new SvcResponse( x.getMessage(), SvcResponse.RES_CODE_EXCEPTION, x, res.getRequest()));
+            }
+        }
+        return l;
+    }
+
     /** Get the status report.
      * @return Variable and value map
      */
@@ -149,15 +212,16 @@ public class Json implements AsyncService {
     public void shutdown() {
     }
 
-    private String toJSON( Map<String, List<Object>> data, String id) throws Exception {
+    private String toJSON( Map<String, List<Object>> data, Map<String, List<Object>> extra, 
+            String id, StringWriter sw) throws Exception {
         LOG.trace( "process toJSON");
         String js = "";
         if( data == null) {
             return js;
         }
         try {
-            StringWriter sw = new StringWriter();
-            mapper.toJson( data, sw);
+            sw.getBuffer().setLength( 0);
+            new JsonBody( data, extra, mapper).writeTo( sw);
             js = sw.toString();
             generatedCount += js.length();
             if( js.length() > maxLength) {
@@ -170,23 +234,13 @@ public class Json implements AsyncService {
         return js;
     }
 
-    private Map<String, List<Object>> fromJSON( String data, String id) throws Exception {
+    private JsonPayload fromJSON( String data, PayloadSchema schema, String id) throws Exception {
         LOG.trace( "process fromJSON");
-        Map<String,List<Object>> r = new HashMap<String,List<Object>>();
-        try {
-            StringReader sr = new StringReader( data);
-            Map<String,List<Object>> t; 
-            t = (Map<String,List<Object>>)mapper.fromJson( sr, r.getClass());
-            if( t != null) {   // Avoid return null
-                r = t;
-            }
-            parsedCount += data.length();
-            if( data.length() > maxLength) {
-                maxLength = data.length();
-                maxLengthId = id;
-            }
-        } catch( Exception x) {
-            throw new Exception( "Error parsing JSON \"" + data + "\" " + x, x);
+        JsonPayload r = new JsonPayload( data, schema, mapper);  // Only indexed
+        parsedCount += data.length();
+        if( data.length() > maxLength) {
+            maxLength = data.length();
+            maxLengthId = id;
         }
         return r;
     }
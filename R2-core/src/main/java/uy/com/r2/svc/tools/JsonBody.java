@@ -0,0 +1,123 @@
+/* JsonBody.java */
+package uy.com.r2.svc.tools;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import uy.com.r2.core.api.Payload;
+import uy.com.r2.core.api.SvcMessage;
+
+/** JSON body generated when it is written.
+ * It is put as the "SerializedJson" field, so the connectors write it 
+ * straight to the output stream, and its toString() is the JSON text
+ * for the others. It also reads a JSON body from an input stream.
+ * @author G.Camargo
+ */
+public class JsonBody {
+    private static final Gson GSON = new Gson();
+    private final Map<String,List<Object>> data;
+    private final Map<String,List<Object>> extra;
+    private final Gson mapper;
+
+    /** Constructor.
+     * @param data Payload, it should be a copy
+     * @param extra Other fields to add or replace, or null
+     * @param mapper Gson to write the values
+     */
+    public JsonBody( Map<String,List<Object>> data, Map<String,List<Object>> extra, Gson mapper) {
+        this.data = data;
+        this.extra = extra;
+        this.mapper = mapper;
+    }
+
+    /** Write the JSON text.
+     * @param w Writer
+     * @throws IOException Writer error
+     */
+    public void writeTo( Writer w) throws IOException {
+        if( data instanceof JsonPayload) {  // Copy the fields not modified
+            ( (JsonPayload)data).toJson( w, extra);
+            return;
+        }
+        JsonWriter jw = new JsonWriter( w);
+        jw.setHtmlSafe( true);   // As Gson.toJson() does
+        jw.setSerializeNulls( false);
+        jw.beginObject();
+        Set<Map.Entry<String,List<Object>>> es = ( data instanceof Payload)? 
+                ( (Payload)data).getEntries(): data.entrySet();   // Not copied to read
+        for( Map.Entry<String,List<Object>> e: es) {
+            if( extra == null || !extra.containsKey( e.getKey())) {
+                write( jw, e.getKey(), e.getValue());
+            }
+        }
+        if( extra != null) {
+            for( Map.Entry<String,List<Object>> e: extra.entrySet()) {
+                write( jw, e.getKey(), e.getValue());
+            }
+        }
+        jw.endObject();
+        jw.flush();
+    }
+
+    /** Get the JSON text.
+     * @return String
+     */
+    @Override
+    public String toString() {
+        StringWriter sw = new StringWriter();
+        try {
+            writeTo( sw);
+        } catch( IOException x) { }
+        return sw.toString();
+    }
+
+    /** Read a JSON object and add its fields, a value that is not an array 
+     * is added as the only one value of the field.
+     * @param r Reader, it is read until the end of the object
+     * @param target Payload to add the fields
+     * @throws IOException Invalid JSON or reader error
+     */
+    public static void read( Reader r, Map<String,List<Object>> target) throws IOException {
+        TypeAdapter<Object> values = GSON.getAdapter( Object.class);
+        JsonReader jr = new JsonReader( r);
+        try {
+            jr.beginObject();
+            while( jr.hasNext()) {
+                String k = jr.nextName();
+                if( jr.peek() == JsonToken.BEGIN_ARRAY) {
+                    jr.beginArray();
+                    Payload.Values l = new Payload.Values();
+                    while( jr.hasNext()) {
+                        l.add( values.read( jr));
+                    }
+                    jr.endArray();
+                    target.put( k, l);
+                } else {
+                    SvcMessage.addToMap( target, k, values.read( jr));
+                }
+            }
+            jr.endObject();
+        } catch( IllegalStateException x) {
+            throw new IOException( "Invalid JSON " + x.getMessage(), x);
+        }
+    }
+
+    private void write( JsonWriter jw, String key, List<Object> value) throws IOException {
+        jw.name( key);
+        if( value == null) {
+            jw.nullValue();
+        } else {
+            mapper.toJson( value, List.class, jw);
+        }
+    }
+
+}
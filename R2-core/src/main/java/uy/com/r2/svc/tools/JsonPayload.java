@@ -0,0 +1,413 @@
+/* JsonPayload.java */
+package uy.com.r2.svc.tools;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.google.gson.Gson;
+import uy.com.r2.core.api.Payload;
+import uy.com.r2.core.api.PayloadSchema;
+
+/** Payload backed by a JSON object, parsed on demand.
+ * The JSON text is scanned once to index the top level fields, and the 
+ * value of a field is parsed the first time it is used. <br>
+ * The fields not modified are written back as they came, w/o parsing or
+ * generating them again, so a message that goes on with the same data does
+ * not pay the whole cost. Reading a field by getFirst() or getValues() keeps
+ * its text, get() and the other methods that may modify it drop it. <br>
+ * It may be read by many threads, as a plain Payload: the fields are parsed
+ * holding a lock, until all of them are parsed.
+ * @author G.Camargo
+ */
+public class JsonPayload extends Payload {
+    private static final long serialVersionUID = 1L;
+    private final transient String json;
+    private final transient Gson mapper;
+    // Field offsets: name start, value start and value end
+    private final transient Map<String,int[]> pending = new LinkedHashMap();
+    private final transient Map<String,int[]> clean = new HashMap();
+    private transient volatile boolean lazy = true;   // Some field is pending, guarded by pending
+
+    /** Constructor.
+     * @param json JSON object text
+     * @param schema Slots layout of the service or null
+     * @param mapper Gson to parse the values
+     * @throws Exception Invalid JSON
+     */
+    public JsonPayload( String json, PayloadSchema schema, Gson mapper) throws Exception {
+        super( schema, 8);
+        this.json = json;
+        this.mapper = mapper;
+        try {
+            index();
+        } catch( RuntimeException x) {
+            throw new Exception( "Error parsing JSON \"" + json + "\" " + x, x);
+        }
+        lazy = !pending.isEmpty();
+    }
+
+    /** Copy constructor, the copy is lazy too. */
+    private JsonPayload( JsonPayload other) {
+        super( 0);
+        this.json = other.json;
+        this.mapper = other.mapper;
+        synchronized( other.pending) {
+            pending.putAll( other.pending);
+            clean.putAll( other.clean);
+            other.share( this);
+        }
+        lazy = !pending.isEmpty();
+    }
+
+    /** Add the fields that are not on the JSON text.
+     * @param map Other fields
+     */
+    public void putAbsent( Map<String,List<Object>> map) {
+        synchronized( pending) {
+            for( Map.Entry<String,List<Object>> e: map.entrySet()) {
+                if( !pending.containsKey( e.getKey())) {
+                    super.put( e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    /** Get the number of fields not parsed yet.
+     * @return Fields count
+     */
+    public int getPendingCount() {
+        synchronized( pending) {
+            return pending.size();
+        }
+    }
+
+    /** Write as JSON, the fields not modified are copied as they came.
+     * @param w Writer
+     * @param extra Other fields to add or replace, or null
+     * @throws IOException Writer error
+     */
+    public void toJson( Writer w, Map<String,List<Object>> extra) throws IOException {
+        synchronized( pending) {
+            writeJson( w, extra);
+        }
+    }
+
+    private void writeJson( Writer w, Map<String,List<Object>> extra) throws IOException {
+        w.write( '{');
+        boolean first = true;
+        for( Map.Entry<String,List<Object>> e: super.getEntries()) {
+            if( extra != null && extra.containsKey( e.getKey())) {
+                continue;
+            }
+            first = write( w, first, e.getKey(), e.getValue(), clean.get( e.getKey()));
+        }
+        for( Map.Entry<String,int[]> e: pending.entrySet()) {
+            if( extra == null || !extra.containsKey( e.getKey())) {
+                first = write( w, first, e.getKey(), null, e.getValue());
+            }
+        }
+        if( extra != null) {
+            for( Map.Entry<String,List<Object>> e: extra.entrySet()) {
+                first = write( w, first, e.getKey(), e.getValue(), null);
+            }
+        }
+        w.write( '}');
+    }
+
+    @Override
+    public Payload copy() {
+        return new JsonPayload( this);
+    }
+
+    @Override
+    public Object getFirst( int slot) {
+        if( lazy) {
+            synchronized( pending) {
+                parse( getSchema().getField( slot));
+                return super.getFirst( slot);
+            }
+        }
+        return super.getFirst( slot);
+    }
+
+    @Override
+    public Object getFirst( String key) {
+        if( lazy) {
+            synchronized( pending) {
+                parse( key);
+                return super.getFirst( key);
+            }
+        }
+        return super.getFirst( key);
+    }
+
+    @Override
+    public List<Object> getValues( String key) {
+        if( lazy) {
+            synchronized( pending) {
+                parse( key);
+                return super.getValues( key);
+            }
+        }
+        return super.getValues( key);
+    }
+
+    @Override
+    public String getFirstKey() {
+        inflate();
+        return super.getFirstKey();
+    }
+
+    @Override
+    public String[] getSortedKeys() {
+        inflate();
+        return super.getSortedKeys();
+    }
+
+    @Override
+    public void add( String key, Object obj) {
+        synchronized( pending) {
+            modify( key);
+            super.add( key, obj);
+        }
+    }
+
+    @Override
+    public void set( String key, Object obj) {
+        synchronized( pending) {
+            modify( key);
+            super.set( key, obj);
+        }
+    }
+
+    @Override
+    public int size() {
+        if( lazy) {
+            synchronized( pending) {
+                return super.size() + pending.size();
+            }
+        }
+        return super.size();
+    }
+
+    @Override
+    public boolean containsKey( Object key) {
+        if( lazy) {
+            synchronized( pending) {
+                return pending.containsKey( key) || super.containsKey( key);
+            }
+        }
+        return super.containsKey( key);
+    }
+
+    @Override
+    public List<Object> get( Object key) {
+        synchronized( pending) {
+            modify( key);
+            return super.get( key);
+        }
+    }
+
+    @Override
+    public List<Object> put( String key, List<Object> value) {
+        synchronized( pending) {
+            modify( key);
+            return super.put( key, value);
+        }
+    }
+
+    @Override
+    public List<Object> remove( Object key) {
+        synchronized( pending) {
+            modify( key);
+            return super.remove( key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized( pending) {
+            pending.clear();
+            clean.clear();
+            lazy = false;
+            super.clear();
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String,List<Object>>> entrySet() {
+        synchronized( pending) {
+            inflate();
+            clean.clear();
+        }
+        return super.entrySet();
+    }
+
+    @Override
+    public Set<Map.Entry<String,List<Object>>> getEntries() {
+        inflate();
+        return super.getEntries();
+    }
+
+    private Object writeReplace() {
+        inflate();
+        return super.copy();
+    }
+
+    private boolean write( Writer w, boolean first, String key, List<Object> value, int raw[]) 
+            throws IOException {
+        if( !first) {
+            w.write( ',');
+        }
+        if( raw != null) {
+            w.write( json, raw[ 0], raw[ 2] - raw[ 0]);
+        } else {
+            mapper.toJson( key, w);
+            w.write( ':');
+            mapper.toJson( value, w);
+        }
+        return false;
+    }
+
+    /** A field may be modified, its text is not longer valid. */
+    private void modify( Object key) {
+        parse( key);
+        clean.remove( key);
+    }
+
+    /** Parse all the fields, then it is read w/o the lock. */
+    private void inflate() {
+        if( !lazy) {
+            return;
+        }
+        synchronized( pending) {
+            while( !pending.isEmpty()) {
+                parse( pending.keySet().iterator().next());
+            }
+        }
+    }
+
+    /** Parse the value of a field, if it was not parsed yet. 
+     * Called holding the lock.
+     */
+    private void parse( Object key) {
+        if( !lazy) {
+            return;
+        }
+        int r[] = pending.remove( key);
+        if( r == null) {
+            return;
+        }
+        Object o = mapper.fromJson( json.substring( r[ 1], r[ 2]), Object.class);
+        if( o == null) {
+            super.put( ( String)key, null);
+        } else if( o instanceof List) {
+            super.put( ( String)key, new Payload.Values( ( List<Object>)o));
+        } else {
+            super.put( ( String)key, new Payload.Values( o));
+        }
+        clean.put( ( String)key, r);
+        if( pending.isEmpty()) {
+            lazy = false;   // Published after the values
+        }
+    }
+
+    /** Scan the top level fields. */
+    private void index() {
+        int n = json.length();
+        int i = skipBlanks( 0);
+        if( i >= n || json.startsWith( "null", i)) {
+            return;
+        }
+        if( json.charAt( i) != '{') {
+            throw new IllegalArgumentException( "Expected '{' at " + i);
+        }
+        i = skipBlanks( i + 1);
+        if( i < n && json.charAt( i) == '}') {
+            return;
+        }
+        for( ; ;) {
+            if( i >= n || json.charAt( i) != '"') {
+                throw new IllegalArgumentException( "Expected a field name at " + i);
+            }
+            int ks = i;
+            i = skipString( i);
+            String key = json.substring( ks + 1, i - 1);
+            if( key.indexOf( '\\') >= 0) {
+                key = mapper.fromJson( json.substring( ks, i), String.class);
+            }
+            i = skipBlanks( i);
+            if( i >= n || json.charAt( i) != ':') {
+                throw new IllegalArgumentException( "Expected ':' at " + i);
+            }
+            int vs = skipBlanks( i + 1);
+            i = skipValue( vs);
+            pending.put( key, new int[] { ks, vs, i});
+            i = skipBlanks( i);
+            if( i < n && json.charAt( i) == ',') {
+                i = skipBlanks( i + 1);
+            } else if( i < n && json.charAt( i) == '}') {
+                return;
+            } else {
+                throw new IllegalArgumentException( "Expected ',' or '}' at " + i);
+            }
+        }
+    }
+
+    private int skipBlanks( int i) {
+        while( i < json.length() && Character.isWhitespace( json.charAt( i))) {
+            ++i;
+        }
+        return i;
+    }
+
+    private int skipString( int i) {
+        for( ++i; i < json.length(); ++i) {
+            char c = json.charAt( i);
+            if( c == '\\') {
+                ++i;
+            } else if( c == '"') {
+                return i + 1;
+            }
+        }
+        throw new IllegalArgumentException( "Unterminated string");
+    }
+
+    private int skipValue( int i) {
+        if( i >= json.length()) {
+            throw new IllegalArgumentException( "Expected a value at " + i);
+        }
+        char c = json.charAt( i);
+        if( c == '"') {
+            return skipString( i);
+        } else if( c == '{' || c == '[') {
+            int depth = 0;
+            while( i < json.length()) {
+                c = json.charAt( i);
+                if( c == '"') {
+                    i = skipString( i);
+                    continue;
+                } else if( c == '{' || c == '[') {
+                    ++depth;
+                } else if( ( c == '}' || c == ']') && --depth == 0) {
+                    return i + 1;
+                }
+                ++i;
+            }
+            throw new IllegalArgumentException( "Unterminated value");
+        }
+        int s = i;
+        while( i < json.length() && ",}] \t\r\n".indexOf( json.charAt( i)) < 0) {
+            ++i;
+        }
+        if( i == s) {
+            throw new IllegalArgumentException( "Expected a value at " + i);
+        }
+        return i;
+    }
+
+}
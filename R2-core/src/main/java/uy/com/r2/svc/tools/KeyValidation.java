@@ -7,7 +7,6 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -15,6 +14,7 @@ import org.apache.log4j.Logger;
 import uy.com.r2.core.api.AsyncService;
 import uy.com.r2.core.api.ConfigItemDescriptor;
 import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.PayloadHash;
 import uy.com.r2.core.api.SvcMessage;
 import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
@@ -77,14 +77,14 @@ public class KeyValidation implements AsyncService {
     @Override
     public SvcMessage onRequest( SvcRequest req, Configuration cfg) throws Exception {
         setConfiguration( cfg);
-        String h = sortAndSerialize( req.getPayload());
+        PayloadHash h = req.getPayloadHash( SECRET_TAG);
         LOG.debug( "hash=" + h);
         if( serverMode) {
-            if( !validate(h, "" + req.get(SECRET_TAG))) {
+            if( !validate( h.getBytes(), "" + req.get( SECRET_TAG))) {
                 throw new Exception( "Invalid secret key");
             }    
         } else {
-            req.put( SECRET_TAG, generate( h)); 
+            req.put( SECRET_TAG, generate( h.getBytes())); 
         }
         return req;
     }
@@ -100,12 +100,12 @@ public class KeyValidation implements AsyncService {
     @Override
     public SvcResponse onResponse( SvcResponse res, Configuration cfg) throws Exception {
         setConfiguration( cfg);
-        String h = sortAndSerialize( res.getPayload());
+        PayloadHash h = res.getPayloadHash( SECRET_TAG);
         LOG.debug( "hash=" + h);
         if( serverMode) {
-            res.put( SECRET_TAG, generate( h)); 
+            res.put( SECRET_TAG, generate( h.getBytes())); 
         } else {
-            if( !validate( h, "" + res.get( SECRET_TAG))) {
+            if( !validate( h.getBytes(), "" + res.get( SECRET_TAG))) {
                 throw new Exception( "Invalid secret key");
             }    
         }
@@ -130,32 +130,12 @@ public class KeyValidation implements AsyncService {
     public void shutdown() {
     }
 
-    private String sortAndSerialize( Map<String, List<Object>> m) {
-        Map<String, List<Object>> sm = new TreeMap();
-        sm.putAll( m);
-        StringBuilder sb = new StringBuilder();
-        for( String k: sm.keySet())  {
-            if( k.equals( SECRET_TAG)) {
-                continue;
-            }
-            sb.append( k);
-            sb.append( '=');
-            for( Object o: sm.get(  k)) {
-                sb.append( "" + o);
-                sb.append( ',');
-            }
-            sb.append( '|');
-        }
-        return sb.toString();
-    }
-
-    private boolean validate( String str, String sec) throws Exception {
-        return generate( str).equals( sec);
+    private boolean validate( byte data[], String sec) throws Exception {
+        return generate( data).equals( sec);
     }
     
-    private String generate( String str) throws Exception {
+    private String generate( byte b[]) throws Exception {
         // Hash
-        byte[] b = str.getBytes( "UTF-8");
         MessageDigest md = MessageDigest.getInstance( "MD5");
         //LOG.trace( "inp=" + new String( b));
         byte[] d = md.digest( b);
@@ -179,10 +159,10 @@ public class KeyValidation implements AsyncService {
             System.out.println( "cfg= " + c);
             s.setConfiguration( c);
             String prb = "Esto es una prueba";
-            String sign = s.generate( prb);
+            String sign = s.generate( prb.getBytes( "UTF-8"));
             System.out.println( "prb= " + prb);
             System.out.println( "sign= " + sign);
-            System.out.println( "" + s.validate( prb, sign));
+            System.out.println( "" + s.validate( prb.getBytes( "UTF-8"), sign));
             SvcRequest rq = new SvcRequest( null, 0, 0, "Svc", null, 0);
             rq.put( "Key", "Value");
             System.out.println( "rq= " + rq);
@@ -0,0 +1,285 @@
+/* OffHeapStore.java */
+package uy.com.r2.svc.tools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import uy.com.r2.core.api.PayloadHash;
+
+/** Off-heap store of encoded entries, the second tier of the Cache.
+ * The entries are appended to a ring of direct ByteBuffer slabs, allocated
+ * when they are first used. When the ring is full the oldest slab is
+ * discarded as a whole (FIFO eviction), so there is no fragmentation. <br>
+ * The index is an open addressing table (linear probing) of the 128 bits
+ * hash and the location, also in a direct buffer, so the store puts no
+ * objects on the heap whatever its size. The canonical bytes are kept
+ * with the entry to compare them on a hit.
+ * @author G.Camargo
+ */
+class OffHeapStore {
+    private static final int MIN_SLAB = 1 << 20;
+    private static final int MAX_SLAB = 1 << 26;
+    private static final int SLOT = 24;       // hash high, hash low, location
+    private static final int HEADER = 44;     // length, high, low, expires, fresh, rc, key length
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer slabs[];
+    private final int slabSize;
+    private final ByteBuffer index;
+    private final int mask;
+    private final int maxEntries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private int slab = 0;       // Slab been written
+    private int offset = 0;     // Next position on it
+    private int entries = 0;
+
+    /** Constructor.
+     * @param maxBytes Maximum size of the data
+     * @param maxEntries Maximum number of entries
+     */
+    OffHeapStore( long maxBytes, int maxEntries) {
+        long s = Math.max( MIN_SLAB, Math.min( MAX_SLAB, maxBytes / 8));
+        slabSize = ( int)s;
+        slabs = new ByteBuffer[ ( int)Math.max( 2, ( maxBytes + s - 1) / s)];
+        int slots = Integer.highestOneBit( Math.max( 16, maxEntries) - 1) << 2;   // Load <= 1/2
+        this.maxEntries = slots / 2;
+        mask = slots - 1;
+        index = ByteBuffer.allocateDirect( slots * SLOT);
+        slabs[ 0] = ByteBuffer.allocateDirect( slabSize);
+    }
+
+    /** Store an entry, replacing the previous one.
+     * @param key Canonical hash
+     * @param data Encoded value
+     * @param rc Result code
+     * @param fresh Absolute time to refresh it in mS
+     * @param expires Absolute time to expire in mS
+     * @return false if it does not fit in a slab
+     */
+    boolean put( PayloadHash key, ByteBuffer data, int rc, long fresh, long expires) {
+        byte kb[] = key.getBytes();
+        int len = HEADER + kb.length + data.remaining();
+        if( len > slabSize) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if( offset + len > slabSize) {
+                next();
+            }
+            while( entries >= maxEntries) {
+                next();
+            }
+            ByteBuffer b = slabs[ slab];
+            int at = offset;
+            b.putInt( at, len);
+            b.putLong( at + 4, high( key));
+            b.putLong( at + 12, key.getLow());
+            b.putLong( at + 20, expires);
+            b.putLong( at + 28, fresh);
+            b.putInt( at + 36, rc);
+            b.putInt( at + 40, kb.length);
+            ByteBuffer d = b.duplicate();
+            d.position( at + HEADER);
+            d.put( kb);
+            d.put( data);
+            offset += len;
+            if( offset + 4 <= slabSize) {
+                b.putInt( offset, 0);   // End of the slab records
+            }
+            long loc = ( ( long)slab << 32) | at;
+            int i = find( high( key), key.getLow());
+            if( index.getLong( i * SLOT) == 0) {
+                ++entries;
+            }
+            index.putLong( i * SLOT, high( key));
+            index.putLong( i * SLOT + 8, key.getLow());
+            index.putLong( i * SLOT + 16, loc);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Get an entry not expired.
+     * @param key Canonical hash
+     * @param now Actual time in mS
+     * @return Entry with a copy of the encoded value, or null
+     */
+    Entry get( PayloadHash key, long now) {
+        byte kb[] = key.getBytes();
+        lock.lock();
+        try {
+            int i = find( high( key), key.getLow());
+            if( index.getLong( i * SLOT) != 0) {
+                long loc = index.getLong( i * SLOT + 16);
+                ByteBuffer b = slabs[ ( int)( loc >>> 32)];
+                int at = ( int)loc;
+                if( b.getLong( at + 20) <= now) {
+                    delete( i);
+                } else if( b.getInt( at + 40) == kb.length && equals( b, at + HEADER, kb)) {
+                    ByteBuffer d = b.duplicate();
+                    d.limit( at + b.getInt( at));
+                    d.position( at + HEADER + kb.length);
+                    Entry e = new Entry();
+                    e.data = ByteBuffer.allocate( d.remaining());
+                    e.data.put( d);
+                    e.data.flip();
+                    e.rc = b.getInt( at + 36);
+                    e.fresh = b.getLong( at + 28);
+                    e.expires = b.getLong( at + 20);
+                    hits.incrementAndGet();
+                    return e;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /** Remove an entry, its space is free when its slab is discarded.
+     * @param key Canonical hash
+     */
+    void remove( PayloadHash key) {
+        lock.lock();
+        try {
+            int i = find( high( key), key.getLow());
+            if( index.getLong( i * SLOT) != 0) {
+                delete( i);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remove all the entries, the slabs are kept. */
+    void clear() {
+        lock.lock();
+        try {
+            for( int i = 0; i <= mask; ++i) {
+                index.putLong( i * SLOT, 0);
+            }
+            entries = 0;
+            slab = 0;
+            offset = 0;
+            slabs[ 0].putInt( 0, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        return entries;
+    }
+
+    /** Get the bytes allocated off-heap.
+     * @return Bytes
+     */
+    long getAllocated() {
+        long n = index.capacity();
+        for( ByteBuffer b: slabs) {
+            n += ( b == null)? 0: b.capacity();
+        }
+        return n;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /** Go to the next slab, discarding the entries it has. */
+    private void next() {
+        slab = ( slab + 1) % slabs.length;
+        offset = 0;
+        ByteBuffer b = slabs[ slab];
+        if( b == null) {
+            slabs[ slab] = ByteBuffer.allocateDirect( slabSize);
+            return;
+        }
+        for( int at = 0; at + HEADER <= slabSize; ) {
+            int len = b.getInt( at);
+            if( len <= 0) {
+                break;
+            }
+            int i = find( b.getLong( at + 4), b.getLong( at + 12));
+            if( index.getLong( i * SLOT) != 0 && index.getLong( i * SLOT + 16) == ( ( ( long)slab << 32) | at)) {
+                delete( i);
+                evictions.incrementAndGet();
+            }
+            at += len;
+        }
+    }
+
+    /** Slot of the hash, or the empty slot where it goes. */
+    private int find( long high, long low) {
+        int i = ( int)( low ^ ( low >>> 32)) & mask;
+        for( ; ;) {
+            long h = index.getLong( i * SLOT);
+            if( h == 0 || ( h == high && index.getLong( i * SLOT + 8) == low)) {
+                return i;
+            }
+            i = ( i + 1) & mask;
+        }
+    }
+
+    /** Delete a slot, shifting back the following ones of its run. */
+    private void delete( int i) {
+        --entries;
+        int j = i;
+        for( ; ;) {
+            index.putLong( i * SLOT, 0);
+            for( ; ;) {
+                j = ( j + 1) & mask;
+                long h = index.getLong( j * SLOT);
+                if( h == 0) {
+                    return;
+                }
+                long low = index.getLong( j * SLOT + 8);
+                int k = ( int)( low ^ ( low >>> 32)) & mask;   // Its home slot
+                if( ( i <= j)? ( i < k && k <= j): ( i < k || k <= j)) {
+                    continue;   // It is still reachable
+                }
+                index.putLong( i * SLOT, h);
+                index.putLong( i * SLOT + 8, low);
+                index.putLong( i * SLOT + 16, index.getLong( j * SLOT + 16));
+                i = j;
+                break;
+            }
+        }
+    }
+
+    /** The high part of the hash, 0 is the empty slot. */
+    private static long high( PayloadHash key) {
+        return ( key.getHigh() == 0)? 1: key.getHigh();
+    }
+
+    private static boolean equals( ByteBuffer b, int at, byte kb[]) {
+        for( int i = 0; i < kb.length; ++i) {
+            if( b.get( at + i) != kb[ i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Entry got from the store. */
+    static class Entry {
+        ByteBuffer data;
+        int rc;
+        long fresh;
+        long expires;
+    }
+
+}
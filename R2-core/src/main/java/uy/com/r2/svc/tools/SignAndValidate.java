@@ -11,12 +11,12 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import javax.xml.bind.DatatypeConverter;
 import org.apache.log4j.Logger;
 import uy.com.r2.core.api.AsyncService;
 import uy.com.r2.core.api.ConfigItemDescriptor;
 import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.PayloadHash;
 import uy.com.r2.core.api.SvcMessage;
 import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
@@ -27,6 +27,7 @@ import uy.com.r2.core.api.SvcResponse;
  */
 public class SignAndValidate implements AsyncService {
     private static Logger log = Logger.getLogger( SignAndValidate.class);
+    private static final String SIGNATURE = "Signature";
     private String signatureAlgorithm = "SHA256withRSA";
     private String keystoreType = "pkcs12";
     private boolean validateReq = false;
@@ -93,14 +94,14 @@ public class SignAndValidate implements AsyncService {
     public SvcMessage onRequest( SvcRequest req, Configuration cfg) throws Exception {
         setConfiguration( cfg);
         Map<String,List<Object>> m = req.getPayload();
-        String h = sortAndSerialize( m);
+        PayloadHash h = req.getPayloadHash( SIGNATURE);
         log.debug( "hash=" + h);
         if( validateReq) {
-            if( !validate( h, "" + req.get( "Signature"))) {
+            if( !validate( h.getBytes(), "" + req.get( SIGNATURE))) {
                 throw new Exception( "Invalid signature");
             }    
         } else {
-            SvcMessage.addToMap( m, "Signature", sign( h)); 
+            SvcMessage.addToMap( m, SIGNATURE, sign( h.getBytes())); 
         }
         return req.clone( m);
     }
@@ -117,14 +118,14 @@ public class SignAndValidate implements AsyncService {
     public SvcResponse onResponse( SvcResponse res, Configuration cfg) throws Exception {
         setConfiguration( cfg);
         Map<String,List<Object>> m = res.getPayload();
-        String h = sortAndSerialize( m);
+        PayloadHash h = res.getPayloadHash( SIGNATURE);
         log.debug( "hash=" + h);
         if( validateResp) {
-            if( !validate( h, "" + res.get( "Signature"))) {
+            if( !validate( h.getBytes(), "" + res.get( SIGNATURE))) {
                 throw new Exception( "Invalid signature");
             }    
         } else {
-            SvcMessage.addToMap( m, "Signature", sign( h)); 
+            SvcMessage.addToMap( m, SIGNATURE, sign( h.getBytes())); 
         }
         return res;
     }
@@ -147,35 +148,19 @@ public class SignAndValidate implements AsyncService {
     public void shutdown() {
     }
 
-    private String sortAndSerialize( Map<String, List<Object>> m) {
-        Map<String, List<Object>> sm = new TreeMap();
-        sm.putAll( m);
-        StringBuilder sb = new StringBuilder();
-        for( String k: sm.keySet())  {
-            sb.append( k);
-            sb.append( '=');
-            for( Object o: sm.get(  k)) {
-                sb.append( "" + o);
-                sb.append( ',');
-            }
-            sb.append( '\n');
-        }
-        return sb.toString();
-    }
-
-    private String sign( String hash) throws Exception {
+    private String sign( byte data[]) throws Exception {
         Signature s = Signature.getInstance( signatureAlgorithm);
         s.initSign( prvKey);
-        s.update( hash.getBytes());
+        s.update( data);
         return DatatypeConverter.printBase64Binary( s.sign());
     }
 
-    private boolean validate( String hash, String signature) throws Exception {
+    private boolean validate( byte data[], String signature) throws Exception {
         byte sb[] = DatatypeConverter.parseBase64Binary( signature);
         PublicKey puk = cert.getPublicKey();
         Signature s = Signature.getInstance( signatureAlgorithm);
         s.initVerify( puk);
-        s.update( hash.getBytes());
+        s.update( data);
         return s.verify( sb);
     }
 
@@ -187,10 +172,10 @@ public class SignAndValidate implements AsyncService {
             System.out.println( "cfg= " + c);
             s.setConfiguration( c);
             String prb = "Esto es una prueba";
-            String sign = s.sign( prb);
+            String sign = s.sign( prb.getBytes( "UTF-8"));
             System.out.println( "prb= " + prb);
             System.out.println( "sign= " + sign);
-            System.out.println( "" + s.validate( prb, sign));
+            System.out.println( "" + s.validate( prb.getBytes( "UTF-8"), sign));
         } catch( Exception x) {
             x.printStackTrace( System.err);
         }    
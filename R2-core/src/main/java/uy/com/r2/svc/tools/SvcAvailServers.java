@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import org.apache.log4j.Logger;
 import uy.com.r2.core.SvcCatalog;
+import uy.com.r2.core.TaskExecutor;
 import uy.com.r2.core.ModuleInfo;
 import uy.com.r2.core.SvcDeployer;
 import uy.com.r2.core.api.SvcRequest;
@@ -69,6 +70,7 @@ public class SvcAvailServers implements AsyncService, StartableModule, Runnable
     private long masterTimeStamp = System.currentTimeMillis();
     private int nodeTxNr = 0;
     private boolean stop = false;
+    private TaskExecutor executor = null;
     private String localName = new SvcRequest( null, 0, 0, null, null, 0).getClientNode();
     // Cfg
     private URL localUrl = null;
@@ -103,6 +105,7 @@ public class SvcAvailServers implements AsyncService, StartableModule, Runnable
                 "Max.time to wait a KEEP_ALIVE, in mS", "10000"));
         l.add( new ConfigItemDescriptor( "KeepAliveDelay", ConfigItemDescriptor.INTEGER,
                 "Delay time to sleep waiting", "5000"));
+        TaskExecutor.addConfigDescriptor( l, TaskExecutor.PLATFORM);
         return l;
     }
     
@@ -127,8 +130,10 @@ public class SvcAvailServers implements AsyncService, StartableModule, Runnable
         }
         masterTimeStamp = System.currentTimeMillis();
         LOG.debug( "Starting ............... " + localName + " rmt= " + remoteUrl + " " + masterName);
-        Thread t = new Thread( this, "KeepAlive");
-        t.start();
+        if( executor == null) {
+            executor = new TaskExecutor( "KeepAlive", cfg.getString( "Execution"), 1);
+            executor.execute( this);
+        }
     }
 
     /** Invocation dispatch phase.
@@ -199,6 +204,9 @@ public class SvcAvailServers implements AsyncService, StartableModule, Runnable
         } 
         map.put( "TimeStamp", "" + ( System.currentTimeMillis() -  masterTimeStamp));
         map.put( "KnownServers", knownServers);
+        if( executor != null) {
+            map.putAll( executor.getStatusVars());
+        }
         return map;
     }
 
@@ -206,6 +214,9 @@ public class SvcAvailServers implements AsyncService, StartableModule, Runnable
     @Override
     public void shutdown() {
         stop = true;
+        if( executor != null) {
+            executor.shutdown();
+        }
     }
 
     /** Remote command execution.
@@ -14,6 +14,7 @@ import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
 import uy.com.r2.core.api.ConfigItemDescriptor;
 import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.MessagePool;
 import uy.com.r2.core.api.Module;
 import uy.com.r2.core.api.SvcMessage;
 import uy.com.r2.core.api.SimpleService;
@@ -288,6 +289,7 @@ public class SvcMonitor implements AsyncService, SimpleService {
 
     private synchronized void putReq( SvcRequest req) {
         if( keepLast > 0) {
+            MessagePool.keep( req);   // Shown after its response
             lastReqs[ lastReqIndex++] = req;
             lastReqIndex %= keepLast;
         }
@@ -296,6 +298,7 @@ public class SvcMonitor implements AsyncService, SimpleService {
     private synchronized void putResp( SvcResponse res) {
         res.updateResponseTime();
         if( keepLast > 0) {
+            MessagePool.keep( res);
             lastResp[ lastRespIndex++] = res;
             lastRespIndex %= keepLast;
         }
@@ -304,6 +307,7 @@ public class SvcMonitor implements AsyncService, SimpleService {
     private synchronized void putError( SvcResponse res) {
         res.updateResponseTime();
         if( keepLast > 0) {
+            MessagePool.keep( res);
             lastErrors[ lastErrorIndex++] = res;
             lastErrorIndex %= keepLast;
         }
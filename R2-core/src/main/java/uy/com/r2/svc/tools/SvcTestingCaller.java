@@ -1,12 +1,14 @@
 /* SvcTestingCaller.java */
 package uy.com.r2.svc.tools;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.log4j.Logger;
 import uy.com.r2.core.SvcCatalog;
+import uy.com.r2.core.TaskExecutor;
 import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
 import uy.com.r2.core.api.ConfigItemDescriptor;
@@ -26,6 +28,7 @@ public class SvcTestingCaller implements StartableModule {
     private int testThreads = 1;
     private int testIterations = Integer.MAX_VALUE;
     private int sleepTime = 0;
+    private int batchSize = 1;
     private String msgs[] = { ""};
     private String pipe = null;
     private int invocationTimeout = 1000;
@@ -41,6 +44,7 @@ public class SvcTestingCaller implements StartableModule {
     private int errors = 0;
     private int iterations = 0;
     private int responseTimeSum = 0;
+    private TaskExecutor executor = null;
     
     /** Get the configuration descriptors of this module.
      * @return ConfigItemDescriptor List
@@ -56,6 +60,8 @@ public class SvcTestingCaller implements StartableModule {
                 "Test loop iterations", "1"));
         l.add( new ConfigItemDescriptor( "SleepTime", ConfigItemDescriptor.INTEGER,
                 "Sleep time after each test loop in mS", "0"));
+        l.add( new ConfigItemDescriptor( "BatchSize", ConfigItemDescriptor.INTEGER,
+                "Requests dispatched together by Dispatcher.callBatch(), 1 is one by one", "1"));
         l.add( new ConfigItemDescriptor( "Messages", ConfigItemDescriptor.STRING,
                 "List of request messages, separated by comma (,)"));
         l.add( new ConfigItemDescriptor( "Service", ConfigItemDescriptor.STRING,
@@ -68,6 +74,7 @@ public class SvcTestingCaller implements StartableModule {
                 "Service pipeline name to dispatch"));
         l.add( new ConfigItemDescriptor( "DumpStatus", ConfigItemDescriptor.BOOLEAN,
                 "Dump all the status at the end ofthe test", "true"));
+        TaskExecutor.addConfigDescriptor( l, TaskExecutor.PLATFORM);
         return l;
     }
 
@@ -78,6 +85,7 @@ public class SvcTestingCaller implements StartableModule {
         testThreads = cfg.getInt( "TestThreads");
         testIterations = cfg.getInt( "TestIterations");
         sleepTime = cfg.getInt( "SleepTime");
+        batchSize = cfg.getInt( "BatchSize");
         if( cfg.containsKey( "Messages")) {
             msgs = cfg.getString( "Messages").split( ",");
             for( String m: msgs) {
@@ -100,6 +108,10 @@ public class SvcTestingCaller implements StartableModule {
         long t0 = System.currentTimeMillis();
         // Start the threads
         LOG.warn( "**** Starting Tests .... " + testIterations + " on " + testThreads);
+        if( executor != null) {
+            executor.shutdown();
+        }
+        executor = new TaskExecutor( "ClientTest", cfg.getString( "Execution"), testThreads);
         for( int i = 0; i < testThreads; ++i) {
             new Worker( "ClientTest" + i);
         }
@@ -159,6 +171,9 @@ public class SvcTestingCaller implements StartableModule {
         if( time > 0) {
             m.put( "CallsPerSecond", ( 1000.0 * iterations) / time);
         }
+        if( executor != null) {
+            m.putAll( executor.getStatusVars());
+        }
         return m;
     }
 
@@ -166,6 +181,9 @@ public class SvcTestingCaller implements StartableModule {
     @Override
     public void shutdown() {
         stopTest = true;
+        if( executor != null) {
+            executor.shutdown();
+        }
     }
 
     private String getMessage() throws Exception {
@@ -174,15 +192,25 @@ public class SvcTestingCaller implements StartableModule {
         return msgs[ msgIndex = i];
     }
     
-    class Worker extends Thread {
+    class Worker implements Runnable {
+        private final String name;
        
         Worker( String name) {
-            super( name);
+            this.name = name;
             LOG.trace( "Start " + name);
             synchronized( lock) {
                 ++activeWorkers;
             }
-            start();
+            if( !executor.execute( this)) {
+                LOG.warn( "Can't start " + name);
+                synchronized( lock) {
+                    --activeWorkers;
+                }
+            }
+        }
+        
+        String getName() {
+            return name;
         }
 
         @Override
@@ -201,16 +229,16 @@ public class SvcTestingCaller implements StartableModule {
                     iterations += range;
                 }
                 long t = 0;
+                if( batchSize > 1) {
+                    t = runBatches( it0, range);
+                    range = 0;
+                }
                 for( int i = it0; i < it0 + range; ++i) {
                     try {
                         if( LOG.isTraceEnabled()) {
                             LOG.debug(">>> " + pipe + " " + getName() + ":" + i + " " + getName());
                         }
-                        String m = getMessage();
-                        Map<String,List<Object>> data = SvcMessage.addToMap( null, "Data", m);
-                        SvcMessage.addToMap( data, "ItCount", i);
-                        SvcMessage.addToMap( data, "ThName", getName());
-                        SvcRequest rq = new SvcRequest( node, i, 0, service, data, invocationTimeout);
+                        SvcRequest rq = newRequest( i);
                         //long t0 = System.currentTimeMillis();
                         long t0 = System.nanoTime();
                         SvcResponse rp;
@@ -256,6 +284,56 @@ public class SvcTestingCaller implements StartableModule {
                 --activeWorkers;
             }
         }
+
+        private SvcRequest newRequest( int i) throws Exception {
+            String m = getMessage();
+            Map<String,List<Object>> data = SvcMessage.addToMap( null, "Data", m);
+            SvcMessage.addToMap( data, "ItCount", i);
+            SvcMessage.addToMap( data, "ThName", getName());
+            return new SvcRequest( node, i, 0, service, data, invocationTimeout);
+        }
+
+        /** Run a range of iterations by batches.
+         * @return Time in nS
+         */
+        private long runBatches( int it0, int range) {
+            long t = 0;
+            for( int i = it0; i < it0 + range && !stopTest; i += batchSize) {
+                try {
+                    List<SvcRequest> l = new ArrayList( batchSize);
+                    for( int j = i; j < i + batchSize && j < it0 + range; ++j) {
+                        l.add( newRequest( j));
+                    }
+                    long t0 = System.nanoTime();
+                    List<SvcResponse> rs;
+                    if( pipe == null || pipe.isEmpty()) {
+                        rs = SvcCatalog.getDispatcher().callBatch( l);
+                    } else {
+                        rs = SvcCatalog.getDispatcher().callPipelineBatch( pipe, l);
+                    }
+                    t += ( System.nanoTime() - t0);
+                    for( SvcResponse rp: rs) {
+                        if( rp.getResultCode() < 0) {
+                            LOG.warn( "Iteration " + rp.getRequestId() + " failed " + rp);
+                            ++errors;
+                        }
+                    }
+                    if( errors > 100) {
+                        LOG.error( getName() + " Stopped by >100 errors" + errors);
+                        stopTest = true;
+                    }
+                    if( sleepTime > 0) {
+                        Thread.sleep( sleepTime);
+                    }
+                } catch( Exception ex) {
+                    synchronized( this) {
+                        ++errors;
+                    }
+                    LOG.warn( ex, ex);
+                }
+            }
+            return t;
+        }
         
     }
     
@@ -0,0 +1,506 @@
+/* TinyLfuCache.java */
+package uy.com.r2.svc.tools;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Concurrent cache bounded by entries and weight, with W-TinyLFU admission.
+ * The new entries get in a small LRU window, the ones that leave it
+ * compete to get in the main segmented LRU (probation and protected) by the
+ * frequency estimated on a count-min sketch of 4 bits counters, which is
+ * halved from time to time to forget the old history. <br>
+ * The reads are lock free, the accesses are recorded in a lossy buffer
+ * drained when the lock is free. The writes take the lock, and sweep some
+ * entries to remove the expired ones. The evicted entries are notified to
+ * the Listener out of the lock, to move them to a second tier.
+ * @author G.Camargo
+ */
+class TinyLfuCache<K,V> {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int READ_BUFFER = 64;   // Power of 2
+    private static final int SWEEP_STEP = 8;
+
+    private final Map<K,Node<K,V>> map = new ConcurrentHashMap();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicReferenceArray<Node<K,V>> reads = new AtomicReferenceArray( READ_BUFFER);
+    private final AtomicInteger readCount = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final Node<K,V> queues[] = new Node[ 3];   // Sentinels of the LRU lists
+    private final int counts[] = new int[ 3];
+    private Sketch sketch;
+    private Iterator<Node<K,V>> sweeper = null;
+    private volatile Listener<K,V> listener = null;
+    private volatile int maxEntries;
+    private volatile long maxWeight;
+    private volatile long weight = 0;
+
+    /** Constructor.
+     * @param maxEntries Maximum number of entries
+     * @param maxWeight Maximum total weight
+     */
+    TinyLfuCache( int maxEntries, long maxWeight) {
+        for( int i = 0; i < queues.length; ++i) {
+            queues[ i] = new Node( null, null, 0, 0);
+            queues[ i].prev = queues[ i];
+            queues[ i].next = queues[ i];
+        }
+        setLimits( maxEntries, maxWeight);
+    }
+
+    /** Set the listener of the evicted entries.
+     * @param listener Listener or null
+     */
+    void setListener( Listener<K,V> listener) {
+        this.listener = listener;
+    }
+
+    /** Change the limits, evicting the entries over them.
+     * The frequency sketch is sized again, losing its history, only when 
+     * the maximum number of entries changes.
+     * @param maxEntries Maximum number of entries
+     * @param maxWeight Maximum total weight
+     */
+    void setLimits( int maxEntries, long maxWeight) {
+        List<Node<K,V>> ev;
+        maxEntries = Math.max( 1, maxEntries);
+        maxWeight = ( maxWeight <= 0)? Long.MAX_VALUE: maxWeight;
+        lock.lock();
+        try {
+            if( sketch != null && this.maxEntries == maxEntries && this.maxWeight == maxWeight) {
+                return;
+            }
+            if( sketch == null || this.maxEntries != maxEntries) {
+                sketch = new Sketch( maxEntries);
+            }
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+            ev = evict();
+        } finally {
+            lock.unlock();
+        }
+        notifyEvicted( ev);
+    }
+
+    /** Get a value not expired.
+     * @param key Key
+     * @param now Actual time in mS
+     * @return Value or null
+     */
+    V get( K key, long now) {
+        Node<K,V> n = map.get( key);
+        if( n == null) {
+            misses.incrementAndGet();
+            recordMiss( key);
+            return null;
+        }
+        if( n.expires <= now) {
+            misses.incrementAndGet();
+            expire( n);
+            return null;
+        }
+        hits.incrementAndGet();
+        recordRead( n);
+        return n.value;
+    }
+
+    /** Put a value.
+     * A value heavier than the maximum weight is evicted at once, it would 
+     * evict all the others, and the previous value of the key is removed.
+     * @param key Key
+     * @param value Value
+     * @param weight Weight of the value, as its size in bytes
+     * @param expires Absolute time to expire in mS
+     */
+    void put( K key, V value, int weight, long expires) {
+        Node<K,V> n = new Node( key, value, weight, expires);
+        List<Node<K,V>> ev;
+        lock.lock();
+        try {
+            drainReads();
+            sketch.increment( key.hashCode());
+            if( weight > maxWeight) {
+                Node<K,V> old = map.remove( key);
+                if( old != null) {
+                    discard( old);
+                }
+                evictions.incrementAndGet();
+                ev = new ArrayList();
+                ev.add( n);
+            } else {
+                Node<K,V> old = map.put( key, n);
+                if( old != null) {
+                    discard( old);
+                }
+                link( WINDOW, n);
+                this.weight += weight;
+                sweep( System.currentTimeMillis());
+                ev = evict();
+            }
+        } finally {
+            lock.unlock();
+        }
+        notifyEvicted( ev);
+    }
+
+    /** Remove a value.
+     * @param key Key
+     * @return Value or null
+     */
+    V remove( K key) {
+        lock.lock();
+        try {
+            Node<K,V> n = map.remove( key);
+            if( n == null) {
+                return null;
+            }
+            discard( n);
+            return n.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remove all the values. */
+    void clear() {
+        lock.lock();
+        try {
+            for( Node<K,V> n: map.values()) {
+                n.queue = -1;   // Ignored if a read of it is recorded
+            }
+            map.clear();
+            for( int i = 0; i < queues.length; ++i) {
+                queues[ i].prev = queues[ i];
+                queues[ i].next = queues[ i];
+                counts[ i] = 0;
+            }
+            for( int i = 0; i < READ_BUFFER; ++i) {
+                reads.set( i, null);
+            }
+            sweeper = null;
+            weight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remove the expired entries, a step of the sweep.
+     * @param now Actual time in mS
+     */
+    void expire( long now) {
+        lock.lock();
+        try {
+            sweep( now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    long getWeight() {
+        return weight;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    long getExpirations() {
+        return expirations.get();
+    }
+
+    /** Get the ratio of hits.
+     * @return From 0 to 1
+     */
+    double getHitRatio() {
+        long h = hits.get();
+        long t = h + misses.get();
+        return ( t == 0)? 0: ( double)h / t;
+    }
+
+    /** The misses count as accesses, to admit the keys often requested. */
+    private void recordMiss( K key) {
+        if( lock.tryLock()) {
+            try {
+                sketch.increment( key.hashCode());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void recordRead( Node<K,V> n) {
+        int i = readCount.getAndIncrement();
+        if( i < READ_BUFFER) {
+            reads.lazySet( i, n);
+        }
+        if( i >= READ_BUFFER / 2 && lock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void expire( Node<K,V> n) {
+        if( lock.tryLock()) {
+            try {
+                if( map.remove( n.key, n)) {
+                    discard( n);
+                    expirations.incrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Apply the recorded reads, with the lock. */
+    private void drainReads() {
+        int c = Math.min( readCount.get(), READ_BUFFER);
+        for( int i = 0; i < c; ++i) {
+            Node<K,V> n = reads.getAndSet( i, null);
+            if( n != null && n.queue >= 0) {
+                onAccess( n);
+            }
+        }
+        readCount.set( 0);
+    }
+
+    private void onAccess( Node<K,V> n) {
+        sketch.increment( n.key.hashCode());
+        if( n.queue == PROBATION) {   // Promote it
+            unlink( n);
+            link( PROTECTED, n);
+            int maxProtected = mainSize() * 4 / 5;
+            while( counts[ PROTECTED] > maxProtected) {
+                Node<K,V> d = queues[ PROTECTED].next;
+                unlink( d);
+                link( PROBATION, d);
+            }
+        } else {
+            int q = n.queue;
+            unlink( n);
+            link( q, n);
+        }
+    }
+
+    /** Check some entries to remove the expired ones, with the lock. */
+    private void sweep( long now) {
+        if( sweeper == null || !sweeper.hasNext()) {
+            sweeper = map.values().iterator();
+        }
+        for( int i = 0; i < SWEEP_STEP && sweeper.hasNext(); ++i) {
+            Node<K,V> n = sweeper.next();
+            if( n.expires <= now && map.remove( n.key, n)) {
+                discard( n);
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    /** Move the window overflow to the main space, and evict the entries
+     * over the limits, the candidate from the window against the victim of
+     * the main space, with the lock.
+     * @return Evicted entries to notify, or null */
+    private List<Node<K,V>> evict() {
+        List<Node<K,V>> ev = null;
+        int maxWindow = Math.max( 1, maxEntries / 100);
+        while( counts[ WINDOW] > maxWindow) {
+            Node<K,V> n = queues[ WINDOW].next;
+            unlink( n);
+            link( PROBATION, n);
+        }
+        while( map.size() > maxEntries || weight > maxWeight) {
+            Node<K,V> victim = first( PROBATION);
+            if( victim == null) {
+                victim = first( PROTECTED);
+            }
+            if( victim == null) {
+                victim = first( WINDOW);
+            }
+            if( victim == null) {
+                break;
+            }
+            Node<K,V> candidate = queues[ PROBATION].prev;
+            if( victim.queue == PROBATION && candidate != victim
+                    && sketch.frequency( candidate.key.hashCode())
+                        <= sketch.frequency( victim.key.hashCode())) {
+                victim = candidate;   // Not admitted
+            }
+            if( map.remove( victim.key, victim)) {
+                evictions.incrementAndGet();
+                if( listener != null) {
+                    if( ev == null) {
+                        ev = new ArrayList();
+                    }
+                    ev.add( victim);
+                }
+            }
+            discard( victim);
+        }
+        return ev;
+    }
+
+    /** Notify the evicted entries, out of the lock. */
+    private void notifyEvicted( List<Node<K,V>> ev) {
+        Listener<K,V> l = listener;
+        if( ev == null || l == null) {
+            return;
+        }
+        for( Node<K,V> n: ev) {
+            l.evicted( n.key, n.value, n.expires);
+        }
+    }
+
+    private int mainSize() {
+        return maxEntries - Math.max( 1, maxEntries / 100);
+    }
+
+    private Node<K,V> first( int queue) {
+        Node<K,V> n = queues[ queue].next;
+        return ( n == queues[ queue])? null: n;
+    }
+
+    private void link( int queue, Node<K,V> n) {
+        Node<K,V> h = queues[ queue];
+        n.prev = h.prev;
+        n.next = h;
+        h.prev.next = n;
+        h.prev = n;
+        n.queue = queue;
+        ++counts[ queue];
+    }
+
+    private void unlink( Node<K,V> n) {
+        if( n.queue < 0) {
+            return;
+        }
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+        n.prev = null;
+        n.next = null;
+        --counts[ n.queue];
+        n.queue = -1;
+    }
+
+    /** Unlink a removed entry. */
+    private void discard( Node<K,V> n) {
+        if( n.queue >= 0) {
+            unlink( n);
+            weight -= n.weight;
+        }
+    }
+
+    /** Listener of the evicted entries, as a second tier. */
+    interface Listener<K,V> {
+
+        /** An entry was evicted by the limits, not expired nor removed.
+         * @param key Key
+         * @param value Value
+         * @param expires Absolute time to expire in mS
+         */
+        void evicted( K key, V value, long expires);
+    }
+
+    /** Entry of the cache, linked on its queue. */
+    private static class Node<K,V> {
+        private final K key;
+        private final V value;
+        private final int weight;
+        private final long expires;
+        private Node<K,V> prev = null;
+        private Node<K,V> next = null;
+        private int queue = -1;
+
+        private Node( K key, V value, int weight, long expires) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+        }
+    }
+
+    /** Count-min sketch of 4 bits counters, 16 by long, with 4 hashes. */
+    private static class Sketch {
+        private static final long SEEDS[] = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private final long table[];
+        private final int mask;
+        private final int sampleSize;
+        private int samples = 0;
+
+        private Sketch( int maxEntries) {
+            int n = Integer.highestOneBit( Math.max( 2, Math.min( maxEntries, 1 << 24)) - 1) << 1;
+            table = new long[ n];
+            mask = n - 1;
+            sampleSize = 10 * Math.max( 1, maxEntries);
+        }
+
+        private int frequency( int hash) {
+            int f = Integer.MAX_VALUE;
+            for( int i = 0; i < 4; ++i) {
+                int c = ( int)( ( table[ index( hash, i)] >>> shift( hash, i)) & 0xf);
+                f = Math.min( f, c);
+            }
+            return f;
+        }
+
+        private void increment( int hash) {
+            boolean added = false;
+            for( int i = 0; i < 4; ++i) {
+                int x = index( hash, i);
+                int s = shift( hash, i);
+                if( ( ( table[ x] >>> s) & 0xf) < 15) {
+                    table[ x] += 1L << s;
+                    added = true;
+                }
+            }
+            if( added && ++samples >= sampleSize) {
+                reset();
+            }
+        }
+
+        /** Halve all the counters, to age them. */
+        private void reset() {
+            for( int i = 0; i < table.length; ++i) {
+                table[ i] = ( table[ i] >>> 1) & 0x7777777777777777L;
+            }
+            samples /= 2;
+        }
+
+        private int index( int hash, int i) {
+            long h = ( hash + SEEDS[ i]) * SEEDS[ i];
+            h += h >>> 32;
+            return ( int)h & mask;
+        }
+
+        private int shift( int hash, int i) {
+            return ( ( hash >>> ( i << 3)) & 0xf) << 2;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+/* TraceQuery.java */
+package uy.com.r2.svc.tools;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import uy.com.r2.core.PipelineTracer;
+import uy.com.r2.core.api.AsyncService;
+import uy.com.r2.core.api.ConfigItemDescriptor;
+import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.Dispatcher;
+import uy.com.r2.core.api.SvcMessage;
+import uy.com.r2.core.api.SvcRequest;
+import uy.com.r2.core.api.SvcResponse;
+
+/** Service to query the last sampled pipeline traces.
+ * The traces are sampled by the Dispatcher, see its Trace* configuration.
+ * The request may filter by RequestId, Service and MinTime (mS), and 
+ * limit the number of traces by Max. Each trace is returned as a line 
+ * of text on Traces, from the newest. Other services go on.
+ * @author G.Camargo
+ */
+public class TraceQuery implements AsyncService {
+    public static final String SVC_GETTRACES = "GetTraces";
+    private int queries = 0;
+    private String serviceName = SVC_GETTRACES;
+    private int max = 100;
+
+    /** Get the configuration descriptors of this module.
+     * @return ConfigItemDescriptor List
+     */
+    @Override
+    public List<ConfigItemDescriptor> getConfigDescriptors() {
+        LinkedList<ConfigItemDescriptor> l = new LinkedList();
+        l.add( new ConfigItemDescriptor( "ServiceName", ConfigItemDescriptor.STRING, 
+                "Service name to query the traces", SVC_GETTRACES));
+        l.add( new ConfigItemDescriptor( "MaxTraces", ConfigItemDescriptor.INTEGER, 
+                "Maximum number of traces by response", "100"));
+        return l;
+    }
+
+    private void setConfiguration( Configuration cfg) throws Exception {
+        if( !cfg.isUpdated()) {
+            return;
+        }
+        serviceName = cfg.getString( "ServiceName");
+        max = cfg.getInt( "MaxTraces");
+        cfg.clearUpdated();
+    }
+
+    /** Invocation dispatch phase.
+     * @param req Invocation message from caller
+     * @param cfg Module configuration
+     * @return SvcResponse with the traces, or the same SvcRequest to go on
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public SvcMessage onRequest( SvcRequest req, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        if( !req.getServiceName().equals( serviceName)) {
+            return req;
+        }
+        ++queries;
+        Object id = req.get( "RequestId");
+        Object svc = req.get( "Service");
+        Object mt = req.get( "MinTime");
+        Object mx = req.get( "Max");
+        int n = ( mx == null)? max: Math.min( max, Integer.parseInt( "" + mx));
+        SvcResponse resp = new SvcResponse( 0, req);
+        List<PipelineTracer.Trace> l = PipelineTracer.getTracer().getTraces( 
+                ( id == null)? null: "" + id, ( svc == null)? null: "" + svc,
+                ( mt == null)? 0: Long.parseLong( "" + mt), n);
+        resp.add( "Count", l.size());
+        for( PipelineTracer.Trace t: l) {
+            resp.add( "Traces", t.toString());
+        }
+        return resp;
+    }
+
+    /** Process a response phase.
+     * @param resp SvcResponse message
+     * @param cfg Module configuration
+     * @return SvcResponse message to caller
+     * @throws Exception Unexpected error
+     */
+    @Override
+    public SvcResponse onResponse( SvcResponse resp, Configuration cfg) throws Exception {
+        setConfiguration( cfg);
+        if( resp.getRequest().getServiceName().equals( Dispatcher.SVC_GETSERVICESLIST)) {
+            resp.add( "Services", serviceName);
+        } 
+        return resp;
+    }
+
+    /** Get the status report.
+     * @return Variable and value map
+     */
+    @Override
+    public Map<String, Object> getStatusVars() {
+        Map<String,Object> map = new HashMap();
+        Package pak = getClass().getPackage();
+        if( pak != null) {
+            map.put( "Version", "" + pak.getImplementationVersion());
+        } 
+        map.put( "Queries", queries);
+        return map;
+    }
+
+    /** Release all the allocated resources. */
+    @Override
+    public void shutdown() {
+    }
+
+}
@@ -0,0 +1,121 @@
+/* CoalescerTest.java */
+package uy.com.r2.svc.tools.test;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uy.com.r2.core.SimpleDispatcher;
+import uy.com.r2.core.SvcCatalog;
+import uy.com.r2.core.api.ConfigItemDescriptor;
+import uy.com.r2.core.api.Configuration;
+import uy.com.r2.core.api.SimpleService;
+import uy.com.r2.core.api.SvcRequest;
+import uy.com.r2.core.api.SvcResponse;
+import uy.com.r2.svc.tools.Coalescer;
+
+/** Coalescer service test, through the Dispatcher.
+ * @author Gustavo Camargo
+ */
+public class CoalescerTest {
+    static final AtomicInteger CALLS = new AtomicInteger();
+    static final int WAITERS = 4;
+    SvcCatalog catalog;
+
+    /** Back end that drops the first call and answers the next ones. */
+    public static class Backend implements SimpleService {
+
+        @Override
+        public SvcResponse call( SvcRequest req, Configuration cfg) throws Exception {
+            if( CALLS.incrementAndGet() == 1) {
+                Thread.sleep( 200);
+                return new SvcResponse( SvcResponse.MSG_TOPPED + "Backend",
+                        SvcResponse.RES_CODE_TOPPED, req);
+            }
+            Thread.sleep( 50);
+            SvcResponse r = new SvcResponse( 0, req);
+            r.put( "Value", "Ok");
+            return r;
+        }
+
+        @Override
+        public List<ConfigItemDescriptor> getConfigDescriptors() {
+            return new LinkedList();
+        }
+
+        @Override
+        public Map<String, Object> getStatusVars() {
+            return null;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        org.apache.log4j.BasicConfigurator.configure();
+        CALLS.set( 0);
+        catalog = SvcCatalog.getCatalog();
+        Configuration cfg = new Configuration();
+        cfg.put( "class", Coalescer.class.getName());
+        catalog.installModule( "TestCoalescer", cfg);
+        cfg = new Configuration();
+        cfg.put( "class", Backend.class.getName());
+        catalog.installModule( "TestBackend", cfg);
+        cfg = new Configuration();
+        cfg.put( "class", SimpleDispatcher.class.getName());
+        cfg.put( "DefaultServicePipeline", "TestCoalescer,TestBackend");
+        catalog.updateConfiguration( "SvcDispatcher", cfg);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        catalog.uninstallModule( "TestCoalescer");
+        catalog.uninstallModule( "TestBackend");
+    }
+
+    /**
+     * Test the waiting requests are dispatched again when the first one is
+     * dropped, and they are not counted twice as in flight.
+     */
+    @Test
+    public void testRetry() throws Exception {
+        System.out.println( "retry" );
+        final SvcResponse resps[] = new SvcResponse[ WAITERS + 1];
+        Thread ths[] = new Thread[ WAITERS + 1];
+        for( int i = 0; i <= WAITERS; ++i) {
+            final int n = i;
+            ths[ i] = new Thread() {
+                @Override
+                public void run() {
+                    SvcRequest req = new SvcRequest( "TEST", n, 0, "Test", null, 5000);
+                    req.put( "Field", "1");
+                    resps[ n] = SvcCatalog.getDispatcher().call( req);
+                }
+            };
+            ths[ i].start();
+            if( i == 0) {
+                Thread.sleep( 50);   // The first one goes on
+            }
+        }
+        for( Thread t: ths) {
+            t.join( 5000);
+        }
+        assertEquals( SvcResponse.RES_CODE_TOPPED, resps[ 0].getResultCode());
+        for( int i = 1; i <= WAITERS; ++i) {
+            assertEquals( 0, resps[ i].getResultCode());
+            assertEquals( "Ok", resps[ i].get( "Value"));
+        }
+        assertEquals( 2, CALLS.get());
+        Map<String,Object> m = catalog.getModuleInfo( "TestCoalescer").getStatusVars();
+        assertEquals( 1L * WAITERS, m.get( "Retried"));
+        assertEquals( 0L, m.get( "InFlight"));
+    }
+
+}
@@ -20,6 +20,7 @@ import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import uy.com.r2.core.MetricsRegistry;
 import uy.com.r2.core.SvcCatalog;
 import uy.com.r2.core.api.StartableModule;
 import uy.com.r2.core.api.ConfigItemDescriptor;
@@ -27,6 +28,8 @@ import uy.com.r2.core.api.Configuration;
 import uy.com.r2.core.api.SvcMessage;
 import uy.com.r2.core.api.SvcRequest;
 import uy.com.r2.core.api.SvcResponse;
+import uy.com.r2.svc.conn.Utf8Writer;
+import uy.com.r2.svc.tools.JsonBody;
 
  
 public class JettyServer extends AbstractHandler implements StartableModule {
@@ -37,10 +40,12 @@ public class JettyServer extends AbstractHandler implements StartableModule {
     private static final String KEYSTORE_PWD_LABEL = "KeyPass";
     private static final String NEED_CLIENT_CERT_LABEL = "NeedClientCert";
     private static final String PIPELINE_LABEL = "NeedClientCert";
+    private static final String METRICS_PATH_LABEL = "MetricsPath";
     
     private static int txNr = 0;
     private Server server = null;
     private String pipe = null;
+    private String metricsPath = "";
 
     /** Get the configuration descriptors of this module.
      * Each module must implement this method to give complete information about 
@@ -61,6 +66,8 @@ public class JettyServer extends AbstractHandler implements StartableModule {
                 "The clieny is required to present a client certificate", null, ConfigItemDescriptor.SECURITY));
         l.add( new ConfigItemDescriptor( PIPELINE_LABEL, ConfigItemDescriptor.STRING, 
                 "Runninf pipeline name to dispatch", null, ConfigItemDescriptor.DEPLOYER));
+        l.add( new ConfigItemDescriptor( METRICS_PATH_LABEL, ConfigItemDescriptor.STRING, 
+                "Path to scrape the metrics in Prometheus text format, empty is none", "/metrics"));
         return l;
     }
 
@@ -75,6 +82,7 @@ public class JettyServer extends AbstractHandler implements StartableModule {
         }
         server = new Server();
         pipe = cfg.getString( PIPELINE_LABEL);
+        metricsPath = cfg.getString( METRICS_PATH_LABEL);
         
         // === HTTP Configuration ===
         HttpConfiguration httpConfig = new HttpConfiguration();
@@ -144,6 +152,10 @@ public class JettyServer extends AbstractHandler implements StartableModule {
             response.sendError( 404);
             return;
         }
+        if( metricsPath != null && !metricsPath.isEmpty() && metricsPath.equals( target)) {
+            sendMetrics( baseRequest, response);
+            return;
+        }
         String node = request.getRemoteAddr();
         if( request.getHeader( "Node") != null) {
             node = request.getHeader( "Node");
@@ -156,8 +168,20 @@ public class JettyServer extends AbstractHandler implements StartableModule {
               SvcMessage.addToMap( params, p, value);
            }
         }
+        String contentType = request.getContentType();
+        if( "POST".equals( request.getMethod()) && contentType != null && contentType.contains( "json")) {
+            JsonBody.read( request.getReader(), params);  // Straight from the input stream
+        }
         // Invoke service
         SvcRequest req = new SvcRequest( node, ++txNr, 0, svc, params, 0);
+        String timeLeft = request.getHeader( SvcRequest.TIME_LEFT_HEADER);
+        if( timeLeft != null) {  // Deadline from the caller
+            try {
+                req.setDeadline( req.getAbsoluteTime() + Long.parseLong( timeLeft.trim()));
+            } catch( NumberFormatException x) {
+                LOG.debug( "Invalid " + SvcRequest.TIME_LEFT_HEADER + " " + timeLeft);
+            }
+        }
         SvcResponse resp = new SvcResponse( 1, req);
         try {
             // Dispatch invocation
@@ -171,26 +195,38 @@ public class JettyServer extends AbstractHandler implements StartableModule {
         }     
         //LOG.trace( thr + " *** to send " + resp.toString().substring( 40) + "...");
         // Prepare and send HTTP sr
-        StringBuilder sr = new StringBuilder();
+        Object body;
         if( userAgent != null && resp.get( "SerializedHtml") != null) {
             LOG.trace( "**** HTML response");
             response.setHeader( "Content-Type", "text/html");
-            sr.append( "" + resp.get( "SerializedHtml"));
+            body = resp.get( "SerializedHtml");
         } else if( resp.get( "SerializedJson") != null) {
             LOG.trace( "**** JSON response");
             response.setHeader( "Content-Type", "application/json");
-            sr.append( "" + resp.get( "SerializedJson"));
+            body = resp.get( "SerializedJson");
         } else {
             LOG.trace( "**** TXT response");
-            sr.append( "" + resp.getPayload());
+            body = resp.getPayload();
         }
-        sr.append( "\n");
         response.setHeader( "ResultCode", "" + resp.getResultCode());
         OutputStream os = response.getOutputStream();
-        os.write( sr.toString().getBytes());
+        Utf8Writer w = new Utf8Writer( os);
+        try {
+            if( body instanceof JsonBody) {  // Unknown size, Jetty sends it chunked
+                ( (JsonBody)body).writeTo( w);
+            } else {
+                String sr = "" + body;
+                response.setContentLength( ( int)Utf8Writer.length( sr) + 1);
+                w.write( sr);
+            }
+            w.write( '\n');
+            w.close();
+        } finally {
+            w.discard();   // The buffer back to the pool, on an error
+        }
         os.flush();
         os.close();
-        LOG.trace( "*** end response lrg=" + sr.length());
+        LOG.trace( "*** end response lrg=" + w.getCount());
         /*
         response.setContentType( "text/html;charset=utf-8");
         response.setStatus( HttpServletResponse.SC_OK);
@@ -199,6 +235,22 @@ public class JettyServer extends AbstractHandler implements StartableModule {
         */
     }
  
+    /** Scrape the metrics, w/o dispatching a request. */
+    private void sendMetrics( Request baseRequest, final HttpServletResponse response) 
+            throws IOException {
+        response.setStatus( HttpServletResponse.SC_OK);
+        response.setHeader( "Content-Type", MetricsRegistry.CONTENT_TYPE);
+        MetricsRegistry.getRegistry().scrape( new MetricsRegistry.Output() {
+            @Override
+            public void write( byte buf[], int len) throws IOException {
+                response.setContentLength( len);
+                response.getOutputStream().write( buf, 0, len);
+            }
+        });
+        response.getOutputStream().flush();
+        baseRequest.setHandled( true);
+    }
+ 
     /** Get the status report of the module.
      * It may occurs at any time to get the current status of the module.
      * The variables may include: Version, ServiceLevel, LastErrors, ...
@@ -154,7 +154,8 @@ public class PropertiesDeployer implements Runnable {
     }
     
     /** Redeploy a service module.
-     * Attention: the class must remain the same, it's ignored.
+     * When the class changes, the new module replaces the old one, and the 
+     * old one is shut down after its requests in flight end.
      * @param fileName File name with extension
      */
     private void redeploy( String fileName) {